@@ -16,7 +16,11 @@ along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.*/
 
 package repastcity3.agent;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import com.vividsolutions.jts.geom.Geometry;
@@ -24,10 +28,13 @@ import com.vividsolutions.jts.geom.Geometry;
 import repast.simphony.context.Context;
 import repastcity3.environment.Building;
 import repastcity3.environment.GISFunctions;
+import repastcity3.environment.RegionPartition;
 import repastcity3.environment.SpatialIndexManager;
 import repastcity3.exceptions.AgentCreationException;
 import repastcity3.main.ContextManager;
 import repastcity3.main.GlobalVars;
+import repastcity3.main.ModelRun;
+import repastcity3.main.RandomStream;
 
 /**
  * Create agents. There are three methods that can be used to create agents: randomly create a number of agents, create
@@ -112,6 +119,10 @@ public class AgentFactory {
 	/** The definition of the agents - specific to the method being used */
 	private String definition;
 
+	/* If agents are only being created in one region of the city (see createAgents(Context, RegionPartition, int)) */
+	private RegionPartition partition;
+	private int region;
+
 	/**
 	 * Create a new agent factory from the given definition.
 	 * 
@@ -153,9 +164,32 @@ public class AgentFactory {
 	}
 
 	public void createAgents(Context<? extends IAgent> context) throws AgentCreationException {
+		this.partition = null;
 		this.methodToUse.createAgMeth().createagents(true, this);
 	}
 
+	/**
+	 * Create only the agents that live in one region of the city, e.g. when the regions are simulated by different
+	 * processes (see <code>RegionCoordinator</code>). With the <code>random</code> method, the number of agents is
+	 * shared out between the regions in proportion to their number of buildings. With the <code>point</code> method,
+	 * agents whose homes are in other regions are discarded.
+	 *
+	 * @param partition
+	 *            The regions that the city has been divided into.
+	 * @param region
+	 *            The region to create agents in.
+	 */
+	public void createAgents(Context<? extends IAgent> context, RegionPartition partition, int region)
+			throws AgentCreationException {
+		this.partition = partition;
+		this.region = region;
+		try {
+			this.methodToUse.createAgMeth().createagents(true, this);
+		} finally {
+			this.partition = null;
+		}
+	}
+
 	/**
 	 * Create a number of in randomly chosen houses. If there are more agents than houses then some houses will have
 	 * more than one agent in them.
@@ -181,11 +215,22 @@ public class AgentFactory {
 
 		// Create agents in randomly chosen houses. Use two while loops in case there are more agents
 		// than houses, so that houses have to be looped over twice.
-		LOGGER.info("Creating " + numAgents + " agents using " + this.methodToUse + " method.");
+		List<Building> homes;
+		if (this.partition == null) {
+			homes = new ArrayList<Building>(ContextManager.getBuildings());
+		} else {
+			numAgents = this.partition.share(numAgents, this.region);
+			homes = new ArrayList<Building>(this.partition.getBuildings(this.region));
+		}
+		LOGGER.info("Creating " + numAgents + " agents using " + this.methodToUse + " method"
+				+ (this.partition == null ? "." : " in region " + this.region + "."));
+		// (The buildings are shuffled with the random stream of the run that the agents are being created for, so
+		// the same agents are created every time that a run with the same seed is executed)
+		RandomStream random = ModelRun.getCurrent().getRandom();
 		int agentsCreated = 0;
 		while (agentsCreated < numAgents) {
-			Iterator<Building> i = ContextManager.buildingContext.getRandomObjects(Building.class, numAgents)
-					.iterator();
+			random.shuffle(homes);
+			Iterator<Building> i = homes.iterator();
 			while (i.hasNext() && agentsCreated < numAgents) {
 				Building b = i.next(); // Find a building
 				IAgent a = new DefaultAgent(); // Create a new agent
@@ -245,6 +290,11 @@ public class AgentFactory {
 
 		// Assign agents to houses
 		int numAgents = 0;
+		Set<Building> homes = null; // (null means any building)
+		if (this.partition != null) {
+			homes = new HashSet<Building>(this.partition.getBuildings(this.region));
+		}
+		List<IAgent> otherRegions = new ArrayList<IAgent>();
 		for (IAgent a : ContextManager.getAllAgents()) {
 			numAgents++;
 			Geometry g = ContextManager.getAgentGeometry(a);
@@ -254,6 +304,17 @@ public class AgentFactory {
 					a.setHome(b);
 				}
 			}
+			if (homes != null && (a.getHome() == null ? this.partition.getRegion(g.getCoordinate()) != this.region
+					: !homes.contains(a.getHome()))) {
+				otherRegions.add(a);
+			}
+		}
+		for (IAgent a : otherRegions) {
+			if (a.getHome() != null) {
+				a.getHome().removeAgent(a);
+			}
+			a.getRun().removeAgent(a);
+			numAgents--;
 		}
 
 		if (singleType) {
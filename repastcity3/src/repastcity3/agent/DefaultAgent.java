@@ -18,28 +18,54 @@ along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
 
 package repastcity3.agent;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import repastcity3.environment.Building;
 import repastcity3.environment.Route;
+import repastcity3.main.Checkpointer;
 import repastcity3.main.ContextManager;
+import repastcity3.main.GlobalVars;
+import repastcity3.main.ModelRun;
+import repastcity3.main.RandomStream;
 
 public class DefaultAgent implements IAgent {
 
 	private static Logger LOGGER = Logger.getLogger(DefaultAgent.class.getName());
 
+	// The agents can walk or use public transport (buses and trains follow the timetable, if there is one, see Route)
+	private static final List<String> TRANSPORT = Collections.unmodifiableList(Arrays.asList(
+			GlobalVars.TRANSPORT_PARAMS.WALK, GlobalVars.TRANSPORT_PARAMS.BUS, GlobalVars.TRANSPORT_PARAMS.TRAIN));
+
 	private Building home; // Where the agent lives
 	private Route route; // An object to move the agent around the world
 
 	private boolean goingHome = false; // Whether the agent is going to or from their home
 
-	private static int uniqueID = 0;
-	private int id;
+	private final ModelRun run; // The model run that the agent belongs to
+	private int id; // Unique within the run
+	private RandomStream random; // The agent's own random numbers (depend on the run's seed and the agent's ID)
 
 	public DefaultAgent() {
-		this.id = uniqueID++;
+		this.run = ModelRun.getCurrent();
+		this.id = this.run.nextAgentID();
+		this.random = RandomStream.forAgent(this.run.getSeed(), this.id);
+	}
+
+	@Override
+	public ModelRun getRun() {
+		return this.run;
+	}
+
+	@Override
+	public RandomStream getRandom() {
+		return this.random;
 	}
 
 	@Override
@@ -49,8 +75,9 @@ public class DefaultAgent implements IAgent {
 		if (this.route == null) {
 			this.goingHome = false; // Must be leaving home
 			// Choose a new building to go to
-			Building b = ContextManager.buildingContext.getRandomObject();
+			Building b = ContextManager.chooseDestination(this, this.home);
 			this.route = new Route(this, b.getCoords(), b);
+			this.route.planInBackground();
 			LOGGER.log(Level.FINE, this.toString() + " created new route to " + b.toString());
 		}
 		if (!this.route.atDestination()) {
@@ -60,14 +87,16 @@ public class DefaultAgent implements IAgent {
 			// Have reached destination, now either go home or onto another building
 			if (this.goingHome) {
 				this.goingHome = false;
-				Building b = ContextManager.buildingContext.getRandomObject();
+				Building b = ContextManager.chooseDestination(this, this.home);
 				this.route = new Route(this, b.getCoords(), b);
+				this.route.planInBackground();
 				LOGGER.log(Level.FINE, this.toString() + " reached home, now going to " + b.toString());
 			} else {
 				LOGGER.log(Level.FINE, this.toString() + " reached " + this.route.getDestinationBuilding().toString()
 						+ ", now going home");
 				this.goingHome = true;
 				this.route = new Route(this, this.home.getCoords(), this.home);
+				this.route.planInBackground();
 			}
 
 		}
@@ -98,7 +127,40 @@ public class DefaultAgent implements IAgent {
 
 	@Override
 	public List<String> getTransportAvailable() {
-		return null;
+		return TRANSPORT;
+	}
+
+	@Override
+	public Checkpointer.State saveState() {
+		final int id = this.id;
+		final boolean goingHome = this.goingHome;
+		final Building home = this.home;
+		final long randomState = this.random.getState();
+		final Checkpointer.State routeState = this.route == null ? null : this.route.saveState();
+		return new Checkpointer.State() {
+			@Override
+			public void write(DataOutput out) throws IOException {
+				out.writeInt(id);
+				out.writeBoolean(goingHome);
+				Checkpointer.writeBuilding(out, home);
+				out.writeLong(randomState);
+				out.writeBoolean(routeState != null);
+				if (routeState != null) {
+					routeState.write(out);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void restoreState(DataInput in) throws IOException {
+		this.id = in.readInt();
+		this.run.reserveAgentID(this.id); // Make sure new agents don't get the same ID
+		this.goingHome = in.readBoolean();
+		this.home = Checkpointer.readBuilding(in);
+		this.random = RandomStream.forAgent(this.run.getSeed(), this.id);
+		this.random.setState(in.readLong());
+		this.route = in.readBoolean() ? Route.restoreState(this, in) : null;
 	}
 
 	@Override
@@ -111,7 +173,7 @@ public class DefaultAgent implements IAgent {
 		if (!(obj instanceof DefaultAgent))
 			return false;
 		DefaultAgent b = (DefaultAgent) obj;
-		return this.id == b.id;
+		return this.id == b.id && this.run == b.run;
 	}
 
 	@Override
@@ -18,9 +18,14 @@ along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
 
 package repastcity3.agent;
 
+import java.io.DataInput;
+import java.io.IOException;
 import java.util.List;
 
 import repastcity3.environment.Building;
+import repastcity3.main.Checkpointer;
+import repastcity3.main.ModelRun;
+import repastcity3.main.RandomStream;
 
 /**
  * All agents must implement this interface so that it the simulation knows how
@@ -49,6 +54,18 @@ public interface IAgent {
 	 */
 	boolean isThreadable();
 	
+	/**
+	 * Get the model run that the agent belongs to. This should be the run returned by
+	 * <code>ModelRun.getCurrent()</code> when the agent was created.
+	 */
+	ModelRun getRun();
+
+	/**
+	 * Get the agent's own stream of random numbers. Agents should use this, rather than the Repast generator, for all
+	 * of their random choices so that runs with multiple threads can be repeated (see <code>RandomStream</code>).
+	 */
+	RandomStream getRandom();
+	
 	/**
 	 * Set where the agent lives.
 	 */
@@ -76,5 +93,20 @@ public interface IAgent {
 	 */
 	List<String> getTransportAvailable();
 	
+	/**
+	 * (Optional). Capture the agent's state so that it can be saved in a checkpoint (see <code>Checkpointer</code>).
+	 * This is called between iterations and the returned state is written to disk later by a background thread, so
+	 * it should be quick and the state must not change when the agent is next stepped (copy any values that might).
+	 * The agent's position is saved separately. Agents with no state can return null.
+	 */
+	Checkpointer.State saveState();
+	
+	/**
+	 * (Optional). Restore the state that was saved by <code>saveState()</code> when the model is resumed from a
+	 * checkpoint. This is called before the agent is added to the agent context.
+	 * @param in The state that was written by <code>saveState()</code>.
+	 * @throws IOException If the state can't be read.
+	 */
+	void restoreState(DataInput in) throws IOException;
 	
 }
@@ -22,6 +22,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import repastcity3.main.ContextManager;
+import repastcity3.main.ModelRun;
 
 /**
  * This class can be used to step agents in different threads simulataneously.
@@ -53,6 +54,20 @@ public class ThreadedAgentScheduler {
 
 	private boolean burglarsFinishedStepping;
 
+	private final ModelRun run; // The run whose agents are stepped
+
+	/**
+	 * @param run
+	 *            The model run whose agents will be stepped.
+	 */
+	public ThreadedAgentScheduler(ModelRun run) {
+		this.run = run;
+	}
+
+	ModelRun getRun() {
+		return this.run;
+	}
+
 	/**
 	 * This is called once per iteration and goes through each burglar calling
 	 * their step method. This is done (instead of using Repast scheduler) to
@@ -69,7 +84,7 @@ public class ThreadedAgentScheduler {
 				this.wait(); // Wait for the ThreadController to call setBurglarsFinishedStepping().
 			} catch (InterruptedException e) {
 				LOGGER.log(Level.SEVERE, "", e);
-				ContextManager.stopSim(e, ThreadedAgentScheduler.class);
+				this.run.stop(e, ThreadedAgentScheduler.class);
 			}// Wait until the thread controller has finished
 		}
 	}
@@ -115,7 +130,7 @@ class ThreadController implements Runnable {
 	 */
 	public void run() {
 
-		for (IAgent b : ContextManager.getAllAgents()) {
+		for (IAgent b : this.cc.getRun().getAllAgents()) {
 
 			// Find a free cpu to exectue on
 			boolean foundFreeCPU = false; // Determine if there are no free CPUs
@@ -178,7 +193,7 @@ class ThreadController implements Runnable {
 			// System.out.println("NOTIFIED");
 		} catch (InterruptedException e) {
 			LOGGER.log(Level.SEVERE, "", e);
-			ContextManager.stopSim(e, ThreadedAgentScheduler.class);
+			this.cc.getRun().stop(e, ThreadedAgentScheduler.class);
 		}// Wait until the thread controller has finished
 
 	}
@@ -224,7 +239,7 @@ class BurglarThread implements Runnable {
 			this.theburglar.step();
 		} catch (Exception ex) {
 			LOGGER.log(Level.SEVERE, "ThreadedAgentScheduler caught an error, telling model to stop", ex);
-			ContextManager.stopSim(ex, this.getClass());
+			this.theburglar.getRun().stop(ex, this.getClass());
 		}
 		// Tell the ThreadController that this thread has finished
 		tc.setCPUFree(this.cpuNumber); // Tell the ThreadController that this
@@ -18,10 +18,110 @@ along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
 
 package repastcity3.environment;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+import repastcity3.exceptions.NoIdentifierException;
+
 /**
- * Represent an area/neighbourhood/community.
+ * Represent an area/neighbourhood/community. Areas are read from the (optional) area shapefile (e.g. census output
+ * areas, see <code>GlobalVars.AreaShapefile</code>) and every building is assigned to the area that it is in (see
+ * <code>GISFunctions.assignBuildingsToAreas()</code>). Areas are the zones used by <code>ZoneSkim</code> and
+ * <code>GravityModel</code>.
  * @author Nick Malleson
  */
-public class Area {
+public class Area implements FixedGeography, Identified {
+
+	/**
+	 * A unique identifier for areas, set from the 'identifier' (or 'ID') column in the shapefile
+	 */
+	private String identifier;
+
+	/**
+	 * The area's classification (e.g. the OAC subgroup, set from the 'SUBGROUP' column in the shapefile). Can be null.
+	 */
+	private String classification;
+
+	/** The centroid of the area */
+	private Coordinate coords;
+
+	/** The position of this area in <code>ContextManager.getAreas()</code> (and the rows of a <code>ZoneSkim</code>) */
+	private int index = -1;
+
+	/** The buildings in the area (only changed while the environment is being built) */
+	private final List<Building> buildings = new ArrayList<Building>();
+
+	@Override
+	public Coordinate getCoords() {
+		return this.coords;
+	}
+
+	@Override
+	public void setCoords(Coordinate c) {
+		this.coords = c;
+	}
+
+	public String getIdentifier() throws NoIdentifierException {
+		if (this.identifier == null) {
+			throw new NoIdentifierException("This area has no identifier. This can happen when there is no "
+					+ "attribute called 'identifier' or 'ID' in the shapefile used to create this Area");
+		}
+		return this.identifier;
+	}
+
+	public void setIdentifier(String id) {
+		this.identifier = id;
+	}
+
+	public String getClassification() {
+		return this.classification;
+	}
+
+	public void setClassification(String classification) {
+		this.classification = classification;
+	}
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	public void setIndex(int index) {
+		this.index = index;
+	}
+
+	/** Get the buildings in this area, sorted by their identifiers. */
+	public List<Building> getBuildings() {
+		return Collections.unmodifiableList(this.buildings);
+	}
+
+	/* Used by GISFunctions.assignBuildingsToAreas() */
+	void addBuilding(Building b) {
+		this.buildings.add(b);
+	}
+
+	void clearBuildings() {
+		this.buildings.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "area: " + this.identifier;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Area)) {
+			return false;
+		}
+		Area a = (Area) obj;
+		return this.identifier.equals(a.identifier);
+	}
 
+	@Override
+	public int hashCode() {
+		return this.identifier.hashCode();
+	}
 }
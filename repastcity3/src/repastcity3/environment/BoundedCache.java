@@ -0,0 +1,246 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache that is limited to a certain (estimated) number of bytes. When a new object takes the cache over its limit,
+ * objects are evicted until it is back below 90% of the limit, either those that were used least recently (LRU) or
+ * least often (LFU). Values can also be held through <code>SoftReference</code>s so that the garbage collector can
+ * reclaim them if memory runs out before the limit is reached; these just look like misses. The cache keeps count of
+ * hits and misses for the <code>CacheRegistry</code>.
+ * <p>
+ * Looking objects up and adding them doesn't take any locks (the objects are held in a
+ * <code>ConcurrentHashMap</code> and the usage information is updated without synchronization, so is only
+ * approximate when several threads use the same object at once). Only eviction is synchronized.
+ * </p>
+ *
+ * @author Nick Malleson
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the cached objects.
+ */
+final class BoundedCache<K, V> {
+
+	/** How to choose which objects to evict. */
+	enum Policy {
+		/** Evict the objects that were used least recently. */
+		LRU,
+		/** Evict the objects that have been used least often (the least recently used if they are equal). */
+		LFU
+	}
+
+	/** Estimates the size of a cached object. */
+	interface Sizer<V> {
+		long sizeOf(V value);
+	}
+
+	/* A rough estimate of the memory used by the cache for each entry (map entry, Entry object, key) */
+	private static final long ENTRY_OVERHEAD = 96;
+
+	private final String name;
+	private final Policy policy;
+	private final boolean softValues;
+	private final Sizer<V> sizer;
+	private volatile long maxBytes;
+
+	private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<K, Entry<V>>();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong clock = new AtomicLong(); // Used to find the least recently used objects
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+	private static final class Entry<V> {
+		private final Object value; // Either the value or a SoftReference to it
+		private final long size;
+		private volatile long lastUsed;
+		private volatile long uses;
+
+		Entry(Object value, long size) {
+			this.value = value;
+			this.size = size;
+		}
+	}
+
+	/* An entry that might be evicted, along with its usage when eviction started */
+	private static final class Candidate<K, V> {
+		private final K key;
+		private final Entry<V> entry;
+		private final long uses, lastUsed;
+
+		Candidate(K key, Entry<V> entry) {
+			this.key = key;
+			this.entry = entry;
+			this.uses = entry.uses;
+			this.lastUsed = entry.lastUsed;
+		}
+	}
+
+	/**
+	 * @param name
+	 *            The name of the cache (for reporting).
+	 * @param policy
+	 *            How to choose which objects to evict.
+	 * @param softValues
+	 *            Whether to hold the values through soft references.
+	 * @param maxBytes
+	 *            The (estimated) size that the cache should be limited to.
+	 * @param sizer
+	 *            Used to estimate the size of each value.
+	 */
+	BoundedCache(String name, Policy policy, boolean softValues, long maxBytes, Sizer<V> sizer) {
+		this.name = name;
+		this.policy = policy;
+		this.softValues = softValues;
+		this.maxBytes = maxBytes;
+		this.sizer = sizer;
+	}
+
+	/**
+	 * Get an object from the cache.
+	 *
+	 * @return The object or null if it isn't in the cache.
+	 */
+	V get(K key) {
+		Entry<V> e = this.map.get(key);
+		V value = e == null ? null : this.valueOf(e);
+		if (value == null) {
+			if (e != null) { // The value has been garbage collected
+				this.remove(key, e);
+			}
+			this.misses.incrementAndGet();
+			return null;
+		}
+		e.lastUsed = this.clock.incrementAndGet();
+		e.uses++; // (not atomic, but an approximate count is good enough)
+		this.hits.incrementAndGet();
+		return value;
+	}
+
+	/**
+	 * Add an object to the cache if there isn't one with the same key already (like
+	 * <code>ConcurrentMap.putIfAbsent()</code>).
+	 *
+	 * @return The object that was already in the cache or null if the new object was added.
+	 */
+	V putIfAbsent(K key, V value) {
+		Entry<V> e = new Entry<V>(this.softValues ? new SoftReference<V>(value) : value, ENTRY_OVERHEAD
+				+ this.sizer.sizeOf(value));
+		e.lastUsed = this.clock.incrementAndGet();
+		e.uses = 1;
+		while (true) {
+			Entry<V> existing = this.map.putIfAbsent(key, e);
+			if (existing == null) {
+				break;
+			}
+			V v = this.valueOf(existing);
+			if (v != null) {
+				return v;
+			}
+			this.remove(key, existing); // The existing value has been garbage collected, try again
+		}
+		if (this.bytes.addAndGet(e.size) > this.maxBytes) {
+			this.evictToLimit();
+		}
+		return null;
+	}
+
+	private synchronized void evictToLimit() {
+		// (check again, another thread might have evicted while this one was waiting)
+		long over = this.bytes.get() - (long) (0.9 * this.maxBytes);
+		if (this.bytes.get() > this.maxBytes) {
+			this.evict(over);
+		}
+	}
+
+	/**
+	 * Evict objects (according to the cache's policy) until at least the given number of bytes have been freed or the
+	 * cache is empty.
+	 *
+	 * @return The number of bytes that were freed.
+	 */
+	synchronized long evict(long bytesToFree) {
+		if (bytesToFree <= 0 || this.map.isEmpty()) {
+			return 0;
+		}
+		// Take a snapshot of the usage information so that it doesn't change while sorting
+		List<Candidate<K, V>> candidates = new ArrayList<Candidate<K, V>>(this.map.size());
+		for (Map.Entry<K, Entry<V>> e : this.map.entrySet()) {
+			candidates.add(new Candidate<K, V>(e.getKey(), e.getValue()));
+		}
+		Collections.sort(candidates, new Comparator<Candidate<K, V>>() {
+			@Override
+			public int compare(Candidate<K, V> c1, Candidate<K, V> c2) {
+				if (policy == Policy.LFU && c1.uses != c2.uses) {
+					return c1.uses < c2.uses ? -1 : 1;
+				}
+				return c1.lastUsed < c2.lastUsed ? -1 : (c1.lastUsed == c2.lastUsed ? 0 : 1);
+			}
+		});
+		long freed = 0;
+		for (int i = 0; i < candidates.size() && freed < bytesToFree; i++) {
+			Candidate<K, V> c = candidates.get(i);
+			if (this.remove(c.key, c.entry)) {
+				freed += c.entry.size;
+			}
+		}
+		return freed;
+	}
+
+	synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		if (this.bytes.get() > maxBytes) {
+			this.evict(this.bytes.get() - maxBytes);
+		}
+	}
+
+	synchronized void clear() {
+		for (Map.Entry<K, Entry<V>> e : this.map.entrySet()) {
+			this.remove(e.getKey(), e.getValue());
+		}
+		this.hits.set(0);
+		this.misses.set(0);
+	}
+
+	CacheStats getStats() {
+		return new CacheStats(this.name, this.map.size(), this.bytes.get(), this.hits.get(), this.misses.get());
+	}
+
+	@SuppressWarnings("unchecked")
+	private V valueOf(Entry<V> e) {
+		return this.softValues ? ((SoftReference<V>) e.value).get() : (V) e.value;
+	}
+
+	/** Remove an entry (if it hasn't already been removed by another thread). */
+	private boolean remove(K key, Entry<V> e) {
+		if (this.map.remove(key, e)) {
+			this.bytes.addAndGet(-e.size);
+			return true;
+		}
+		return false;
+	}
+}
@@ -17,6 +17,7 @@ along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.*/
 package repastcity3.environment;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -29,7 +30,7 @@ public class Building implements FixedGeography, Identified {
 
 	private static Logger LOGGER = Logger.getLogger(Building.class.getName());
 	
-	/** A list of agents who live here */
+	/** A list of agents who live here (from every model run, see <code>ModelRun</code>) */
 	private List<IAgent> agents;
 
 	/**
@@ -44,8 +45,11 @@ public class Building implements FixedGeography, Identified {
 	 */
 	private Coordinate coords;
 
+	/** The area that the building is in (null if areas haven't been read, see <code>Area</code>) */
+	private Area area;
+
 	public Building() {
-		this.agents = new ArrayList<IAgent>();
+		this.agents = Collections.synchronizedList(new ArrayList<IAgent>());
 	}
 
 	@Override
@@ -73,10 +77,22 @@ public class Building implements FixedGeography, Identified {
 		this.identifier = id;
 	}
 
+	public Area getArea() {
+		return this.area;
+	}
+
+	public void setArea(Area area) {
+		this.area = area;
+	}
+
 	public void addAgent(IAgent a) {
 		this.agents.add(a);
 	}
 
+	public void removeAgent(IAgent a) {
+		this.agents.remove(a);
+	}
+
 	public List<IAgent> getAgents() {
 		return this.agents;
 	}
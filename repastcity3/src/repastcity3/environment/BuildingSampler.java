@@ -0,0 +1,302 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+import repastcity3.main.ContextManager;
+import repastcity3.main.RandomStream;
+
+/**
+ * Chooses buildings at random, either uniformly or in proportion to a weight (e.g. floor area, some attribute of the
+ * building, or how close it is to somewhere). The weights are turned into an 'alias table' (Vose's method) when the
+ * sampler is created, which takes O(n) time, after which every building is chosen in O(1) time whatever the weights
+ * are: one random integer to pick a column of the table and one random double to pick between that column's building
+ * and its alias. This is much quicker than going through the building context, so agents can choose a destination on
+ * every trip without it showing up in the profile.
+ * <p>
+ * If the weights change (e.g. a weight depends on the agents in each building) then <code>refresh()</code>
+ * re-calculates them and builds a new table. The new table replaces the old one in one go so samplers can be shared
+ * by agents in different threads; agents that are choosing a building while the table is being refreshed just use
+ * the old one. Buildings are always chosen with the random stream of the agent (or run) that is choosing, so runs can
+ * be repeated (see <code>RandomStream</code>).
+ * </p>
+ * <p>
+ * Building a table for distance decay from every origin would take O(n^2) memory, so those tables are created when
+ * they are first needed and kept in a cache that is limited in size (see <code>fromOrigin()</code>).
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see ContextManager#setDestinationSampler(BuildingSampler)
+ */
+public final class BuildingSampler {
+
+	private static Logger LOGGER = Logger.getLogger(BuildingSampler.class.getName());
+
+	/**
+	 * Gives the weight of a building. Weights must not be negative; buildings with a weight of 0 are never chosen.
+	 */
+	public interface Weight {
+		double weight(Building b);
+	}
+
+	/* The distance decay samplers that have been created for each origin (see fromOrigin()) */
+	private static final BoundedCache<DecayKey, BuildingSampler> decayCache =
+			new BoundedCache<DecayKey, BuildingSampler>("distance decay samplers", BoundedCache.Policy.LRU, true,
+					64L * 1024 * 1024, new BoundedCache.Sizer<BuildingSampler>() {
+						@Override
+						public long sizeOf(BuildingSampler s) {
+							return 12L * s.buildings.size(); // (a double and an int for each building)
+						}
+					});
+
+	static {
+		CacheRegistry.register(new Cacheable() {
+			@Override
+			public void clearCaches() {
+				decayCache.clear();
+			}
+
+			@Override
+			public List<CacheStats> getCacheStats() {
+				return Collections.singletonList(decayCache.getStats());
+			}
+
+			@Override
+			public long evict(long bytes) {
+				return decayCache.evict(bytes);
+			}
+		});
+	}
+
+	private final List<Building> buildings;
+	private final Weight weight;
+	/* The current table (replaced by refresh()) */
+	private volatile AliasTable table;
+
+	/**
+	 * Create a sampler.
+	 *
+	 * @param buildings
+	 *            The buildings to choose from. The list must not change.
+	 * @param weight
+	 *            Gives the weight of each building, or null to choose them uniformly.
+	 * @throws IllegalArgumentException
+	 *             If any of the weights are negative (or not a number) or they are all 0.
+	 */
+	public BuildingSampler(List<Building> buildings, Weight weight) {
+		if (buildings.isEmpty()) {
+			throw new IllegalArgumentException("Can't create a sampler without any buildings");
+		}
+		this.buildings = buildings;
+		this.weight = weight;
+		this.refresh();
+	}
+
+	/**
+	 * Create a sampler that chooses any building with the same probability.
+	 */
+	public static BuildingSampler uniform() {
+		return new BuildingSampler(ContextManager.getBuildings(), null);
+	}
+
+	/**
+	 * Create a sampler that chooses buildings in proportion to their floor area (the area of their footprint in the
+	 * building shapefile).
+	 */
+	public static BuildingSampler byFloorArea() {
+		return new BuildingSampler(ContextManager.getBuildings(), new Weight() {
+			@Override
+			public double weight(Building b) {
+				return ContextManager.buildingProjection.getGeometry(b).getArea();
+			}
+		});
+	}
+
+	/**
+	 * Create a sampler that prefers buildings that are close to the origin: the weight of each building is
+	 * <code>exp(-beta * distance)</code>, where the distance is the straight-line distance in metres from the origin
+	 * to the building (whatever the units of the geography, see <code>Route.metresPerUnit()</code>).
+	 *
+	 * @param origin
+	 *            Where the distances are measured from.
+	 * @param beta
+	 *            How quickly the weights decay with distance, per metre (e.g. 0.001 halves the weight every 693m).
+	 */
+	public static BuildingSampler byDistanceDecay(final Coordinate origin, final double beta) {
+		double[] scale = Route.metresPerUnit(origin);
+		final double perX = scale[0], perY = scale[1];
+		return new BuildingSampler(ContextManager.getBuildings(), new Weight() {
+			@Override
+			public double weight(Building b) {
+				double dx = (b.getCoords().x - origin.x) * perX;
+				double dy = (b.getCoords().y - origin.y) * perY;
+				return Math.exp(-beta * Math.sqrt(dx * dx + dy * dy));
+			}
+		});
+	}
+
+	/**
+	 * Get a distance decay sampler (see <code>byDistanceDecay()</code>) for trips that start at a building. Samplers
+	 * are cached, so agents that leave from the same building with the same <code>beta</code> share one.
+	 */
+	public static BuildingSampler fromOrigin(Building origin, double beta) {
+		DecayKey key = new DecayKey(origin, beta);
+		BuildingSampler s = decayCache.get(key);
+		if (s == null) {
+			s = byDistanceDecay(origin.getCoords(), beta);
+			BuildingSampler existing = decayCache.putIfAbsent(key, s);
+			if (existing != null) {
+				s = existing;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Choose a building.
+	 *
+	 * @param random
+	 *            The random stream to use (usually that of the agent that is choosing).
+	 */
+	public Building sample(RandomStream random) {
+		AliasTable t = this.table;
+		int i = random.nextInt(this.buildings.size());
+		if (t != null && random.nextDouble() >= t.prob[i]) {
+			i = t.alias[i];
+		}
+		return this.buildings.get(i);
+	}
+
+	/**
+	 * Re-calculate the weights of all the buildings and create a new table (doesn't do anything for uniform
+	 * samplers).
+	 *
+	 * @throws IllegalArgumentException
+	 *             If any of the new weights are negative (or not a number) or they are all 0. The old table is kept.
+	 */
+	public synchronized void refresh() {
+		if (this.weight == null) {
+			return;
+		}
+		double time = System.nanoTime();
+		int n = this.buildings.size();
+		double[] w = new double[n];
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			w[i] = this.weight.weight(this.buildings.get(i));
+			if (!(w[i] >= 0) || Double.isInfinite(w[i])) {
+				throw new IllegalArgumentException("The weight of " + this.buildings.get(i) + " is " + w[i]);
+			}
+			total += w[i];
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("All of the buildings have a weight of 0");
+		}
+		this.table = new AliasTable(w, total);
+		LOGGER.log(Level.FINER, "Created an alias table for " + n + " buildings in "
+				+ (0.000001 * (System.nanoTime() - time)) + "ms");
+	}
+
+	/** Get the buildings that the sampler chooses from. */
+	public List<Building> getBuildings() {
+		return this.buildings;
+	}
+
+	/**
+	 * An alias table. Each column i has a probability, <code>prob[i]</code>, of choosing building i and otherwise
+	 * chooses building <code>alias[i]</code>.
+	 */
+	private static final class AliasTable {
+		private final double[] prob;
+		private final int[] alias;
+
+		AliasTable(double[] weights, double total) {
+			int n = weights.length;
+			this.prob = new double[n];
+			this.alias = new int[n];
+			// Scale the weights so that the average is 1, then pair each column that is below 1 with one that is above
+			double[] p = new double[n];
+			int[] small = new int[n], large = new int[n];
+			int numSmall = 0, numLarge = 0;
+			for (int i = 0; i < n; i++) {
+				p[i] = weights[i] * n / total;
+				if (p[i] < 1) {
+					small[numSmall++] = i;
+				} else {
+					large[numLarge++] = i;
+				}
+			}
+			while (numSmall > 0 && numLarge > 0) {
+				int s = small[--numSmall];
+				int l = large[--numLarge];
+				this.prob[s] = p[s];
+				this.alias[s] = l;
+				p[l] = (p[l] + p[s]) - 1;
+				if (p[l] < 1) {
+					small[numSmall++] = l;
+				} else {
+					large[numLarge++] = l;
+				}
+			}
+			// Whatever is left should be (about) 1, anything different is due to rounding
+			while (numLarge > 0) {
+				int l = large[--numLarge];
+				this.prob[l] = 1;
+				this.alias[l] = l;
+			}
+			while (numSmall > 0) {
+				int s = small[--numSmall];
+				this.prob[s] = 1;
+				this.alias[s] = s;
+			}
+		}
+	}
+
+	/** The key for the distance decay cache. */
+	private static final class DecayKey {
+		private final Building origin;
+		private final double beta;
+
+		DecayKey(Building origin, double beta) {
+			this.origin = origin;
+			this.beta = beta;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof DecayKey)) {
+				return false;
+			}
+			DecayKey k = (DecayKey) obj;
+			return this.origin.equals(k.origin) && this.beta == k.beta;
+		}
+
+		@Override
+		public int hashCode() {
+			long b = Double.doubleToLongBits(this.beta);
+			return 31 * this.origin.hashCode() + (int) (b ^ (b >>> 32));
+		}
+	}
+}
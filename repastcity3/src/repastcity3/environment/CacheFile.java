@@ -0,0 +1,367 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes the binary files that are used to store caches of GIS data (see <code>NearestRoadCoordCache</code>,
+ * <code>BuildingsOnRoadCache</code> and <code>ZoneSkim</code>) and snapshots of the whole environment (see
+ * <code>EnvironmentSnapshot</code>) so that they don't have to be re-calculated every time the model starts.
+ * <p>
+ * Every file starts with a header: a magic number, the version of the file format, the type of cache, a hash of
+ * the contents of the GIS files that the cache was created from (see <code>contentHash()</code>) and the length of
+ * the rest of the file (so that files that weren't written completely can be spotted). The cache is only
+ * used if the hash of the current GIS data matches, so caches stay valid when data are copied to a different
+ * directory or machine (which changes file paths and modification times) but not when the data themselves change.
+ * The rest of the file is made up
+ * of primitive values and arrays, written with NIO and read back by memory-mapping the file, so loading a cache is
+ * little more than copying arrays. Files with the wrong magic number, version or length (e.g. caches created by an
+ * older version of the model) are ignored and will be re-created. The methods that read values check that the
+ * buffer has enough left and throw a <code>BufferUnderflowException</code> if it doesn't, so a cache that is broken
+ * in some other way can be spotted (and re-created) by the class that is reading it.
+ * </p>
+ *
+ * @author Nick Malleson
+ */
+final class CacheFile {
+
+	private static Logger LOGGER = Logger.getLogger(CacheFile.class.getName());
+
+	private static final int MAGIC = 0x52435459; // 'RCTY'
+	/** Increment this whenever the contents of any of the cache files change. */
+	static final int FORMAT_VERSION = 5;
+	/* The length of the header: the magic number, version, type, hash and length of the data */
+	private static final int HEADER_SIZE = 28;
+
+	/* The different types of cache */
+	static final int NEAREST_ROAD_COORDS = 1;
+	static final int BUILDINGS_ON_ROADS = 2;
+	static final int ENVIRONMENT = 3;
+	static final int ZONE_SKIM = 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private CacheFile() {
+	}
+
+	/**
+	 * Map a cache file into memory, checking the header.
+	 *
+	 * @param file
+	 *            The cache file.
+	 * @param type
+	 *            The type of cache that the file should contain.
+	 * @param dataFiles
+	 *            The GIS files that were used to create the cache. If the contents of any of these have changed since
+	 *            the cache was created then the cache is out of date.
+	 * @return A buffer positioned at the start of the cache data, or null if the file doesn't exist or can't be used.
+	 * @throws IOException
+	 *             If there was a problem reading the file.
+	 */
+	static ByteBuffer read(File file, int type, File... dataFiles) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_SIZE) {
+				LOGGER.log(Level.FINE, "Cache file " + file + " is too short to be a cache, ignoring it.");
+				return null;
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			int magic = buf.getInt();
+			int version = buf.getInt();
+			int fileType = buf.getInt();
+			long dataHash = buf.getLong();
+			long length = buf.getLong();
+			if (magic != MAGIC || version != FORMAT_VERSION || fileType != type) {
+				LOGGER.log(Level.FINE, "Cache file " + file + " was not created by this version of the model (or is "
+						+ "the wrong type of cache), ignoring it.");
+				return null;
+			}
+			if (length != channel.size() - HEADER_SIZE) {
+				LOGGER.log(Level.WARNING, "Cache file " + file + " should have " + length + " bytes of data but has "
+						+ (channel.size() - HEADER_SIZE) + ", ignoring it.");
+				return null;
+			}
+			if (dataHash != contentHash(dataFiles)) {
+				LOGGER.log(Level.FINE, "Cache file " + file + " was created from different data to "
+						+ Arrays.toString(dataFiles) + ", ignoring it.");
+				return null;
+			}
+			return buf;
+		} finally {
+			// The mapping remains valid after the channel has been closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Used to build up the contents of a cache file in memory before writing it.
+	 */
+	static final class Writer {
+
+		private ByteBuffer buf = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+		/**
+		 * @param type
+		 *            The type of cache.
+		 * @param dataFiles
+		 *            The GIS files that the cache has been created from (see <code>read()</code>).
+		 */
+		Writer(int type, File... dataFiles) throws IOException {
+			this.putInt(MAGIC);
+			this.putInt(FORMAT_VERSION);
+			this.putInt(type);
+			this.putLong(contentHash(dataFiles));
+			this.putLong(0); // (The length of the data, filled in by write())
+		}
+
+		private void ensureCapacity(int bytes) {
+			if (this.buf.remaining() < bytes) {
+				int capacity = Math.max(this.buf.capacity() * 2, this.buf.position() + bytes);
+				ByteBuffer newBuf = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+				this.buf.flip();
+				newBuf.put(this.buf);
+				this.buf = newBuf;
+			}
+		}
+
+		void putInt(int i) {
+			this.ensureCapacity(4);
+			this.buf.putInt(i);
+		}
+
+		void putLong(long l) {
+			this.ensureCapacity(8);
+			this.buf.putLong(l);
+		}
+
+		void putInts(int[] a) {
+			this.ensureCapacity(4 * a.length);
+			this.buf.asIntBuffer().put(a);
+			this.buf.position(this.buf.position() + 4 * a.length);
+		}
+
+		void putDoubles(double[] a) {
+			this.ensureCapacity(8 * a.length);
+			this.buf.asDoubleBuffer().put(a);
+			this.buf.position(this.buf.position() + 8 * a.length);
+		}
+
+		void putFloats(float[] a) {
+			this.ensureCapacity(4 * a.length);
+			this.buf.asFloatBuffer().put(a);
+			this.buf.position(this.buf.position() + 4 * a.length);
+		}
+
+		void putBytes(byte[] a) {
+			this.ensureCapacity(a.length);
+			this.buf.put(a);
+		}
+
+		/**
+		 * Write a table of strings (e.g. object identifiers): the number of strings followed by each one. Strings can
+		 * be null.
+		 */
+		void putStrings(String[] a) {
+			this.putInt(a.length);
+			for (String s : a) {
+				if (s == null) {
+					this.putInt(-1);
+					continue;
+				}
+				byte[] bytes = s.getBytes(UTF8);
+				this.putInt(bytes.length);
+				this.ensureCapacity(bytes.length);
+				this.buf.put(bytes);
+			}
+		}
+
+		/**
+		 * Write the cache to disk. The cache is written to a temporary file first and then renamed so that a model
+		 * that is killed part way through writing can't leave a broken cache behind.
+		 */
+		void write(File file) throws IOException {
+			double time = System.nanoTime();
+			File tmp = new File(file.getPath() + ".tmp");
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				channel.truncate(0);
+				this.buf.putLong(HEADER_SIZE - 8, this.buf.position() - HEADER_SIZE);
+				this.buf.flip();
+				while (this.buf.hasRemaining()) {
+					channel.write(this.buf);
+				}
+				channel.force(false);
+			} finally {
+				raf.close();
+			}
+			if (file.exists() && !file.delete()) {
+				tmp.delete();
+				throw new IOException("Could not replace the cache file " + file);
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Could not rename " + tmp + " to " + file);
+			}
+			LOGGER.log(Level.FINER, "Wrote cache file " + file + " (" + file.length() + " bytes) in "
+					+ (0.000001 * (System.nanoTime() - time)) + "ms");
+		}
+	}
+
+	/**
+	 * Calculate a 64-bit hash of the contents of some GIS files. For each shapefile, the main (.shp) file and the
+	 * attribute (.dbf) file are included because a change to either could change the objects that are created. The
+	 * files are memory-mapped and hashed eight bytes at a time, which is much quicker than re-building a cache.
+	 *
+	 * @param files
+	 *            The files to hash (usually shapefiles).
+	 * @return The hash.
+	 * @throws IOException
+	 *             If one of the files can't be read.
+	 */
+	static long contentHash(File... files) throws IOException {
+		double time = System.nanoTime();
+		long hash = FORMAT_VERSION;
+		for (File f : files) {
+			hash = mix(hash, hashFile(f));
+			String path = f.getPath();
+			if (path.toLowerCase().endsWith(".shp")) {
+				File dbf = new File(path.substring(0, path.length() - 4) + ".dbf");
+				if (dbf.exists()) {
+					hash = mix(hash, hashFile(dbf));
+				}
+			}
+		}
+		LOGGER.log(Level.FINER, "Hashed " + Arrays.toString(files) + " in " + (0.000001 * (System.nanoTime() - time))
+				+ "ms");
+		return hash;
+	}
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+	private static long mix(long hash, long value) {
+		hash ^= Long.rotateLeft(value * PRIME2, 31) * PRIME1;
+		return Long.rotateLeft(hash, 27) * PRIME1 + PRIME2;
+	}
+
+	private static long hashFile(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			long hash = mix(PRIME1, size);
+			// Map the file in chunks so that very large files don't use up all the address space
+			long chunk = 64L * 1024 * 1024;
+			for (long pos = 0; pos < size; pos += chunk) {
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(chunk, size - pos));
+				buf.order(ByteOrder.LITTLE_ENDIAN);
+				while (buf.remaining() >= 8) {
+					hash = mix(hash, buf.getLong());
+				}
+				while (buf.hasRemaining()) {
+					hash = mix(hash, buf.get());
+				}
+			}
+			return hash;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Methods to read the values written by a Writer. They all throw a BufferUnderflowException if there aren't
+	 * enough bytes left in the buffer (or the length is negative), which means that the file is broken.
+	 */
+
+	private static void checkRemaining(ByteBuffer buf, int length, int bytesEach) {
+		if (length < 0 || buf.remaining() / bytesEach < length) {
+			throw new BufferUnderflowException();
+		}
+	}
+
+	static int[] getInts(ByteBuffer buf, int length) {
+		checkRemaining(buf, length, 4);
+		int[] a = new int[length];
+		buf.asIntBuffer().get(a);
+		buf.position(buf.position() + 4 * length);
+		return a;
+	}
+
+	static double[] getDoubles(ByteBuffer buf, int length) {
+		checkRemaining(buf, length, 8);
+		double[] a = new double[length];
+		buf.asDoubleBuffer().get(a);
+		buf.position(buf.position() + 8 * length);
+		return a;
+	}
+
+	static float[] getFloats(ByteBuffer buf, int length) {
+		checkRemaining(buf, length, 4);
+		float[] a = new float[length];
+		buf.asFloatBuffer().get(a);
+		buf.position(buf.position() + 4 * length);
+		return a;
+	}
+
+	static byte[] getBytes(ByteBuffer buf, int length) {
+		checkRemaining(buf, length, 1);
+		byte[] a = new byte[length];
+		buf.get(a);
+		return a;
+	}
+
+	static String[] getStrings(ByteBuffer buf) {
+		int size = buf.getInt();
+		checkRemaining(buf, size, 4); // (Each string has at least its length)
+		String[] a = new String[size];
+		byte[] bytes = new byte[64];
+		for (int i = 0; i < a.length; i++) {
+			int length = buf.getInt();
+			if (length < 0) {
+				continue; // (null)
+			}
+			checkRemaining(buf, length, 1);
+			if (bytes.length < length) {
+				bytes = new byte[length];
+			}
+			buf.get(bytes, 0, length);
+			a[i] = new String(bytes, 0, length, UTF8);
+		}
+		return a;
+	}
+
+}
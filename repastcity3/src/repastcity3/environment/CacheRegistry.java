@@ -0,0 +1,164 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of every <code>Cacheable</code> so that all of the model's caches can be cleared, reported on and kept
+ * within a memory budget in one place. Classes with static caches register themselves when they are loaded.
+ * <p>
+ * If a budget has been set (see <code>setBudget()</code>) then <code>enforceBudget()</code> asks caches to evict
+ * objects until the total estimated size is back under the budget. The caches that are being least useful (lowest
+ * hit rate) are asked first. Caches decide for themselves what they can evict; some only hold objects that can be
+ * re-created when they are next needed and some (e.g. spatial indices) can't evict anything.
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see Cacheable
+ */
+public abstract class CacheRegistry {
+
+	private static Logger LOGGER = Logger.getLogger(CacheRegistry.class.getName());
+
+	private static final List<Cacheable> caches = new CopyOnWriteArrayList<Cacheable>();
+
+	/* The memory budget for all caches in bytes (no budget if this is negative) */
+	private static volatile long budget = -1;
+
+	/**
+	 * Register a <code>Cacheable</code>. Registering the same object twice has no effect.
+	 */
+	public static synchronized void register(Cacheable c) {
+		if (!caches.contains(c)) {
+			caches.add(c);
+		}
+	}
+
+	/**
+	 * Clear all of the registered caches. Caches are static so must be cleared at the start of each simulation or they
+	 * will persist over multiple runs.
+	 */
+	public static void clearAll() {
+		for (Cacheable c : caches) {
+			c.clearCaches();
+		}
+	}
+
+	/**
+	 * Set the memory budget for all of the registered caches.
+	 *
+	 * @param bytes
+	 *            The budget in bytes, or a negative number for no budget.
+	 */
+	public static void setBudget(long bytes) {
+		budget = bytes;
+		LOGGER.log(Level.FINE, "Cache memory budget set to " + (bytes < 0 ? "unlimited" : (bytes / 1024) + "KB"));
+	}
+
+	public static long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Get statistics about every cache.
+	 */
+	public static List<CacheStats> getStats() {
+		List<CacheStats> stats = new ArrayList<CacheStats>();
+		for (Cacheable c : caches) {
+			stats.addAll(c.getCacheStats());
+		}
+		return stats;
+	}
+
+	/**
+	 * Get the estimated total size of all of the caches in bytes.
+	 */
+	public static long getEstimatedBytes() {
+		long bytes = 0;
+		for (CacheStats s : getStats()) {
+			bytes += s.getEstimatedBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * If the caches use more than the budget, ask them to evict objects until they don't.
+	 *
+	 * @return The number of bytes that were freed.
+	 */
+	public static synchronized long enforceBudget() {
+		long limit = budget;
+		if (limit < 0) {
+			return 0;
+		}
+		long excess = getEstimatedBytes() - limit;
+		if (excess <= 0) {
+			return 0;
+		}
+		// Ask the least useful caches first
+		List<Cacheable> order = new ArrayList<Cacheable>(caches);
+		Collections.sort(order, new Comparator<Cacheable>() {
+			@Override
+			public int compare(Cacheable o1, Cacheable o2) {
+				return Double.compare(usefulness(o1), usefulness(o2));
+			}
+		});
+		long freed = 0;
+		for (Cacheable c : order) {
+			if (freed >= excess) {
+				break;
+			}
+			freed += c.evict(excess - freed);
+		}
+		LOGGER.log(freed < excess ? Level.WARNING : Level.FINE, "Caches were " + (excess / 1024) + "KB over budget, "
+				+ "evicted " + (freed / 1024) + "KB");
+		return freed;
+	}
+
+	/** The overall hit rate of the caches held by a Cacheable (caches that don't record hits count as useful). */
+	private static double usefulness(Cacheable c) {
+		long hits = 0, lookups = 0;
+		for (CacheStats s : c.getCacheStats()) {
+			hits += s.getHits();
+			lookups += s.getHits() + s.getMisses();
+		}
+		return lookups == 0 ? 1 : (double) hits / lookups;
+	}
+
+	/**
+	 * Log a description of every cache.
+	 */
+	public static void logStats(Level level) {
+		if (LOGGER.isLoggable(level)) {
+			StringBuilder sb = new StringBuilder("Caches (~" + (getEstimatedBytes() / 1024) + "KB in total"
+					+ (budget < 0 ? "" : ", budget " + (budget / 1024) + "KB") + "):");
+			for (CacheStats s : getStats()) {
+				sb.append("\n\t").append(s.toString());
+			}
+			LOGGER.log(level, sb.toString());
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+/**
+ * A description of a single cache: how many entries it holds, roughly how much memory it uses, and how often it has
+ * been useful. Returned by <code>Cacheable.getCacheStats()</code> and reported by the <code>CacheRegistry</code>.
+ *
+ * @author Nick Malleson
+ */
+public final class CacheStats {
+
+	private final String name;
+	private final long entries;
+	private final long estimatedBytes;
+	private final long hits;
+	private final long misses;
+
+	/**
+	 * @param name
+	 *            The name of the cache.
+	 * @param entries
+	 *            The number of objects in the cache.
+	 * @param estimatedBytes
+	 *            An estimate of the memory used by the cache (including the objects in it).
+	 * @param hits
+	 *            The number of times an object has been found in the cache.
+	 * @param misses
+	 *            The number of times an object was not in the cache and had to be created.
+	 */
+	public CacheStats(String name, long entries, long estimatedBytes, long hits, long misses) {
+		this.name = name;
+		this.entries = entries;
+		this.estimatedBytes = estimatedBytes;
+		this.hits = hits;
+		this.misses = misses;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public long getEntries() {
+		return this.entries;
+	}
+
+	public long getEstimatedBytes() {
+		return this.estimatedBytes;
+	}
+
+	public long getHits() {
+		return this.hits;
+	}
+
+	public long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * The proportion of lookups that found an object in the cache, or NaN if the cache hasn't been used (or doesn't
+	 * record hits).
+	 */
+	public double getHitRate() {
+		long lookups = this.hits + this.misses;
+		return lookups == 0 ? Double.NaN : (double) this.hits / lookups;
+	}
+
+	@Override
+	public String toString() {
+		double hitRate = this.getHitRate();
+		return this.name + ": " + this.entries + " entries, ~" + (this.estimatedBytes / 1024) + "KB, hit rate "
+				+ (Double.isNaN(hitRate) ? "n/a" : String.format("%.1f%%", 100 * hitRate));
+	}
+}
@@ -18,14 +18,32 @@ along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
 
 package repastcity3.environment;
 
+import java.util.List;
+
 /**
  * Used by any class which has static cached objects. Static caches must be cleared at the start of
  * each simulation or they will persist over multiple simulation runs unless Simphony is restarted. 
+ * Cacheables should register with the <code>CacheRegistry</code> which clears them and keeps track of
+ * how much memory they use.
  * @author Nick Malleson
+ * @see CacheRegistry
  *
  */
 public interface Cacheable {
 	
 	void clearCaches();
 
+	/**
+	 * Get statistics (size, estimated memory use, hit rate) for each of the caches.
+	 */
+	List<CacheStats> getCacheStats();
+
+	/**
+	 * Evict cached objects to free (approximately) the given amount of memory. Only objects that can be
+	 * re-created if they are needed again should be evicted.
+	 * @param bytes The number of bytes that the <code>CacheRegistry</code> would like to be freed.
+	 * @return The (estimated) number of bytes that were actually freed, which might be 0.
+	 */
+	long evict(long bytes);
+
 }
@@ -0,0 +1,612 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import repast.simphony.space.graph.Network;
+import repast.simphony.space.graph.RepastEdge;
+import repastcity3.main.GlobalVars.TRANSPORT_PARAMS;
+
+/**
+ * A read-only copy of the road network stored in flat arrays (a compressed adjacency list). The Repast
+ * <code>Network</code> is convenient for building and displaying the network but every query has to go through
+ * collections of edge objects, which is far too slow for searches that are run every time an agent makes a decision.
+ * This class is built once from the <code>roadNetwork</code> and then only read, so it can be queried by many agent
+ * threads at the same time.
+ * <p>
+ * Each Junction is given a dense index (see <code>Junction.getNetworkIndex()</code>) and each undirected road is stored
+ * as two directed arcs. The arcs leaving junction <code>j</code> are stored in positions
+ * <code>firstArc[j] .. firstArc[j+1]-1</code> of the arc arrays.
+ * </p>
+ * <p>
+ * Routes are found with a multi-modal search (see <code>findPath()</code>) where each state is a (junction, transport
+ * mode) pair, so that agents can change mode part way through a route (e.g. park their car and walk the rest of the
+ * way).
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see Route#getBuildingsWithinTime(com.vividsolutions.jts.geom.Coordinate, double, int)
+ */
+public class CompactRoadNetwork {
+
+	private static Logger LOGGER = Logger.getLogger(CompactRoadNetwork.class.getName());
+
+	private final Junction[] junctions;
+	private final Road[] roads;
+
+	/* The arcs, indexed by junction (see class comment) */
+	private final int[] firstArc;
+	private final int[] arcTarget;
+	private final int[] arcRoad; // The index of the road (in 'roads') that each arc represents
+	private final double[] arcLength;
+	/*
+	 * The speed that each arc can be travelled along using each transport mode, indexed by arc * NUM_MODES + mode
+	 * (where mode is the TRANSPORT_PARAMS.MODE ordinal). A speed of 0 means the arc can't be used with that mode.
+	 */
+	private final float[] arcModeSpeed;
+	/* The cost of changing mode, in the same units as the arc lengths */
+	private final double transferPenalty;
+
+	private static final TRANSPORT_PARAMS.MODE[] MODES = TRANSPORT_PARAMS.MODE.values();
+	private static final int NUM_MODES = MODES.length;
+	private static final int WALK = TRANSPORT_PARAMS.MODE.WALK.ordinal();
+	private static final int CAR = TRANSPORT_PARAMS.MODE.CAR.ordinal();
+	/*
+	 * The speed of walking along a road that can't be walked along (the same as NetworkEdge uses for agents that can't
+	 * use a road), so that roads are still connected for everyone but are avoided wherever possible.
+	 */
+	private static final float CRAWL_SPEED = 0.00001f;
+
+	/*
+	 * Every thread that searches the network gets its own scratch space so that searches don't need to allocate or lock
+	 * anything.
+	 */
+	private final ThreadLocal<SearchState> searchState = new ThreadLocal<SearchState>() {
+		@Override
+		protected SearchState initialValue() {
+			return new SearchState(junctions.length * NUM_MODES, roads.length);
+		}
+	};
+
+	/**
+	 * Create a compact copy of the given road network. This will set the network index of every Junction in the
+	 * network so must only be called once the network has been fully built.
+	 *
+	 * @param network
+	 *            The road network to copy.
+	 * @param transferPenalty
+	 *            The cost of changing from one transport mode to another, in the same units as the road lengths (see
+	 *            <code>TRANSPORT_PARAMS.TRANSFER_PENALTY</code> and <code>Route.metresToDistance()</code>).
+	 */
+	public CompactRoadNetwork(Network<Junction> network, double transferPenalty) {
+		double time = System.nanoTime();
+		this.transferPenalty = transferPenalty;
+
+		// Give each junction a dense index
+		List<Junction> juncList = new ArrayList<Junction>();
+		for (Junction j : network.getNodes()) {
+			j.setNetworkIndex(juncList.size());
+			juncList.add(j);
+		}
+		this.junctions = juncList.toArray(new Junction[juncList.size()]);
+
+		// Count the arcs leaving each junction (every edge is undirected so it is an arc in both directions)
+		List<NetworkEdge<Junction>> edges = new ArrayList<NetworkEdge<Junction>>();
+		int[] degree = new int[this.junctions.length];
+		for (RepastEdge<Junction> re : network.getEdges()) {
+			NetworkEdge<Junction> e = (NetworkEdge<Junction>) re;
+			edges.add(e);
+			degree[e.getSource().getNetworkIndex()]++;
+			degree[e.getTarget().getNetworkIndex()]++;
+		}
+		this.firstArc = new int[this.junctions.length + 1];
+		for (int i = 0; i < this.junctions.length; i++) {
+			this.firstArc[i + 1] = this.firstArc[i] + degree[i];
+		}
+
+		// Now fill in the arcs
+		int numArcs = this.firstArc[this.junctions.length];
+		this.arcTarget = new int[numArcs];
+		this.arcRoad = new int[numArcs];
+		this.arcLength = new double[numArcs];
+		this.arcModeSpeed = new float[numArcs * NUM_MODES];
+		this.roads = new Road[edges.size()];
+		int[] next = new int[this.junctions.length];
+		System.arraycopy(this.firstArc, 0, next, 0, next.length);
+		for (int r = 0; r < edges.size(); r++) {
+			NetworkEdge<Junction> e = edges.get(r);
+			this.roads[r] = e.getRoad();
+			int s = e.getSource().getNetworkIndex();
+			int t = e.getTarget().getNetworkIndex();
+			int a = next[s]++;
+			this.arcTarget[a] = t;
+			this.arcRoad[a] = r;
+			this.arcLength[a] = e.getLength();
+			this.setModeSpeeds(a, e);
+			a = next[t]++;
+			this.arcTarget[a] = s;
+			this.arcRoad[a] = r;
+			this.arcLength[a] = e.getLength();
+			this.setModeSpeeds(a, e);
+		}
+
+		LOGGER.log(Level.FINE, "Created compact road network with " + this.junctions.length + " junctions and "
+				+ numArcs + " arcs in " + (0.000001 * (System.nanoTime() - time)) + "ms");
+	}
+
+	/**
+	 * Work out how quickly the arc can be travelled along with each mode. Edges without any accessibility information
+	 * can be travelled along with any mode (as in <code>NetworkEdge</code>). Edges that can't be walked along can still
+	 * be walked along at a crawl, so agents are never stranded by a gap in the network for their transport.
+	 */
+	private void setModeSpeeds(int arc, NetworkEdge<Junction> e) {
+		int access = e.getAccessMask() == 0 ? TRANSPORT_PARAMS.ALL_MODES : e.getAccessMask();
+		for (TRANSPORT_PARAMS.MODE m : MODES) {
+			double speed = 0;
+			if ((access & m.bit) != 0) {
+				speed = m.speed;
+				if (m == TRANSPORT_PARAMS.MODE.CAR && e.isMajorRoad()) {
+					speed = speed * TRANSPORT_PARAMS.MAJOR_ROAD_ADVANTAGE;
+				}
+			} else if (m == TRANSPORT_PARAMS.MODE.WALK) {
+				speed = CRAWL_SPEED;
+			}
+			this.arcModeSpeed[arc * NUM_MODES + m.ordinal()] = (float) speed;
+		}
+	}
+
+	/**
+	 * Check whether an agent with the given transport can travel along any of the roads at a junction (without having
+	 * to crawl).
+	 *
+	 * @param agentMask
+	 *            The transport available to the agent (see <code>TRANSPORT_PARAMS.getAgentMask()</code>).
+	 */
+	public boolean isAccessible(Junction j, int agentMask) {
+		int index = j.getNetworkIndex();
+		for (int a = this.firstArc[index]; a < this.firstArc[index + 1]; a++) {
+			for (int m = 0; m < NUM_MODES; m++) {
+				if ((agentMask & (1 << m)) != 0 && this.arcModeSpeed[a * NUM_MODES + m] > CRAWL_SPEED) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find all the roads that can be reached from the given starting junctions without exceeding a maximum cost, using
+	 * the same rules (and costs) as <code>findPath()</code>. This is a one-to-many (Dijkstra) search that stops as soon
+	 * as the cheapest unsettled state is more expensive than the budget, so its cost depends on the size of the area
+	 * that can be reached, not the size of the city.
+	 * <p>
+	 * A road is reachable if either of its junctions can be reached within the budget.
+	 * </p>
+	 *
+	 * @param sources
+	 *            The junctions to start from.
+	 * @param sourceCosts
+	 *            The cost of getting to each of the starting junctions (walking, e.g. the distance from an agent's
+	 *            current position to the ends of the road that they are on).
+	 * @param maxCost
+	 *            The maximum cost. Costs are the length of each road (in the units of the road projection) divided by
+	 *            the speed of the mode used along it, plus the transfer penalty for each change of mode.
+	 * @param agentMask
+	 *            The transport available (see <code>TRANSPORT_PARAMS.getAgentMask()</code>).
+	 * @param reachedRoads
+	 *            A list that will be populated with the reachable roads.
+	 */
+	public void getRoadsWithinCost(Junction[] sources, double[] sourceCosts, double maxCost, int agentMask,
+			List<Road> reachedRoads) {
+		SearchState s = this.searchState.get();
+		s.reset();
+		boolean hasCar = (agentMask & TRANSPORT_PARAMS.MODE.CAR.bit) != 0;
+		for (int i = 0; i < sources.length; i++) {
+			if (sources[i] != null && sourceCosts[i] <= maxCost) {
+				int j = sources[i].getNetworkIndex();
+				s.relax(j * NUM_MODES + WALK, sourceCosts[i], -1, -1);
+				if (hasCar) {
+					s.relax(j * NUM_MODES + CAR, sourceCosts[i], -1, -1);
+				}
+			}
+		}
+		while (!s.heapIsEmpty()) {
+			double cost = s.heapMinKey();
+			int state = s.heapPop();
+			if (cost > maxCost) {
+				break; // Everything left in the heap is too expensive
+			}
+			if (cost > s.cost(state)) {
+				continue; // Stale heap entry, this state has already been settled more cheaply
+			}
+			int j = state / NUM_MODES;
+			for (int a = this.firstArc[j]; a < this.firstArc[j + 1]; a++) {
+				if (s.markRoad(this.arcRoad[a])) {
+					reachedRoads.add(this.roads[this.arcRoad[a]]);
+				}
+			}
+			this.relaxNeighbours(s, state, cost, agentMask);
+		}
+	}
+
+	/*
+	 * Relax the states that can be reached from a settled state: the same junction in another mode (this costs the
+	 * transfer penalty and cars can only be used from the start) or the other end of each arc in the same mode.
+	 */
+	private void relaxNeighbours(SearchState s, int state, double cost, int agentMask) {
+		int j = state / NUM_MODES;
+		int mode = state % NUM_MODES;
+		for (int m = 0; m < NUM_MODES; m++) {
+			if (m != mode && m != CAR && (agentMask & (1 << m)) != 0) {
+				s.relax(j * NUM_MODES + m, cost + this.transferPenalty, state, -1);
+			}
+		}
+		for (int a = this.firstArc[j]; a < this.firstArc[j + 1]; a++) {
+			float speed = this.arcModeSpeed[a * NUM_MODES + mode];
+			if (speed > 0) {
+				s.relax(this.arcTarget[a] * NUM_MODES + mode, cost + this.arcLength[a] / speed, state, a);
+			}
+		}
+	}
+
+	/**
+	 * Find the quickest path from any of the source junctions to any of the target junctions for an agent with the
+	 * given transport available. The search is a Dijkstra search over (junction, mode) states so the path can use
+	 * different modes for different parts of the journey:
+	 * <ul>
+	 * <li>Moving along an arc in a mode costs the length of the arc divided by the speed of the mode (cars are quicker
+	 * on major roads, see <code>TRANSPORT_PARAMS.MAJOR_ROAD_ADVANTAGE</code>). Arcs can only be used by the modes that
+	 * they are accessible by.</li>
+	 * <li>Changing mode at a junction costs the transfer penalty given to the constructor.</li>
+	 * <li>A car can only be used from the start of the journey (that is where it is parked). Once the agent has got out
+	 * of their car they can't get back into it.</li>
+	 * </ul>
+	 * The search stops as soon as no cheaper path to a target can be found.
+	 *
+	 * @param sources
+	 *            The junctions to start from (null entries are ignored).
+	 * @param sourceCosts
+	 *            The cost of getting to each of the source junctions (walking).
+	 * @param targets
+	 *            The junctions that the path can finish at (null entries are ignored).
+	 * @param targetCosts
+	 *            The cost of getting from each of the targets to the final destination (walking).
+	 * @param agentMask
+	 *            The transport available to the agent (see <code>TRANSPORT_PARAMS.getAgentMask()</code>).
+	 * @return The quickest path or null if none of the targets can be reached.
+	 */
+	Path findPath(Junction[] sources, double[] sourceCosts, Junction[] targets, double[] targetCosts, int agentMask) {
+		SearchState s = this.searchState.get();
+		s.reset();
+		boolean hasCar = (agentMask & TRANSPORT_PARAMS.MODE.CAR.bit) != 0;
+		for (int i = 0; i < sources.length; i++) {
+			if (sources[i] != null) {
+				int j = sources[i].getNetworkIndex();
+				s.relax(j * NUM_MODES + WALK, sourceCosts[i], -1, -1);
+				if (hasCar) {
+					s.relax(j * NUM_MODES + CAR, sourceCosts[i], -1, -1);
+				}
+			}
+		}
+		double bestCost = Double.MAX_VALUE;
+		int bestState = -1;
+		int bestTarget = -1;
+		while (!s.heapIsEmpty()) {
+			double cost = s.heapMinKey();
+			int state = s.heapPop();
+			if (cost >= bestCost) {
+				break; // Everything left in the heap is more expensive than the best path found so far
+			}
+			if (cost > s.cost(state)) {
+				continue; // Stale heap entry
+			}
+			int j = state / NUM_MODES;
+			// See if this is one of the targets
+			for (int t = 0; t < targets.length; t++) {
+				if (targets[t] != null && targets[t].getNetworkIndex() == j && cost + targetCosts[t] < bestCost) {
+					bestCost = cost + targetCosts[t];
+					bestState = state;
+					bestTarget = t;
+				}
+			}
+			this.relaxNeighbours(s, state, cost, agentMask);
+		}
+		if (bestState == -1) {
+			return null;
+		}
+
+		// Follow the predecessors back to the start to create the path
+		List<Integer> arcs = new ArrayList<Integer>();
+		List<Integer> modes = new ArrayList<Integer>();
+		int state = bestState;
+		while (s.predState(state) != -1) {
+			if (s.predArc(state) != -1) {
+				arcs.add(s.predArc(state));
+				modes.add(state % NUM_MODES);
+			}
+			state = s.predState(state);
+		}
+		int n = arcs.size();
+		Junction[] pathJunctions = new Junction[n + 1];
+		Road[] pathRoads = new Road[n];
+		double[] pathSpeeds = new double[n];
+		TRANSPORT_PARAMS.MODE[] pathModes = new TRANSPORT_PARAMS.MODE[n];
+		pathJunctions[0] = this.junctions[state / NUM_MODES];
+		for (int i = 0; i < n; i++) {
+			int a = arcs.get(n - 1 - i);
+			int m = modes.get(n - 1 - i);
+			pathJunctions[i + 1] = this.junctions[this.arcTarget[a]];
+			pathRoads[i] = this.roads[this.arcRoad[a]];
+			pathSpeeds[i] = this.arcModeSpeed[a * NUM_MODES + m];
+			pathModes[i] = MODES[m];
+		}
+		return new Path(pathJunctions, pathRoads, pathSpeeds, pathModes, bestCost - targetCosts[bestTarget]);
+	}
+
+	/**
+	 * Find the cost of the quickest path from a junction to each of the target junctions, using the same rules as
+	 * <code>findPath()</code>. This is a one-to-all search (it doesn't stop until every junction that can be reached
+	 * has been settled) so it is much quicker than calling <code>findPath()</code> for each target, e.g. when
+	 * creating a matrix of travel times between zones (see <code>ZoneSkim</code>).
+	 *
+	 * @param source
+	 *            The junction to start from.
+	 * @param targets
+	 *            The junctions to find the costs to.
+	 * @param agentMask
+	 *            The transport available (see <code>TRANSPORT_PARAMS.getAgentMask()</code>).
+	 * @return The cost of getting to each of the targets, or <code>Double.MAX_VALUE</code> for any that can't be
+	 *         reached.
+	 */
+	double[] getCostsFrom(Junction source, Junction[] targets, int agentMask) {
+		SearchState s = this.searchState.get();
+		s.reset();
+		int start = source.getNetworkIndex();
+		s.relax(start * NUM_MODES + WALK, 0, -1, -1);
+		if ((agentMask & TRANSPORT_PARAMS.MODE.CAR.bit) != 0) {
+			s.relax(start * NUM_MODES + CAR, 0, -1, -1);
+		}
+		while (!s.heapIsEmpty()) {
+			double cost = s.heapMinKey();
+			int state = s.heapPop();
+			if (cost > s.cost(state)) {
+				continue; // Stale heap entry
+			}
+			this.relaxNeighbours(s, state, cost, agentMask);
+		}
+		// The cost of each target is the cost of its cheapest mode
+		double[] costs = new double[targets.length];
+		for (int t = 0; t < targets.length; t++) {
+			costs[t] = Double.MAX_VALUE;
+			int j = targets[t].getNetworkIndex();
+			for (int m = 0; m < NUM_MODES; m++) {
+				costs[t] = Math.min(costs[t], s.cost(j * NUM_MODES + m));
+			}
+		}
+		return costs;
+	}
+
+	/**
+	 * @return The cost of changing from one transport mode to another, in the same units as the road lengths.
+	 */
+	public double getTransferPenalty() {
+		return this.transferPenalty;
+	}
+
+	/**
+	 * @return The number of junctions in the network.
+	 */
+	public int getNumJunctions() {
+		return this.junctions.length;
+	}
+
+	/**
+	 * @return An estimate of the memory used by the network's arrays in bytes (not including the per-thread search
+	 *         space).
+	 */
+	public long estimateSize() {
+		return 4L * (this.junctions.length + this.roads.length + this.firstArc.length + this.arcTarget.length
+				+ this.arcRoad.length + this.arcModeSpeed.length) + 8L * this.arcLength.length;
+	}
+
+	/**
+	 * @return The number of roads (undirected edges) in the network.
+	 */
+	public int getNumRoads() {
+		return this.roads.length;
+	}
+
+	/**
+	 * A path through the network found by <code>findPath()</code>. Step <code>i</code> goes from junction
+	 * <code>i</code> to junction <code>i+1</code> along a road using a transport mode.
+	 */
+	static final class Path {
+		private final Junction[] junctions;
+		private final Road[] roads;
+		private final double[] speeds;
+		private final TRANSPORT_PARAMS.MODE[] modes;
+		private final double cost;
+
+		private Path(Junction[] junctions, Road[] roads, double[] speeds, TRANSPORT_PARAMS.MODE[] modes, double cost) {
+			this.junctions = junctions;
+			this.roads = roads;
+			this.speeds = speeds;
+			this.modes = modes;
+			this.cost = cost;
+		}
+
+		/** The number of roads in the path (this will be 0 if the path starts and finishes at the same junction). */
+		int size() {
+			return this.roads.length;
+		}
+
+		Junction getOrigin() {
+			return this.junctions[0];
+		}
+
+		Junction getDestination() {
+			return this.junctions[this.junctions.length - 1];
+		}
+
+		/** The junction at the start of step i. */
+		Junction getJunction(int i) {
+			return this.junctions[i];
+		}
+
+		Road getRoad(int i) {
+			return this.roads[i];
+		}
+
+		/** The speed (a multiplier, i.e. x times faster than walking) of step i. */
+		double getSpeed(int i) {
+			return this.speeds[i];
+		}
+
+		TRANSPORT_PARAMS.MODE getMode(int i) {
+			return this.modes[i];
+		}
+
+		/** The total cost of the path, including the cost of getting to the origin junction. */
+		double getCost() {
+			return this.cost;
+		}
+	}
+
+	/**
+	 * Scratch space used by a single thread to search the network. Rather than clearing the arrays before each search,
+	 * every search is given a new 'stamp' and any value with an old stamp is treated as unset.
+	 */
+	private static class SearchState {
+
+		private final double[] cost;
+		private final int[] costStamp;
+		private final int[] roadStamp;
+		// Used to recreate paths: the previous state and the arc used to get from it (-1 for a change of mode)
+		private final int[] predState;
+		private final int[] predArc;
+		private int stamp = 0;
+
+		// A binary heap of junctions ordered by cost. Junctions can appear more than once (lazy deletion).
+		private int[] heapNodes = new int[64];
+		private double[] heapKeys = new double[64];
+		private int heapSize = 0;
+
+		SearchState(int numStates, int numRoads) {
+			this.cost = new double[numStates];
+			this.costStamp = new int[numStates];
+			this.roadStamp = new int[numRoads];
+			this.predState = new int[numStates];
+			this.predArc = new int[numStates];
+		}
+
+		void reset() {
+			this.stamp++;
+			this.heapSize = 0;
+		}
+
+		double cost(int j) {
+			return this.costStamp[j] == this.stamp ? this.cost[j] : Double.MAX_VALUE;
+		}
+
+		/** Record a new cost for the state if it is cheaper than the current one, and remember how it was reached. */
+		void relax(int state, double c, int fromState, int viaArc) {
+			if (c < this.cost(state)) {
+				this.cost[state] = c;
+				this.costStamp[state] = this.stamp;
+				this.predState[state] = fromState;
+				this.predArc[state] = viaArc;
+				this.heapPush(state, c);
+			}
+		}
+
+		int predState(int state) {
+			return this.predState[state];
+		}
+
+		int predArc(int state) {
+			return this.predArc[state];
+		}
+
+		/** Mark the road as reached, returning true if it hadn't been reached already. */
+		boolean markRoad(int r) {
+			if (this.roadStamp[r] == this.stamp) {
+				return false;
+			}
+			this.roadStamp[r] = this.stamp;
+			return true;
+		}
+
+		boolean heapIsEmpty() {
+			return this.heapSize == 0;
+		}
+
+		double heapMinKey() {
+			return this.heapKeys[0];
+		}
+
+		void heapPush(int node, double key) {
+			if (this.heapSize == this.heapNodes.length) {
+				this.heapNodes = java.util.Arrays.copyOf(this.heapNodes, this.heapSize * 2);
+				this.heapKeys = java.util.Arrays.copyOf(this.heapKeys, this.heapSize * 2);
+			}
+			int i = this.heapSize++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (this.heapKeys[parent] <= key) {
+					break;
+				}
+				this.heapNodes[i] = this.heapNodes[parent];
+				this.heapKeys[i] = this.heapKeys[parent];
+				i = parent;
+			}
+			this.heapNodes[i] = node;
+			this.heapKeys[i] = key;
+		}
+
+		int heapPop() {
+			int top = this.heapNodes[0];
+			int lastNode = this.heapNodes[--this.heapSize];
+			double lastKey = this.heapKeys[this.heapSize];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= this.heapSize) {
+					break;
+				}
+				if (child + 1 < this.heapSize && this.heapKeys[child + 1] < this.heapKeys[child]) {
+					child++;
+				}
+				if (this.heapKeys[child] >= lastKey) {
+					break;
+				}
+				this.heapNodes[i] = this.heapNodes[child];
+				this.heapKeys[i] = this.heapKeys[child];
+				i = child;
+			}
+			this.heapNodes[i] = lastNode;
+			this.heapKeys[i] = lastKey;
+			return top;
+		}
+	}
+
+}
@@ -0,0 +1,312 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import repast.simphony.context.Context;
+import repast.simphony.space.gis.Geography;
+import repast.simphony.space.graph.Network;
+import repastcity3.exceptions.DuplicateIdentifierException;
+import repastcity3.exceptions.NoIdentifierException;
+
+/**
+ * Saves the buildings, roads, junctions and road network to a single binary file (a 'snapshot') once they have been
+ * created from the GIS data, so that later runs on the same city can restore them directly rather than reading the
+ * shapefiles and building the road network again. A snapshot is a <code>CacheFile</code>, so it is only used if the
+ * contents of the shapefiles haven't changed since it was written. It is also only used if the geography has the same
+ * coordinate reference system as when it was written (the objects were reprojected into it, see
+ * <code>GISFunctions.readShapefile()</code>) and the snapshot has the current <code>SNAPSHOT_VERSION</code>.
+ * <p>
+ * Geometries are stored as well-known binary and the road network is stored as the junctions at either end of each
+ * road. The spatial indices are not stored because they are quick to re-create (see
+ * <code>SpatialIndexManager</code>), and the route caches already have their own files that are read when they are
+ * first needed (see <code>Route</code>). Only the attributes that <code>GISFunctions.readShapefile()</code> sets are
+ * saved, along with each road's access mask so that a snapshot whose masks no longer match the access strings (e.g.
+ * because the transport modes have changed) is not used.
+ * </p>
+ *
+ * @author Nick Malleson
+ */
+public final class EnvironmentSnapshot {
+
+	private static Logger LOGGER = Logger.getLogger(EnvironmentSnapshot.class.getName());
+
+	/**
+	 * Increment this whenever the way that the environment is created from the shapefiles changes (e.g. a new
+	 * attribute is read), which the hash of the shapefiles can't detect.
+	 */
+	static final int SNAPSHOT_VERSION = 1;
+
+	/* Stored with the access masks of major roads (above all of the TRANSPORT_PARAMS.MODE bits) */
+	private static final int MAJOR_ROAD_BIT = 1 << 30;
+
+	private EnvironmentSnapshot() {
+	}
+
+	/**
+	 * Write a snapshot of the environment.
+	 *
+	 * @param file
+	 *            The file to write to.
+	 * @param dataFiles
+	 *            The shapefiles that the environment was created from.
+	 * @throws IOException
+	 *             If the file can't be written.
+	 */
+	public static void write(File file, File[] dataFiles, Geography<Building> buildingGeography,
+			Geography<Road> roadGeography, Geography<Junction> junctionGeography) throws IOException {
+		double time = System.nanoTime();
+		CacheFile.Writer out = new CacheFile.Writer(CacheFile.ENVIRONMENT, dataFiles);
+		WKBWriter wkb = new WKBWriter();
+		out.putInt(SNAPSHOT_VERSION);
+		out.putStrings(new String[] { crs(buildingGeography) });
+
+		// Buildings
+		List<Building> buildings = new ArrayList<Building>();
+		for (Building b : buildingGeography.getAllObjects()) {
+			buildings.add(b);
+		}
+		String[] buildingIds = new String[buildings.size()];
+		double[] buildingCoords = new double[2 * buildings.size()];
+		for (int i = 0; i < buildings.size(); i++) {
+			Building b = buildings.get(i);
+			try {
+				buildingIds[i] = b.getIdentifier();
+			} catch (NoIdentifierException e) {
+				buildingIds[i] = null; // (the restored building won't have one either)
+			}
+			buildingCoords[2 * i] = b.getCoords().x;
+			buildingCoords[2 * i + 1] = b.getCoords().y;
+		}
+		out.putStrings(buildingIds);
+		out.putDoubles(buildingCoords);
+		for (Building b : buildings) {
+			putGeometry(out, wkb, buildingGeography.getGeometry(b));
+		}
+
+		// Junctions
+		Map<Junction, Integer> junctionIndices = new IdentityHashMap<Junction, Integer>();
+		List<Coordinate> junctionCoords = new ArrayList<Coordinate>();
+		for (Junction j : junctionGeography.getAllObjects()) {
+			junctionIndices.put(j, junctionCoords.size());
+			junctionCoords.add(j.getCoords());
+		}
+		double[] coords = new double[2 * junctionCoords.size()];
+		for (int i = 0; i < junctionCoords.size(); i++) {
+			coords[2 * i] = junctionCoords.get(i).x;
+			coords[2 * i + 1] = junctionCoords.get(i).y;
+		}
+		out.putInt(junctionCoords.size());
+		out.putDoubles(coords);
+
+		// Roads and the road network (the junctions at each end of each road)
+		List<Road> roads = new ArrayList<Road>();
+		for (Road r : roadGeography.getAllObjects()) {
+			roads.add(r);
+		}
+		String[] roadIds = new String[roads.size()];
+		String[] access = new String[roads.size()];
+		String[] names = new String[roads.size()];
+		double[] roadCoords = new double[2 * roads.size()];
+		int[] ends = new int[2 * roads.size()];
+		int[] masks = new int[roads.size()];
+		for (int i = 0; i < roads.size(); i++) {
+			Road r = roads.get(i);
+			try {
+				roadIds[i] = r.getIdentifier();
+			} catch (NoIdentifierException e) {
+				roadIds[i] = null;
+			}
+			access[i] = r.getAccess();
+			masks[i] = accessMask(r);
+			names[i] = r.getName();
+			roadCoords[2 * i] = r.getCoords().x;
+			roadCoords[2 * i + 1] = r.getCoords().y;
+			List<Junction> junctions = r.getJunctions();
+			ends[2 * i] = junctionIndices.get(junctions.get(0));
+			ends[2 * i + 1] = junctionIndices.get(junctions.get(1));
+		}
+		out.putStrings(roadIds);
+		out.putStrings(access);
+		out.putStrings(names);
+		out.putDoubles(roadCoords);
+		out.putInts(ends);
+		out.putInts(masks);
+		for (Road r : roads) {
+			putGeometry(out, wkb, roadGeography.getGeometry(r));
+		}
+
+		out.write(file);
+		LOGGER.log(Level.FINE, "Wrote a snapshot of the environment (" + buildings.size() + " buildings, "
+				+ roads.size() + " roads, " + junctionCoords.size() + " junctions) to " + file + " in "
+				+ (0.000001 * (System.nanoTime() - time)) + "ms");
+	}
+
+	/**
+	 * Restore the environment from a snapshot (see <code>write()</code>). The given contexts, geographies and network
+	 * must be empty.
+	 *
+	 * @param file
+	 *            The snapshot file.
+	 * @param dataFiles
+	 *            The shapefiles that the environment should be created from.
+	 * @return True if the environment was restored, or false if there is no snapshot or it was created from different
+	 *         data (in which case the environment should be created from the shapefiles as normal).
+	 * @throws IOException
+	 *             If the snapshot can't be read (e.g. it has been cut short). Some of the environment might have been
+	 *             restored, so the contexts and network must be cleared before creating it from the shapefiles.
+	 */
+	public static boolean restore(File file, File[] dataFiles, Context<Building> buildingContext,
+			Geography<Building> buildingGeography, Context<Road> roadContext, Geography<Road> roadGeography,
+			Context<Junction> junctionContext, Geography<Junction> junctionGeography, Network<Junction> roadNetwork)
+			throws IOException {
+		double time = System.nanoTime();
+		ByteBuffer buf = CacheFile.read(file, CacheFile.ENVIRONMENT, dataFiles);
+		if (buf == null) {
+			return false;
+		}
+		try {
+			int version = buf.getInt();
+			String crs = CacheFile.getStrings(buf)[0];
+			String currentCRS = crs(buildingGeography);
+			if (version != SNAPSHOT_VERSION || (crs == null ? currentCRS != null : !crs.equals(currentCRS))) {
+				LOGGER.log(Level.FINE, "The snapshot in " + file + " was created by a different version of the model "
+						+ "or in a different coordinate reference system, ignoring it.");
+				return false;
+			}
+			restore(file, buf, buildingContext, buildingGeography, roadContext, roadGeography, junctionContext,
+					junctionGeography, roadNetwork);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("The snapshot in " + file + " is shorter than it should be");
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("The snapshot in " + file + " is broken: " + e);
+		}
+		LOGGER.log(Level.FINE, "Restored the environment from " + file + " in "
+				+ (0.000001 * (System.nanoTime() - time)) + "ms");
+		return true;
+	}
+
+	/* Restore the objects from a snapshot whose header has been checked */
+	private static void restore(File file, ByteBuffer buf, Context<Building> buildingContext,
+			Geography<Building> buildingGeography, Context<Road> roadContext, Geography<Road> roadGeography,
+			Context<Junction> junctionContext, Geography<Junction> junctionGeography, Network<Junction> roadNetwork)
+			throws IOException {
+		GeometryFactory geomFac = new GeometryFactory();
+		WKBReader wkb = new WKBReader(geomFac);
+
+		// Buildings
+		String[] buildingIds = CacheFile.getStrings(buf);
+		double[] buildingCoords = CacheFile.getDoubles(buf, 2 * buildingIds.length);
+		for (int i = 0; i < buildingIds.length; i++) {
+			Building b = new Building();
+			b.setIdentifier(buildingIds[i]);
+			b.setCoords(new Coordinate(buildingCoords[2 * i], buildingCoords[2 * i + 1]));
+			buildingContext.add(b);
+			buildingGeography.move(b, getGeometry(buf, wkb));
+		}
+
+		// Junctions
+		double[] coords = CacheFile.getDoubles(buf, 2 * buf.getInt());
+		Junction[] junctions = new Junction[coords.length / 2];
+		for (int i = 0; i < junctions.length; i++) {
+			Coordinate c = new Coordinate(coords[2 * i], coords[2 * i + 1]);
+			junctions[i] = new Junction();
+			junctions[i].setCoords(c);
+			junctionContext.add(junctions[i]);
+			junctionGeography.move(junctions[i], geomFac.createPoint(c));
+		}
+
+		// Roads and the road network
+		String[] roadIds = CacheFile.getStrings(buf);
+		String[] access = CacheFile.getStrings(buf);
+		String[] names = CacheFile.getStrings(buf);
+		double[] roadCoords = CacheFile.getDoubles(buf, 2 * roadIds.length);
+		int[] ends = CacheFile.getInts(buf, 2 * roadIds.length);
+		int[] masks = CacheFile.getInts(buf, roadIds.length);
+		for (int i = 0; i < roadIds.length; i++) {
+			Road r = new Road();
+			try {
+				r.setIdentifier(roadIds[i]);
+			} catch (DuplicateIdentifierException e) {
+				throw new IOException("Could not restore road " + roadIds[i] + " from " + file + ": "
+						+ e.getMessage());
+			}
+			r.setAccess(access[i]);
+			try {
+				r.initialise();
+			} catch (NoIdentifierException e) {
+				throw new IOException("Could not restore a road from " + file + ": " + e.getMessage());
+			}
+			if (accessMask(r) != masks[i]) {
+				throw new IOException("The access mask of road " + roadIds[i] + " in " + file + " doesn't match its "
+						+ "access string '" + access[i] + "'");
+			}
+			r.setName(names[i]);
+			r.setCoords(new Coordinate(roadCoords[2 * i], roadCoords[2 * i + 1]));
+			Geometry geom = getGeometry(buf, wkb);
+			roadContext.add(r);
+			roadGeography.move(r, geom);
+			GISFunctions.addRoadEdge(r, geom, junctions[ends[2 * i]], junctions[ends[2 * i + 1]], roadNetwork);
+		}
+
+		LOGGER.log(Level.FINER, "Restored " + buildingIds.length + " buildings, " + roadIds.length + " roads and "
+				+ junctions.length + " junctions from " + file);
+	}
+
+	/* The coordinate reference system of a geography, as well-known text */
+	private static String crs(Geography<?> geography) {
+		return geography.getCRS() == null ? null : geography.getCRS().toWKT();
+	}
+
+	/* The road's access mask, with an extra bit for major roads */
+	private static int accessMask(Road r) {
+		return r.getAccessMask() | (r.isMajorRoad() ? MAJOR_ROAD_BIT : 0);
+	}
+
+	private static void putGeometry(CacheFile.Writer out, WKBWriter wkb, Geometry geom) {
+		byte[] bytes = wkb.write(geom);
+		out.putInt(bytes.length);
+		out.putBytes(bytes);
+	}
+
+	private static Geometry getGeometry(ByteBuffer buf, WKBReader wkb) throws IOException {
+		try {
+			return wkb.read(CacheFile.getBytes(buf, buf.getInt()));
+		} catch (ParseException e) {
+			throw new IOException("Could not read a geometry from an environment snapshot: " + e.getMessage());
+		}
+	}
+}
@@ -20,11 +20,20 @@ package repastcity3.environment;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
@@ -35,6 +44,7 @@ import repast.simphony.space.gis.Geography;
 import repast.simphony.space.gis.ShapefileLoader;
 import repast.simphony.space.graph.Network;
 import repast.simphony.space.graph.RepastEdge;
+import repastcity3.exceptions.DuplicateIdentifierException;
 import repastcity3.exceptions.NoIdentifierException;
 import repastcity3.main.ContextManager;
 
@@ -103,35 +113,44 @@ public class GISFunctions {
 				Point p2 = geomFac.createPoint(c2);
 				junctionGeography.move(junc2, p2);
 			}
-			// Tell the road object who it's junctions are
-			road.addJunction(junc1);
-			road.addJunction(junc2);
-			// Tell the junctions about this road
-			junc1.addRoad(road);
-			junc2.addRoad(road);
-
-			// Create an edge between the two junctions, assigning a weight equal to it's length
-			NetworkEdge<Junction> edge = new NetworkEdge<Junction>(junc1, junc2, false, roadGeom.getLength(), road
-					.getAccessibility());
-			// Set whether or not the edge represents a major road (gives extra benefit to car drivers).
-			if (road.isMajorRoad())
-				edge.setMajorRoad(true);
-
-			// Tell the Road and the Edge about each other
-			road.setEdge(edge);
-			edge.setRoad(road);
-
-			// Add the edge to the network
-			if (!roadNetwork.containsEdge(edge)) {
-				roadNetwork.addEdge(edge);
-			} else {
-				LOGGER.severe("CityContext: buildRoadNetwork: for some reason this edge that has just been created "
-						+ "already exists in the RoadNetwork.");
-			}
-
+			addRoadEdge(road, roadGeom, junc1, junc2, roadNetwork);
 		} // for road:
 	}
 
+	/**
+	 * Create the edge in the road network that represents a road, and tell the road and its junctions about each
+	 * other. Used by <code>buildGISRoadNetwork()</code> and when an environment is restored from a snapshot (see
+	 * <code>EnvironmentSnapshot</code>).
+	 */
+	static void addRoadEdge(Road road, Geometry roadGeom, Junction junc1, Junction junc2,
+			Network<Junction> roadNetwork) {
+		// Tell the road object who it's junctions are
+		road.addJunction(junc1);
+		road.addJunction(junc2);
+		// Tell the junctions about this road
+		junc1.addRoad(road);
+		junc2.addRoad(road);
+
+		// Create an edge between the two junctions, assigning a weight equal to it's length
+		NetworkEdge<Junction> edge = new NetworkEdge<Junction>(junc1, junc2, false, roadGeom.getLength(), road
+				.getAccessMask());
+		// Set whether or not the edge represents a major road (gives extra benefit to car drivers).
+		if (road.isMajorRoad())
+			edge.setMajorRoad(true);
+
+		// Tell the Road and the Edge about each other
+		road.setEdge(edge);
+		edge.setRoad(road);
+
+		// Add the edge to the network
+		if (!roadNetwork.containsEdge(edge)) {
+			roadNetwork.addEdge(edge);
+		} else {
+			LOGGER.severe("CityContext: buildRoadNetwork: for some reason this edge that has just been created "
+					+ "already exists in the RoadNetwork.");
+		}
+	}
+
 	/**
 	 * Nice generic function :-) that reads in objects from shapefiles.
 	 * <p>
@@ -139,6 +158,14 @@ public class GISFunctions {
 	 * This is necessary because, for simplicity, geographical objects which don't move store their coordinates
 	 * alongside the projection which stores them as well. So the coordinates must be set manually by this function once
 	 * the shapefile has been read and the objects have been given coordinates in their projection.
+	 * </p>
+	 * <p>
+	 * <code>Building</code>s and <code>Road</code>s are read with a <code>ShapefileReader</code>, which memory-maps the
+	 * files and creates each object, sets its attributes, geometry and coordinates in a single pass. This is much
+	 * quicker than Repast's <code>ShapefileLoader</code> for large cities. Any other type of object (e.g. a subclass of
+	 * <code>Building</code>) is still read with the <code>ShapefileLoader</code>, which sets attributes using the
+	 * object's bean properties.
+	 * </p>
 	 * 
 	 * @param <T>
 	 *            The type of object to be read (e.g. PecsHouse). Must exted
@@ -154,16 +181,22 @@ public class GISFunctions {
 	 *             If the location of the shapefile cannot be converted into a URL
 	 * @throws FileNotFoundException
 	 *             if the shapefile does not exist.
+	 * @throws IOException
+	 *             If the shapefile can't be read or its objects can't be created.
 	 * @see FixedGeography
 	 */
 	public static <T extends FixedGeography> void readShapefile(Class<T> cl, String shapefileLocation,
-			Geography<T> geog, Context<T> context) throws MalformedURLException, FileNotFoundException {
+			Geography<T> geog, Context<T> context) throws MalformedURLException, FileNotFoundException, IOException {
 		File shapefile = null;
 		ShapefileLoader<T> loader = null;
 		shapefile = new File(shapefileLocation);
 		if (!shapefile.exists()) {
 			throw new FileNotFoundException("Could not find the given shapefile: " + shapefile.getAbsolutePath());
 		}
+		if (cl.equals(Building.class) || cl.equals(Road.class) || cl.equals(Area.class)) {
+			readShapefileDirect(cl, shapefile, geog, context);
+			return;
+		}
 		loader = new ShapefileLoader<T>(cl, shapefile.toURI().toURL(), geog, context);
 		while (loader.hasNext()) {
 			loader.next();
@@ -173,6 +206,167 @@ public class GISFunctions {
 		}
 	}
 
+	/**
+	 * Read objects with a <code>ShapefileReader</code> (see <code>readShapefile()</code>).
+	 */
+	private static <T extends FixedGeography> void readShapefileDirect(Class<T> cl, File shapefile,
+			Geography<T> geog, Context<T> context) throws IOException {
+		double time = System.nanoTime();
+		ShapefileReader reader = new ShapefileReader(shapefile);
+		ShapefileReader.AttributeSetter<T> setter = attributeSetter(cl, reader);
+
+		// Reproject the objects if the shapefile isn't in the same projection as the geography
+		MathTransform transform = null;
+		CoordinateReferenceSystem crs = reader.getCRS();
+		if (crs != null && geog.getCRS() != null && !CRS.equalsIgnoreMetadata(crs, geog.getCRS())) {
+			try {
+				transform = CRS.findMathTransform(crs, geog.getCRS(), true);
+			} catch (FactoryException e) {
+				throw new IOException("Could not convert objects in " + shapefile + " to the projection used by the "
+						+ "geography: " + e.getMessage());
+			}
+		}
+
+		GeometryFactory geomFac = new GeometryFactory();
+		int numRead = 0;
+		for (int i = 0; i < reader.getNumRecords(); i++) {
+			if (reader.isDeleted(i)) {
+				continue;
+			}
+			Geometry geom = reader.getGeometry(i, geomFac);
+			if (geom == null) {
+				LOGGER.warning("Record " + i + " in " + shapefile + " has no geometry, ignoring it.");
+				continue;
+			}
+			T obj;
+			try {
+				if (transform != null) {
+					geom = JTS.transform(geom, transform);
+				}
+				obj = cl.newInstance();
+				setter.setAttributes(obj, i);
+				if (obj instanceof Road) {
+					// (Parses the access column, so must be done before the road network is built)
+					((Road) obj).initialise();
+				}
+			} catch (Exception e) {
+				throw new IOException("Could not create the object from record " + i + " in " + shapefile + ": "
+						+ e.getMessage());
+			}
+			context.add(obj);
+			geog.move(obj, geom);
+			obj.setCoords(geom.getCentroid().getCoordinate());
+			numRead++;
+		}
+		LOGGER.log(Level.FINER, "Read " + numRead + " objects from " + shapefile + " in "
+				+ (0.000001 * (System.nanoTime() - time)) + "ms");
+	}
+
+	/**
+	 * Create an <code>AttributeSetter</code> that sets the attributes of <code>Building</code>s, <code>Road</code>s or
+	 * <code>Area</code>s from the columns in a shapefile. The columns are looked up once, rather than for every object.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> ShapefileReader.AttributeSetter<T> attributeSetter(Class<T> cl, final ShapefileReader reader) {
+		final int identifier = reader.getColumn("identifier");
+		if (cl.equals(Area.class)) {
+			// (Census areas, e.g. community-oac.shp, usually have an 'ID' column rather than 'identifier')
+			final int id = identifier != -1 ? identifier : reader.getColumn("ID");
+			final int subgroup = reader.getColumn("SUBGROUP");
+			return (ShapefileReader.AttributeSetter<T>) new ShapefileReader.AttributeSetter<Area>() {
+				@Override
+				public void setAttributes(Area a, int record) {
+					if (id != -1) {
+						a.setIdentifier(reader.getString(record, id));
+					}
+					if (subgroup != -1) {
+						a.setClassification(reader.getString(record, subgroup));
+					}
+				}
+			};
+		} else if (cl.equals(Building.class)) {
+			return (ShapefileReader.AttributeSetter<T>) new ShapefileReader.AttributeSetter<Building>() {
+				@Override
+				public void setAttributes(Building b, int record) {
+					if (identifier != -1) {
+						b.setIdentifier(reader.getString(record, identifier));
+					}
+				}
+			};
+		} else { // Road
+			final int access = reader.getColumn("access");
+			final int name = reader.getColumn("name");
+			return (ShapefileReader.AttributeSetter<T>) new ShapefileReader.AttributeSetter<Road>() {
+				@Override
+				public void setAttributes(Road r, int record) throws DuplicateIdentifierException {
+					if (identifier != -1) {
+						r.setIdentifier(reader.getString(record, identifier));
+					}
+					if (access != -1) {
+						r.setAccess(reader.getString(record, access));
+					}
+					if (name != -1) {
+						r.setName(reader.getString(record, name));
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Assign every building to the area that it is in (see <code>Building.getArea()</code> and
+	 * <code>Area.getBuildings()</code>). A building is in an area if the area's polygon contains the building's
+	 * centroid; the areas that could contain each building are found with the spatial index of the area projection,
+	 * which must have been created. Buildings that aren't inside any area (e.g. because the area boundaries don't quite
+	 * cover the edge of the city) are assigned to the nearest one. The buildings in each area are in the same order as
+	 * <code>buildings</code>.
+	 *
+	 * @param buildings
+	 *            The buildings (usually <code>ContextManager.getBuildings()</code>).
+	 * @param areas
+	 *            All of the areas.
+	 * @param areaGeography
+	 *            The projection that holds the areas' polygons.
+	 * @return The number of buildings that weren't inside any area.
+	 */
+	public static int assignBuildingsToAreas(List<Building> buildings, List<Area> areas,
+			Geography<Area> areaGeography) {
+		double time = System.nanoTime();
+		for (Area a : areas) {
+			a.clearBuildings();
+		}
+		GeometryFactory geomFac = new GeometryFactory();
+		int outside = 0;
+		for (Building b : buildings) {
+			Point p = geomFac.createPoint(b.getCoords());
+			Area area = null;
+			for (Area a : SpatialIndexManager.search(areaGeography, p)) {
+				if (areaGeography.getGeometry(a).contains(p)) {
+					area = a;
+					break;
+				}
+			}
+			if (area == null) {
+				outside++;
+				double minDist = Double.MAX_VALUE;
+				for (Area a : areas) {
+					double dist = areaGeography.getGeometry(a).distance(p);
+					if (dist < minDist) {
+						minDist = dist;
+						area = a;
+					}
+				}
+			}
+			if (area != null) {
+				area.addBuilding(b);
+			}
+			b.setArea(area);
+		}
+		LOGGER.log(Level.FINER, "Assigned " + buildings.size() + " buildings to " + areas.size() + " areas ("
+				+ outside + " were outside every area) in " + (0.000001 * (System.nanoTime() - time)) + "ms");
+		return outside;
+	}
+
 	/**
 	 * An alternative to <code>readShapefile()</code> that does not require objects to implement
 	 * <code>FixedGeography<code>. Hence it can be used by objects that don't store their coordinates internally (such 
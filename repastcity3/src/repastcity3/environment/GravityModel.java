@@ -0,0 +1,172 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import repastcity3.main.RandomStream;
+
+/**
+ * Chooses destinations with a gravity model: the probability of travelling from zone i to zone j is proportional to
+ * <code>A(j) * exp(-beta * t(i,j))</code>, where <code>A(j)</code> is how attractive zone j is (by default the number
+ * of buildings in it) and <code>t(i,j)</code> is the travel time in seconds between the zones from a
+ * <code>ZoneSkim</code>. A zone is chosen first and then one of the buildings in it, so choosing a destination takes
+ * O(zones) time and doesn't need any routes to be planned.
+ * <p>
+ * The weight of every pair of zones is calculated when the model is created. A model can be shared by all the agents
+ * (it isn't changed once it has been created); destinations are chosen with the random stream of the agent that is
+ * choosing. For example:
+ * </p>
+ *
+ * <pre>
+ * // Trips that take ten minutes longer are 1/e times as likely
+ * GravityModel gravity = new GravityModel(ContextManager.getZoneSkim(), 1.0 / 600);
+ * Building destination = gravity.chooseDestination(agent.getHome(), agent.getRandom());
+ * </pre>
+ * <p>
+ * <code>ContextManager.chooseDestination()</code> uses a shared model like this when there are zones.
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see BuildingSampler
+ */
+public final class GravityModel {
+
+	private static Logger LOGGER = Logger.getLogger(GravityModel.class.getName());
+
+	private final ZoneSkim skim;
+	private final int n;
+	/* The weight of travelling between each pair of zones (indexed by from * n + to) and the total for each origin */
+	private final double[] weights;
+	private final double[] totals;
+
+	/**
+	 * Create a gravity model where the attractiveness of each zone is the number of buildings in it.
+	 *
+	 * @param skim
+	 *            The travel times between the zones.
+	 * @param beta
+	 *            How quickly the probability of travelling to a zone decreases with the time that it takes, per
+	 *            second.
+	 */
+	public GravityModel(ZoneSkim skim, double beta) {
+		this(skim, buildingCounts(skim.getZones()), beta);
+	}
+
+	/**
+	 * Create a gravity model.
+	 *
+	 * @param skim
+	 *            The travel times between the zones.
+	 * @param attraction
+	 *            How attractive each zone is (indexed by <code>Area.getIndex()</code>). Zones without any buildings
+	 *            are never chosen, whatever their attraction.
+	 * @param beta
+	 *            How quickly the probability of travelling to a zone decreases with the time that it takes, per
+	 *            second.
+	 */
+	public GravityModel(ZoneSkim skim, double[] attraction, double beta) {
+		double time = System.nanoTime();
+		this.skim = skim;
+		this.n = skim.getNumZones();
+		if (attraction.length != this.n) {
+			throw new IllegalArgumentException("There are " + this.n + " zones but " + attraction.length
+					+ " attraction values");
+		}
+		this.weights = new double[this.n * this.n];
+		this.totals = new double[this.n];
+		List<Area> zones = skim.getZones();
+		for (int from = 0; from < this.n; from++) {
+			for (int to = 0; to < this.n; to++) {
+				double w = 0;
+				if (attraction[to] > 0 && !zones.get(to).getBuildings().isEmpty()) {
+					// (Zones that can't be reached have an infinite time and hence a weight of 0)
+					w = attraction[to] * Math.exp(-beta * skim.getTime(from, to));
+				}
+				this.weights[from * this.n + to] = w;
+				this.totals[from] += w;
+			}
+		}
+		LOGGER.log(Level.FINER, "Created a gravity model of " + this.n + " zones in "
+				+ (0.000001 * (System.nanoTime() - time)) + "ms");
+	}
+
+	private static double[] buildingCounts(List<Area> zones) {
+		double[] counts = new double[zones.size()];
+		for (int z = 0; z < counts.length; z++) {
+			counts[z] = zones.get(z).getBuildings().size();
+		}
+		return counts;
+	}
+
+	/**
+	 * Choose the zone to travel to from the given zone.
+	 *
+	 * @param random
+	 *            The random stream to use (usually that of the agent that is choosing).
+	 * @return The zone, or null if no zone with any buildings can be reached.
+	 */
+	public Area chooseZone(Area origin, RandomStream random) {
+		int from = origin.getIndex();
+		double total = this.totals[from];
+		if (total <= 0) {
+			return null;
+		}
+		double r = random.nextDouble() * total;
+		int last = -1;
+		for (int to = 0; to < this.n; to++) {
+			double w = this.weights[from * this.n + to];
+			if (w > 0) {
+				last = to;
+				r -= w;
+				if (r < 0) {
+					return this.skim.getZones().get(to);
+				}
+			}
+		}
+		// (Rounding errors can leave a tiny bit of r left over)
+		return this.skim.getZones().get(last);
+	}
+
+	/**
+	 * Choose a building to travel to from the given building: a zone is chosen (see <code>chooseZone()</code>) and
+	 * then one of the buildings in it, uniformly.
+	 *
+	 * @param origin
+	 *            The building that the trip starts from, which must be in one of the zones (see
+	 *            <code>Building.getArea()</code>).
+	 * @param random
+	 *            The random stream to use (usually that of the agent that is choosing).
+	 * @return The building, or null if no zone with any buildings can be reached.
+	 */
+	public Building chooseDestination(Building origin, RandomStream random) {
+		if (origin.getArea() == null) {
+			throw new IllegalArgumentException(origin + " isn't in any zone (have the areas been read?)");
+		}
+		Area zone = this.chooseZone(origin.getArea(), random);
+		return zone == null ? null : random.choose(zone.getBuildings());
+	}
+
+	/** Get the skim that the model uses. */
+	public ZoneSkim getSkim() {
+		return this.skim;
+	}
+}
@@ -30,7 +30,8 @@ public class Junction implements FixedGeography{
 	private int id ;
 	private Coordinate coord;
 	private List<Road> roads; // The Roads connected to this Junction, used in GIS road network
-	
+	private int networkIndex = -1; // Position of this junction in the CompactRoadNetwork arrays
+
 	public Junction() {
 		this.id = UniqueID++;
 		this.roads = new ArrayList<Road>();
@@ -60,7 +61,19 @@ public class Junction implements FixedGeography{
 	public void addRoad(Road road) {
 		this.roads.add(road);
 	}
-	
+
+	/**
+	 * Get the position of this junction in the arrays used by the <code>CompactRoadNetwork</code>.
+	 * @return the index or -1 if the compact network hasn't been created yet.
+	 */
+	int getNetworkIndex() {
+		return this.networkIndex;
+	}
+
+	void setNetworkIndex(int networkIndex) {
+		this.networkIndex = networkIndex;
+	}
+
 	/**
 	 * Tests if Junctions are equal by comparing the coorinates.
 	 * @param j The junction to be compared with this one
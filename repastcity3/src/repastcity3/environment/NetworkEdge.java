@@ -18,10 +18,10 @@ along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
 
 package repastcity3.environment;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import repast.simphony.space.graph.RepastEdge;
+import repastcity3.main.GlobalVars.TRANSPORT_PARAMS;
 
 /**
  * Class used to provide extra functionality to the normal RepastEdge class. Stores a list of the different ways in
@@ -37,11 +37,16 @@ public class NetworkEdge<T> extends RepastEdge<T> {
 
 	// private static Logger LOGGER = Logger.getLogger(NetworkEdge.class.getName());
 
-	private List<String> access = new ArrayList<String>(); // The access methods agents can use to travel along this
-															// edge
+	private int access = 0; // The access methods agents can use to travel along this edge (TRANSPORT_PARAMS.MODE bits)
 	private boolean majorRoad = false; // If edge represents a major road car drivers can travel very fast
 	private Road road; // The Road object which this Edge is used to represent
 
+	/*
+	 * The speed for every combination of transport that an agent might have available, indexed by the agent's mask.
+	 * Worked out whenever the access or majorRoad flag change so that getting the speed is just an array read.
+	 */
+	private double[] speeds;
+
 	/**
 	 * Create a new network edge (same as RepastEdge constructor) but also define how the road can be accessed
 	 * (initially at least, as the transport network is built up edges will have different ways they can be accessed,
@@ -56,15 +61,22 @@ public class NetworkEdge<T> extends RepastEdge<T> {
 	 *            accessibility / transport networks are not being used (e.g. in Grid environment).
 	 */
 	public NetworkEdge(T source, T target, boolean directed, double weight, List<String> initialAccess) {
+		this(source, target, directed, weight, TRANSPORT_PARAMS.MODE.getMask(initialAccess));
+	}
+
+	/**
+	 * Create a new network edge with the access methods given as a mask of <code>TRANSPORT_PARAMS.MODE</code> bits
+	 * (0 if accessibility is not being used).
+	 */
+	public NetworkEdge(T source, T target, boolean directed, double weight, int initialAccess) {
 		super(source, target, directed, weight);
-		if (initialAccess != null) {
-			this.access.addAll(initialAccess);
-		}
+		this.access = initialAccess;
+		this.calcSpeeds();
 	}
 
 	/**
-	 * Get the weight of this edge, relative to the Burglar GlobalVars.TRANSPORT_PARAMS.currentBurglar. The weight will
-	 * be divided by the speed (see getSpeed()).
+	 * Get the weight of this edge, relative to the agent TRANSPORT_PARAMS.getCurrentAgent(). The weight will be
+	 * divided by the speed (see getSpeed()).
 	 */
 	@Override
 	public double getWeight() {
@@ -72,51 +84,89 @@ public class NetworkEdge<T> extends RepastEdge<T> {
 	}
 
 	/**
-	 * The speed with which the Burglar GlobalVars.TRANSPORT_PARAMS.currentBurglar can travel across this edge. Speed
-	 * depends on the methods that can be used to travel along this edge and the transport methods available to the
-	 * burglar (e.g. if burglar can take a bus and this edge forms a bus route then speed > 1 (quicker than walking)).
-	 * Will return the quickest speed possible.
+	 * The speed with which the agent TRANSPORT_PARAMS.getCurrentAgent() can travel across this edge. Speed depends
+	 * on the methods that can be used to travel along this edge and the transport methods available to the agent (e.g.
+	 * if agent can take a bus and this edge forms a bus route then speed > 1 (quicker than walking)). Will return the
+	 * quickest speed possible.
 	 * 
-	 * @return A speed multiplier if the agent can travel across this edge (i.e. x times quicker than walking) or
-	 *         Double.MIN_VALUE if the agent doesn't have the appropriate transport to get across this edge).
+	 * @return A speed multiplier if the agent can travel across this edge (i.e. x times quicker than walking) or a very
+	 *         small number if the agent doesn't have the appropriate transport to get across this edge).
+	 * @see #getSpeed(int)
 	 */
 	public double getSpeed() {
-		// TODO implement this
-		// LOGGER.warning("Need to implement the NetworkEdge.getSpeed() method");
-		return 1;
-		// synchronized (GlobalVars.TRANSPORT_PARAMS.currentBurglarLock) {
-		// if ( GlobalVars.TRANSPORT_PARAMS.currentBurglar==null ||
-		// this.access==null ||
-		// GlobalVars.TRANSPORT_PARAMS.currentBurglar.getTransportAvailable()==null )
-		// {
-		// // Might not be using transport routes (e.g. in a Grid environment).
-		// return 1;
-		// }
-		// // double quickestSpeed = Double.MIN_VALUE;
-		// double quickestSpeed = 0.00001; // Can't use MIN_VALUE because when divided by weight result will be 0
-		// String quickestTransport = "";
-		// for (String transport:this.access) { // Each method that can be used to travel across this Edge
-		// if (GlobalVars.TRANSPORT_PARAMS.currentBurglar.isAvailableTransport(transport) &&
-		// (GlobalVars.TRANSPORT_PARAMS.getSpeed(transport) > quickestSpeed ))
-		// {
-		// // The agent is able to use this transport method and it's the quickest found so far.
-		// quickestSpeed = GlobalVars.TRANSPORT_PARAMS.getSpeed(transport);
-		// quickestTransport = transport;
-		// }
-		// }
-		// // Do a check if fastest method is by car and is a major road, will be even quicker.
-		// if (quickestTransport.equals(GlobalVars.TRANSPORT_PARAMS.CAR) && this.majorRoad) {
-		// quickestSpeed = quickestSpeed*GlobalVars.TRANSPORT_PARAMS.MAJOR_ROAD_ADVANTAGE;
-		// }
-		// return quickestSpeed;
-		// }
+		return this.speeds[TRANSPORT_PARAMS.getCurrentAgentMask()];
+	}
 
+	/**
+	 * The speed with which an agent who has the given transport available can travel across this edge.
+	 * 
+	 * @param agentMask
+	 *            The transport available to the agent, as a mask of <code>TRANSPORT_PARAMS.MODE</code> bits.
+	 * @see TRANSPORT_PARAMS#getAgentMask(repastcity3.agent.IAgent)
+	 */
+	public double getSpeed(int agentMask) {
+		return this.speeds[agentMask];
 	}
 
-	public List<String> getTypes() {
+	/**
+	 * Work out the quickest speed across this edge for every combination of transport modes.
+	 */
+	private void calcSpeeds() {
+		this.speeds = new double[TRANSPORT_PARAMS.ALL_MODES + 1];
+		for (int agentMask = 0; agentMask < this.speeds.length; agentMask++) {
+			if (this.access == 0) {
+				// No accessibility information so anyone can travel along the edge (at walking speed)
+				this.speeds[agentMask] = 1;
+				continue;
+			}
+			// Can't use Double.MIN_VALUE because when divided by weight result will be 0
+			double quickestSpeed = 0.00001;
+			for (TRANSPORT_PARAMS.MODE m : TRANSPORT_PARAMS.MODE.values()) {
+				if ((this.access & agentMask & m.bit) != 0) {
+					double speed = m.speed;
+					// If the mode is by car and this is a major road, will be even quicker.
+					if (m == TRANSPORT_PARAMS.MODE.CAR && this.majorRoad) {
+						speed = speed * TRANSPORT_PARAMS.MAJOR_ROAD_ADVANTAGE;
+					}
+					if (speed > quickestSpeed) {
+						quickestSpeed = speed;
+					}
+				}
+			}
+			this.speeds[agentMask] = quickestSpeed;
+		}
+	}
+
+	/**
+	 * Get the weight of this edge regardless of the agent who is travelling along it (i.e. the length of the road that
+	 * it represents).
+	 */
+	public double getLength() {
+		return super.getWeight();
+	}
+
+	/**
+	 * Check whether an agent with the given transport can travel along this edge. Edges without any accessibility
+	 * information can be travelled along by anyone.
+	 * 
+	 * @param agentMask
+	 *            The transport available to the agent, as a mask of <code>TRANSPORT_PARAMS.MODE</code> bits.
+	 */
+	public boolean isAccessible(int agentMask) {
+		return this.access == 0 || (this.access & agentMask) != 0;
+	}
+
+	/**
+	 * @return The access methods as a mask of <code>TRANSPORT_PARAMS.MODE</code> bits.
+	 */
+	public int getAccessMask() {
 		return this.access;
 	}
 
+	public List<String> getTypes() {
+		return TRANSPORT_PARAMS.MODE.getTypes(this.access);
+	}
+
 	/**
 	 * Adds a type to this NetworkEdge, indicating that it forms more than just a road network.
 	 * 
@@ -124,7 +174,12 @@ public class NetworkEdge<T> extends RepastEdge<T> {
 	 * @return
 	 */
 	public void addType(String type) {
-		this.access.add(type);
+		TRANSPORT_PARAMS.MODE m = TRANSPORT_PARAMS.MODE.get(type);
+		if (m == null) {
+			throw new IllegalArgumentException("Unrecognised transport type: " + type);
+		}
+		this.access |= m.bit;
+		this.calcSpeeds();
 	}
 
 	/**
@@ -136,6 +191,11 @@ public class NetworkEdge<T> extends RepastEdge<T> {
 	 */
 	public void setMajorRoad(boolean majorRoad) {
 		this.majorRoad = majorRoad;
+		this.calcSpeeds();
+	}
+
+	public boolean isMajorRoad() {
+		return this.majorRoad;
 	}
 
 	/**
@@ -158,7 +218,7 @@ public class NetworkEdge<T> extends RepastEdge<T> {
 	@Override
 	public String toString() {
 		return "Edge between " + this.getSource() + "->" + this.getTarget() + " accessible by "
-				+ this.access.toString() + (this.majorRoad ? " (is major road)" : "");
+				+ this.getTypes().toString() + (this.majorRoad ? " (is major road)" : "");
 	}
 
 	/**
@@ -0,0 +1,156 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Populates a cache that has an entry for every building (e.g. <code>NearestRoadCoordCache</code> and
+ * <code>BuildingsOnRoadCache</code>) using all of the available processors. The buildings are split recursively
+ * into ranges using a fork-join pool; each range is added to its own partial result (so workers never share a map)
+ * and the partial results are merged as the tasks complete. Because ranges are merged in order, the final result is
+ * the same as if the buildings had been processed one at a time.
+ * <p>
+ * Anything that is called from <code>add()</code> must be safe to call from several threads at once. In particular,
+ * spatial queries should go through the <code>SpatialIndexManager</code> rather than the <code>Geography</code>.
+ * </p>
+ *
+ * @author Nick Malleson
+ * @param <R>
+ *            The type of the (partial) results.
+ */
+abstract class ParallelCacheBuilder<R> {
+
+	private static Logger LOGGER = Logger.getLogger(ParallelCacheBuilder.class.getName());
+
+	/** Ranges with fewer buildings than this are not split any further. */
+	private static final int MIN_SPLIT = 256;
+
+	private final String name;
+	private Building[] buildings;
+	private final AtomicInteger done = new AtomicInteger(0);
+	/** The percentage complete at the last progress report. */
+	private final AtomicInteger reported = new AtomicInteger(0);
+	/** The first exception thrown by a worker (the remaining work is abandoned). */
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+	/**
+	 * @param name
+	 *            The name of the cache (used in progress messages).
+	 */
+	ParallelCacheBuilder(String name) {
+		this.name = name;
+	}
+
+	/** Create a new, empty, partial result. */
+	abstract R createPartial();
+
+	/** Add the information for one building to a partial result. */
+	abstract void add(Building building, R partial) throws Exception;
+
+	/** Merge two partial results. <code>second</code> holds buildings that come after those in <code>first</code>. */
+	abstract R merge(R first, R second);
+
+	/**
+	 * Populate the cache.
+	 *
+	 * @param buildings
+	 *            All the buildings.
+	 * @return The result.
+	 * @throws Exception
+	 *             If <code>add()</code> threw an exception for any building.
+	 */
+	R build(Iterable<Building> buildings) throws Exception {
+		double time = System.nanoTime();
+		List<Building> l = new ArrayList<Building>();
+		for (Building b : buildings) {
+			l.add(b);
+		}
+		this.buildings = l.toArray(new Building[l.size()]);
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		R result;
+		try {
+			result = pool.invoke(new Task(0, this.buildings.length));
+		} finally {
+			pool.shutdown();
+			this.buildings = null;
+		}
+		if (this.failure.get() != null) {
+			throw this.failure.get();
+		}
+		LOGGER.log(Level.FINER, "Populated " + this.name + " with " + this.done.get() + " buildings using "
+				+ numThreads + " threads in " + (0.000001 * (System.nanoTime() - time)) + "ms");
+		return result;
+	}
+
+	private void progress(int count) {
+		int total = this.buildings.length;
+		int percent = (int) (100L * this.done.addAndGet(count) / total);
+		int last = this.reported.get();
+		// Report every 10%, making sure that only one thread reports each step
+		if (percent / 10 > last / 10 && this.reported.compareAndSet(last, percent)) {
+			LOGGER.log(Level.FINE, "Populating " + this.name + ": " + percent + "% (" + this.done.get() + " of "
+					+ total + " buildings)");
+		}
+	}
+
+	private class Task extends RecursiveTask<R> {
+
+		private static final long serialVersionUID = 1L;
+		private final int from, to;
+
+		Task(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected R compute() {
+			if (this.to - this.from <= MIN_SPLIT) {
+				R partial = createPartial();
+				if (failure.get() != null) {
+					return partial;
+				}
+				try {
+					for (int i = this.from; i < this.to; i++) {
+						add(buildings[i], partial);
+					}
+				} catch (Exception e) {
+					failure.compareAndSet(null, e);
+				}
+				progress(this.to - this.from);
+				return partial;
+			}
+			int mid = (this.from + this.to) >>> 1;
+			Task first = new Task(this.from, mid);
+			Task second = new Task(mid, this.to);
+			second.fork();
+			R firstResult = first.compute();
+			return merge(firstResult, second.join());
+		}
+	}
+}
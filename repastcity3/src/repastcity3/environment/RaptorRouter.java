@@ -0,0 +1,356 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the earliest arrival journey on public transport using the RAPTOR algorithm (Delling, Pajor and Werneck,
+ * 2012). Rather than searching a graph, RAPTOR works in rounds: round <i>k</i> finds the earliest time that each stop
+ * can be reached using <i>k</i> vehicles, by scanning each pattern (see <code>Timetable</code>) that serves a stop that
+ * was improved in the previous round. Everything is stored in flat arrays so queries are very quick.
+ * <p>
+ * Routers are not thread safe, each thread should use its own router (see <code>Route</code>).
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see Timetable
+ */
+public class RaptorRouter {
+
+	private static Logger LOGGER = Logger.getLogger(RaptorRouter.class.getName());
+
+	/** The maximum number of vehicles that can be used in a single journey. */
+	public static final int MAX_ROUNDS = 4;
+
+	private static final int NONE = -1;
+	private static final int ACCESS = -2; // The stop was reached by walking from the origin
+	private static final int TRANSFER = -3; // The stop was reached by walking from another stop
+
+	private final Timetable timetable;
+
+	/*
+	 * Labels for each round and stop, indexed by round * numStops + stop. The arrival time and how the stop was reached:
+	 * the pattern (or ACCESS/TRANSFER), the trip, the positions in the pattern where the vehicle was boarded and left
+	 * (a stop can appear more than once in a pattern that loops) and the stop where the vehicle was boarded (or the
+	 * stop walked from).
+	 */
+	private final int[] arrival;
+	private final int[] parentPattern;
+	private final int[] parentTrip;
+	private final int[] parentBoardPos;
+	private final int[] parentAlightPos;
+	private final int[] parentFrom;
+	private final int[] bestArrival; // The earliest arrival at each stop in any round
+
+	private final boolean[] marked;
+	private final int[] patternFromPos; // The earliest position that each pattern needs to be scanned from
+
+	public RaptorRouter(Timetable timetable) {
+		this.timetable = timetable;
+		int numStops = timetable.getNumStops();
+		int size = (MAX_ROUNDS + 1) * numStops;
+		this.arrival = new int[size];
+		this.parentPattern = new int[size];
+		this.parentTrip = new int[size];
+		this.parentBoardPos = new int[size];
+		this.parentAlightPos = new int[size];
+		this.parentFrom = new int[size];
+		this.bestArrival = new int[numStops];
+		this.marked = new boolean[numStops];
+		this.patternFromPos = new int[timetable.getNumPatterns()];
+	}
+
+	Timetable getTimetable() {
+		return this.timetable;
+	}
+
+	/**
+	 * Find the journey that arrives at the destination the earliest.
+	 *
+	 * @param accessStops
+	 *            The stops that can be walked to from the origin.
+	 * @param accessTimes
+	 *            The time (seconds since midnight) that each of the access stops can be reached.
+	 * @param egressStops
+	 *            The stops that the destination can be walked to from.
+	 * @param egressDurations
+	 *            The time (seconds) it takes to walk from each of the egress stops to the destination.
+	 * @param modeMask
+	 *            The public transport modes that can be used (a mask of <code>TRANSPORT_PARAMS.MODE</code> bits).
+	 * @return The journey or null if the destination can't be reached by public transport (journeys that don't use
+	 *         any vehicles are not returned).
+	 */
+	public Journey route(int[] accessStops, int[] accessTimes, int[] egressStops, int[] egressDurations, int modeMask) {
+		double time = System.nanoTime();
+		int numStops = this.timetable.getNumStops();
+		Arrays.fill(this.arrival, Integer.MAX_VALUE);
+		Arrays.fill(this.bestArrival, Integer.MAX_VALUE);
+		Arrays.fill(this.marked, false);
+
+		// Round 0: walk to the access stops
+		for (int i = 0; i < accessStops.length; i++) {
+			int s = accessStops[i];
+			if (accessTimes[i] < this.arrival[s]) {
+				this.setLabel(0, s, accessTimes[i], ACCESS, NONE, NONE, NONE, NONE);
+				this.marked[s] = true;
+			}
+		}
+
+		int bestTarget = Integer.MAX_VALUE; // Earliest arrival at the destination so far (used to prune)
+		int bestRound = NONE, bestEgress = NONE;
+		for (int k = 1; k <= MAX_ROUNDS; k++) {
+			// Work out which patterns need to be scanned, and from which stop
+			Arrays.fill(this.patternFromPos, Integer.MAX_VALUE);
+			List<Integer> patterns = new ArrayList<Integer>();
+			for (int s = 0; s < numStops; s++) {
+				if (!this.marked[s]) {
+					continue;
+				}
+				this.marked[s] = false;
+				for (int i = this.timetable.getFirstStopPattern(s); i < this.timetable.getLastStopPattern(s); i++) {
+					int p = this.timetable.getStopPattern(i);
+					if ((this.timetable.getPatternMode(p).bit & modeMask) == 0) {
+						continue;
+					}
+					int pos = this.timetable.getStopPatternPosition(i);
+					if (this.patternFromPos[p] == Integer.MAX_VALUE) {
+						patterns.add(p);
+					}
+					this.patternFromPos[p] = Math.min(this.patternFromPos[p], pos);
+				}
+			}
+			if (patterns.isEmpty()) {
+				break;
+			}
+
+			// Scan each pattern, hopping on the earliest trip that can be caught and getting off when it improves a stop
+			List<Integer> improved = new ArrayList<Integer>();
+			for (int p : patterns) {
+				int trip = NONE, boardPos = NONE;
+				for (int pos = this.patternFromPos[p]; pos < this.timetable.getPatternNumStops(p); pos++) {
+					int s = this.timetable.getPatternStop(p, pos);
+					if (trip != NONE) {
+						int arr = this.timetable.getArrival(p, trip, pos);
+						if (arr < this.bestArrival[s] && arr < bestTarget) {
+							if (this.arrival[k * numStops + s] == Integer.MAX_VALUE) {
+								improved.add(s);
+							}
+							this.setLabel(k, s, arr, p, trip, boardPos, pos, this.timetable.getPatternStop(p,
+									boardPos));
+						}
+					}
+					// Can an earlier trip be caught here?
+					int prev = this.arrival[(k - 1) * numStops + s];
+					if (prev != Integer.MAX_VALUE
+							&& (trip == NONE || prev <= this.timetable.getDeparture(p, trip, pos))) {
+						int t = this.timetable.getEarliestTrip(p, pos, prev);
+						if (t != NONE && (trip == NONE || t < trip)) {
+							trip = t;
+							boardPos = pos;
+						}
+					}
+				}
+			}
+
+			// Walk between stops from the stops improved by a vehicle (walks aren't chained together)
+			List<Integer> walked = new ArrayList<Integer>();
+			for (int s : improved) {
+				if (this.parentPattern[k * numStops + s] == TRANSFER) {
+					continue; // Has already been reached more quickly by walking from another stop
+				}
+				int arr = this.arrival[k * numStops + s];
+				for (int i = this.timetable.getFirstTransfer(s); i < this.timetable.getLastTransfer(s); i++) {
+					int s2 = this.timetable.getTransferTarget(i);
+					int arr2 = arr + this.timetable.getTransferDuration(i);
+					if (arr2 < this.bestArrival[s2] && arr2 < bestTarget) {
+						this.setLabel(k, s2, arr2, TRANSFER, NONE, NONE, NONE, s);
+						walked.add(s2);
+					}
+				}
+			}
+			for (int s : improved) {
+				this.marked[s] = true;
+			}
+			for (int s : walked) {
+				this.marked[s] = true;
+			}
+
+			// See if the destination can now be reached any earlier
+			for (int i = 0; i < egressStops.length; i++) {
+				int arr = this.arrival[k * numStops + egressStops[i]];
+				if (arr != Integer.MAX_VALUE && arr + egressDurations[i] < bestTarget) {
+					bestTarget = arr + egressDurations[i];
+					bestRound = k;
+					bestEgress = egressStops[i];
+				}
+			}
+		}
+		if (bestRound == NONE) {
+			return null;
+		}
+		Journey j = this.createJourney(bestRound, bestEgress, bestTarget);
+		LOGGER.log(Level.FINER, "RaptorRouter found a journey with " + j.getLegs().size() + " legs arriving at "
+				+ bestTarget + " in " + (0.000001 * (System.nanoTime() - time)) + "ms");
+		return j;
+	}
+
+	private void setLabel(int k, int s, int arr, int pattern, int trip, int boardPos, int alightPos, int from) {
+		int i = k * this.timetable.getNumStops() + s;
+		this.arrival[i] = arr;
+		this.parentPattern[i] = pattern;
+		this.parentTrip[i] = trip;
+		this.parentBoardPos[i] = boardPos;
+		this.parentAlightPos[i] = alightPos;
+		this.parentFrom[i] = from;
+		this.bestArrival[s] = Math.min(this.bestArrival[s], arr);
+	}
+
+	/**
+	 * Follow the labels back from the egress stop to create the journey.
+	 */
+	private Journey createJourney(int round, int egressStop, int arrivalTime) {
+		int numStops = this.timetable.getNumStops();
+		List<Leg> legs = new ArrayList<Leg>();
+		int k = round, s = egressStop;
+		while (true) {
+			int i = k * numStops + s;
+			int pattern = this.parentPattern[i];
+			if (pattern == ACCESS) {
+				break;
+			} else if (pattern == TRANSFER) {
+				int from = this.parentFrom[i];
+				legs.add(new Leg(this.timetable, NONE, NONE, from, s, this.arrival[k * numStops + from],
+						this.arrival[i]));
+				s = from;
+			} else {
+				int trip = this.parentTrip[i];
+				int boardPos = this.parentBoardPos[i];
+				int alightPos = this.parentAlightPos[i];
+				legs.add(new Leg(this.timetable, pattern, trip, boardPos, alightPos, this.timetable.getDeparture(
+						pattern, trip, boardPos), this.arrival[i]));
+				s = this.parentFrom[i];
+				k--;
+			}
+		}
+		Collections.reverse(legs);
+		return new Journey(s, legs, egressStop, arrivalTime);
+	}
+
+	/**
+	 * A public transport journey: walk from the origin to the first stop, then a number of legs (either a ride on a
+	 * vehicle or a walk between two stops), then walk from the last stop to the destination.
+	 */
+	public static final class Journey {
+		private final int firstStop, lastStop;
+		private final List<Leg> legs;
+		private final int arrivalTime;
+
+		private Journey(int firstStop, List<Leg> legs, int lastStop, int arrivalTime) {
+			this.firstStop = firstStop;
+			this.legs = legs;
+			this.lastStop = lastStop;
+			this.arrivalTime = arrivalTime;
+		}
+
+		/** The stop that the journey starts from (the agent walks here from the origin). */
+		public int getFirstStop() {
+			return this.firstStop;
+		}
+
+		/** The stop that the journey finishes at (the agent walks from here to the destination). */
+		public int getLastStop() {
+			return this.lastStop;
+		}
+
+		public List<Leg> getLegs() {
+			return this.legs;
+		}
+
+		/** The time that the destination is reached (seconds since midnight). */
+		public int getArrivalTime() {
+			return this.arrivalTime;
+		}
+	}
+
+	/**
+	 * Part of a journey. Either a ride on a single trip from one stop to another or a walk between two stops.
+	 */
+	public static final class Leg {
+		private final int pattern, trip;
+		private final int[] stops; // The stops passed through (including the first and last)
+		private final int departureTime, arrivalTime;
+		private final Timetable timetable;
+
+		/*
+		 * For rides, 'from' and 'to' are the positions in the pattern. For walks the pattern is NONE and they are stops.
+		 */
+		private Leg(Timetable timetable, int pattern, int trip, int from, int to, int departureTime, int arrivalTime) {
+			this.timetable = timetable;
+			this.pattern = pattern;
+			this.trip = trip;
+			if (pattern == NONE) {
+				this.stops = new int[] { from, to };
+			} else {
+				this.stops = new int[to - from + 1];
+				for (int i = from; i <= to; i++) {
+					this.stops[i - from] = timetable.getPatternStop(pattern, i);
+				}
+			}
+			this.departureTime = departureTime;
+			this.arrivalTime = arrivalTime;
+		}
+
+		/** Whether this leg is a walk between two stops (rather than a ride on a vehicle). */
+		public boolean isWalk() {
+			return this.pattern == NONE;
+		}
+
+		/** The stops that the leg passes through, including the first and last. */
+		public int[] getStops() {
+			return this.stops;
+		}
+
+		/** The time that the leg starts (for rides this is the time that the vehicle leaves the first stop). */
+		public int getDepartureTime() {
+			return this.departureTime;
+		}
+
+		public int getArrivalTime() {
+			return this.arrivalTime;
+		}
+
+		@Override
+		public String toString() {
+			if (this.isWalk()) {
+				return "walk from " + this.timetable.getStopName(this.stops[0]) + " to "
+						+ this.timetable.getStopName(this.stops[1]);
+			}
+			return this.timetable.getPatternMode(this.pattern).type + " " + this.timetable.getPatternName(this.pattern)
+					+ " (trip " + this.trip + ") from " + this.timetable.getStopName(this.stops[0]) + " to "
+					+ this.timetable.getStopName(this.stops[this.stops.length - 1]);
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+import repastcity3.main.ContextManager;
+
+/**
+ * Divides the environment into a number of regions so that the agents can be shared out between several processes
+ * (see <code>RegionCoordinator</code>). The city is cut into strips across its longest side, with the boundaries
+ * chosen so that each strip has (about) the same number of buildings and therefore, roughly, the same number of
+ * agents. Every building, road (using its centre) and junction belongs to exactly one region.
+ * <p>
+ * Each region also has a 'ghost' band, <code>ghostWidth</code> wide, along each of its borders. An agent that moves
+ * into the band stays with the region that it was in and is only handed over to its neighbour once it moves further
+ * than that (see <code>isInRegionOrGhost()</code>). This stops agents that travel along a border from being passed
+ * back and forth every iteration.
+ * </p>
+ * <p>
+ * The partition only depends on the positions of the buildings so every process that loads the same data creates
+ * the same regions. The environment must have been built first.
+ * </p>
+ *
+ * @author Nick Malleson
+ */
+public final class RegionPartition {
+
+	private static Logger LOGGER = Logger.getLogger(RegionPartition.class.getName());
+
+	private final int numRegions;
+	private final double ghostWidth;
+	/* Whether the strips are divided along the x axis (i.e. the city is wider than it is tall) */
+	private final boolean alongX;
+	/* The coordinates (x or y) of the borders between each region and the next (there are numRegions-1 of them) */
+	private final double[] borders;
+
+	private final List<List<Building>> buildings = new ArrayList<List<Building>>();
+	private final List<List<Road>> roads = new ArrayList<List<Road>>();
+	private final List<List<Junction>> junctions = new ArrayList<List<Junction>>();
+	private final int totalBuildings;
+
+	/**
+	 * Partition the environment.
+	 *
+	 * @param numRegions
+	 *            The number of regions to create.
+	 * @param ghostWidth
+	 *            The width (in metres) of the band along each border that agents can move into before they are
+	 *            handed over to the neighbouring region. It is converted to the units of the GIS data (e.g. degrees)
+	 *            in the middle of the city (see <code>Route.metresToDistance()</code>).
+	 */
+	public RegionPartition(int numRegions, double ghostWidth) {
+		double time = System.nanoTime();
+		if (numRegions < 1) {
+			throw new IllegalArgumentException("Need at least one region, not " + numRegions);
+		}
+		this.numRegions = numRegions;
+
+		List<Building> allBuildings = new ArrayList<Building>();
+		for (Building b : ContextManager.buildingContext.getObjects(Building.class)) {
+			allBuildings.add(b);
+		}
+		this.totalBuildings = allBuildings.size();
+		double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (Building b : allBuildings) {
+			Coordinate c = b.getCoords();
+			minX = Math.min(minX, c.x);
+			maxX = Math.max(maxX, c.x);
+			minY = Math.min(minY, c.y);
+			maxY = Math.max(maxY, c.y);
+		}
+		this.alongX = (maxX - minX) >= (maxY - minY);
+		this.ghostWidth = allBuildings.isEmpty() ? ghostWidth : Route.metresToDistance(ghostWidth, new Coordinate(
+				(minX + maxX) / 2, (minY + maxY) / 2));
+
+		// Borders are put at the quantiles of the building positions
+		double[] values = new double[allBuildings.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = this.value(allBuildings.get(i).getCoords());
+		}
+		Arrays.sort(values);
+		this.borders = new double[numRegions - 1];
+		for (int r = 1; r < numRegions; r++) {
+			this.borders[r - 1] = values.length == 0 ? 0 : values[(int) ((long) r * values.length / numRegions)];
+		}
+
+		for (int r = 0; r < numRegions; r++) {
+			this.buildings.add(new ArrayList<Building>());
+			this.roads.add(new ArrayList<Road>());
+			this.junctions.add(new ArrayList<Junction>());
+		}
+		for (Building b : allBuildings) {
+			this.buildings.get(this.getRegion(b.getCoords())).add(b);
+		}
+		for (Junction j : ContextManager.junctionContext.getObjects(Junction.class)) {
+			this.junctions.get(this.getRegion(j.getCoords())).add(j);
+		}
+		for (Road road : ContextManager.roadContext.getObjects(Road.class)) {
+			this.roads.get(this.getRegion(road.getCoords())).add(road);
+		}
+		if (LOGGER.isLoggable(Level.FINE)) {
+			StringBuilder sb = new StringBuilder();
+			for (int r = 0; r < numRegions; r++) {
+				sb.append("\n\tRegion ").append(r).append(": ").append(this.buildings.get(r).size())
+						.append(" buildings, ").append(this.roads.get(r).size()).append(" roads, ")
+						.append(this.junctions.get(r).size()).append(" junctions");
+			}
+			LOGGER.log(Level.FINE, "Divided the environment into " + numRegions + " regions along the "
+					+ (this.alongX ? "x" : "y") + " axis (borders at " + Arrays.toString(this.borders)
+					+ ", ghost bands " + this.ghostWidth + " wide) in "
+					+ (0.000001 * (System.nanoTime() - time)) + "ms:" + sb.toString());
+		}
+	}
+
+	/* The position of a coordinate across the strips */
+	private double value(Coordinate c) {
+		return this.alongX ? c.x : c.y;
+	}
+
+	public int getNumRegions() {
+		return this.numRegions;
+	}
+
+	/**
+	 * Get the region that a coordinate is in.
+	 */
+	public int getRegion(Coordinate c) {
+		double v = this.value(c);
+		int r = 0;
+		while (r < this.borders.length && v >= this.borders[r]) {
+			r++;
+		}
+		return r;
+	}
+
+	/**
+	 * Find out whether a coordinate is in the given region or in the band along its borders (i.e. whether an agent
+	 * at that position can stay with the region).
+	 */
+	public boolean isInRegionOrGhost(int region, Coordinate c) {
+		double v = this.value(c);
+		double min = region == 0 ? -Double.MAX_VALUE : this.borders[region - 1] - this.ghostWidth;
+		double max = region == this.numRegions - 1 ? Double.MAX_VALUE : this.borders[region] + this.ghostWidth;
+		return v >= min && v < max;
+	}
+
+	/**
+	 * Share a number of things (e.g. agents) out between the regions in proportion to the number of buildings in
+	 * each. The shares of all the regions add up to <code>total</code>.
+	 */
+	public int share(int total, int region) {
+		if (this.totalBuildings == 0) {
+			return region == 0 ? total : 0;
+		}
+		long before = 0;
+		for (int r = 0; r < region; r++) {
+			before += this.buildings.get(r).size();
+		}
+		long upTo = before + this.buildings.get(region).size();
+		return (int) ((long) total * upTo / this.totalBuildings - (long) total * before / this.totalBuildings);
+	}
+
+	public List<Building> getBuildings(int region) {
+		return this.buildings.get(region);
+	}
+
+	public List<Road> getRoads(int region) {
+		return this.roads.get(region);
+	}
+
+	public List<Junction> getJunctions(int region) {
+		return this.junctions.get(region);
+	}
+}
@@ -58,6 +58,7 @@ public class Road implements FixedGeography, Identified {
 	// These determine whether or not the the road can be traversed on foot and/or by car.
 	private String access; // To be used by ShapefileLoader, should contain string of words separated by spaces
 	private List<String> accessibility; // access String should be parsed into this list (see initialise()).
+	private int accessMask = 0; // The same as accessibility but as a mask of TRANSPORT_PARAMS.MODE bits
 
 	private String name; // Doesn't affect model but useful for debugging
 
@@ -86,7 +87,9 @@ public class Road implements FixedGeography, Identified {
 
 	/**
 	 * This should be called once this Road object has been created to perform some extra initialisation (e.g. setting
-	 * the accessibility methods available to this Road).
+	 * the accessibility methods available to this Road). Roads are initialised when they are read from a shapefile or
+	 * restored from a snapshot, before their edges are added to the road network. Calling this again re-parses the
+	 * access string.
 	 * 
 	 * @throws NoIdentifierException
 	 */
@@ -97,15 +100,26 @@ public class Road implements FixedGeography, Identified {
 					+ "called 'identifier' present in the shapefile used to create this Road)");
 		}
 		// Parse the access string and work out which accessibility methods can be used to travel this Road
+		this.accessibility = null;
+		this.accessMask = 0;
+		this.majorRoad = false;
 		if (this.access != null) { // Could be null because not using accessibility in GRID environment for example
 			this.accessibility = new ArrayList<String>();
 			for (String word : this.access.split(" ")) {
-				if (word.equals(GlobalVars.TRANSPORT_PARAMS.MAJOR_ROAD)) {
+				if (word.length() == 0) {
+					continue;
+				} else if (word.equals(GlobalVars.TRANSPORT_PARAMS.MAJOR_ROAD)) {
 					// Special case: 'majorRoad' isn't a type of access, means the road is quick for car drivers
 					this.majorRoad = true;
 				} else {
-					// Otherwise just add the accessibility type to the list
+					// Otherwise add the accessibility type to the list and set its bit in the mask
 					this.accessibility.add(word);
+					GlobalVars.TRANSPORT_PARAMS.MODE mode = GlobalVars.TRANSPORT_PARAMS.MODE.get(word);
+					if (mode == null) {
+						LOGGER.warning("Road " + this.identifier + " has an unrecognised access type: '" + word + "'");
+					} else {
+						this.accessMask |= mode.bit;
+					}
 				}
 			}
 		}
@@ -128,6 +142,14 @@ public class Road implements FixedGeography, Identified {
 		this.access = access;
 	}
 
+	/**
+	 * @return The string that was used to set the accessibility methods for this road (might be null).
+	 * @see setAccess
+	 */
+	public String getAccess() {
+		return this.access;
+	}
+
 	public boolean isMajorRoad() {
 		return this.majorRoad;
 	}
@@ -142,6 +164,17 @@ public class Road implements FixedGeography, Identified {
 		return this.accessibility;
 	}
 
+	/**
+	 * Get the accessibility methods as a mask of <code>GlobalVars.TRANSPORT_PARAMS.MODE</code> bits.
+	 * 
+	 * @return the mask, or 0 if no accessibility information was available for this road (in which case it can be
+	 *         travelled along by anyone).
+	 * @see getAccessibility
+	 */
+	public int getAccessMask() {
+		return this.accessMask;
+	}
+
 	@Override
 	public String toString() {
 		return "road: " + this.identifier + (this.name == null ? "" : "(" + this.name + ")");
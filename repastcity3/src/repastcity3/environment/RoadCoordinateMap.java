@@ -0,0 +1,218 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import repast.simphony.space.gis.Geography;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A map from every coordinate that makes up a road to the road(s) that the coordinate is part of (see
+ * <code>Route.getCoordCache()</code>). There are a lot of road coordinates, so rather than storing a
+ * <code>Coordinate</code> and a <code>List</code> for each one the map uses arrays of primitives: the exact bits of
+ * each coordinate's x and y are stored in an open-addressing hash table, and the roads for each coordinate are stored
+ * as a range of indices into a single array. This means that checking whether a coordinate is on a road does not
+ * create any objects.
+ * <p>
+ * Coordinates are only the same if their x and y values are exactly the same (as with <code>Coordinate.equals()</code>,
+ * which the map replaces). They must not be rounded: the geography is in degrees so even a small grid would merge road
+ * coordinates with nearby building coordinates that aren't on a road at all. The map can't be changed after it has
+ * been created, so it can be used by any number of threads at once.
+ * </p>
+ *
+ * @author Nick Malleson
+ */
+final class RoadCoordinateMap {
+
+	/* Used to mark slots in the hash table that are not being used */
+	private static final int EMPTY = -1;
+
+	private final Road[] roads;
+	/*
+	 * The hash table. Each used slot holds the bits of a coordinate (see bits()) and the number of the entry for that
+	 * coordinate; empty slots have an entry of EMPTY.
+	 */
+	private final long[] keysX;
+	private final long[] keysY;
+	private final int[] entries;
+	private final int mask;
+	private final int size;
+	/* The roads for entry e are roads[roadIndices[firstRoad[e]]] ... roads[roadIndices[firstRoad[e + 1] - 1]] */
+	private final int[] firstRoad;
+	private final int[] roadIndices;
+
+	/**
+	 * Create the map.
+	 *
+	 * @param roads
+	 *            The roads.
+	 * @param geography
+	 *            The geography that holds the roads, used to get their coordinates.
+	 */
+	RoadCoordinateMap(Collection<Road> roads, Geography<Road> geography) {
+		this(roads.toArray(new Road[roads.size()]), coordinates(roads, geography));
+	}
+
+	private static Coordinate[][] coordinates(Collection<Road> roads, Geography<Road> geography) {
+		Coordinate[][] coords = new Coordinate[roads.size()][];
+		int r = 0;
+		for (Road road : roads) {
+			coords[r++] = geography.getGeometry(road).getCoordinates();
+		}
+		return coords;
+	}
+
+	/**
+	 * Create the map from the coordinates of each road.
+	 *
+	 * @param roads
+	 *            The roads.
+	 * @param coords
+	 *            The coordinates of each road (in the same order as <code>roads</code>).
+	 */
+	RoadCoordinateMap(Road[] roads, Coordinate[][] coords) {
+		this.roads = roads;
+		int numCoords = 0;
+		for (int r = 0; r < this.roads.length; r++) {
+			numCoords += coords[r].length;
+		}
+		// The number of road coordinates is an upper bound on the number of keys. Keep the table no more than half
+		// full so that probe sequences stay short.
+		int capacity = Integer.highestOneBit(Math.max(2, numCoords)) << 2;
+		this.keysX = new long[capacity];
+		this.keysY = new long[capacity];
+		this.entries = new int[capacity];
+		Arrays.fill(this.entries, EMPTY);
+		this.mask = capacity - 1;
+
+		// First pass: give each distinct key an entry and count the roads that go through each entry
+		int[] entryOf = new int[numCoords]; // The entry for every road coordinate
+		int[] counts = new int[numCoords];
+		int[] lastRoad = new int[numCoords]; // So that roads which visit a coordinate twice are only counted once
+		Arrays.fill(lastRoad, -1);
+		int numEntries = 0;
+		int i = 0;
+		for (int r = 0; r < this.roads.length; r++) {
+			for (Coordinate c : coords[r]) {
+				long x = bits(c.x), y = bits(c.y);
+				int slot = this.find(x, y);
+				if (this.entries[slot] == EMPTY) {
+					this.keysX[slot] = x;
+					this.keysY[slot] = y;
+					this.entries[slot] = numEntries++;
+				}
+				int entry = this.entries[slot];
+				if (lastRoad[entry] != r) {
+					lastRoad[entry] = r;
+					counts[entry]++;
+				}
+				entryOf[i++] = entry;
+			}
+		}
+		this.size = numEntries;
+
+		// Second pass: store the roads for each entry
+		this.firstRoad = new int[numEntries + 1];
+		for (int e = 0; e < numEntries; e++) {
+			this.firstRoad[e + 1] = this.firstRoad[e] + counts[e];
+		}
+		this.roadIndices = new int[this.firstRoad[numEntries]];
+		int[] next = Arrays.copyOf(this.firstRoad, numEntries);
+		i = 0;
+		for (int r = 0; r < this.roads.length; r++) {
+			for (int j = 0; j < coords[r].length; j++) {
+				int entry = entryOf[i++];
+				if (next[entry] == this.firstRoad[entry] || this.roadIndices[next[entry] - 1] != r) {
+					this.roadIndices[next[entry]++] = r;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the bits of an x or y value. 0.0 and -0.0 are the same coordinate (as they are for
+	 * <code>Coordinate.equals()</code>) so they have the same bits.
+	 */
+	static long bits(double d) {
+		return Double.doubleToLongBits(d == 0 ? 0.0 : d);
+	}
+
+	/**
+	 * Find the slot that holds the coordinate, or the empty slot where it should go.
+	 */
+	private int find(long x, long y) {
+		// Mix the bits so that neighbouring coordinates don't end up in neighbouring slots
+		long h = (x * 0x9E3779B97F4A7C15L) ^ Long.rotateLeft(y * 0xC2B2AE3D27D4EB4FL, 31);
+		h *= 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & this.mask;
+		while (this.entries[slot] != EMPTY && (this.keysX[slot] != x || this.keysY[slot] != y)) {
+			slot = (slot + 1) & this.mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Find the entry for a coordinate.
+	 *
+	 * @return The entry, or -1 if the coordinate isn't part of a road.
+	 */
+	private int entry(Coordinate c) {
+		return this.entries[this.find(bits(c.x), bits(c.y))];
+	}
+
+	/**
+	 * Find out whether the coordinate is part of a road.
+	 */
+	boolean containsKey(Coordinate c) {
+		return this.entry(c) >= 0;
+	}
+
+	/**
+	 * Get the roads that the coordinate is part of.
+	 *
+	 * @return The roads, or null if the coordinate isn't part of a road.
+	 */
+	List<Road> get(Coordinate c) {
+		int e = this.entry(c);
+		if (e < 0) {
+			return null;
+		}
+		List<Road> l = new ArrayList<Road>(this.firstRoad[e + 1] - this.firstRoad[e]);
+		for (int i = this.firstRoad[e]; i < this.firstRoad[e + 1]; i++) {
+			l.add(this.roads[this.roadIndices[i]]);
+		}
+		return l;
+	}
+
+	/** An estimate of the memory used by the map in bytes. */
+	long estimateSize() {
+		return 16L * this.keysX.length + 4L * (this.entries.length + this.firstRoad.length + this.roadIndices.length
+				+ this.roads.length);
+	}
+
+	/** The number of distinct road coordinates. */
+	int size() {
+		return this.size;
+	}
+}
@@ -18,22 +18,29 @@ along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
 
 package repastcity3.environment;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.geotools.referencing.GeodeticCalculator;
@@ -49,10 +56,9 @@ import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.operation.distance.DistanceOp;
 
 import repast.simphony.space.gis.Geography;
-import repast.simphony.space.graph.RepastEdge;
-import repast.simphony.space.graph.ShortestPath;
 import repastcity3.agent.IAgent;
 import repastcity3.exceptions.RoutingException;
+import repastcity3.main.Checkpointer;
 import repastcity3.main.ContextManager;
 import repastcity3.main.GlobalVars;
 
@@ -70,14 +76,10 @@ import repastcity3.main.GlobalVars;
  * 
  * @author Nick Malleson
  */
-public class Route implements Cacheable {
+public class Route {
 
 	private static Logger LOGGER = Logger.getLogger(Route.class.getName());
 
-	static {
-		// Route.routeCache = new Hashtable<CachedRoute, CachedRoute>();
-	}
-
 	private IAgent agent;
 	private Coordinate destination;
 	private Building destinationBuilding;
@@ -86,27 +88,32 @@ public class Route implements Cacheable {
 	 * The route consists of a list of coordinates which describe how to get to the destination. Each coordinate might
 	 * have an attached 'speed' which acts as a multiplier and is used to indicate whether or not the agent is
 	 * travelling along a transport route (i.e. if a coordinate has an attached speed of '2' the agent will be able to
-	 * get to the next coordinate twice as fast as they would do if they were walking). The current position incicate
-	 * where in the lists of coords the agent is up to. Other attribute information about the route can be included as
-	 * separate arrays with indices that match those of the 'route' array below.
+	 * get to the next coordinate twice as fast as they would do if they were walking). Each coordinate also has the
+	 * Road that contains it (so that when travelling we know which road/community the agent is on) and a description
+	 * of the function that added it (useful for debugging). All of this is stored in an immutable RoutePlan which
+	 * can be shared by every agent making the same trip; the current position indicates where in the plan this
+	 * particular agent is up to.
 	 */
 	private int currentPosition;
-	private List<Coordinate> routeX;
-	private List<Double> routeSpeedsX;
+	private RoutePlan plan;
+	// Only used while the route is being planned, the plan is built up here and then frozen
+	private RoutePlan.Builder planBuilder;
+
 	/*
-	 * This maps route coordinates to their containing Road, used so that when travelling we know which road/community
-	 * the agent is on. private
+	 * If the route is being planned in the background (see planInBackground()) then this will complete when the route
+	 * lists above are ready. Agents wait where they are until then. The tick that the route was submitted in and the
+	 * time of day that the agent will set off (used for public transport) are set before the route is submitted so
+	 * that they are the same however quickly the planning threads get to it.
 	 */
-	private List<Road> roadsX;
-
-	// Record which function has added each coord, useful for debugging
-	private List<String> routeDescriptionX;
+	private volatile Future<Void> planning;
+	private double planningTick;
+	private int departureTime = -1;
 
 	/*
 	 * Cache every coordinate which forms a road so that Route.onRoad() is quicker. Also save the Road(s) they are part
 	 * of, useful for the agent's awareness space (see getRoadFromCoordCache()).
 	 */
-	private static volatile Map<Coordinate, List<Road>> coordCache;
+	private static volatile RoadCoordinateMap coordCache;
 	/*
 	 * Cache the nearest road Coordinate to every building for efficiency (agents usually/always need to get from the
 	 * centroids of houses to/from the nearest road).
@@ -117,14 +124,61 @@ public class Route implements Cacheable {
 	 * space
 	 */
 	private static volatile BuildingsOnRoadCache buildingsOnRoadCache;
-	// To stop threads competing for the cache:
-	private static Object buildingsOnRoadCacheLock = new Object();
+	/*
+	 * A copy of the road network stored in arrays, used for searches that need to be quick (e.g. finding all the
+	 * buildings within a certain distance of an agent).
+	 */
+	private static volatile CompactRoadNetwork compactNetwork;
+	/*
+	 * To stop threads competing to create the caches. Each cache has its own lock so that creating one doesn't hold up
+	 * threads that need another. Once a cache has been created it is read without locking.
+	 */
+	private static final Object coordCacheLock = new Object();
+	private static final Object nearestRoadCoordCacheLock = new Object();
+	private static final Object buildingsOnRoadCacheLock = new Object();
+	private static final Object compactNetworkLock = new Object();
+	/*
+	 * The tasks that are creating the caches in the background (see warmUpCaches()).
+	 */
+	private static List<Future<?>> warmUpTasks;
 
 	/*
-	 * Store a route once it has been created, might be used later (note that the same object acts as key and value).
+	 * Store route plans once they have been created so that they can be shared by all agents making the same trip.
+	 * The cache is limited in size, the least recently used plans are evicted first.
 	 */
-	// TODO Re-think route caching, would be better to cache the whole Route object
-	// private static volatile Map<CachedRoute, CachedRoute> routeCache;
+	private static final BoundedCache<RoutePlan.Key, RoutePlan> routePlanCache =
+			new BoundedCache<RoutePlan.Key, RoutePlan>("route plans", BoundedCache.Policy.LRU, true,
+					64L * 1024 * 1024, new BoundedCache.Sizer<RoutePlan>() {
+						@Override
+						public long sizeOf(RoutePlan plan) {
+							return plan.estimateSize();
+						}
+					});
+
+	static {
+		// The caches are static so register them with the registry once, for all routes
+		CacheRegistry.register(new Cacheable() {
+			@Override
+			public void clearCaches() {
+				clearRouteCaches();
+			}
+
+			@Override
+			public List<CacheStats> getCacheStats() {
+				return getRouteCacheStats();
+			}
+
+			@Override
+			public long evict(long bytes) {
+				return evictRouteCaches(bytes);
+			}
+		});
+	}
+
+	// The public transport modes, agents who can use these might use a RaptorRouter to plan their route
+	private static final int TRANSIT_MODES = GlobalVars.TRANSPORT_PARAMS.MODE.BUS.bit
+			| GlobalVars.TRANSPORT_PARAMS.MODE.TRAIN.bit;
+	private static final ThreadLocal<RaptorRouter> raptorRouter = new ThreadLocal<RaptorRouter>();
 	// /** Store a route distance once it has been created */
 	// private static volatile Map<CachedRouteDistance, Double> routeDistanceCache;
 
@@ -172,14 +226,6 @@ public class Route implements Cacheable {
 	 */
 	protected void setRoute() throws Exception {
 		long time = System.nanoTime();
-		// this.routeX = new ArrayList<Coordinate>();
-		// this.roadsX = new ArrayList<Road>();
-		// this.routeDescriptionX = new ArrayList<String>();
-		// this.routeSpeedsX = new ArrayList<Double>();
-		this.routeX = new Vector<Coordinate>();
-		this.roadsX = new Vector<Road>();
-		this.routeDescriptionX = new Vector<String>();
-		this.routeSpeedsX = new Vector<Double>();
 
 		LOGGER.log(Level.FINER, "Planning route for: "
 				+ this.agent.toString()
@@ -189,157 +235,286 @@ public class Route implements Cacheable {
 						+ this.agent.getTransportAvailable().toString()));
 		if (atDestination()) {
 			LOGGER.log(Level.WARNING, "Already at destination, cannot create a route for " + this.agent.toString());
+			this.plan = RoutePlan.EMPTY;
 			return;
 		}
 
 		Coordinate currentCoord = ContextManager.getAgentGeometry(this.agent).getCoordinate();
 		Coordinate destCoord = this.destination;
 
-		// See if a route has already been cached.
-		// CachedRoute cachedRoute = new CachedRoute(currentCoord, destCoord, this.agent.getTransportAvailable());
-		// synchronized (Route.routeCache) {
-		// if (Route.routeCache.containsKey(cachedRoute)) {
-		// TempLogger.out("Route.setRoute, found a cached route from " + currentCoord + " to " + destCoord
-		// + " using available transport " + this.agent.getTransportAvailable() + ", returning it.");
-		// // Return a clone of the route that is stored in the cache
-		// // TODO do we need clones here? I don't think so...
-		// CachedRoute cr = Route.routeCache.get(cachedRoute);
-		// // this.routeX = Cloning.copy(cr.getRoute());
-		// // this.roadsX = new ArrayList<Road>(cr.getRoads());
-		// // this.routeSpeedsX = new ArrayList<Double>(cr.getRouteSpeeds());
-		// // this.routeDescriptionX = new ArrayList<String>(cr.getDescriptions());
-		// this.routeX = new Vector<Coordinate>(cr.getRoute());
-		// this.roadsX = new Vector<Road>(cr.getRoads());
-		// this.routeSpeedsX = new Vector<Double>(cr.getRouteSpeeds());
-		// this.routeDescriptionX = new Vector<String>(cr.getDescriptions());
-		//
-		// return;
-		// }
-		// } // synchronized
-
-		// No route cached, have to create a new one (and cache it at the end).
+		// See if another agent has already planned this trip along the streets, if so just share their plan.
+		int agentMask = GlobalVars.TRANSPORT_PARAMS.getAgentMask(this.agent);
+		RoutePlan.Key planKey = new RoutePlan.Key(currentCoord, destCoord, agentMask);
+		RoutePlan streetPlan = Route.routePlanCache.get(planKey);
+		RoutePlan newPlan;
+		this.planBuilder = new RoutePlan.Builder();
 		try {
-			/*
-			 * See if the current position and the destination are on road segments. If the destination is not on a road
-			 * segment we have to move to the closest road segment, then onto the destination.
-			 */
-			boolean destinationOnRoad = true;
-			Coordinate finalDestination = null;
-			if (!coordOnRoad(currentCoord)) {
-				/*
-				 * Not on a road so the first coordinate to add to the route is the point on the closest road segment.
-				 */
-				currentCoord = getNearestRoadCoord(currentCoord);
-				addToRoute(currentCoord, Road.nullRoad, 1, "setRoute() initial");
-			}
-			if (!coordOnRoad(destCoord)) {
-				/*
-				 * Not on a road, so need to set the destination to be the closest point on a road, and set the
-				 * destinationOnRoad boolean to false so we know to add the final dest coord at the end of the route
-				 */
-				destinationOnRoad = false;
-				finalDestination = destCoord; // Added to route at end of alg.
-				destCoord = getNearestRoadCoord(destCoord);
+			if (streetPlan == null) {
+				// No route cached, have to create a new one
+				this.addStreetRoute(currentCoord, destCoord, agentMask);
+
+				// Check that a route has actually been created
+				checkListSizes();
+
+				// Freeze the plan and cache it. If another agent has cached the same trip in the meantime use theirs
+				// instead so that only one copy is kept.
+				RoutePlan built = this.planBuilder.build();
+				RoutePlan cachedPlan = Route.routePlanCache.putIfAbsent(planKey, built);
+				streetPlan = (cachedPlan == null) ? built : cachedPlan;
+			} else {
+				LOGGER.log(Level.FINER, "Route found a cached plan for " + this.agent.toString() + " with "
+						+ streetPlan.size() + " coords.");
 			}
-
-			/*
-			 * Find the nearest junctions to our current position (road endpoints)
-			 */
-
-			// Start by Finding the road that this coordinate is on
-			/*
-			 * TODO EFFICIENCY: often the agent will be creating a new route from a building so will always find the
-			 * same road, could use a cache. Even better, could implement a cache in FindNearestObject() method!
-			 */
-			Road currentRoad = Route.findNearestObject(currentCoord, ContextManager.roadProjection, null,
-					GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE.LARGE);
-			// Find which Junction is closest to us on the road.
-			List<Junction> currentJunctions = currentRoad.getJunctions();
-
-			/* Find the nearest Junctions to our destination (road endpoints) */
-
-			// Find the road that this coordinate is on
-			Road destRoad = Route.findNearestObject(destCoord, ContextManager.roadProjection, null,
-					GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE.SMALL);
-			// Find which Junction connected to the edge is closest to the coordinate.
-			List<Junction> destJunctions = destRoad.getJunctions();
-			/*
-			 * Now have four possible routes (2 origin junctions, 2 destination junctions) need to pick which junctions
-			 * form shortest route
-			 */
-			Junction[] routeEndpoints = new Junction[2];
-			List<RepastEdge<Junction>> shortestPath = getShortestRoute(currentJunctions, destJunctions, routeEndpoints);
-			// NetworkEdge<Junction> temp = (NetworkEdge<Junction>)
-			// shortestPath.get(0);
-			Junction currentJunction = routeEndpoints[0];
-			Junction destJunction = routeEndpoints[1];
-
-			/* Add the coordinates describing how to get to the nearest junction */
-			List<Coordinate> tempCoordList = new Vector<Coordinate>();
-			this.getCoordsAlongRoad(currentCoord, currentJunction.getCoords(), currentRoad, true, tempCoordList);
-			addToRoute(tempCoordList, currentRoad, 1, "getCoordsAlongRoad (toJunction)");
-
-			/*
-			 * Add the coordinates and speeds etc which describe how to move along the chosen path
-			 */
-			this.getRouteBetweenJunctions(shortestPath, currentJunction);
-
-			/*
-			 * Add the coordinates describing how to get from the final junction to the destination.
-			 */
-
-			tempCoordList.clear();
-			this.getCoordsAlongRoad(ContextManager.junctionGeography.getGeometry(destJunction).getCoordinate(),
-					destCoord, destRoad, false, tempCoordList);
-			addToRoute(tempCoordList, destRoad, 1, "getCoordsAlongRoad (fromJunction)");
-
-			if (!destinationOnRoad) {
-				addToRoute(finalDestination, Road.nullRoad, 1, "setRoute final");
+			newPlan = streetPlan;
+
+			// If the agent can use public transport, see if that would be quicker. Public transport depends on the
+			// time of day so these plans aren't shared.
+			if ((agentMask & TRANSIT_MODES) != 0 && ContextManager.timetable != null) {
+				this.planBuilder = new RoutePlan.Builder();
+				if (this.addTransitRoute(currentCoord, destCoord, agentMask, streetPlan
+						.getWalkingDistance(currentCoord))) {
+					checkListSizes();
+					newPlan = this.planBuilder.build();
+				}
 			}
 
-			// Check that a route has actually been created
-			checkListSizes();
-
 			// If the algorithm was better no coordinates would have been duplicated
 			// removePairs();
 
-			// Check lists are still the same size.
-			checkListSizes();
-
 		} catch (RoutingException e) {
 			LOGGER.log(Level.SEVERE, "Route.setRoute(): Problem creating route for " + this.agent.toString()
 					+ " going from " + currentCoord.toString() + " to " + this.destination.toString() + "("
 					+ (this.destinationBuilding == null ? "" : this.destinationBuilding.toString())
 					+ ") See earlier messages error messages for more info.");
 			throw e;
+		} finally {
+			this.planBuilder = null;
 		}
-		// Cache the route and route speeds
-		// List<Coordinate> routeClone = Cloning.copy(theRoute);
-		// LinkedHashMap<Coordinate, Double> routeSpeedsClone = Cloning.copy(this.routeSpeeds);
-		// cachedRoute.setRoute(routeClone);
-		// cachedRoute.setRouteSpeeds(routeSpeedsClone);
-
-		// cachedRoute.setRoute(this.routeX, this.roadsX, this.routeSpeedsX, this.routeDescriptionX);
-		// synchronized (Route.routeCache) {
-		// // Same cached route is both value and key
-		// Route.routeCache.put(cachedRoute, cachedRoute);
-		// }
-		// TempLogger.out("...Route cacheing new route with unique id " + cachedRoute.hashCode());
+		this.plan = newPlan;
 
 		LOGGER.log(Level.FINER, "Route Finished planning route for " + this.agent.toString() + "with "
-				+ this.routeX.size() + " coords in " + (0.000001 * (System.nanoTime() - time)) + "ms.");
+				+ this.plan.size() + " coords in " + (0.000001 * (System.nanoTime() - time)) + "ms.");
+	}
+
+	/**
+	 * Add the coordinates that describe how to get from one coordinate to another along the road network to the plan
+	 * that is being built. This is the main part of the routing algorithm (see <code>setRoute()</code>).
+	 * 
+	 * @param currentCoord
+	 *            The coordinate to start from.
+	 * @param destCoord
+	 *            The coordinate to finish at.
+	 * @param agentMask
+	 *            The transport that can be used (see <code>TRANSPORT_PARAMS.getAgentMask()</code>).
+	 * @throws Exception
+	 */
+	private void addStreetRoute(Coordinate currentCoord, Coordinate destCoord, int agentMask) throws Exception {
+		/*
+		 * See if the current position and the destination are on road segments. If the destination is not on a road
+		 * segment we have to move to the closest road segment, then onto the destination.
+		 */
+		boolean destinationOnRoad = true;
+		Coordinate finalDestination = null;
+		if (!coordOnRoad(currentCoord)) {
+			/*
+			 * Not on a road so the first coordinate to add to the route is the point on the closest road segment.
+			 */
+			currentCoord = getNearestRoadCoord(currentCoord);
+			addToRoute(currentCoord, Road.nullRoad, 1, "setRoute() initial");
+		}
+		if (!coordOnRoad(destCoord)) {
+			/*
+			 * Not on a road, so need to set the destination to be the closest point on a road, and set the
+			 * destinationOnRoad boolean to false so we know to add the final dest coord at the end of the route
+			 */
+			destinationOnRoad = false;
+			finalDestination = destCoord; // Added to route at end of alg.
+			destCoord = getNearestRoadCoord(destCoord);
+		}
 
-		// Finished, just check that the route arrays are all in sync
-		assert this.roadsX.size() == this.routeX.size() && this.routeDescriptionX.size() == this.routeSpeedsX.size()
-				&& this.roadsX.size() == this.routeDescriptionX.size();
+		/*
+		 * Find the nearest junctions to our current position (road endpoints)
+		 */
+
+		// Start by Finding the road that this coordinate is on
+		/*
+		 * TODO EFFICIENCY: often the agent will be creating a new route from a building so will always find the
+		 * same road, could use a cache. Even better, could implement a cache in FindNearestObject() method!
+		 */
+		Road currentRoad = Route.findNearestObject(currentCoord, ContextManager.roadProjection, null,
+				GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE.LARGE);
+		// Find which Junction is closest to us on the road.
+		List<Junction> currentJunctions = currentRoad.getJunctions();
+
+		/* Find the nearest Junctions to our destination (road endpoints) */
+
+		// Find the road that this coordinate is on
+		Road destRoad = Route.findNearestObject(destCoord, ContextManager.roadProjection, null,
+				GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE.SMALL);
+		// Find which Junction connected to the edge is closest to the coordinate.
+		List<Junction> destJunctions = destRoad.getJunctions();
+		/*
+		 * Now have four possible routes (2 origin junctions, 2 destination junctions) need to pick which junctions
+		 * form shortest route
+		 */
+		CompactRoadNetwork.Path shortestPath = getShortestRoute(currentCoord, currentJunctions, destCoord,
+				destJunctions, agentMask);
+		Junction currentJunction = shortestPath.getOrigin();
+		Junction destJunction = shortestPath.getDestination();
+
+		/* Add the coordinates describing how to get to the nearest junction */
+		List<Coordinate> tempCoordList = new Vector<Coordinate>();
+		this.getCoordsAlongRoad(currentCoord, currentJunction.getCoords(), currentRoad, true, tempCoordList);
+		addToRoute(tempCoordList, currentRoad, 1, "getCoordsAlongRoad (toJunction)");
+
+		/*
+		 * Add the coordinates and speeds etc which describe how to move along the chosen path
+		 */
+		this.getRouteBetweenJunctions(shortestPath);
+
+		/*
+		 * Add the coordinates describing how to get from the final junction to the destination.
+		 */
+
+		tempCoordList.clear();
+		this.getCoordsAlongRoad(ContextManager.junctionGeography.getGeometry(destJunction).getCoordinate(),
+				destCoord, destRoad, false, tempCoordList);
+		addToRoute(tempCoordList, destRoad, 1, "getCoordsAlongRoad (fromJunction)");
+
+		if (!destinationOnRoad) {
+			addToRoute(finalDestination, Road.nullRoad, 1, "setRoute final");
+		}
 	}
 
-	private void checkListSizes() {
-		assert this.roadsX.size() > 0 && this.roadsX.size() == this.routeX.size()
-				&& this.routeDescriptionX.size() == this.routeSpeedsX.size()
-				&& this.roadsX.size() == this.routeDescriptionX.size() : this.routeX.size() + "," + this.roadsX.size()
-				+ "," + this.routeDescriptionX.size() + "," + this.routeSpeedsX.size();
+	/**
+	 * See if the destination can be reached more quickly by public transport (see <code>RaptorRouter</code>) and, if
+	 * so, add the coordinates that describe the journey to the plan that is being built. The agent walks along the
+	 * roads to the first stop, follows the vehicles from stop to stop, and walks from the last stop to the
+	 * destination. The speed of each ride is set so that the agent arrives at each stop when the timetable says they
+	 * will, so any time spent waiting for a vehicle is spread over the ride.
+	 * 
+	 * @param origin
+	 *            The coordinate to start from.
+	 * @param destination
+	 *            The coordinate to finish at.
+	 * @param agentMask
+	 *            The transport available to the agent.
+	 * @param streetDistance
+	 *            How far the agent would have to walk to get to the destination without public transport, in the
+	 *            units of the geography (see <code>RoutePlan.Builder.getWalkingDistance()</code>).
+	 * @return true if a public transport journey was quicker and has been added to the plan.
+	 * @throws Exception
+	 */
+	private boolean addTransitRoute(Coordinate origin, Coordinate destination, int agentMask, double streetDistance)
+			throws Exception {
+		double time = System.nanoTime();
+		Timetable timetable = ContextManager.timetable;
+		int now = this.departureTime >= 0 ? this.departureTime : Timetable.getCurrentTime(this.agent.getRun());
+		List<Integer> access = timetable.getStopsWithin(origin, Timetable.MAX_ACCESS_DISTANCE);
+		List<Integer> egress = timetable.getStopsWithin(destination, Timetable.MAX_ACCESS_DISTANCE);
+		if (access.isEmpty() || egress.isEmpty()) {
+			return false;
+		}
+		int[] accessStops = new int[access.size()];
+		int[] accessTimes = new int[access.size()];
+		for (int i = 0; i < accessStops.length; i++) {
+			accessStops[i] = access.get(i);
+			accessTimes[i] = now + Timetable.walkingTime(timetable.distance(origin, timetable.getStopCoord(
+					accessStops[i])));
+		}
+		int[] egressStops = new int[egress.size()];
+		int[] egressTimes = new int[egress.size()];
+		for (int i = 0; i < egressStops.length; i++) {
+			egressStops[i] = egress.get(i);
+			egressTimes[i] = Timetable.walkingTime(timetable.distance(destination, timetable.getStopCoord(
+					egressStops[i])));
+		}
+		RaptorRouter.Journey journey = getRaptorRouter(timetable).route(accessStops, accessTimes, egressStops,
+				egressTimes, agentMask);
+		if (journey == null || journey.getArrivalTime() >= now + walkingSeconds(timetable, streetDistance)) {
+			return false; // Quicker not to use public transport
+		}
+
+		// Walk to the first stop
+		this.addStreetRoute(origin, timetable.getStopCoord(journey.getFirstStop()),
+				GlobalVars.TRANSPORT_PARAMS.MODE.WALK.bit);
+		double clock = now + walkingSeconds(timetable, this.planBuilder.getWalkingDistance(origin));
+		for (RaptorRouter.Leg leg : journey.getLegs()) {
+			int[] stops = leg.getStops();
+			if (leg.isWalk()) {
+				Coordinate c = timetable.getStopCoord(stops[1]);
+				clock += Timetable.walkingTime(timetable.distance(this.planBuilder.last(), c));
+				this.addToRoute(c, Road.nullRoad, 1, "addTransitRoute - " + leg.toString());
+			} else {
+				clock = addRide(this.planBuilder, timetable, leg, clock);
+			}
+		}
+		// Walk from the last stop to the destination
+		this.addStreetRoute(timetable.getStopCoord(journey.getLastStop()), destination,
+				GlobalVars.TRANSPORT_PARAMS.MODE.WALK.bit);
+
+		LOGGER.log(Level.FINER, "Route.addTransitRoute (" + (0.000001 * (System.nanoTime() - time)) + "ms) found "
+				+ "a public transport route for " + this.agent.toString() + " with legs: "
+				+ journey.getLegs().toString());
+		return true;
+	}
+
+	/**
+	 * Add a ride on a vehicle to a plan that is being built. The agent must already be at the first stop (it is the
+	 * last coordinate in the plan). <code>travel()</code> moves agents <code>TRAVEL_PER_TURN</code> metres each tick
+	 * at walking speed, so the speed of the ride (a multiple of walking speed) is worked out from the length of the
+	 * ride in metres and the number of ticks between now and the time that the vehicle gets to the last stop.
+	 * 
+	 * @param plan
+	 *            The plan to add the ride to.
+	 * @param timetable
+	 *            The timetable that the ride is from.
+	 * @param leg
+	 *            The ride.
+	 * @param clock
+	 *            The time (seconds since midnight) that the agent will get to the first stop.
+	 * @return The time that the agent will get to the last stop.
+	 */
+	static double addRide(RoutePlan.Builder plan, Timetable timetable, RaptorRouter.Leg leg, double clock) {
+		int[] stops = leg.getStops();
+		double metres = 0;
+		Coordinate prev = plan.last();
+		for (int i = 1; i < stops.length; i++) {
+			metres += timetable.distance(prev, timetable.getStopCoord(stops[i]));
+			prev = timetable.getStopCoord(stops[i]);
+		}
+		double duration = Math.max(leg.getArrivalTime() - clock, leg.getArrivalTime() - leg.getDepartureTime());
+		double ticks = Math.max(duration / GlobalVars.TRANSPORT_PARAMS.SECONDS_PER_TICK, 1);
+		double speed = Math.max(metres / (ticks * GlobalVars.GEOGRAPHY_PARAMS.TRAVEL_PER_TURN), 0.00001);
+		for (int i = 1; i < stops.length; i++) {
+			plan.add(timetable.getStopCoord(stops[i]), Road.nullRoad, speed, "addTransitRoute - " + leg.toString());
+		}
+		return Math.max(clock, leg.getArrivalTime());
+	}
 
+	/**
+	 * Work out how many seconds it would take to walk a distance that is in the units of the geography (e.g. the
+	 * walking distance of a plan, see <code>RoutePlan.Builder.getWalkingDistance()</code>) so that it can be compared
+	 * with the times in the timetable.
+	 */
+	private static double walkingSeconds(Timetable timetable, double distance) {
+		return Timetable.walkingTime(timetable.toMetres(distance));
+	}
+
+	/**
+	 * Get the RAPTOR router for this thread (routers keep their own scratch space so can't be shared between threads).
+	 */
+	private static RaptorRouter getRaptorRouter(Timetable timetable) {
+		RaptorRouter router = raptorRouter.get();
+		if (router == null || router.getTimetable() != timetable) {
+			router = new RaptorRouter(timetable);
+			raptorRouter.set(router);
+		}
+		return router;
+	}
+
+	private void checkListSizes() {
+		assert this.planBuilder.size() > 0 : "No coordinates have been added to the route";
 	}
 
 	/**
@@ -356,10 +531,7 @@ public class Route implements Cacheable {
 	 *            A description of why the coordinate has been added
 	 */
 	private void addToRoute(Coordinate coord, Road road, double speed, String description) {
-		this.routeX.add(coord);
-		this.roadsX.add(road);
-		this.routeSpeedsX.add(speed);
-		this.routeDescriptionX.add(description);
+		this.planBuilder.add(coord, road, speed, description);
 	}
 
 	/**
@@ -376,12 +548,7 @@ public class Route implements Cacheable {
 	 *            A description of why the coordinates have been added
 	 */
 	private void addToRoute(List<Coordinate> coords, Road road, double speed, String description) {
-		for (Coordinate c : coords) {
-			this.routeX.add(c);
-			this.roadsX.add(road);
-			this.routeSpeedsX.add(speed);
-			this.routeDescriptionX.add(description);
-		}
+		this.planBuilder.add(coords, road, speed, description);
 	}
 
 	/**
@@ -406,7 +573,26 @@ public class Route implements Cacheable {
 	 */
 	public void travel() throws Exception {
 		// Check that the route has been created
-		if (this.routeX == null) {
+		if (this.planning != null) {
+			if (this.agent.getRun().getTick() <= this.planningTick) {
+				// Agents always wait where they are for the rest of the tick that their route was submitted in, so
+				// that they don't move sooner or later depending on how busy the planning threads are
+				return;
+			}
+			try {
+				// Wait for the plan if it isn't ready yet (also makes it visible to this thread)
+				this.planning.get();
+			} catch (CancellationException e) {
+				// The planner was shut down before it got to this route (see RoutePlanner.shutdown()), plan it below
+				this.departureTime = -1;
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.SEVERE, "Route.travel(): background planning failed for " + this.agent.toString());
+				throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+			} finally {
+				this.planning = null;
+			}
+		}
+		if (this.plan == null) {
 			this.setRoute();
 		}
 		try {
@@ -426,8 +612,8 @@ public class Route implements Cacheable {
 			currentCoord = ContextManager.getAgentGeometry(this.agent).getCoordinate();
 
 			while (!travelledMaxDist && !this.atDestination()) {
-				target = this.routeX.get(this.currentPosition);
-				speed = this.routeSpeedsX.get(this.currentPosition);
+				target = this.plan.getCoordinate(this.currentPosition);
+				speed = this.plan.getSpeed(this.currentPosition);
 				/*
 				 * TODO Remember which roads have been passed, used to work out what should be added to cognitive map.
 				 * Only add roads once the agent has moved all the way down them
@@ -446,7 +632,7 @@ public class Route implements Cacheable {
 					currentCoord = target;
 
 					// See if agent has reached the end of the route.
-					if (this.currentPosition == (this.routeX.size() - 1)) {
+					if (this.currentPosition == (this.plan.size() - 1)) {
 						ContextManager.moveAgent(this.agent, geomFac.createPoint(currentCoord));
 						// ContextManager.agentGeography.move(this.agent, geomFac.createPoint(currentCoord));
 						break; // Break out of while loop, have reached end of route.
@@ -567,6 +753,101 @@ public class Route implements Cacheable {
 		} // catch exception
 	}
 
+	/**
+	 * Start planning this route in the background (see <code>RoutePlanner</code>) rather than waiting for the first
+	 * call to <code>travel()</code>. Calls to <code>travel()</code> in the same tick leave the agent where it is; in
+	 * the next tick <code>travel()</code> waits for the plan to be finished (if it isn't already) so the agent always
+	 * sets off one tick after this is called. This should be called as soon as an agent chooses a new destination so
+	 * that the route can be planned while other agents are still moving.
+	 */
+	public void planInBackground() {
+		if (this.plan == null && this.planning == null) {
+			this.planningTick = this.agent.getRun().getTick();
+			this.departureTime = Timetable.getTime(this.planningTick + 1);
+			this.planning = RoutePlanner.submit(this);
+		}
+	}
+
+	/**
+	 * Find out whether this route is ready to be travelled along. Routes that are planned the first time that
+	 * <code>travel()</code> is called (i.e. <code>planInBackground()</code> hasn't been called) are always ready.
+	 * 
+	 * @return False if the route is still being planned in the background, true otherwise.
+	 */
+	public boolean isPlanned() {
+		Future<Void> p = this.planning;
+		return p == null || p.isDone();
+	}
+
+	/**
+	 * Capture the state of this route so that it can be saved in a checkpoint (see <code>Checkpointer</code>). Plans
+	 * are immutable so can be written later by another thread. If the route is still being planned in the background
+	 * then this waits for the plan so that a resumed run carries on in the same way as the original. If planning
+	 * failed then the plan isn't saved, it will be planned again the first time that the agent travels after the model
+	 * has been resumed.
+	 */
+	public Checkpointer.State saveState() {
+		final Coordinate destination = new Coordinate(this.destination);
+		final Building destinationBuilding = this.destinationBuilding;
+		final int currentPosition = this.currentPosition;
+		RoutePlan p = null;
+		Future<Void> f = this.planning;
+		if (f == null) {
+			p = this.plan;
+		} else {
+			try {
+				f.get(); // (also makes the plan visible to this thread)
+				p = this.plan;
+			} catch (Exception e) {
+				p = null; // Will be re-planned (and probably fail again) when the model is resumed
+			}
+		}
+		final RoutePlan plan = p;
+		return new Checkpointer.State() {
+			@Override
+			public void write(DataOutput out) throws IOException {
+				out.writeDouble(destination.x);
+				out.writeDouble(destination.y);
+				Checkpointer.writeBuilding(out, destinationBuilding);
+				out.writeInt(currentPosition);
+				out.writeInt(plan == null ? -1 : plan.size());
+				if (plan != null) {
+					for (int i = 0; i < plan.size(); i++) {
+						out.writeDouble(plan.getX(i));
+						out.writeDouble(plan.getY(i));
+						out.writeFloat((float) plan.getSpeed(i));
+						Checkpointer.writeRoad(out, plan.getRoad(i));
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Create a route from the state that was saved by <code>saveState()</code>. Plan descriptions (which are only
+	 * used for debugging) are not saved.
+	 */
+	public static Route restoreState(IAgent agent, DataInput in) throws IOException {
+		Coordinate destination = new Coordinate(in.readDouble(), in.readDouble());
+		Route route = new Route(agent, destination, Checkpointer.readBuilding(in));
+		route.currentPosition = in.readInt();
+		int size = in.readInt();
+		if (size < 0) {
+			// Planned by travel(). It can't be planned in the background yet because the agent hasn't been put back
+			// into the geography.
+			route.currentPosition = 0;
+			return route;
+		}
+		RoutePlan.Builder builder = new RoutePlan.Builder();
+		for (int i = 0; i < size; i++) {
+			Coordinate c = new Coordinate(in.readDouble(), in.readDouble());
+			double speed = in.readFloat();
+			builder.add(c, Checkpointer.readRoad(in), speed, "restored from a checkpoint");
+		}
+		route.plan = builder.build();
+		return route;
+	}
+
 	/**
 	 * Get the distance (on a network) between the origin and destination. Take into account the Burglar because they
 	 * might be able to speed up the route by using different transport methods. Actually calculates the distance
@@ -594,72 +875,47 @@ public class Route implements Cacheable {
 		// return dist;
 		// }
 		// }
-		// No distance in the cache, calculate it
-		synchronized (GlobalVars.TRANSPORT_PARAMS.currentBurglarLock) {
-			GlobalVars.TRANSPORT_PARAMS.currentAgent = theBurglar;
-			// Find the closest Junctions to the origin and destination
-			double minOriginDist = Double.MAX_VALUE;
-			double minDestDist = Double.MAX_VALUE;
-			double dist;
-			Junction closestOriginJunc = null;
-			Junction closestDestJunc = null;
-			DistanceOp distOp = null;
-			GeometryFactory geomFac = new GeometryFactory();
-			// TODO EFFICIENCY: here could iterate over near junctions instead of all?
-			for (Junction j : ContextManager.junctionContext.getObjects(Junction.class)) {
-				// Check that the agent can actually get to the junction (if might be part of a transport route
-				// that the agent doesn't have access to)
-				boolean accessibleJunction = false;
-				accessibleJunc: for (RepastEdge<Junction> e : ContextManager.roadNetwork.getEdges(j)) {
-					NetworkEdge<Junction> edge = (NetworkEdge<Junction>) e;
-					for (String s : edge.getTypes()) {
-						if (theBurglar.getTransportAvailable().contains(s)) {
-							accessibleJunction = true;
-							break accessibleJunc;
-						}
-					} // for types
-				}// for edges
-				if (!accessibleJunction) { // Agent can't get to the junction, ignore it
-					continue;
-				}
-				Point juncPoint = geomFac.createPoint(j.getCoords());
-
-				distOp = new DistanceOp(juncPoint, geomFac.createPoint(origin));
-				dist = distOp.distance();
-				if (dist < minOriginDist) {
-					minOriginDist = dist;
-					closestOriginJunc = j;
-				}
-				// Destination
-				distOp = new DistanceOp(juncPoint, geomFac.createPoint(destination));
-				dist = distOp.distance();
-				if (dist < minDestDist) {
-					minDestDist = dist;
-					closestDestJunc = j;
-				}
-			} // for Junctions
-				// Return the shortest path plus the distance from the origin/destination to their junctions
-				// TODO NOTE: Bug in ShortestPath so have to make finalize is called, otherwise following lines are
-				// neater
-				// - MAYBE THIS HAS BEEN FIXED BY REPAST NOW.
-				// return (new ShortestPath<Junction>(EnvironmentFactory.getRoadNetwork(),
-				// closestOriginJunc)).getPathLength(closestDestJunc)+ minOriginDist + minDestDist ;
-				// TODO : using non-deprecated methods don't work on NGS, probably need to update repast libraries
-			ShortestPath<Junction> p = new ShortestPath<Junction>(ContextManager.roadNetwork, closestOriginJunc);
-			double theDist = p.getPathLength(closestDestJunc);
-			// ShortestPath<Junction> p = new
-			// ShortestPath<Junction>(EnvironmentFactory.getRoadNetwork());
-			// double theDist = p.getPathLength(closestOriginJunc,closestDestJunc);
-			p.finalize();
-			p = null;
-			double finalDist = theDist + minOriginDist + minDestDist;
-			// // Cache this distance
-			// synchronized (Route.routeDistanceCache) {
-			// Route.routeDistanceCache.put(crd, finalDist);
-			// }
-			return finalDist;
-		} // synchronized
-
+		// No distance in the cache, calculate it. The compact network can be searched by many threads at once so
+		// (unlike the old ShortestPath) this doesn't need to lock the road network.
+		CompactRoadNetwork network = getCompactNetwork();
+		int agentMask = GlobalVars.TRANSPORT_PARAMS.getAgentMask(theBurglar);
+		// Find the closest Junctions to the origin and destination
+		double minOriginDist = Double.MAX_VALUE;
+		double minDestDist = Double.MAX_VALUE;
+		double dist;
+		Junction closestOriginJunc = null;
+		Junction closestDestJunc = null;
+		// TODO EFFICIENCY: here could iterate over near junctions instead of all?
+		for (Junction j : ContextManager.junctionContext.getObjects(Junction.class)) {
+			// Check that the agent can actually get to the junction (if might be part of a transport route
+			// that the agent doesn't have access to)
+			if (!network.isAccessible(j, agentMask)) { // Agent can't get to the junction, ignore it
+				continue;
+			}
+			dist = origin.distance(j.getCoords());
+			if (dist < minOriginDist) {
+				minOriginDist = dist;
+				closestOriginJunc = j;
+			}
+			// Destination
+			dist = destination.distance(j.getCoords());
+			if (dist < minDestDist) {
+				minDestDist = dist;
+				closestDestJunc = j;
+			}
+		} // for Junctions
+		if (closestOriginJunc == null) {
+			return Double.POSITIVE_INFINITY;
+		}
+		// Return the shortest path plus the distance from the origin/destination to their junctions
+		CompactRoadNetwork.Path p = network.findPath(new Junction[] { closestOriginJunc },
+				new double[] { minOriginDist }, new Junction[] { closestDestJunc }, new double[] { minDestDist },
+				agentMask);
+		// // Cache this distance
+		// synchronized (Route.routeDistanceCache) {
+		// Route.routeDistanceCache.put(crd, finalDist);
+		// }
+		return p == null ? Double.POSITIVE_INFINITY : p.getCost() + minDestDist;
 	}
 
 	/**
@@ -677,93 +933,100 @@ public class Route implements Cacheable {
 	 * @return the nearest road coordinate
 	 * @throws Exception
 	 */
-	private synchronized Coordinate getNearestRoadCoord(Coordinate inCoord) throws Exception {
+	private static Coordinate getNearestRoadCoord(Coordinate inCoord) throws Exception {
 		// double time = System.nanoTime();
+		return getNearestRoadCoordCache().get(inCoord);
+	}
 
-		synchronized (buildingsOnRoadCacheLock) {
-			if (nearestRoadCoordCache == null) {
-				LOGGER.log(Level.FINE, "Route.getNearestRoadCoord called for first time, "
-						+ "creating cache of all roads and the buildings which are on them ...");
-				// Create a new cache object, this will be read from disk if
-				// possible (which is why the getInstance() method is used
-				// instead of the constructor.
-				String gisDir = ContextManager.getProperty(GlobalVars.GISDataDirectory);
-				File buildingsFile = new File(gisDir + ContextManager.getProperty(GlobalVars.BuildingShapefile));
-				File roadsFile = new File(gisDir + ContextManager.getProperty(GlobalVars.RoadShapefile));
-				File serialisedLoc = new File(gisDir + ContextManager.getProperty(GlobalVars.BuildingsRoadsCoordsCache));
-
-				nearestRoadCoordCache = NearestRoadCoordCache.getInstance(ContextManager.buildingProjection,
-						buildingsFile, ContextManager.roadProjection, roadsFile, serialisedLoc, new GeometryFactory());
-			} // if not cached
-		} // synchronized
-		return nearestRoadCoordCache.get(inCoord);
+	/**
+	 * Get the cache of the nearest road coordinate to each building, creating it if this is the first time that it
+	 * has been needed (see <code>getNearestRoadCoord()</code>).
+	 */
+	private static NearestRoadCoordCache getNearestRoadCoordCache() throws Exception {
+		NearestRoadCoordCache cache = nearestRoadCoordCache;
+		if (cache == null) {
+			synchronized (nearestRoadCoordCacheLock) {
+				cache = nearestRoadCoordCache;
+				if (cache == null) {
+					LOGGER.log(Level.FINE, "Route.getNearestRoadCoord called for first time, "
+							+ "creating cache of all roads and the buildings which are on them ...");
+					// Create a new cache object, this will be read from disk if
+					// possible (which is why the getInstance() method is used
+					// instead of the constructor.
+					String gisDir = ContextManager.getProperty(GlobalVars.GISDataDirectory);
+					File buildingsFile = new File(gisDir + ContextManager.getProperty(GlobalVars.BuildingShapefile));
+					File roadsFile = new File(gisDir + ContextManager.getProperty(GlobalVars.RoadShapefile));
+					File serialisedLoc = new File(gisDir
+							+ ContextManager.getProperty(GlobalVars.BuildingsRoadsCoordsCache));
+
+					cache = NearestRoadCoordCache.getInstance(ContextManager.buildingProjection, buildingsFile,
+							ContextManager.roadProjection, roadsFile, serialisedLoc, new GeometryFactory());
+					nearestRoadCoordCache = cache;
+				} // if not cached
+			} // synchronized
+		}
+		return cache;
 	}
 
 	/**
-	 * Finds the shortest route between multiple origin and destination junctions. Will return the shortest path and
-	 * also, via two parameters, can return the origin and destination junctions which make up the shortest route.
+	 * Finds the shortest route between multiple origin and destination junctions. The agent might be able to use
+	 * different types of transport so the route that is returned is the quickest one (see
+	 * <code>CompactRoadNetwork.findPath()</code>). The origin and destination junctions which make up the shortest
+	 * route can be found from the returned path.
 	 * 
+	 * @param currentCoord
+	 *            The coordinate that the agent is starting from, used to work out how far away each origin junction is.
 	 * @param currentJunctions
 	 *            An array of origin junctions
+	 * @param destCoord
+	 *            The coordinate that the agent is heading to.
 	 * @param destJunctions
 	 *            An array of destination junctions
-	 * @param routeEndpoints
-	 *            An array of size 2 which can be used to store the origin (index 0) and destination (index 1) Junctions
-	 *            which form the endpoints of the shortest route.
+	 * @param agentMask
+	 *            The transport that can be used.
 	 * @return the shortest route between the origin and destination junctions
-	 * @throws Exception
+	 * @throws RoutingException
+	 *             If there is no route between any of the junctions.
 	 */
-	private List<RepastEdge<Junction>> getShortestRoute(List<Junction> currentJunctions, List<Junction> destJunctions,
-			Junction[] routeEndpoints) throws Exception {
+	private CompactRoadNetwork.Path getShortestRoute(Coordinate currentCoord, List<Junction> currentJunctions,
+			Coordinate destCoord, List<Junction> destJunctions, int agentMask) throws RoutingException {
 		double time = System.nanoTime();
-		synchronized (GlobalVars.TRANSPORT_PARAMS.currentBurglarLock) {
-			// This must be set so that NetworkEdge.getWeight() can adjust the weight depending on how this
-			// particular agent is getting around the city
-			GlobalVars.TRANSPORT_PARAMS.currentAgent = this.agent;
-			double shortestPathLength = Double.MAX_VALUE;
-			double pathLength = 0;
-			ShortestPath<Junction> p;
-			List<RepastEdge<Junction>> shortestPath = null;
-			for (Junction o : currentJunctions) {
-				for (Junction d : destJunctions) {
-					if (o == null || d == null) {
-						LOGGER.log(Level.WARNING, "Route.getShortestRoute() error: either the destination or origin "
-								+ "junction is null. This can be caused by disconnected roads. It's probably OK"
-								+ "to ignore this as a route should still be created anyway.");
-					} else {
-						p = new ShortestPath<Junction>(ContextManager.roadNetwork);
-						pathLength = p.getPathLength(o,d);
-						if (pathLength < shortestPathLength) {
-							shortestPathLength = pathLength;
-							shortestPath = p.getPath(o,d);
-//							ShortestPath<Junction> p2 = new ShortestPath<Junction>(ContextManager.roadNetwork);
-//							shortestPath = p2.getPath(o, d);
-//							p2.finalize();
-//							p2 = null;
-							// shortestPath = p1.getPath(o, d);
-							// p1.finalize(); p1 = null;
-							routeEndpoints[0] = o;
-							routeEndpoints[1] = d;
-						}
-						// TODO See if the shortestpath bug has been fixed, would make this unnecessary
-						p.finalize();
-						p = null;
-					} // if junc null
-				} // for dest junctions
-			} // for origin junctions
-			if (shortestPath == null) {
-				String debugString = "Route.getShortestRoute() could not find a route. Looking for the shortest route between :\n";
-				for (Junction j : currentJunctions)
-					debugString += "\t" + j.toString() + ", roads: " + j.getRoads().toString() + "\n";
-				for (Junction j : destJunctions)
-					debugString += "\t" + j.toString() + ", roads: " + j.getRoads().toString() + "\n";
-				throw new RoutingException(debugString);
+		Junction[] sources = currentJunctions.toArray(new Junction[currentJunctions.size()]);
+		Junction[] targets = destJunctions.toArray(new Junction[destJunctions.size()]);
+		double[] sourceCosts = new double[sources.length];
+		double[] targetCosts = new double[targets.length];
+		for (int i = 0; i < sources.length; i++) {
+			if (sources[i] == null) {
+				LOGGER.log(Level.WARNING, "Route.getShortestRoute() error: an origin junction is null. This can be "
+						+ "caused by disconnected roads. It's probably OK to ignore this as a route should still be "
+						+ "created anyway.");
+			} else {
+				sourceCosts[i] = currentCoord.distance(sources[i].getCoords());
+			}
+		}
+		for (int i = 0; i < targets.length; i++) {
+			if (targets[i] == null) {
+				LOGGER.log(Level.WARNING, "Route.getShortestRoute() error: a destination junction is null. This can "
+						+ "be caused by disconnected roads. It's probably OK to ignore this as a route should still "
+						+ "be created anyway.");
+			} else {
+				targetCosts[i] = destCoord.distance(targets[i].getCoords());
 			}
-			LOGGER.log(Level.FINER, "Route.getShortestRoute (" + (0.000001 * (System.nanoTime() - time))
-					+ "ms) found shortest path " + "(length: " + shortestPathLength + ") from "
-					+ routeEndpoints[0].toString() + " to " + routeEndpoints[1].toString());
-			return shortestPath;
-		} // synchronized
+		}
+		CompactRoadNetwork.Path shortestPath = getCompactNetwork().findPath(sources, sourceCosts, targets,
+				targetCosts, agentMask);
+		if (shortestPath == null) {
+			String debugString = "Route.getShortestRoute() could not find a route. Looking for the shortest route between :\n";
+			for (Junction j : currentJunctions)
+				debugString += "\t" + j.toString() + ", roads: " + j.getRoads().toString() + "\n";
+			for (Junction j : destJunctions)
+				debugString += "\t" + j.toString() + ", roads: " + j.getRoads().toString() + "\n";
+			throw new RoutingException(debugString);
+		}
+		LOGGER.log(Level.FINER, "Route.getShortestRoute (" + (0.000001 * (System.nanoTime() - time))
+				+ "ms) found shortest path " + "(cost: " + shortestPath.getCost() + ") from "
+				+ shortestPath.getOrigin().toString() + " to " + shortestPath.getDestination().toString());
+		return shortestPath;
 	}
 
 	/**
@@ -903,106 +1166,53 @@ public class Route implements Cacheable {
 	 * Returns all the coordinates that describe how to travel along a path, restricted to road coordinates. In some
 	 * cases the route wont have an associated road, this occurs if the route is part of a transport network. In this
 	 * case just the origin and destination coordinates are added to the route.
+	 * <p>
+	 * The speed of each coordinate (i.e. how fast the agent can travel to the next coord) depends on the transport
+	 * mode that the path uses for that road (e.g. driving/walking/bus).
+	 * </p>
 	 * 
 	 * @param shortestPath
-	 * @param startingJunction
-	 *            The junction the path starts from, this is required so that the algorithm knows which road coordinate
-	 *            to add first (could be first or last depending on the order that the road coordinates are stored
-	 *            internally).
-	 * @return the coordinates as a mapping between the coord and its associated speed (i.e. how fast the agent can
-	 *         travel to the next coord) which is dependent on the type of edge and the agent (e.g.
-	 *         driving/walking/bus). LinkedHashMap is used to guarantee the insertion order of the coords is maintained.
+	 *            The path to follow.
 	 * @throws RoutingException
 	 */
-	private void getRouteBetweenJunctions(List<RepastEdge<Junction>> shortestPath, Junction startingJunction)
-			throws RoutingException {
+	private void getRouteBetweenJunctions(CompactRoadNetwork.Path shortestPath) throws RoutingException {
 		double time = System.nanoTime();
 		if (shortestPath.size() < 1) {
 			// This could happen if the agent's destination is on the same road
 			// as the origin
 			return;
 		}
-		// Lock the currentAgent so that NetworkEdge obejcts know what speed to use (depends on transport available to
-		// the specific agent).
-		synchronized (GlobalVars.TRANSPORT_PARAMS.currentBurglarLock) {
-			GlobalVars.TRANSPORT_PARAMS.currentAgent = this.agent;
-
-			// Iterate over all edges in the route adding coords and weights as appropriate
-			NetworkEdge<Junction> e;
-			Road r;
-			// Use sourceFirst to represent whether or not the edge's source does actually represent the start of the
-			// edge (agent could be going 'forwards' or 'backwards' over edge
-			boolean sourceFirst;
-			for (int i = 0; i < shortestPath.size(); i++) {
-				e = (NetworkEdge<Junction>) shortestPath.get(i);
-				if (i == 0) {
-					// No coords in route yet, compare the source to the starting junction
-					sourceFirst = (e.getSource().equals(startingJunction)) ? true : false;
-				} else {
-					// Otherwise compare the source to the last coord added to the list
-					sourceFirst = (e.getSource().getCoords().equals(this.routeX.get(this.routeX.size() - 1))) ? true
-							: false;
+		// Iterate over all roads in the route adding coords and speeds as appropriate
+		for (int i = 0; i < shortestPath.size(); i++) {
+			Road r = shortestPath.getRoad(i);
+			Junction source = shortestPath.getJunction(i);
+			Junction target = shortestPath.getJunction(i + 1);
+			double speed = shortestPath.getSpeed(i);
+			String description = "getRouteBetweenJunctions (" + shortestPath.getMode(i).type + ")";
+			if (r == null) {
+				// No road associated with this edge (it is a transport link) so just add source and target
+				this.addToRoute(source.getCoords(), r, speed, description + " - no road");
+				this.addToRoute(target.getCoords(), r, speed, description + " - no road");
+			} else {
+				// This edge is a road, add all the coords which make up its geometry
+				Coordinate[] roadCoords = ContextManager.roadProjection.getGeometry(r).getCoordinates();
+				if (roadCoords.length < 2)
+					throw new RoutingException("Route.getRouteBetweenJunctions: for some reason road " + "'"
+							+ r.toString() + "' doesn't have at least two coords as part of its geometry ("
+							+ roadCoords.length + ")");
+				// Make sure the coordinates of the road are added in the correct order
+				if (!roadCoords[0].equals(source.getCoords())) {
+					ArrayUtils.reverse(roadCoords);
+				}
+				// Add all the road geometry's coords
+				for (int j = 0; j < roadCoords.length; j++) {
+					this.addToRoute(roadCoords[j], r, speed, description);
 				}
-				/*
-				 * Now add the coordinates describing how to move along the road. If there is no road associated with
-				 * the edge (i.e. it is a transport route) then just add the source/dest coords. Note that the shared
-				 * coordinates between two edges will be added twice, these must be removed later
-				 */
-				r = e.getRoad();
-				/*
-				 * Get the speed that the agent will be able to travel along this edge (depends on the transport
-				 * available to the agent and the edge). Some speeds will be < 1 if the agent shouldn't be using this
-				 * edge but doesn't have any other way of getting to the destination. in these cases set speed to 1
-				 * (equivalent to walking).
-				 */
-				double speed = e.getSpeed();
-				if (speed < 1)
-					speed = 1;
-
-				if (r == null) { // No road associated with this edge (it is a
-									// transport link) so just add source
-					if (sourceFirst) {
-						this.addToRoute(e.getSource().getCoords(), r, speed, "getRouteBetweenJunctions - no road");
-						this.addToRoute(e.getTarget().getCoords(), r, -1, "getRouteBetweenJunctions - no road");
-						// (Note speed = -1 used because we don't know the weight to the next
-						// coordinate - this can be removed later)
-					} else {
-						this.addToRoute(e.getTarget().getCoords(), r, speed, "getRouteBetweenJunctions - no road");
-						this.addToRoute(e.getSource().getCoords(), r, -1, "getRouteBetweenJunctions - no road");
-					}
-				} else {
-					// This edge is a road, add all the coords which make up its geometry
-					Coordinate[] roadCoords = ContextManager.roadProjection.getGeometry(r).getCoordinates();
-					if (roadCoords.length < 2)
-						throw new RoutingException("Route.getRouteBetweenJunctions: for some reason road " + "'"
-								+ r.toString() + "' doesn't have at least two coords as part of its geometry ("
-								+ roadCoords.length + ")");
-					// Make sure the coordinates of the road are added in the correct order
-					if (!sourceFirst) {
-						ArrayUtils.reverse(roadCoords);
-					}
-					// Add all the road geometry's coords
-					for (int j = 0; j < roadCoords.length; j++) {
-						this.addToRoute(roadCoords[j], r, speed, "getRouteBetweenJuctions - on road");
-						// (Note that last coord will have wrong weight)
-					} // for roadCoords.length
-				} // if road!=null
 			}
-			// Check all lists are still the same size.
-			assert this.roadsX.size() == this.routeX.size()
-					&& this.routeDescriptionX.size() == this.routeSpeedsX.size()
-					&& this.roadsX.size() == this.routeDescriptionX.size();
-
-			// Check all lists are still the same size.
-			assert this.roadsX.size() == this.routeX.size()
-					&& this.routeDescriptionX.size() == this.routeSpeedsX.size()
-					&& this.roadsX.size() == this.routeDescriptionX.size();
-
-			// Finished!
-			LOGGER.log(Level.FINER, "getRouteBetweenJunctions (" + (0.000001 * (System.nanoTime() - time)) + "ms");
-			return;
-		} // synchronized
-	} // getRouteBetweenJunctions
+		}
+		// Finished!
+		LOGGER.log(Level.FINER, "getRouteBetweenJunctions (" + (0.000001 * (System.nanoTime() - time)) + "ms");
+	}
 
 	/**
 	 * Determine whether or not the person associated with this Route is at their destination. Compares their current
@@ -1070,11 +1280,10 @@ public class Route implements Cacheable {
 	private void printRoute() {
 		StringBuilder out = new StringBuilder();
 		out.append("Printing route (" + this.agent.toString() + "). Current position in list is "
-				+ this.currentPosition + " ('" + this.routeDescriptionX.get(this.currentPosition) + "')");
-		for (int i = 0; i < this.routeX.size(); i++) {
-			out.append("\t(" + this.agent.toString() + ") " + this.routeX.get(i).toString() + "\t"
-					+ this.routeSpeedsX.get(i).toString() + "\t" + this.roadsX.get(i) + "\t"
-					+ this.routeDescriptionX.get(i));
+				+ this.currentPosition + " ('" + this.plan.getDescription(this.currentPosition) + "')");
+		for (int i = 0; i < this.plan.size(); i++) {
+			out.append("\t(" + this.agent.toString() + ") " + this.plan.getCoordinate(i).toString() + "\t"
+					+ this.plan.getSpeed(i) + "\t" + this.plan.getRoad(i) + "\t" + this.plan.getDescription(i));
 		}
 		LOGGER.info(out.toString());
 	}
@@ -1098,7 +1307,7 @@ public class Route implements Cacheable {
 	 * @throws RoutingException
 	 *             If an object cannot be found.
 	 */
-	public static synchronized <T> T findNearestObject(Coordinate x, Geography<T> geography,
+	public static <T> T findNearestObject(Coordinate x, Geography<T> geography,
 			List<Coordinate> closestPoints, GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE searchDist)
 			throws RoutingException {
 		if (x == null) {
@@ -1149,7 +1358,7 @@ public class Route implements Cacheable {
 	 * 
 	 * @return the angle (in radians) that p0p1 makes with the positive x-axis.
 	 */
-	public static synchronized double angle(Coordinate p0, Coordinate p1) {
+	public static double angle(Coordinate p0, Coordinate p1) {
 		double dx = p1.x - p0.x;
 		double dy = p1.y - p0.y;
 
@@ -1189,9 +1398,7 @@ public class Route implements Cacheable {
 	 * @return The road(s) which the coordinate is part of or null if the coordinate is not part of any road
 	 */
 	private List<Road> getRoadFromCoordCache(Coordinate coord) {
-
-		populateCoordCache(); // Check the cache has been populated
-		return coordCache.get(coord);
+		return getCoordCache().get(coord);
 	}
 
 	/**
@@ -1202,39 +1409,34 @@ public class Route implements Cacheable {
 	 * @return True if the coordinate is part of a road segment
 	 */
 	private boolean coordOnRoad(Coordinate coord) {
-		populateCoordCache(); // check the cache has been populated
-		return coordCache.containsKey(coord);
+		return getCoordCache().containsKey(coord);
 	}
 
-	private synchronized static void populateCoordCache() {
-
-		double time = System.nanoTime();
-		if (coordCache == null) { // Fist check cache has been created
-			coordCache = new HashMap<Coordinate, List<Road>>();
-			LOGGER.log(Level.FINER,
-					"Route.populateCoordCache called for first time, creating new cache of all Road coordinates.");
-		}
-		if (coordCache.size() == 0) { // Now popualte it if it hasn't already
-										// been populated
-			LOGGER.log(Level.FINER, "Route.populateCoordCache: is empty, creating new cache of all Road coordinates.");
-
-			for (Road r : ContextManager.roadContext.getObjects(Road.class)) {
-				for (Coordinate c : ContextManager.roadProjection.getGeometry(r).getCoordinates()) {
-					if (coordCache.containsKey(c)) {
-						coordCache.get(c).add(r);
-					} else {
-						List<Road> l = new ArrayList<Road>();
-						l.add(r);
-						// TODO Need to put *new* coordinate here? Not use
-						// existing one in memory?
-						coordCache.put(new Coordinate(c), l);
+	/**
+	 * Get the cache of road coordinates, populating it if this is the first time that it has been needed. The cache is
+	 * created in full before it is published so other threads never see a partially populated cache.
+	 */
+	private static RoadCoordinateMap getCoordCache() {
+		RoadCoordinateMap cache = coordCache;
+		if (cache == null) {
+			synchronized (coordCacheLock) {
+				cache = coordCache;
+				if (cache == null) {
+					double time = System.nanoTime();
+					LOGGER.log(Level.FINER,
+							"Route.getCoordCache called for first time, creating new cache of all Road coordinates.");
+					List<Road> roads = new ArrayList<Road>();
+					for (Road r : ContextManager.roadContext.getObjects(Road.class)) {
+						roads.add(r);
 					}
+					cache = new RoadCoordinateMap(roads, ContextManager.roadProjection);
+					coordCache = cache;
+					LOGGER.log(Level.FINER, "... finished caching " + cache.size() + " road coordinates (in "
+							+ 0.000001 * (System.nanoTime() - time) + "ms)");
 				}
 			}
-
-			LOGGER.log(Level.FINER, "... finished caching all road coordinates (in " + 0.000001
-					* (System.nanoTime() - time) + "ms)");
 		}
+		return cache;
 	}
 
 	/**
@@ -1245,20 +1447,235 @@ public class Route implements Cacheable {
 	 * @return
 	 * @throws Exception
 	 */
-	private List<Building> getBuildingsOnRoad(Road road) throws Exception {
-		if (buildingsOnRoadCache == null) {
-			LOGGER.log(Level.FINER, "Route.getBuildingsOnRoad called for first time, "
-					+ "creating cache of all roads and the buildings which are on them ...");
-			// Create a new cache object, this will be read from disk if possible (which is why the
-			// getInstance() method is used instead of the constructor.
-			String gisDir = GlobalVars.GISDataDirectory;
-			File buildingsFile = new File(gisDir + GlobalVars.BuildingShapefile);
-			File roadsFile = new File(gisDir + GlobalVars.RoadShapefile);
-			File serialLoc = new File(gisDir + ContextManager.getProperty(GlobalVars.BuildingsRoadsCache));
-			buildingsOnRoadCache = BuildingsOnRoadCache.getInstance(ContextManager.buildingProjection, buildingsFile,
-					ContextManager.roadProjection, roadsFile, serialLoc, new GeometryFactory());
-		} // if not cached
-		return buildingsOnRoadCache.get(road);
+	private static List<Building> getBuildingsOnRoad(Road road) throws Exception {
+		return getBuildingsOnRoadCache().get(road);
+	}
+
+	/**
+	 * Get the cache of the buildings on each road, creating it if this is the first time that it has been needed.
+	 */
+	private static BuildingsOnRoadCache getBuildingsOnRoadCache() throws Exception {
+		BuildingsOnRoadCache cache = buildingsOnRoadCache;
+		if (cache == null) {
+			synchronized (buildingsOnRoadCacheLock) {
+				cache = buildingsOnRoadCache;
+				if (cache == null) {
+					LOGGER.log(Level.FINER, "Route.getBuildingsOnRoad called for first time, "
+							+ "creating cache of all roads and the buildings which are on them ...");
+					// Create a new cache object, this will be read from disk if possible (which is why the
+					// getInstance() method is used instead of the constructor.
+					String gisDir = ContextManager.getProperty(GlobalVars.GISDataDirectory);
+					File buildingsFile = new File(gisDir + ContextManager.getProperty(GlobalVars.BuildingShapefile));
+					File roadsFile = new File(gisDir + ContextManager.getProperty(GlobalVars.RoadShapefile));
+					File serialLoc = new File(gisDir + ContextManager.getProperty(GlobalVars.BuildingsRoadsCache));
+					cache = BuildingsOnRoadCache.getInstance(ContextManager.buildingProjection, buildingsFile,
+							ContextManager.roadProjection, roadsFile, serialLoc, new GeometryFactory());
+					buildingsOnRoadCache = cache;
+				} // if not cached
+			} // synchronized
+		}
+		return cache;
+	}
+
+	/**
+	 * Get the compact copy of the road network, creating it if this is the first time that it has been needed.
+	 */
+	static CompactRoadNetwork getCompactNetwork() {
+		CompactRoadNetwork network = compactNetwork;
+		if (network == null) {
+			synchronized (compactNetworkLock) {
+				network = compactNetwork;
+				if (network == null) {
+					Coordinate centre = ContextManager.junctionContext.getObjects(Junction.class).iterator().next()
+							.getCoords();
+					network = new CompactRoadNetwork(ContextManager.roadNetwork, metresToDistance(
+							GlobalVars.TRANSPORT_PARAMS.TRANSFER_PENALTY, centre));
+					compactNetwork = network;
+				}
+			}
+		}
+		return network;
+	}
+
+	/**
+	 * Start creating all of the caches that routes use (road coordinates, nearest road coordinates, buildings on
+	 * roads and the compact road network) in the background. Otherwise each cache is created the first time an agent
+	 * needs it, which holds up every agent that needs the same cache while it is being created. This should be called
+	 * once the road network has been built (see <code>ContextManager.build()</code>). The caches are created
+	 * concurrently, use <code>cachesReady()</code> or <code>awaitCaches()</code> to find out when they are finished.
+	 * <p>
+	 * If a cache can't be created in the background the problem is logged and the cache will be created as normal when
+	 * it is first needed (which will probably fail with a more useful exception).
+	 * </p>
+	 */
+	public static synchronized void warmUpCaches() {
+		final double time = System.nanoTime();
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		tasks.add(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return getCoordCache();
+			}
+		});
+		tasks.add(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return getNearestRoadCoordCache();
+			}
+		});
+		tasks.add(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return getBuildingsOnRoadCache();
+			}
+		});
+		tasks.add(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return getCompactNetwork();
+			}
+		});
+		ExecutorService pool = Executors.newFixedThreadPool(tasks.size(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CacheWarmUp-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (Callable<Object> task : tasks) {
+			futures.add(pool.submit(task));
+		}
+		// Log when everything has finished (the pool can be shut down now, it will finish the tasks first)
+		pool.shutdown();
+		Thread logger = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (awaitCaches(futures)) {
+					LOGGER.log(Level.FINE, "Finished creating route caches in the background (in "
+							+ (0.000001 * (System.nanoTime() - time)) + "ms)");
+				}
+			}
+		}, "CacheWarmUp-monitor");
+		logger.setDaemon(true);
+		logger.start();
+		warmUpTasks = futures;
+		LOGGER.log(Level.FINE, "Creating " + tasks.size() + " route caches in the background.");
+	}
+
+	/**
+	 * Find out whether the caches that were started by <code>warmUpCaches()</code> are ready. Also returns true if
+	 * the caches are not being created in the background (in which case they will be created when first needed).
+	 */
+	public static synchronized boolean cachesReady() {
+		if (warmUpTasks == null) {
+			return true;
+		}
+		for (Future<?> f : warmUpTasks) {
+			if (!f.isDone()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wait for the caches that were started by <code>warmUpCaches()</code> to be ready.
+	 *
+	 * @return True if all the caches were created, false if any of them failed.
+	 */
+	public static boolean awaitCaches() {
+		List<Future<?>> futures;
+		synchronized (Route.class) {
+			futures = warmUpTasks;
+		}
+		return futures == null ? true : awaitCaches(futures);
+	}
+
+	private static boolean awaitCaches(List<Future<?>> futures) {
+		boolean success = true;
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.SEVERE, "Could not create a route cache in the background, it will be created "
+						+ "when it is first needed instead.", e.getCause());
+				success = false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return success;
+	}
+
+	/**
+	 * Find all the buildings that can be reached from the given coordinate within the given time, by an agent with the
+	 * given transport. This can be used by agents to choose a destination from amongst the places that are
+	 * realistically reachable, without having to create a route to every candidate building (see
+	 * <code>ContextManager.chooseDestination()</code>).
+	 * <p>
+	 * The search moves from the coordinate to the nearest road, then does a bounded search of the road network
+	 * (see <code>CompactRoadNetwork.getRoadsWithinCost()</code>), stopping as soon as the time has been used up. Times
+	 * are worked out in the same way as routes are chosen (and as in <code>ZoneSkim</code>): each road takes its length
+	 * divided by the speed of the mode used along it at walking pace (<code>Timetable.WALKING_SPEED</code>). The
+	 * buildings returned are those whose nearest road was reached (see <code>BuildingsOnRoadCache</code>).
+	 * </p>
+	 * 
+	 * @param origin
+	 *            The coordinate to start from (e.g. the agent's current position).
+	 * @param seconds
+	 *            The maximum time that can be spent travelling.
+	 * @param agentMask
+	 *            The transport available (see <code>TRANSPORT_PARAMS.getAgentMask()</code>).
+	 * @return The reachable buildings (might be empty but will not be null).
+	 * @throws Exception
+	 *             If there is a problem finding the nearest road to the origin or creating the caches.
+	 */
+	public static List<Building> getBuildingsWithinTime(Coordinate origin, double seconds, int agentMask)
+			throws Exception {
+		double time = System.nanoTime();
+		// Convert the time into the units of the network's costs (the walking distance in the units of the roads)
+		double maxCost = metresToDistance(seconds * Timetable.WALKING_SPEED, origin);
+
+		// Get onto the road network
+		Coordinate roadCoord = getCoordCache().containsKey(origin) ? origin : getNearestRoadCoord(origin);
+		Road road = Route.findNearestObject(roadCoord, ContextManager.roadProjection, null,
+				GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE.SMALL);
+
+		// The cost of walking to each end of the road that the origin is closest to
+		List<Junction> roadJunctions = road.getJunctions();
+		Junction[] sources = roadJunctions.toArray(new Junction[roadJunctions.size()]);
+		double[] sourceCosts = new double[sources.length];
+		double toRoad = origin.distance(roadCoord);
+		boolean junctionReachable = false;
+		for (int i = 0; i < sources.length; i++) {
+			sourceCosts[i] = toRoad + roadCoord.distance(sources[i].getCoords());
+			junctionReachable = junctionReachable || sourceCosts[i] <= maxCost;
+		}
+
+		List<Road> roads = new ArrayList<Road>();
+		getCompactNetwork().getRoadsWithinCost(sources, sourceCosts, maxCost, agentMask, roads);
+		if (toRoad <= maxCost && !junctionReachable) {
+			// Can't get to either end of the road, but can still reach the buildings on it (if a junction had been
+			// reached then the search will have added the road already).
+			roads.add(road);
+		}
+
+		List<Building> buildings = new ArrayList<Building>();
+		for (Road r : roads) {
+			List<Building> onRoad = getBuildingsOnRoad(r);
+			if (onRoad != null) { // Not all roads have buildings on them
+				buildings.addAll(onRoad);
+			}
+		}
+		LOGGER.log(Level.FINER, "Route.getBuildingsWithinTime found " + buildings.size() + " buildings on "
+				+ roads.size() + " roads within " + seconds + "s of " + origin.toString() + " ("
+				+ (0.000001 * (System.nanoTime() - time)) + "ms)");
+		return buildings;
 	}
 
 	/**
@@ -1274,7 +1691,7 @@ public class Route implements Cacheable {
 	 *            index 1.
 	 * @return The distance between Coordinates c1 and c2.
 	 */
-	public static synchronized double distance(Coordinate c1, Coordinate c2, double[] returnVals) {
+	public static double distance(Coordinate c1, Coordinate c2, double[] returnVals) {
 		// TODO check this now, might be different way of getting distance in new Simphony
 		GeodeticCalculator calculator = new GeodeticCalculator(ContextManager.roadProjection.getCRS());
 		calculator.setStartingGeographicPoint(c1.x, c1.y);
@@ -1299,6 +1716,36 @@ public class Route implements Cacheable {
 		return distance;
 	}
 
+	/**
+	 * Convert a distance in metres to the units of the road projection (e.g. degrees) near the given coordinate. This
+	 * is the opposite of <code>distance()</code>. It uses the average of the east-west and north-south scales so it is
+	 * only approximate, but it is good enough for costs that are given in metres (e.g.
+	 * <code>TRANSPORT_PARAMS.TRANSFER_PENALTY</code>).
+	 * 
+	 * @param metres
+	 *            The distance in metres.
+	 * @param near
+	 *            Where the distance will be used (degrees of longitude get shorter towards the poles).
+	 * @return The distance in the units of the road projection.
+	 */
+	public static double metresToDistance(double metres, Coordinate near) {
+		double[] scale = metresPerUnit(near);
+		return metres / (0.5 * (scale[0] + scale[1]));
+	}
+
+	/**
+	 * Work out how many metres there are in one unit of the road projection (e.g. one degree) along the x and the y
+	 * axes, near the given coordinate. Distances over the area of a city can then be converted to metres with a
+	 * couple of multiplications, rather than calling <code>distance()</code> every time.
+	 * 
+	 * @return The number of metres in one unit along the x axis (index 0) and the y axis (index 1).
+	 */
+	public static double[] metresPerUnit(Coordinate near) {
+		double step = 0.001;
+		return new double[] { distance(near, new Coordinate(near.x + step, near.y), null) / step,
+				distance(near, new Coordinate(near.x, near.y + step), null) / step };
+	}
+
 	/**
 	 * Converts a distance lat/long distance (e.g. returned by DistanceOp) to meters. The calculation isn't very
 	 * accurate because (probably) it assumes that the distance is between two points that lie exactly on a line of
@@ -1322,27 +1769,72 @@ public class Route implements Cacheable {
 		return String.valueOf(calculator.getOrthodromicDistance());
 	}
 
-	public void clearCaches() {
-		if (coordCache != null)
-			coordCache.clear();
-		if (nearestRoadCoordCache != null) {
-			nearestRoadCoordCache.clear();
-			nearestRoadCoordCache = null;
-		}
-		if (buildingsOnRoadCache != null) {
-			buildingsOnRoadCache.clear();
-			buildingsOnRoadCache = null;
+	private static void clearRouteCaches() {
+		// The caches can't be changed (other threads might still be reading them) so just forget about them
+		coordCache = null;
+		nearestRoadCoordCache = null;
+		buildingsOnRoadCache = null;
+		compactNetwork = null;
+		synchronized (Route.class) {
+			warmUpTasks = null;
 		}
-		// if (routeCache != null) {
-		// routeCache.clear();
-		// routeCache = null;
-		// }
+		routePlanCache.clear();
 		// if (routeDistanceCache != null) {
 		// routeDistanceCache.clear();
 		// routeDistanceCache = null;
 		// }
 	}
 
+	private static List<CacheStats> getRouteCacheStats() {
+		List<CacheStats> stats = new ArrayList<CacheStats>();
+		stats.add(routePlanCache.getStats());
+		RoadCoordinateMap coords = coordCache;
+		if (coords != null) {
+			stats.add(new CacheStats("road coordinates", coords.size(), coords.estimateSize(), 0, 0));
+		}
+		NearestRoadCoordCache nearest = nearestRoadCoordCache;
+		if (nearest != null) {
+			stats.add(nearest.getStats());
+		}
+		BuildingsOnRoadCache buildings = buildingsOnRoadCache;
+		if (buildings != null) {
+			stats.add(buildings.getStats());
+		}
+		CompactRoadNetwork network = compactNetwork;
+		if (network != null) {
+			stats.add(new CacheStats("compact road network", network.getNumJunctions(), network.estimateSize(), 0, 0));
+		}
+		return stats;
+	}
+
+	/**
+	 * Evict route plans first (least recently used first). If that isn't enough then drop the caches of buildings and
+	 * nearest road coordinates; these will be re-read from disk if they are needed again. The road coordinate cache
+	 * and compact network are used by every route so are never evicted.
+	 */
+	private static long evictRouteCaches(long bytes) {
+		long freed = routePlanCache.evict(bytes);
+		if (freed < bytes) {
+			synchronized (buildingsOnRoadCacheLock) {
+				BuildingsOnRoadCache cache = buildingsOnRoadCache;
+				if (cache != null) {
+					freed += cache.getStats().getEstimatedBytes();
+					buildingsOnRoadCache = null;
+				}
+			}
+		}
+		if (freed < bytes) {
+			synchronized (nearestRoadCoordCacheLock) {
+				NearestRoadCoordCache cache = nearestRoadCoordCache;
+				if (cache != null) {
+					freed += cache.getStats().getEstimatedBytes();
+					nearestRoadCoordCache = null;
+				}
+			}
+		}
+		return freed;
+	}
+
 	// /**
 	// * Will add the given buildings to the awareness space of the Burglar who is
 	// * being controlled by this Route. Also tells the burglar which buildings
@@ -1381,131 +1873,144 @@ public class Route implements Cacheable {
  * Class can be used to store a cache of all roads and the buildings which can be accessed by them (a map of
  * Road<->List<Building>. Buildings are 'accessed' by travelling to the road which is nearest to them.
  * <p>
- * This class can be serialised so that if the GIS data doesn't change it doesn't have to be re-calculated each time.
- * However, the Roads and Buildings themselves cannot be serialised because if they are there will be two sets of Roads
- * and BUildings, the serialised ones and those that were created when the model was initialised. To get round this, an
- * array which contains the road and building ids is serialised and the cache is re-built using these caches ids after
- * reading the serialised cache. This means that the id's given to Buildings and Roads must not change (i.e.
- * auto-increment numbers are no good because if a simulation is restarted the static auto-increment variables will not
- * be reset to 0).
+ * The cache is written to disk (see <code>CacheFile</code>) so that if the GIS data doesn't change it doesn't have to
+ * be re-calculated each time. However, the Roads and Buildings themselves are not written because if they were there
+ * would be two sets of Roads and BUildings, those read from the cache and those that were created when the model was
+ * initialised. To get round this, the road and building ids are written to tables in the file and the cache refers to
+ * them by their (int) position in the tables. The cache is re-built using these ids after reading the file. This means
+ * that the id's given to Buildings and Roads must not change (i.e. auto-increment numbers are no good because if a
+ * simulation is restarted the static auto-increment variables will not be reset to 0).
  * 
  * @author Nick Malleson
  */
-class BuildingsOnRoadCache implements Serializable {
+class BuildingsOnRoadCache {
 
 	private static Logger LOGGER = Logger.getLogger(BuildingsOnRoadCache.class.getName());
 
-	private static final long serialVersionUID = 1L;
-	// The actual cache, this isn't serialised
-	private static transient Hashtable<Road, ArrayList<Building>> theCache;
-	// The 'reference' cache, stores the building and road ids and can be
-	// serialised
-	private Hashtable<String, ArrayList<String>> referenceCache;
-
-	// Check that the road/building data hasn't been changed since the cache was
-	// last created
-	private File buildingsFile;
-	private File roadsFile;
-	// The location that the serialised object might be found.
-	private File serialisedLoc;
-	// The time that this cache was created, can be used to check data hasn't
-	// changed since
-	private long createdTime;
+	// The actual cache. This never changes once it has been created, so can be read by any thread without locking.
+	private final Map<Road, List<Building>> theCache;
 
 	// Private constructor because getInstance() should be used
-	private BuildingsOnRoadCache(Geography<Building> buildingEnvironment, File buildingsFile,
-			Geography<Road> roadEnvironment, File roadsFile, File serialisedLoc, GeometryFactory geomFac)
-			throws Exception {
-		// this.buildingEnvironment = buildingEnvironment;
-		// this.roadEnvironment = roadEnvironment;
-		this.buildingsFile = buildingsFile;
-		this.roadsFile = roadsFile;
-		this.serialisedLoc = serialisedLoc;
-		theCache = new Hashtable<Road, ArrayList<Building>>();
-		this.referenceCache = new Hashtable<String, ArrayList<String>>();
-
-		LOGGER.log(Level.FINE, "BuildingsOnRoadCache() creating new cache with data (and modification date):\n\t"
-				+ this.buildingsFile.getAbsolutePath() + " (" + new Date(this.buildingsFile.lastModified()) + ")\n\t"
-				+ this.roadsFile.getAbsolutePath() + " (" + new Date(this.roadsFile.lastModified()) + ")\n\t"
-				+ this.serialisedLoc.getAbsolutePath());
-
-		populateCache(buildingEnvironment, roadEnvironment, geomFac);
-		this.createdTime = new Date().getTime();
-		serialise();
+	private BuildingsOnRoadCache(Map<Road, List<Building>> theCache) {
+		// Freeze the cache: copy all the buildings into a single array and give each road a read-only view of its
+		// part of the array
+		int numBuildings = 0;
+		for (List<Building> l : theCache.values()) {
+			numBuildings += l.size();
+		}
+		List<Building> allBuildings = java.util.Arrays.asList(new Building[numBuildings]);
+		Map<Road, List<Building>> frozen = new HashMap<Road, List<Building>>(theCache.size() * 2);
+		int i = 0;
+		for (Map.Entry<Road, List<Building>> e : theCache.entrySet()) {
+			int start = i;
+			for (Building b : e.getValue()) {
+				allBuildings.set(i++, b);
+			}
+			frozen.put(e.getKey(), Collections.unmodifiableList(allBuildings.subList(start, i)));
+		}
+		this.theCache = Collections.unmodifiableMap(frozen);
 	}
 
-	public void clear() {
-		theCache.clear();
-		this.referenceCache.clear();
-
+	CacheStats getStats() {
+		int numBuildings = 0;
+		for (List<Building> l : this.theCache.values()) {
+			numBuildings += l.size();
+		}
+		// Each road has a map entry and a view of the building array, each building a reference in the array
+		return new CacheStats("buildings on roads", this.theCache.size(), 96L * this.theCache.size() + 4L
+				* numBuildings, 0, 0);
 	}
 
-	private void populateCache(Geography<Building> buildingEnvironment, Geography<Road> roadEnvironment,
-			GeometryFactory geomFac) throws Exception {
+	private static Map<Road, List<Building>> populateCache(Geography<Building> buildingEnvironment,
+			final Geography<Road> roadEnvironment, final GeometryFactory geomFac) throws Exception {
 		double time = System.nanoTime();
-		for (Building b : buildingEnvironment.getAllObjects()) {
-			// Find the closest road to this building
-			Geometry buildingPoint = geomFac.createPoint(b.getCoords());
-			double minDistance = Double.MAX_VALUE;
-			Road closestRoad = null;
-			double distance;
-			Envelope e = buildingPoint.buffer(GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE.LARGE.dist)
-					.getEnvelopeInternal();
-			for (Road r : roadEnvironment.getObjectsWithin(e)) {
-				distance = DistanceOp.distance(buildingPoint, ContextManager.roadProjection.getGeometry(r));
-				if (distance < minDistance) {
-					minDistance = distance;
-					closestRoad = r;
+		// Buildings are shared out between threads, each finds the closest roads to its buildings
+		Map<Road, List<Building>> theCache = new ParallelCacheBuilder<Map<Road, List<Building>>>(
+				"buildings on roads cache") {
+
+			@Override
+			Map<Road, List<Building>> createPartial() {
+				return new HashMap<Road, List<Building>>();
+			}
+
+			@Override
+			void add(Building b, Map<Road, List<Building>> partial) {
+				// Find the closest road to this building
+				Geometry buildingPoint = geomFac.createPoint(b.getCoords());
+				double minDistance = Double.MAX_VALUE;
+				Road closestRoad = null;
+				double distance;
+				Geometry buffer = buildingPoint.buffer(GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE.LARGE.dist);
+				// (The spatial index can be queried by several threads at once, the geography can't)
+				for (Road r : SpatialIndexManager.search(roadEnvironment, buffer)) {
+					distance = DistanceOp.distance(buildingPoint, roadEnvironment.getGeometry(r));
+					if (distance < minDistance) {
+						minDistance = distance;
+						closestRoad = r;
+					}
+				} // for roads
+					// Found the closest road, add the information to the cache
+				List<Building> l = partial.get(closestRoad);
+				if (l == null) {
+					l = new ArrayList<Building>();
+					partial.put(closestRoad, l);
 				}
-			} // for roads
-				// Found the closest road, add the information to the cache
-			if (theCache.containsKey(closestRoad)) {
-				theCache.get(closestRoad).add(b);
-				this.referenceCache.get(closestRoad.getIdentifier()).add(b.getIdentifier());
-			} else {
-				ArrayList<Building> l = new ArrayList<Building>();
 				l.add(b);
-				theCache.put(closestRoad, l);
-				ArrayList<String> l2 = new ArrayList<String>();
-				l2.add(b.getIdentifier());
-				this.referenceCache.put(closestRoad.getIdentifier(), l2);
 			}
-		} // for buildings
+
+			@Override
+			Map<Road, List<Building>> merge(Map<Road, List<Building>> first, Map<Road, List<Building>> second) {
+				for (Map.Entry<Road, List<Building>> e : second.entrySet()) {
+					List<Building> l = first.get(e.getKey());
+					if (l == null) {
+						first.put(e.getKey(), e.getValue());
+					} else {
+						l.addAll(e.getValue());
+					}
+				}
+				return first;
+			}
+		}.build(buildingEnvironment.getAllObjects());
 		int numRoads = theCache.keySet().size();
 		int numBuildings = 0;
 		for (List<Building> l : theCache.values())
 			numBuildings += l.size();
 		LOGGER.log(Level.FINER, "Finished caching roads and buildings. Cached " + numRoads + " roads and "
 				+ numBuildings + " buildings in " + 0.000001 * (System.nanoTime() - time) + "ms");
+		return theCache;
 	}
 
 	public List<Building> get(Road r) {
 		return theCache.get(r);
 	}
 
-	private void serialise() throws IOException {
-		double time = System.nanoTime();
-		FileOutputStream fos = null;
-		ObjectOutputStream out = null;
-		try {
-			if (!this.serialisedLoc.exists())
-				this.serialisedLoc.createNewFile();
-			fos = new FileOutputStream(this.serialisedLoc);
-			out = new ObjectOutputStream(fos);
-			out.writeObject(this);
-			out.close();
-		} catch (IOException ex) {
-			if (serialisedLoc.exists())
-				serialisedLoc.delete(); // delete to stop problems loading incomplete file next time
-			throw ex;
+	/**
+	 * Write the cache. The file contains a table of road ids and a table of building ids, followed by the buildings on
+	 * each road (as indices into the building table) stored as a compressed list: the position in the list of the
+	 * first building for each road, then the list itself.
+	 */
+	private void write(File serialisedLoc, File... dataFiles) throws Exception {
+		String[] roadIds = new String[this.theCache.size()];
+		List<String> buildingIds = new ArrayList<String>();
+		int[] firstBuilding = new int[roadIds.length + 1];
+		int r = 0;
+		for (Map.Entry<Road, List<Building>> e : this.theCache.entrySet()) {
+			roadIds[r] = e.getKey().getIdentifier();
+			for (Building b : e.getValue()) {
+				buildingIds.add(b.getIdentifier());
+			}
+			firstBuilding[++r] = buildingIds.size();
 		}
-		LOGGER.log(Level.FINER, "Serialised BuildingsOnRoadCache to " + this.serialisedLoc.getAbsolutePath() + " in ("
-				+ 0.000001 * (System.nanoTime() - time) + "ms)");
+		CacheFile.Writer w = new CacheFile.Writer(CacheFile.BUILDINGS_ON_ROADS, dataFiles);
+		w.putStrings(roadIds);
+		w.putStrings(buildingIds.toArray(new String[buildingIds.size()]));
+		w.putInts(firstBuilding);
+		w.write(serialisedLoc);
 	}
 
 	/**
 	 * Used to create a new BuildingsOnRoadCache object. This function is used instead of the constructor directly so
-	 * that the class can check if there is a serialised version on disk already. If not then a new one is created and
+	 * that the class can check if there is a cache file on disk already. If not then a new one is created and
 	 * returned.
 	 * 
 	 * @param buildingEnv
@@ -1520,67 +2025,50 @@ class BuildingsOnRoadCache implements Serializable {
 	public synchronized static BuildingsOnRoadCache getInstance(Geography<Building> buildingEnv, File buildingsFile,
 			Geography<Road> roadEnv, File roadsFile, File serialisedLoc, GeometryFactory geomFac) throws Exception {
 		double time = System.nanoTime();
-		// See if there is a cache object on disk.
-		if (serialisedLoc.exists()) {
-			FileInputStream fis = null;
-			ObjectInputStream in = null;
-			BuildingsOnRoadCache bc = null;
+		// See if there is a cache file on disk that can be used
+		ByteBuffer buf = CacheFile.read(serialisedLoc, CacheFile.BUILDINGS_ON_ROADS, buildingsFile, roadsFile);
+		if (buf != null) {
+			// Have found a useable cache. Now use the ids to construct a new cache of buildings and roads. First need
+			// to build a list of existing roads and buildings
+			Map<String, Road> allRoads = new HashMap<String, Road>();
+			for (Road r : roadEnv.getAllObjects())
+				allRoads.put(r.getIdentifier(), r);
+			Map<String, Building> allBuildings = new HashMap<String, Building>();
+			for (Building b : buildingEnv.getAllObjects())
+				allBuildings.put(b.getIdentifier(), b);
+
 			try {
-				fis = new FileInputStream(serialisedLoc);
-				in = new ObjectInputStream(fis);
-				bc = (BuildingsOnRoadCache) in.readObject();
-				in.close();
-
-				// Check that the cache is representing the correct data and the
-				// modification dates are ok
-				// (WARNING, if this class is re-compiled the serialised object
-				// will still be read in).
-				if (!buildingsFile.getAbsolutePath().equals(bc.buildingsFile.getAbsolutePath())
-						|| !roadsFile.getAbsolutePath().equals(bc.roadsFile.getAbsolutePath())
-						|| buildingsFile.lastModified() > bc.createdTime || roadsFile.lastModified() > bc.createdTime) {
-					LOGGER.log(Level.FINER, "BuildingsOnRoadCache, found serialised object but it doesn't match the "
-							+ "data (or could have different modification dates), will create a new cache.");
-				} else {
-					// Have found a useable serialised cache. Now use the cached
-					// list of id's to construct a
-					// new cache of buildings and roads.
-					// First need to buld list of existing roads and buildings
-					Hashtable<String, Road> allRoads = new Hashtable<String, Road>();
-					for (Road r : roadEnv.getAllObjects())
-						allRoads.put(r.getIdentifier(), r);
-					Hashtable<String, Building> allBuildings = new Hashtable<String, Building>();
-					for (Building b : buildingEnv.getAllObjects())
-						allBuildings.put(b.getIdentifier(), b);
-
-					// Now create the new cache
-					theCache = new Hashtable<Road, ArrayList<Building>>();
-
-					for (String roadId : bc.referenceCache.keySet()) {
-						ArrayList<Building> buildings = new ArrayList<Building>();
-						for (String buildingId : bc.referenceCache.get(roadId)) {
-							buildings.add(allBuildings.get(buildingId));
-						}
-						theCache.put(allRoads.get(roadId), buildings);
+				String[] roadIds = CacheFile.getStrings(buf);
+				String[] buildingIds = CacheFile.getStrings(buf);
+				int[] firstBuilding = CacheFile.getInts(buf, roadIds.length + 1);
+				Map<Road, List<Building>> theCache = new HashMap<Road, List<Building>>(roadIds.length * 2);
+				for (int r = 0; r < roadIds.length; r++) {
+					List<Building> buildings = new ArrayList<Building>(firstBuilding[r + 1] - firstBuilding[r]);
+					for (int b = firstBuilding[r]; b < firstBuilding[r + 1]; b++) {
+						buildings.add(allBuildings.get(buildingIds[b]));
 					}
-					LOGGER.log(Level.FINER, "BuildingsOnRoadCache, found serialised cache, returning it (in "
-							+ 0.000001 * (System.nanoTime() - time) + "ms)");
-					return bc;
+					theCache.put(allRoads.get(roadIds[r]), buildings);
 				}
-			} catch (IOException ex) {
-				if (serialisedLoc.exists())
-					serialisedLoc.delete(); // delete to stop problems loading incomplete file next tinme
-				throw ex;
-			} catch (ClassNotFoundException ex) {
-				if (serialisedLoc.exists())
-					serialisedLoc.delete();
-				throw ex;
+				LOGGER.log(Level.FINER, "BuildingsOnRoadCache, found cache file, returning it (in "
+						+ 0.000001 * (System.nanoTime() - time) + "ms)");
+				return new BuildingsOnRoadCache(theCache);
+			} catch (BufferUnderflowException e) {
+				LOGGER.log(Level.WARNING, "BuildingsOnRoadCache, the cache file " + serialisedLoc
+						+ " is shorter than it should be, creating a new cache.");
+			} catch (RuntimeException e) {
+				// (e.g. the indices of the first building on each road are wrong)
+				LOGGER.log(Level.WARNING, "BuildingsOnRoadCache, the cache file " + serialisedLoc
+						+ " is broken, creating a new cache.", e);
 			}
-
 		}
 
-		// No serialised object, or got an error when opening it, just create a
-		// new one
-		return new BuildingsOnRoadCache(buildingEnv, buildingsFile, roadEnv, roadsFile, serialisedLoc, geomFac);
+		// No cache file, or it was out of date, just create a new one
+		LOGGER.log(Level.FINE, "BuildingsOnRoadCache() creating new cache with data:\n\t"
+				+ buildingsFile.getAbsolutePath() + "\n\t" + roadsFile.getAbsolutePath() + "\n\t"
+				+ serialisedLoc.getAbsolutePath());
+		BuildingsOnRoadCache bc = new BuildingsOnRoadCache(populateCache(buildingEnv, roadEnv, geomFac));
+		bc.write(serialisedLoc, buildingsFile, roadsFile);
+		return bc;
 	}
 }
 
@@ -1590,85 +2078,72 @@ class BuildingsOnRoadCache implements Serializable {
  * Caches the nearest road Coordinate to every building for efficiency (agents usually/always need to get from the
  * centroids of houses to/from the nearest road).
  * <p>
- * This class can be serialised so that if the GIS data doesn't change it doesn't have to be re-calculated each time.
+ * The cache is written to disk (see <code>CacheFile</code>) so that if the GIS data doesn't change it doesn't have to
+ * be re-calculated each time. The file just contains the building and road coordinates as an array of doubles.
  * 
  * @author Nick Malleson
  */
-class NearestRoadCoordCache implements Serializable {
+class NearestRoadCoordCache {
 
 	private static Logger LOGGER = Logger.getLogger(NearestRoadCoordCache.class.getName());
 
-	private static final long serialVersionUID = 1L;
-	private Hashtable<Coordinate, Coordinate> theCache; // The actual cache
-	// Check that the road/building data hasn't been changed since the cache was
-	// last created
-	private File buildingsFile;
-	private File roadsFile;
-	// The location that the serialised object might be found.
-	private File serialisedLoc;
-	// The time that this cache was created, can be used to check data hasn't
-	// changed since
-	private long createdTime;
-
-	private GeometryFactory geomFac;
-
-	private NearestRoadCoordCache(Geography<Building> buildingEnvironment, File buildingsFile,
-			Geography<Road> roadEnvironment, File roadsFile, File serialisedLoc, GeometryFactory geomFac)
-			throws Exception {
-
-		this.buildingsFile = buildingsFile;
-		this.roadsFile = roadsFile;
-		this.serialisedLoc = serialisedLoc;
-		this.theCache = new Hashtable<Coordinate, Coordinate>();
-		this.geomFac = geomFac;
-
-		LOGGER.log(Level.FINE, "NearestRoadCoordCache() creating new cache with data (and modification date):\n\t"
-				+ this.buildingsFile.getAbsolutePath() + " (" + new Date(this.buildingsFile.lastModified()) + ") \n\t"
-				+ this.roadsFile.getAbsolutePath() + " (" + new Date(this.roadsFile.lastModified()) + "):\n\t"
-				+ this.serialisedLoc.getAbsolutePath());
+	// The actual cache. This never changes once it has been created, so can be read by any thread without locking.
+	private final Map<Coordinate, Coordinate> theCache;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
 
-		populateCache(buildingEnvironment, roadEnvironment);
-		this.createdTime = new Date().getTime();
-		serialise();
+	private NearestRoadCoordCache(Map<Coordinate, Coordinate> theCache) {
+		this.theCache = Collections.unmodifiableMap(theCache);
 	}
 
-	public void clear() {
-		this.theCache.clear();
+	CacheStats getStats() {
+		// Each building has a map entry and two coordinates
+		return new CacheStats("nearest road coordinates", this.theCache.size(), 112L * this.theCache.size(),
+				this.hits.get(), this.misses.get());
 	}
 
-	private void populateCache(Geography<Building> buildingEnvironment, Geography<Road> roadEnvironment)
-			throws Exception {
+	private static Map<Coordinate, Coordinate> populateCache(Geography<Building> buildingEnvironment,
+			final Geography<Road> roadEnvironment) throws Exception {
 		double time = System.nanoTime();
-		theCache = new Hashtable<Coordinate, Coordinate>();
-		// Iterate over every building and find the nearest road point
-		for (Building b : buildingEnvironment.getAllObjects()) {
-			List<Coordinate> nearestCoords = new ArrayList<Coordinate>();
-			Route.findNearestObject(b.getCoords(), roadEnvironment, nearestCoords,
-					GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE.LARGE);
-			// Two coordinates returned by closestPoints(), need to find the one
-			// which isn't the building coord
-			Coordinate nearestPoint = null;
-			for (Coordinate c : nearestCoords) {
-				if (!c.equals(b.getCoords())) {
-					nearestPoint = c;
-					break;
+		// Share the buildings out between threads, each finds the nearest road points to its buildings
+		Map<Coordinate, Coordinate> theCache = new ParallelCacheBuilder<Map<Coordinate, Coordinate>>(
+				"nearest road coordinate cache") {
+
+			@Override
+			Map<Coordinate, Coordinate> createPartial() {
+				return new HashMap<Coordinate, Coordinate>();
+			}
+
+			@Override
+			void add(Building b, Map<Coordinate, Coordinate> partial) throws Exception {
+				List<Coordinate> nearestCoords = new ArrayList<Coordinate>();
+				Route.findNearestObject(b.getCoords(), roadEnvironment, nearestCoords,
+						GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE.LARGE);
+				// Two coordinates returned by closestPoints(), need to find the one
+				// which isn't the building coord
+				Coordinate nearestPoint = null;
+				for (Coordinate c : nearestCoords) {
+					if (!c.equals(b.getCoords())) {
+						nearestPoint = c;
+						break;
+					}
+				} // for nearestCoords
+				if (nearestPoint == null) {
+					throw new Exception("Route.getNearestRoadCoord() error: couldn't find a road coordinate which "
+							+ "is close to building " + b.toString());
 				}
-			} // for nearestCoords
-			if (nearestPoint == null) {
-				throw new Exception("Route.getNearestRoadCoord() error: couldn't find a road coordinate which "
-						+ "is close to building " + b.toString());
+				partial.put(b.getCoords(), nearestPoint);
+			}
+
+			@Override
+			Map<Coordinate, Coordinate> merge(Map<Coordinate, Coordinate> first, Map<Coordinate, Coordinate> second) {
+				first.putAll(second);
+				return first;
 			}
-			theCache.put(b.getCoords(), nearestPoint);
-		}// for Buildings
+		}.build(buildingEnvironment.getAllObjects());
 		LOGGER.log(Level.FINER, "Finished caching nearest roads (" + (0.000001 * (System.nanoTime() - time)) + "ms)");
-	} // if nearestRoadCoordCache = null;
+		return theCache;
+	}
 
-	/**
-	 * 
-	 * @param c
-	 * @return
-	 * @throws Exception
-	 */
 	public Coordinate get(Coordinate c) throws Exception {
 		if (c == null) {
 			throw new Exception("Route.NearestRoadCoordCache.get() error: the given coordinate is null.");
@@ -1676,15 +2151,17 @@ class NearestRoadCoordCache implements Serializable {
 		double time = System.nanoTime();
 		Coordinate nearestCoord = this.theCache.get(c);
 		if (nearestCoord != null) {
+			this.hits.incrementAndGet();
 			LOGGER.log(Level.FINER, "NearestRoadCoordCache.get() (using cache) - ("
 					+ (0.000001 * (System.nanoTime() - time)) + "ms)");
 			return nearestCoord;
 		}
+		this.misses.incrementAndGet();
 		// If get here then the coord is not in the cache, agent not starting their journey from a house, search for
 		// it manually. Search all roads in the vicinity, looking for the point which is nearest the person
 		double minDist = Double.MAX_VALUE;
 		Coordinate nearestPoint = null;
-		Point coordGeom = this.geomFac.createPoint(c);
+		Point coordGeom = new GeometryFactory().createPoint(c);
 
 		// Note: could use an expanding envelope that starts small and gets bigger
 		double bufferDist = GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE.LARGE.dist;
@@ -1733,31 +2210,28 @@ class NearestRoadCoordCache implements Serializable {
 
 	}
 
-	private void serialise() throws IOException {
-		double time = System.nanoTime();
-		FileOutputStream fos = null;
-		ObjectOutputStream out = null;
-		try {
-			if (!this.serialisedLoc.exists())
-				this.serialisedLoc.createNewFile();
-			fos = new FileOutputStream(this.serialisedLoc);
-			out = new ObjectOutputStream(fos);
-			out.writeObject(this);
-			out.close();
-		} catch (IOException ex) {
-			if (serialisedLoc.exists()) {
-				// delete to stop problems loading incomplete file next time
-				serialisedLoc.delete();
-			}
-			throw ex;
+	/**
+	 * Write the cache: the number of entries followed by the coordinates (building x, building y, road x, road y) of
+	 * each entry.
+	 */
+	private void write(File serialisedLoc, File... dataFiles) throws IOException {
+		double[] coords = new double[4 * this.theCache.size()];
+		int i = 0;
+		for (Map.Entry<Coordinate, Coordinate> e : this.theCache.entrySet()) {
+			coords[i++] = e.getKey().x;
+			coords[i++] = e.getKey().y;
+			coords[i++] = e.getValue().x;
+			coords[i++] = e.getValue().y;
 		}
-		LOGGER.log(Level.FINE, "... serialised NearestRoadCoordCache to " + this.serialisedLoc.getAbsolutePath()
-				+ " in (" + 0.000001 * (System.nanoTime() - time) + "ms)");
+		CacheFile.Writer w = new CacheFile.Writer(CacheFile.NEAREST_ROAD_COORDS, dataFiles);
+		w.putInt(this.theCache.size());
+		w.putDoubles(coords);
+		w.write(serialisedLoc);
 	}
 
 	/**
-	 * Used to create a new BuildingsOnRoadCache object. This function is used instead of the constructor directly so
-	 * that the class can check if there is a serialised version on disk already. If not then a new one is created and
+	 * Used to create a new NearestRoadCoordCache object. This function is used instead of the constructor directly so
+	 * that the class can check if there is a cache file on disk already. If not then a new one is created and
 	 * returned.
 	 * 
 	 * @param buildingEnv
@@ -1772,126 +2246,44 @@ class NearestRoadCoordCache implements Serializable {
 	public synchronized static NearestRoadCoordCache getInstance(Geography<Building> buildingEnv, File buildingsFile,
 			Geography<Road> roadEnv, File roadsFile, File serialisedLoc, GeometryFactory geomFac) throws Exception {
 		double time = System.nanoTime();
-		// See if there is a cache object on disk.
-		if (serialisedLoc.exists()) {
-			FileInputStream fis = null;
-			ObjectInputStream in = null;
-			NearestRoadCoordCache ncc = null;
+		// See if there is a cache file on disk that can be used
+		ByteBuffer buf = CacheFile.read(serialisedLoc, CacheFile.NEAREST_ROAD_COORDS, buildingsFile, roadsFile);
+		if (buf != null) {
 			try {
-
-				fis = new FileInputStream(serialisedLoc);
-				in = new ObjectInputStream(fis);
-				ncc = (NearestRoadCoordCache) in.readObject();
-				in.close();
-
-				// Check that the cache is representing the correct data and the
-				// modification dates are ok
-				if (!buildingsFile.getAbsolutePath().equals(ncc.buildingsFile.getAbsolutePath())
-						|| !roadsFile.getAbsolutePath().equals(ncc.roadsFile.getAbsolutePath())
-						|| buildingsFile.lastModified() > ncc.createdTime || roadsFile.lastModified() > ncc.createdTime) {
-					LOGGER.log(Level.FINE, "BuildingsOnRoadCache, found serialised object but it doesn't match the "
-							+ "data (or could have different modification dates), will create a new cache.");
-				} else {
-					LOGGER.log(Level.FINER, "NearestRoadCoordCache, found serialised cache, returning it (in "
-							+ 0.000001 * (System.nanoTime() - time) + "ms)");
-					return ncc;
+				// Check the size before using it, 4 * size could overflow if the file is broken
+				int size = buf.getInt();
+				if (size < 0 || size > buf.remaining() / 32) {
+					throw new BufferUnderflowException();
+				}
+				double[] coords = CacheFile.getDoubles(buf, 4 * size);
+				Map<Coordinate, Coordinate> theCache = new HashMap<Coordinate, Coordinate>(size * 2);
+				for (int i = 0; i < coords.length; i += 4) {
+					theCache.put(new Coordinate(coords[i], coords[i + 1]), new Coordinate(coords[i + 2],
+							coords[i + 3]));
 				}
-			} catch (IOException ex) {
-				if (serialisedLoc.exists())
-					serialisedLoc.delete(); // delete to stop problems loading incomplete file next tinme
-				throw ex;
-			} catch (ClassNotFoundException ex) {
-				if (serialisedLoc.exists())
-					serialisedLoc.delete();
-				throw ex;
+				LOGGER.log(Level.FINER, "NearestRoadCoordCache, found cache file, returning it (in "
+						+ 0.000001 * (System.nanoTime() - time) + "ms)");
+				return new NearestRoadCoordCache(theCache);
+			} catch (BufferUnderflowException e) {
+				LOGGER.log(Level.WARNING, "NearestRoadCoordCache, the cache file " + serialisedLoc
+						+ " is shorter than it should be, creating a new cache.");
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "NearestRoadCoordCache, the cache file " + serialisedLoc
+						+ " is broken, creating a new cache.", e);
 			}
-
 		}
 
-		// No serialised object, or got an error when opening it, just create a new one
-		return new NearestRoadCoordCache(buildingEnv, buildingsFile, roadEnv, roadsFile, serialisedLoc, geomFac);
+		// No cache file, or it was out of date, just create a new one
+		LOGGER.log(Level.FINE, "NearestRoadCoordCache() creating new cache with data:\n\t"
+				+ buildingsFile.getAbsolutePath() + "\n\t" + roadsFile.getAbsolutePath() + "\n\t"
+				+ serialisedLoc.getAbsolutePath());
+		NearestRoadCoordCache ncc = new NearestRoadCoordCache(populateCache(buildingEnv, roadEnv));
+		ncc.write(serialisedLoc, buildingsFile, roadsFile);
+		return ncc;
 	}
 
 }
 
-/**
- * Used to cache routes. Saves the origin and destination coords and the transport available to the agent (if transport
- * changes then the agent might have to create a new route.
- * 
- * @author Nick Malleson
- */
-class CachedRoute {
-	private List<Coordinate> theRoute;
-	private List<Double> routeSpeeds;
-	private List<String> routeDescriptions;
-	private List<Road> roads;
-	private Coordinate origin;
-	private Coordinate destination;
-	private List<String> transportAvailable;
-	// Used to generate hash codes (each route must have unique ID)
-	private static int uniqueRouteCacheID;
-	private int uniqueID;
-
-	public CachedRoute(Coordinate origin, Coordinate destination, List<String> transportAvailable) {
-		this.origin = origin;
-		this.destination = destination;
-		this.transportAvailable = transportAvailable;
-		this.uniqueID = CachedRoute.uniqueRouteCacheID++;
-	}
-
-	public void setRoute(List<Coordinate> theRoute, List<Road> roads, List<Double> routeSpeeds,
-			List<String> routeDescriptions) {
-		this.theRoute = theRoute;
-		this.roads = roads;
-		this.routeSpeeds = routeSpeeds;
-		this.routeDescriptions = routeDescriptions;
-	}
-
-	public List<Coordinate> getRoute() {
-		return this.theRoute;
-	}
-
-	public List<Double> getRouteSpeeds() {
-		return this.routeSpeeds;
-	}
-
-	public List<Road> getRoads() {
-		return this.roads;
-	}
-
-	public List<String> getDescriptions() {
-		return this.routeDescriptions;
-	}
-
-	@Override
-	public String toString() {
-		return "CachedRoute " + this.uniqueID;
-	}
-
-	/**
-	 * Returns true if input object is a CachedRoute and the the origin, destination and transport available are the
-	 * same as this CachedRoute
-	 */
-	@Override
-	public boolean equals(Object obj) {
-		if (obj instanceof CachedRoute) {
-			CachedRoute r = (CachedRoute) obj;
-			return (r.origin.equals(this.origin)) && (r.destination.equals(this.destination))
-					&& (r.transportAvailable.equals(this.transportAvailable));
-		} else {
-			return false;
-		}
-	}
-
-	/**
-	 * Returns: <code>Float.floatToIntBits((float)(this.origin.getX()+this.origin.getY()))</code>
-	 */
-	@Override
-	public int hashCode() {
-		return Float.floatToIntBits((float) (this.origin.x + this.origin.y));
-	}
-}
-
 /**
  * Used to cache route distances. Saves the origin and destination coords and the transport available to the agent (if
  * transport changes then the agent might have to create a new route).
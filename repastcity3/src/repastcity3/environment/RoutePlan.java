@@ -0,0 +1,208 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * The result of planning a route: the coordinates that describe how to get to the destination along with the road,
+ * speed and description of each coordinate. Plans are immutable so that the same plan can be shared by every agent
+ * making the same trip (e.g. agents who live in the same building and go to the same destination). Each
+ * <code>Route</code> then only needs to remember how far along the plan its agent has got.
+ * <p>
+ * The coordinates are stored as a single array of doubles (x0, y0, x1, y1, ...) rather than as
+ * <code>Coordinate</code> objects to keep plans small.
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see Route
+ */
+final class RoutePlan {
+
+	/** A plan with no coordinates, used when the agent is already at their destination. */
+	static final RoutePlan EMPTY = new Builder().build();
+
+	private final double[] coords;
+	private final Road[] roads;
+	private final float[] speeds;
+	private final String[] descriptions;
+
+	private RoutePlan(double[] coords, Road[] roads, float[] speeds, String[] descriptions) {
+		this.coords = coords;
+		this.roads = roads;
+		this.speeds = speeds;
+		this.descriptions = descriptions;
+	}
+
+	/** The number of coordinates in the plan. */
+	int size() {
+		return this.roads.length;
+	}
+
+	double getX(int i) {
+		return this.coords[2 * i];
+	}
+
+	double getY(int i) {
+		return this.coords[2 * i + 1];
+	}
+
+	/**
+	 * Get a coordinate in the plan. A new object is returned each time so callers are free to change it.
+	 */
+	Coordinate getCoordinate(int i) {
+		return new Coordinate(this.coords[2 * i], this.coords[2 * i + 1]);
+	}
+
+	Road getRoad(int i) {
+		return this.roads[i];
+	}
+
+	double getSpeed(int i) {
+		return this.speeds[i];
+	}
+
+	String getDescription(int i) {
+		return this.descriptions[i];
+	}
+
+	/**
+	 * Work out how far it would be to walk the plan from the given starting coordinate, in the units of the geography.
+	 * Each part is divided by the speed that it is travelled at (see <code>Route.travel()</code>) so a part that can
+	 * be travelled twice as fast as walking counts for half of its length.
+	 */
+	double getWalkingDistance(Coordinate start) {
+		return walkingDistance(this.coords, this.speeds, this.roads.length, start);
+	}
+
+	private static double walkingDistance(double[] coords, float[] speeds, int size, Coordinate start) {
+		double distance = 0;
+		double x = start.x, y = start.y;
+		for (int i = 0; i < size; i++) {
+			double dx = coords[2 * i] - x, dy = coords[2 * i + 1] - y;
+			distance += Math.sqrt(dx * dx + dy * dy) / speeds[i];
+			x = coords[2 * i];
+			y = coords[2 * i + 1];
+		}
+		return distance;
+	}
+
+	/**
+	 * An estimate of the memory used by the plan in bytes (the roads and descriptions are shared so only the
+	 * references to them are counted).
+	 */
+	long estimateSize() {
+		return 80 + 16L * this.roads.length + 12L * this.roads.length;
+	}
+
+	/**
+	 * Used to build up a plan one coordinate at a time while a route is being planned.
+	 */
+	static final class Builder {
+
+		private double[] coords = new double[32];
+		private Road[] roads = new Road[16];
+		private float[] speeds = new float[16];
+		private String[] descriptions = new String[16];
+		private int size = 0;
+
+		void add(Coordinate c, Road road, double speed, String description) {
+			if (this.size == this.roads.length) {
+				int newLength = this.size * 2;
+				this.coords = Arrays.copyOf(this.coords, newLength * 2);
+				this.roads = Arrays.copyOf(this.roads, newLength);
+				this.speeds = Arrays.copyOf(this.speeds, newLength);
+				this.descriptions = Arrays.copyOf(this.descriptions, newLength);
+			}
+			this.coords[2 * this.size] = c.x;
+			this.coords[2 * this.size + 1] = c.y;
+			this.roads[this.size] = road;
+			this.speeds[this.size] = (float) speed;
+			this.descriptions[this.size] = description;
+			this.size++;
+		}
+
+		void add(List<Coordinate> coords, Road road, double speed, String description) {
+			for (Coordinate c : coords) {
+				this.add(c, road, speed, description);
+			}
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		/** Get the most recently added coordinate (or null if the plan is empty). */
+		Coordinate last() {
+			return this.size == 0 ? null : new Coordinate(this.coords[2 * this.size - 2],
+					this.coords[2 * this.size - 1]);
+		}
+
+		/** The walking distance of the plan as built so far (see <code>RoutePlan.getWalkingDistance()</code>). */
+		double getWalkingDistance(Coordinate start) {
+			return walkingDistance(this.coords, this.speeds, this.size, start);
+		}
+
+		/** Create the (immutable) plan. The arrays are trimmed so that no space is wasted. */
+		RoutePlan build() {
+			return new RoutePlan(Arrays.copyOf(this.coords, 2 * this.size), Arrays.copyOf(this.roads, this.size),
+					Arrays.copyOf(this.speeds, this.size), Arrays.copyOf(this.descriptions, this.size));
+		}
+	}
+
+	/**
+	 * Identifies a trip so that plans can be shared: the origin and destination coordinates and the transport
+	 * available to the agent (agents with different transport might take different routes). The transport is stored
+	 * as a mask of <code>TRANSPORT_PARAMS.MODE</code> bits, rather than the agent's list, so that the key doesn't
+	 * change if the agent's list does.
+	 */
+	static final class Key {
+		private final double ox, oy, dx, dy;
+		private final int agentMask;
+		private final int hash;
+
+		Key(Coordinate origin, Coordinate destination, int agentMask) {
+			this.ox = origin.x;
+			this.oy = origin.y;
+			this.dx = destination.x;
+			this.dy = destination.y;
+			this.agentMask = agentMask;
+			int h = Arrays.hashCode(new double[] { ox, oy, dx, dy });
+			this.hash = 31 * h + agentMask;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) obj;
+			return this.ox == k.ox && this.oy == k.oy && this.dx == k.dx && this.dy == k.dy
+					&& this.agentMask == k.agentMask;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A service that plans routes in the background, using its own pool of threads. Planning a route can be expensive, so
+ * if it is done inside an agent's <code>step()</code> method then one long route will hold up the whole iteration
+ * (particularly when lots of agents reach their destinations at the same time). Instead, agents can submit their
+ * <code>Route</code> to be planned as soon as they choose a destination and carry on stepping (waiting where they are)
+ * until the plan is ready. This means that planning for the next iteration overlaps with movement in the current one.
+ *
+ * @author Nick Malleson
+ * @see Route#planInBackground()
+ */
+public abstract class RoutePlanner {
+
+	private static Logger LOGGER = Logger.getLogger(RoutePlanner.class.getName());
+
+	private static ExecutorService pool;
+
+	/**
+	 * Submit a route to be planned by one of the planning threads.
+	 *
+	 * @param route
+	 *            The route to plan.
+	 * @return A future which will be complete once the route has been planned (or planning failed).
+	 */
+	static synchronized Future<Void> submit(final Route route) {
+		if (pool == null) {
+			int numThreads = Runtime.getRuntime().availableProcessors();
+			LOGGER.log(Level.FINE, "Starting route planning service with " + numThreads + " threads.");
+			pool = Executors.newFixedThreadPool(numThreads, new PlannerThreadFactory());
+		}
+		return pool.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				route.setRoute();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Stop the planning threads. Routes that are waiting to be planned are cancelled, so they will be planned by
+	 * <code>Route.travel()</code> instead (this matters if other runs in the same JVM are still using the planner).
+	 */
+	public static synchronized void shutdown() {
+		if (pool != null) {
+			for (Runnable r : pool.shutdownNow()) {
+				if (r instanceof Future<?>) {
+					((Future<?>) r).cancel(false);
+				}
+			}
+			pool = null;
+		}
+	}
+
+	/**
+	 * Creates daemon threads so that the planning service never stops the JVM from exiting.
+	 */
+	private static class PlannerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "RoutePlanner-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
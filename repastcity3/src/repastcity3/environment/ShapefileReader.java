@@ -0,0 +1,303 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Reads shapefiles by memory-mapping the main (.shp), index (.shx) and attribute (.dbf) files and decoding records
+ * directly, rather than going through the GeoTools data store that Repast's <code>ShapefileLoader</code> uses. Records
+ * can be read in any order: the index gives the position of each geometry and attribute records all have the same
+ * length. Only the attributes that are asked for are decoded (see <code>GISFunctions.readShapefile()</code>).
+ * <p>
+ * Geometries are created with the same types that GeoTools uses: <code>Point</code>, <code>MultiPoint</code>,
+ * <code>MultiLineString</code> (for polylines) and <code>MultiPolygon</code>. Z and M values are ignored. In polygons,
+ * clockwise rings are shells and anti-clockwise rings are holes in the shell that comes before them. Each file must be
+ * smaller than 2GB (the largest buffer that can be memory-mapped).
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see <a href="http://www.esri.com/library/whitepapers/pdfs/shapefile.pdf">The ESRI shapefile specification</a>
+ */
+final class ShapefileReader {
+
+	/** Sets the attributes of an object from a record in the attribute file. */
+	interface AttributeSetter<T> {
+		void setAttributes(T obj, int record) throws Exception;
+	}
+
+	private static final Charset DBF_CHARSET = Charset.forName("ISO-8859-1");
+
+	private final File shapefile;
+	private final ByteBuffer shp, shx, dbf;
+	private final int numRecords;
+
+	/* The attribute file */
+	private final int dbfHeaderLength, dbfRecordLength;
+	private final Map<String, Integer> columns = new HashMap<String, Integer>(); // Lower case name -> column
+	private final List<int[]> columnPositions = new ArrayList<int[]>(); // The offset and length of each column
+
+	private CoordinateReferenceSystem crs;
+
+	/**
+	 * Open a shapefile.
+	 *
+	 * @param shapefile
+	 *            The main (.shp) file. The .shx and .dbf files must be in the same directory with the same name.
+	 * @throws IOException
+	 *             If one of the files is missing or can't be read.
+	 */
+	ShapefileReader(File shapefile) throws IOException {
+		this.shapefile = shapefile;
+		String base = shapefile.getPath().substring(0, shapefile.getPath().length() - 4);
+		this.shp = map(shapefile);
+		this.shx = map(new File(base + ".shx"));
+		this.dbf = map(new File(base + ".dbf"));
+
+		// Main file header is 100 bytes (big endian file code and length, then little endian). Index records (the
+		// offset and length of each shape) are big endian, which is the default for a buffer.
+		if (this.shp.getInt(0) != 9994 || this.shx.getInt(0) != 9994) {
+			throw new IOException(shapefile + " is not a shapefile (or its index is broken)");
+		}
+		this.numRecords = (this.shx.capacity() - 100) / 8;
+
+		// Attribute (dBASE) file header
+		this.dbf.order(ByteOrder.LITTLE_ENDIAN);
+		int dbfRecords = this.dbf.getInt(4);
+		this.dbfHeaderLength = this.dbf.getShort(8) & 0xFFFF;
+		this.dbfRecordLength = this.dbf.getShort(10) & 0xFFFF;
+		if (dbfRecords != this.numRecords) {
+			throw new IOException("The attribute file for " + shapefile + " has " + dbfRecords + " records but the "
+					+ "shapefile has " + this.numRecords);
+		}
+		int offset = 1; // (each record starts with a deleted flag)
+		for (int pos = 32; pos < this.dbfHeaderLength - 1 && this.dbf.get(pos) != 0x0D; pos += 32) {
+			byte[] name = new byte[11];
+			for (int i = 0; i < 11; i++) {
+				name[i] = this.dbf.get(pos + i);
+			}
+			int nameLength = 0;
+			while (nameLength < 11 && name[nameLength] != 0) {
+				nameLength++;
+			}
+			int length = this.dbf.get(pos + 16) & 0xFF;
+			this.columns.put(new String(name, 0, nameLength, DBF_CHARSET).trim().toLowerCase(),
+					this.columnPositions.size());
+			this.columnPositions.add(new int[] { offset, length });
+			offset += length;
+		}
+
+		// The projection (optional)
+		File prj = new File(base + ".prj");
+		if (prj.exists()) {
+			ByteBuffer b = map(prj);
+			byte[] bytes = new byte[b.capacity()];
+			b.get(bytes);
+			try {
+				this.crs = CRS.parseWKT(new String(bytes, DBF_CHARSET).trim());
+			} catch (FactoryException e) {
+				throw new IOException("Could not read the projection for " + shapefile + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		if (!file.exists()) {
+			throw new FileNotFoundException("Could not find the file " + file.getAbsolutePath());
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			return buf;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** The number of records (objects) in the shapefile. */
+	int getNumRecords() {
+		return this.numRecords;
+	}
+
+	/** The projection in the .prj file, or null if there isn't one. */
+	CoordinateReferenceSystem getCRS() {
+		return this.crs;
+	}
+
+	/** Whether a record has been marked as deleted in the attribute file. */
+	boolean isDeleted(int record) {
+		return this.dbf.get(this.dbfHeaderLength + record * this.dbfRecordLength) == '*';
+	}
+
+	/**
+	 * Find a column in the attribute file (ignoring case).
+	 *
+	 * @return The column number or -1 if there is no column with the given name.
+	 */
+	int getColumn(String name) {
+		Integer c = this.columns.get(name.toLowerCase());
+		return c == null ? -1 : c;
+	}
+
+	/**
+	 * Read an attribute as a string (whatever the type of the column).
+	 *
+	 * @return The value with leading and trailing spaces removed, or null if it is empty.
+	 */
+	String getString(int record, int column) {
+		int[] pos = this.columnPositions.get(column);
+		int start = this.dbfHeaderLength + record * this.dbfRecordLength + pos[0];
+		int end = start + pos[1];
+		while (start < end && (this.dbf.get(start) == ' ' || this.dbf.get(start) == 0)) {
+			start++;
+		}
+		while (end > start && (this.dbf.get(end - 1) == ' ' || this.dbf.get(end - 1) == 0)) {
+			end--;
+		}
+		if (start == end) {
+			return null;
+		}
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = this.dbf.get(start + i);
+		}
+		return new String(bytes, DBF_CHARSET);
+	}
+
+	/**
+	 * Read the geometry of a record.
+	 *
+	 * @return The geometry, or null if the record has no geometry (a 'null shape').
+	 * @throws IOException
+	 *             If the record has a type of geometry that can't be read.
+	 */
+	Geometry getGeometry(int record, GeometryFactory geomFac) throws IOException {
+		int offset = 2 * this.shx.getInt(100 + 8 * record) + 8; // (in 16-bit words, skip the record header)
+		ByteBuffer b = this.shp.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		b.position(offset);
+		int type = b.getInt();
+		switch (type) {
+		case 0: // Null
+			return null;
+		case 1: // Point
+		case 11: // PointZ
+		case 21: // PointM
+			return geomFac.createPoint(new Coordinate(b.getDouble(), b.getDouble()));
+		case 8: // MultiPoint
+		case 18:
+		case 28:
+			b.position(b.position() + 32); // (bounding box)
+			return geomFac.createMultiPoint(readCoords(b, b.getInt()));
+		case 3: // PolyLine
+		case 13:
+		case 23:
+		case 5: // Polygon
+		case 15:
+		case 25:
+			b.position(b.position() + 32);
+			int numParts = b.getInt();
+			int numPoints = b.getInt();
+			int[] parts = new int[numParts + 1];
+			for (int i = 0; i < numParts; i++) {
+				parts[i] = b.getInt();
+			}
+			parts[numParts] = numPoints;
+			Coordinate[] all = readCoords(b, numPoints);
+			Coordinate[][] partCoords = new Coordinate[numParts][];
+			for (int i = 0; i < numParts; i++) {
+				partCoords[i] = new Coordinate[parts[i + 1] - parts[i]];
+				System.arraycopy(all, parts[i], partCoords[i], 0, partCoords[i].length);
+			}
+			return (type % 10 == 3) ? createLines(partCoords, geomFac) : createPolygons(partCoords, geomFac);
+		default:
+			throw new IOException("Record " + record + " of " + this.shapefile + " has a type of shape (" + type
+					+ ") that can't be read.");
+		}
+	}
+
+	private static Coordinate[] readCoords(ByteBuffer b, int n) {
+		Coordinate[] coords = new Coordinate[n];
+		for (int i = 0; i < n; i++) {
+			coords[i] = new Coordinate(b.getDouble(), b.getDouble());
+		}
+		return coords;
+	}
+
+	private static Geometry createLines(Coordinate[][] parts, GeometryFactory geomFac) {
+		LineString[] lines = new LineString[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			lines[i] = geomFac.createLineString(parts[i]);
+		}
+		return geomFac.createMultiLineString(lines);
+	}
+
+	private static Geometry createPolygons(Coordinate[][] rings, GeometryFactory geomFac) {
+		List<Polygon> polygons = new ArrayList<Polygon>();
+		LinearRing shell = null;
+		List<LinearRing> holes = new ArrayList<LinearRing>();
+		for (int i = 0; i < rings.length; i++) {
+			LinearRing r = geomFac.createLinearRing(rings[i]);
+			if (i > 0 && signedArea(rings[i]) > 0) { // Anti-clockwise, a hole in the current shell
+				holes.add(r);
+				continue;
+			}
+			if (i > 0) {
+				polygons.add(geomFac.createPolygon(shell, holes.toArray(new LinearRing[holes.size()])));
+				holes.clear();
+			}
+			shell = r;
+		}
+		if (rings.length > 0) {
+			polygons.add(geomFac.createPolygon(shell, holes.toArray(new LinearRing[holes.size()])));
+		}
+		return geomFac.createMultiPolygon(polygons.toArray(new Polygon[polygons.size()]));
+	}
+
+	/** Twice the signed area of a ring, positive if the ring is anti-clockwise. */
+	private static double signedArea(Coordinate[] ring) {
+		double sum = 0;
+		for (int i = 0; i < ring.length - 1; i++) {
+			sum += ring[i].x * ring[i + 1].y - ring[i + 1].x * ring[i].y;
+		}
+		return sum;
+	}
+}
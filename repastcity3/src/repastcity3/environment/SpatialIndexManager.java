@@ -24,6 +24,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import repast.simphony.space.gis.Geography;
 import repastcity3.main.GlobalVars;
@@ -41,6 +42,10 @@ import com.vividsolutions.jts.operation.distance.DistanceOp;
  * Class that can be used to hold spatial indexes for Geography Projections. This
  * allows for more efficient GIS operations (e.g. finding nearby objects). The inner
  * <code>Index</code> class is used to actually hold the index.
+ * <p>
+ * Indices are built as soon as they are created and never change afterwards, so they can be searched by several
+ * threads at once (e.g. when caches are being populated in parallel, see <code>ParallelCacheBuilder</code>).
+ * </p>
  * 
  * @author Nick Malleson
  * @see SpatialIndex
@@ -49,7 +54,12 @@ import com.vividsolutions.jts.operation.distance.DistanceOp;
 public abstract class SpatialIndexManager implements Cacheable {
 	
 	// Link spatial indices to their geographies.
-	private static Map<Geography<?>, Index<?>> indices = new HashMap<Geography<?>, Index<?>>();
+	private static Map<Geography<?>, Index<?>> indices = new ConcurrentHashMap<Geography<?>, Index<?>>();
+
+	static {
+		CacheRegistry.register(new SpatialIndexManager() {
+		});
+	}
 	
 	/**
 	 * Create a new spatial index for the given geography <code>Geography</code>.  
@@ -78,7 +88,7 @@ public abstract class SpatialIndexManager implements Cacheable {
 	 *             If there is no spatial index for the given geography.
 	 */
 	@SuppressWarnings("unchecked")
-	public static synchronized <T> T findNearestObject(Geography<T> geog, Coordinate x, List<Coordinate> closestPoints,
+	public static <T> T findNearestObject(Geography<T> geog, Coordinate x, List<Coordinate> closestPoints,
 			GlobalVars.GEOGRAPHY_PARAMS.BUFFER_DISTANCE searchDist) 
 		throws NoSuchElementException {
 		
@@ -135,7 +145,7 @@ public abstract class SpatialIndexManager implements Cacheable {
 	 * @see STRtree
 	 */
 	@SuppressWarnings("unchecked")
-	public static synchronized <T> List<T> search(Geography<T> geog, Geometry geom) throws NoSuchElementException {
+	public static <T> List<T> search(Geography<T> geog, Geometry geom) throws NoSuchElementException {
 		
 		Index<T> index = (Index<T>) indices.get(geog);
 		if (index==null) {
@@ -163,6 +173,25 @@ public abstract class SpatialIndexManager implements Cacheable {
 	public void clearCaches() {
 		indices.clear();
 	}
+
+	@Override
+	public List<CacheStats> getCacheStats() {
+		List<CacheStats> stats = new ArrayList<CacheStats>();
+		for (Map.Entry<Geography<?>, Index<?>> e : indices.entrySet()) {
+			int size = e.getValue().size();
+			stats.add(new CacheStats("spatial index (" + e.getKey().getName() + ")", size, size
+					* Index.BYTES_PER_OBJECT, 0, 0));
+		}
+		return stats;
+	}
+
+	/**
+	 * The spatial indices can't be re-created automatically, so this doesn't evict anything.
+	 */
+	@Override
+	public long evict(long bytes) {
+		return 0;
+	}
 }
 
 /**
@@ -186,9 +215,12 @@ class Index <T> {
 	private Map<Geometry, T> featureLookup;
 	
 	public Index(Geography<T> geog, Class<T> clazz) {
-		this.si = new STRtree();
+		STRtree tree = new STRtree();
 		this.featureLookup = new HashMap<Geometry, T>();
-		this.createIndex(geog, clazz);		
+		this.si = tree;
+		this.createIndex(geog, clazz);
+		// Build the tree now, otherwise it is built by the first query which isn't safe if there are several threads
+		tree.build();
 	}
 	
 	// Run through each object in the geography and add them to the spatial index.
@@ -203,6 +235,17 @@ class Index <T> {
 		}
 	}
 	
+	/*
+	 * A rough estimate of the memory used for each object in an index (tree node entry, envelope and
+	 * lookup table entry; the geometries themselves belong to the geography).
+	 */
+	static final long BYTES_PER_OBJECT = 160;
+
+	/** The number of objects in the index. */
+	int size() {
+		return this.featureLookup.size();
+	}
+
 	public T lookupFeature (Geometry geom) throws NoSuchElementException {
 		assert this.featureLookup.containsKey(geom) : "Internal error: for some reason the " +
 				"given geometry is not a key in the feature lookup table.";
@@ -0,0 +1,597 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.GeodeticCalculator;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+import repastcity3.main.ModelRun;
+import repastcity3.main.GlobalVars.TRANSPORT_PARAMS;
+
+/**
+ * A public transport timetable, read from a set of GTFS-like CSV files and stored in the flat arrays used by the
+ * <code>RaptorRouter</code>. The directory should contain:
+ * <ul>
+ * <li><code>stops.txt</code>: <code>stop_id, stop_name, stop_x, stop_y</code>. If there is a
+ * <code>stops.prj</code> file (the same as the <code>.prj</code> file of a shapefile) the stops are converted from
+ * that reference system into the one used by the geography, otherwise they must already be in the geography's.</li>
+ * <li><code>routes.txt</code>: <code>route_id, route_short_name, route_type</code> (GTFS types: 2 is rail, 3 is bus)</li>
+ * <li><code>trips.txt</code>: <code>route_id, trip_id</code></li>
+ * <li><code>stop_times.txt</code>: <code>trip_id, arrival_time, departure_time, stop_id, stop_sequence</code> (times
+ * are HH:MM:SS and can be later than 24:00:00 for trips that run past midnight)</li>
+ * </ul>
+ * As in RAPTOR, trips that visit exactly the same sequence of stops are grouped into a single 'pattern' (so a GTFS
+ * route might be split into more than one pattern, e.g. one for each direction). The trips in a pattern are sorted by
+ * departure time and are assumed not to overtake each other.
+ * <p>
+ * All times are seconds since midnight and all distances (e.g. <code>MAX_ACCESS_DISTANCE</code>) are in metres,
+ * whatever the units of the geography.
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see RaptorRouter
+ */
+public class Timetable {
+
+	private static Logger LOGGER = Logger.getLogger(Timetable.class.getName());
+
+	/** Stops closer together than this (in metres) can be walked between when changing. */
+	public static final double MAX_TRANSFER_DISTANCE = 250;
+	/** The furthest (in metres) that agents will walk to get to (or from) a stop. */
+	public static final double MAX_ACCESS_DISTANCE = 800;
+	/** How quickly agents walk to, from and between stops (metres per second). */
+	public static final double WALKING_SPEED = 1.4;
+
+	/* Stops */
+	private final String[] stopIds;
+	private final String[] stopNames;
+	private final double[] stopX, stopY;
+	/* The number of metres in one unit of the geography in the x and y directions (near the stops) */
+	private final double metresPerX, metresPerY;
+
+	/* Patterns. The stops in pattern p are patternStops[patternFirstStop[p] .. patternFirstStop[p+1]-1] */
+	private final int[] patternFirstStop;
+	private final int[] patternStops;
+	private final TRANSPORT_PARAMS.MODE[] patternModes;
+	private final String[] patternNames;
+	/*
+	 * The trips in pattern p are numbered 0 .. patternNumTrips[p]-1. The times for trip t at stop position i are
+	 * stored at patternFirstTime[p] + t * (number of stops in p) + i.
+	 */
+	private final int[] patternNumTrips;
+	private final int[] patternFirstTime;
+	private final int[] arrivals;
+	private final int[] departures;
+
+	/*
+	 * The patterns that serve each stop. For stop s the entries stopFirstPattern[s] .. stopFirstPattern[s+1]-1 of
+	 * stopPatterns give the pattern and stopPatternPositions give the position of the stop in that pattern.
+	 */
+	private final int[] stopFirstPattern;
+	private final int[] stopPatterns;
+	private final int[] stopPatternPositions;
+
+	/* Walking transfers between nearby stops, stored in the same way (the duration is in seconds) */
+	private final int[] stopFirstTransfer;
+	private final int[] transferTargets;
+	private final int[] transferDurations;
+
+	/**
+	 * Read a timetable from the given directory.
+	 *
+	 * @param directory
+	 *            The directory that contains the timetable files.
+	 * @param crs
+	 *            The coordinate reference system of the geography that the agents are in (e.g.
+	 *            <code>ContextManager.roadProjection.getCRS()</code>), or null if the stops are in the same units
+	 *            and those units are metres.
+	 * @throws IOException
+	 *             If one of the files can't be read or has a problem with it (e.g. a stop time refers to a trip or
+	 *             stop that doesn't exist).
+	 */
+	public Timetable(File directory, CoordinateReferenceSystem crs) throws IOException {
+		double time = System.nanoTime();
+		MathTransform transform = stopsTransform(new File(directory, "stops.prj"), crs);
+
+		// Stops
+		List<Map<String, String>> rows = readCSV(new File(directory, "stops.txt"));
+		Map<String, Integer> stopIndex = new HashMap<String, Integer>();
+		this.stopIds = new String[rows.size()];
+		this.stopNames = new String[rows.size()];
+		this.stopX = new double[rows.size()];
+		this.stopY = new double[rows.size()];
+		for (int s = 0; s < rows.size(); s++) {
+			Map<String, String> row = rows.get(s);
+			this.stopIds[s] = get(row, "stop_id", "stops.txt");
+			this.stopNames[s] = row.containsKey("stop_name") ? row.get("stop_name") : this.stopIds[s];
+			Coordinate c = new Coordinate(Double.parseDouble(get(row, "stop_x", "stops.txt")), Double.parseDouble(get(
+					row, "stop_y", "stops.txt")));
+			if (transform != null) {
+				try {
+					c = JTS.transform(c, new Coordinate(), transform);
+				} catch (TransformException e) {
+					throw new IOException("Timetable: could not convert stop '" + this.stopIds[s] + "' to the "
+							+ "geography's reference system: " + e.getMessage());
+				}
+			}
+			this.stopX[s] = c.x;
+			this.stopY[s] = c.y;
+			if (stopIndex.put(this.stopIds[s], s) != null) {
+				throw new IOException("Timetable: stop '" + this.stopIds[s] + "' appears more than once in stops.txt");
+			}
+		}
+
+		// Work out how long the units are (near the middle of the stops) so that distances can be given in metres
+		double[] scale = metresPerUnit(crs, this.stopX, this.stopY);
+		this.metresPerX = scale[0];
+		this.metresPerY = scale[1];
+
+		// Routes (just need their mode and a name)
+		Map<String, TRANSPORT_PARAMS.MODE> routeModes = new HashMap<String, TRANSPORT_PARAMS.MODE>();
+		Map<String, String> routeNames = new HashMap<String, String>();
+		for (Map<String, String> row : readCSV(new File(directory, "routes.txt"))) {
+			String routeId = get(row, "route_id", "routes.txt");
+			int type = Integer.parseInt(get(row, "route_type", "routes.txt"));
+			routeModes.put(routeId, (type == 0 || type == 1 || type == 2) ? TRANSPORT_PARAMS.MODE.TRAIN
+					: TRANSPORT_PARAMS.MODE.BUS);
+			routeNames.put(routeId, row.containsKey("route_short_name") ? row.get("route_short_name") : routeId);
+		}
+
+		// Trips
+		Map<String, String> tripRoutes = new HashMap<String, String>();
+		for (Map<String, String> row : readCSV(new File(directory, "trips.txt"))) {
+			String routeId = get(row, "route_id", "trips.txt");
+			if (!routeModes.containsKey(routeId)) {
+				throw new IOException("Timetable: trips.txt refers to a route that isn't in routes.txt: " + routeId);
+			}
+			tripRoutes.put(get(row, "trip_id", "trips.txt"), routeId);
+		}
+
+		// Stop times, grouped by trip and sorted by sequence
+		Map<String, List<int[]>> tripStopTimes = new LinkedHashMap<String, List<int[]>>();
+		for (Map<String, String> row : readCSV(new File(directory, "stop_times.txt"))) {
+			String tripId = get(row, "trip_id", "stop_times.txt");
+			Integer stop = stopIndex.get(get(row, "stop_id", "stop_times.txt"));
+			if (!tripRoutes.containsKey(tripId) || stop == null) {
+				throw new IOException("Timetable: stop_times.txt refers to a trip or stop that doesn't exist: " + row);
+			}
+			List<int[]> l = tripStopTimes.get(tripId);
+			if (l == null) {
+				l = new ArrayList<int[]>();
+				tripStopTimes.put(tripId, l);
+			}
+			// {sequence, stop, arrival, departure}
+			l.add(new int[] { Integer.parseInt(get(row, "stop_sequence", "stop_times.txt")), stop,
+					parseTime(get(row, "arrival_time", "stop_times.txt")),
+					parseTime(get(row, "departure_time", "stop_times.txt")) });
+		}
+
+		// Group trips into patterns (same route and same sequence of stops)
+		Map<String, List<List<int[]>>> patternTrips = new LinkedHashMap<String, List<List<int[]>>>();
+		Map<String, String> patternRoutes = new HashMap<String, String>();
+		for (Map.Entry<String, List<int[]>> e : tripStopTimes.entrySet()) {
+			List<int[]> times = e.getValue();
+			if (times.size() < 2) {
+				LOGGER.warning("Timetable: ignoring trip " + e.getKey() + " because it has fewer than two stops.");
+				continue;
+			}
+			Collections.sort(times, new Comparator<int[]>() {
+				@Override
+				public int compare(int[] a, int[] b) {
+					return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+				}
+			});
+			StringBuilder key = new StringBuilder(tripRoutes.get(e.getKey()));
+			for (int[] t : times) {
+				key.append(',').append(t[1]);
+			}
+			List<List<int[]>> trips = patternTrips.get(key.toString());
+			if (trips == null) {
+				trips = new ArrayList<List<int[]>>();
+				patternTrips.put(key.toString(), trips);
+				patternRoutes.put(key.toString(), tripRoutes.get(e.getKey()));
+			}
+			trips.add(times);
+		}
+
+		int numPatterns = patternTrips.size();
+		this.patternFirstStop = new int[numPatterns + 1];
+		this.patternNumTrips = new int[numPatterns];
+		this.patternFirstTime = new int[numPatterns + 1];
+		this.patternModes = new TRANSPORT_PARAMS.MODE[numPatterns];
+		this.patternNames = new String[numPatterns];
+		int p = 0;
+		for (Map.Entry<String, List<List<int[]>>> e : patternTrips.entrySet()) {
+			int numStops = e.getValue().get(0).size();
+			this.patternFirstStop[p + 1] = this.patternFirstStop[p] + numStops;
+			this.patternNumTrips[p] = e.getValue().size();
+			this.patternFirstTime[p + 1] = this.patternFirstTime[p] + numStops * e.getValue().size();
+			String routeId = patternRoutes.get(e.getKey());
+			this.patternModes[p] = routeModes.get(routeId);
+			this.patternNames[p] = routeNames.get(routeId);
+			p++;
+		}
+		this.patternStops = new int[this.patternFirstStop[numPatterns]];
+		this.arrivals = new int[this.patternFirstTime[numPatterns]];
+		this.departures = new int[this.patternFirstTime[numPatterns]];
+		p = 0;
+		for (List<List<int[]>> trips : patternTrips.values()) {
+			// Sort the trips by their departure from the first stop
+			Collections.sort(trips, new Comparator<List<int[]>>() {
+				@Override
+				public int compare(List<int[]> a, List<int[]> b) {
+					return a.get(0)[3] < b.get(0)[3] ? -1 : (a.get(0)[3] == b.get(0)[3] ? 0 : 1);
+				}
+			});
+			int numStops = trips.get(0).size();
+			for (int i = 0; i < numStops; i++) {
+				this.patternStops[this.patternFirstStop[p] + i] = trips.get(0).get(i)[1];
+			}
+			for (int t = 0; t < trips.size(); t++) {
+				for (int i = 0; i < numStops; i++) {
+					int[] st = trips.get(t).get(i);
+					this.arrivals[this.patternFirstTime[p] + t * numStops + i] = st[2];
+					this.departures[this.patternFirstTime[p] + t * numStops + i] = st[3];
+				}
+			}
+			p++;
+		}
+
+		// The patterns that serve each stop
+		int[] count = new int[this.stopIds.length];
+		for (int i = 0; i < this.patternStops.length; i++) {
+			count[this.patternStops[i]]++;
+		}
+		this.stopFirstPattern = prefixSum(count);
+		this.stopPatterns = new int[this.patternStops.length];
+		this.stopPatternPositions = new int[this.patternStops.length];
+		int[] next = Arrays.copyOf(this.stopFirstPattern, this.stopIds.length);
+		for (p = 0; p < numPatterns; p++) {
+			for (int i = this.patternFirstStop[p]; i < this.patternFirstStop[p + 1]; i++) {
+				int n = next[this.patternStops[i]]++;
+				this.stopPatterns[n] = p;
+				this.stopPatternPositions[n] = i - this.patternFirstStop[p];
+			}
+		}
+
+		// Walking transfers between stops that are close to each other
+		List<List<int[]>> transfers = new ArrayList<List<int[]>>();
+		Arrays.fill(count, 0);
+		for (int s = 0; s < this.stopIds.length; s++) {
+			List<int[]> l = new ArrayList<int[]>();
+			for (int s2 = 0; s2 < this.stopIds.length; s2++) {
+				double dist = this.distance(this.getStopCoord(s), this.getStopCoord(s2));
+				if (s != s2 && dist <= MAX_TRANSFER_DISTANCE) {
+					l.add(new int[] { s2, walkingTime(dist) });
+				}
+			}
+			transfers.add(l);
+			count[s] = l.size();
+		}
+		this.stopFirstTransfer = prefixSum(count);
+		this.transferTargets = new int[this.stopFirstTransfer[this.stopIds.length]];
+		this.transferDurations = new int[this.transferTargets.length];
+		for (int s = 0; s < this.stopIds.length; s++) {
+			for (int i = 0; i < transfers.get(s).size(); i++) {
+				this.transferTargets[this.stopFirstTransfer[s] + i] = transfers.get(s).get(i)[0];
+				this.transferDurations[this.stopFirstTransfer[s] + i] = transfers.get(s).get(i)[1];
+			}
+		}
+
+		LOGGER.log(Level.FINE, "Read timetable from " + directory + " with " + this.stopIds.length + " stops, "
+				+ numPatterns + " patterns and " + tripStopTimes.size() + " trips in "
+				+ (0.000001 * (System.nanoTime() - time)) + "ms");
+	}
+
+	/**
+	 * The time (in seconds) that it takes to walk the given distance (in metres, see <code>WALKING_SPEED</code>).
+	 */
+	public static int walkingTime(double metres) {
+		return (int) Math.ceil(metres / WALKING_SPEED);
+	}
+
+	/**
+	 * The distance in metres between two coordinates in the geography. This uses the length of the geography's units
+	 * near the stops so is only accurate over the area of a city, which is all that is needed to walk to a stop.
+	 */
+	public double distance(Coordinate c1, Coordinate c2) {
+		double dx = (c1.x - c2.x) * this.metresPerX;
+		double dy = (c1.y - c2.y) * this.metresPerY;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Convert a distance in the units of the geography into (approximate) metres.
+	 */
+	public double toMetres(double distance) {
+		return distance * 0.5 * (this.metresPerX + this.metresPerY);
+	}
+
+	/**
+	 * Find the transform from the reference system in the stops' <code>.prj</code> file (if there is one) to the
+	 * geography's.
+	 *
+	 * @return The transform, or null if the stops don't need to be converted.
+	 */
+	private static MathTransform stopsTransform(File prj, CoordinateReferenceSystem crs) throws IOException {
+		if (crs == null || !prj.exists()) {
+			return null;
+		}
+		StringBuilder wkt = new StringBuilder();
+		BufferedReader br = new BufferedReader(new FileReader(prj));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				wkt.append(line);
+			}
+		} finally {
+			br.close();
+		}
+		try {
+			CoordinateReferenceSystem stopsCRS = CRS.parseWKT(wkt.toString());
+			return CRS.equalsIgnoreMetadata(stopsCRS, crs) ? null : CRS.findMathTransform(stopsCRS, crs, true);
+		} catch (FactoryException e) {
+			throw new IOException("Timetable: could not read the reference system in " + prj + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Work out the number of metres in one unit of the x and y axes, in the middle of the given coordinates. Units of
+	 * projected reference systems are assumed to be metres already.
+	 */
+	private static double[] metresPerUnit(CoordinateReferenceSystem crs, double[] x, double[] y) {
+		if (!(crs instanceof GeographicCRS) || x.length == 0) {
+			return new double[] { 1, 1 };
+		}
+		double cx = 0, cy = 0;
+		for (int i = 0; i < x.length; i++) {
+			cx += x[i] / x.length;
+			cy += y[i] / y.length;
+		}
+		double step = 0.001;
+		GeodeticCalculator calculator = new GeodeticCalculator(crs);
+		calculator.setStartingGeographicPoint(cx, cy);
+		calculator.setDestinationGeographicPoint(cx + step, cy);
+		double perX = calculator.getOrthodromicDistance() / step;
+		calculator.setDestinationGeographicPoint(cx, cy + step);
+		double perY = calculator.getOrthodromicDistance() / step;
+		return new double[] { perX, perY };
+	}
+
+	/**
+	 * The current time of day in a model run (seconds since midnight), worked out from the run's current tick.
+	 */
+	public static int getCurrentTime(ModelRun run) {
+		return getTime(run.getTick());
+	}
+
+	/**
+	 * The time of day (seconds since midnight) at the given tick.
+	 */
+	public static int getTime(double tick) {
+		return TRANSPORT_PARAMS.START_TIME + (int) (Math.max(tick, 0) * TRANSPORT_PARAMS.SECONDS_PER_TICK);
+	}
+
+	/**
+	 * Find the stops that are within the given distance (in metres) of a coordinate.
+	 *
+	 * @return The indices of the stops.
+	 */
+	List<Integer> getStopsWithin(Coordinate c, double distance) {
+		List<Integer> stops = new ArrayList<Integer>();
+		for (int s = 0; s < this.stopIds.length; s++) {
+			if (this.distance(c, this.getStopCoord(s)) <= distance) {
+				stops.add(s);
+			}
+		}
+		return stops;
+	}
+
+	int getNumStops() {
+		return this.stopIds.length;
+	}
+
+	String getStopName(int stop) {
+		return this.stopNames[stop];
+	}
+
+	Coordinate getStopCoord(int stop) {
+		return new Coordinate(this.stopX[stop], this.stopY[stop]);
+	}
+
+	int getNumPatterns() {
+		return this.patternNumTrips.length;
+	}
+
+	int getPatternNumStops(int pattern) {
+		return this.patternFirstStop[pattern + 1] - this.patternFirstStop[pattern];
+	}
+
+	/** The stop at the given position in the pattern. */
+	int getPatternStop(int pattern, int position) {
+		return this.patternStops[this.patternFirstStop[pattern] + position];
+	}
+
+	TRANSPORT_PARAMS.MODE getPatternMode(int pattern) {
+		return this.patternModes[pattern];
+	}
+
+	String getPatternName(int pattern) {
+		return this.patternNames[pattern];
+	}
+
+	int getArrival(int pattern, int trip, int position) {
+		return this.arrivals[this.patternFirstTime[pattern] + trip * this.getPatternNumStops(pattern) + position];
+	}
+
+	int getDeparture(int pattern, int trip, int position) {
+		return this.departures[this.patternFirstTime[pattern] + trip * this.getPatternNumStops(pattern) + position];
+	}
+
+	/**
+	 * Find the earliest trip in the pattern that leaves the stop at the given position no earlier than the given
+	 * time.
+	 *
+	 * @return The trip, or -1 if there are no more trips.
+	 */
+	int getEarliestTrip(int pattern, int position, int time) {
+		// Trips don't overtake so a binary search over the departure times at this position will work
+		int lo = 0, hi = this.patternNumTrips[pattern];
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (this.getDeparture(pattern, mid, position) < time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo == this.patternNumTrips[pattern] ? -1 : lo;
+	}
+
+	int getFirstStopPattern(int stop) {
+		return this.stopFirstPattern[stop];
+	}
+
+	int getLastStopPattern(int stop) {
+		return this.stopFirstPattern[stop + 1];
+	}
+
+	int getStopPattern(int i) {
+		return this.stopPatterns[i];
+	}
+
+	int getStopPatternPosition(int i) {
+		return this.stopPatternPositions[i];
+	}
+
+	int getFirstTransfer(int stop) {
+		return this.stopFirstTransfer[stop];
+	}
+
+	int getLastTransfer(int stop) {
+		return this.stopFirstTransfer[stop + 1];
+	}
+
+	int getTransferTarget(int i) {
+		return this.transferTargets[i];
+	}
+
+	int getTransferDuration(int i) {
+		return this.transferDurations[i];
+	}
+
+	private static int[] prefixSum(int[] count) {
+		int[] first = new int[count.length + 1];
+		for (int i = 0; i < count.length; i++) {
+			first[i + 1] = first[i] + count[i];
+		}
+		return first;
+	}
+
+	/**
+	 * Convert a time in the form HH:MM:SS into seconds since midnight.
+	 */
+	static int parseTime(String time) throws IOException {
+		String[] parts = time.trim().split(":");
+		if (parts.length != 3) {
+			throw new IOException("Timetable: could not read the time '" + time + "', should be HH:MM:SS");
+		}
+		return Integer.parseInt(parts[0]) * 3600 + Integer.parseInt(parts[1]) * 60 + Integer.parseInt(parts[2]);
+	}
+
+	private static String get(Map<String, String> row, String column, String file) throws IOException {
+		String val = row.get(column);
+		if (val == null || val.length() == 0) {
+			throw new IOException("Timetable: a row in " + file + " has no value for column '" + column + "': "
+					+ row);
+		}
+		return val;
+	}
+
+	/**
+	 * Read a simple CSV file with a header line. Values can be surrounded by double quotes but can't contain commas.
+	 *
+	 * @return A list with a map of column name to value for each row.
+	 */
+	private static List<Map<String, String>> readCSV(File file) throws IOException {
+		List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			String line = br.readLine();
+			if (line == null) {
+				throw new IOException("Timetable: file " + file + " is empty");
+			}
+			String[] header = split(line);
+			while ((line = br.readLine()) != null) {
+				if (line.trim().length() == 0) {
+					continue;
+				}
+				String[] values = split(line);
+				Map<String, String> row = new HashMap<String, String>();
+				for (int i = 0; i < header.length && i < values.length; i++) {
+					row.put(header[i], values[i]);
+				}
+				rows.add(row);
+			}
+		} finally {
+			br.close();
+		}
+		return rows;
+	}
+
+	private static String[] split(String line) {
+		String[] values = line.split(",", -1);
+		for (int i = 0; i < values.length; i++) {
+			String v = values[i].trim();
+			if (v.length() >= 2 && v.startsWith("\"") && v.endsWith("\"")) {
+				v = v.substring(1, v.length() - 1);
+			}
+			values[i] = v;
+		}
+		// Files saved on windows sometimes start with a byte order mark
+		if (values.length > 0 && values[0].startsWith("\uFEFF")) {
+			values[0] = values[0].substring(1);
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,298 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+import repastcity3.exceptions.NoIdentifierException;
+import repastcity3.main.ContextManager;
+
+/**
+ * A 'skim' matrix: the travel time between every pair of zones (<code>Area</code>s), used by
+ * <code>GravityModel</code> so that agents can choose destinations by how far away they are without having to plan
+ * routes to lots of candidate buildings.
+ * <p>
+ * Each zone is represented by the junction that is closest to its centroid. The times from each zone to all the
+ * others are found with a single one-to-all search of the road network (see
+ * <code>CompactRoadNetwork.getCostsFrom()</code>) and the zones are searched at the same time in different threads.
+ * Route costs are the distance (in the units of the road network, e.g. degrees) that could be walked in the same time,
+ * so they are converted to seconds at <code>Timetable.WALKING_SPEED</code> using the length of the units in the middle
+ * of the zones (see <code>Route.metresPerUnit()</code>). Pairs of zones that aren't connected have a time of
+ * <code>Float.POSITIVE_INFINITY</code>. The time within a zone (the diagonal of
+ * the matrix) is half of the time to the nearest other zone, which is a common approximation for trips that start and
+ * finish in the same zone.
+ * </p>
+ * <p>
+ * The matrix is stored as a single <code>float</code> array (4 bytes per pair of zones, i.e. 4MB for 1000 zones) and
+ * is saved to a cache file (see <code>CacheFile</code>) so that it only needs to be created again if the roads or the
+ * zones change.
+ * </p>
+ *
+ * @author Nick Malleson
+ */
+public final class ZoneSkim {
+
+	private static Logger LOGGER = Logger.getLogger(ZoneSkim.class.getName());
+
+	private final List<Area> zones;
+	private final int agentMask;
+	/* The times, indexed by from * zones.size() + to */
+	private final float[] times;
+
+	ZoneSkim(List<Area> zones, int agentMask, float[] times) {
+		this.zones = zones;
+		this.agentMask = agentMask;
+		this.times = times;
+	}
+
+	/**
+	 * Read the skim from a cache file if there is a valid one, otherwise create it and write a new cache file.
+	 *
+	 * @param cacheFile
+	 *            The cache file.
+	 * @param zones
+	 *            The zones, in the order of their indices (see <code>ContextManager.getAreas()</code>).
+	 * @param agentMask
+	 *            The transport that can be used (see <code>TRANSPORT_PARAMS.getAgentMask()</code>).
+	 * @param dataFiles
+	 *            The road and zone shapefiles (if they change the cache is out of date).
+	 */
+	public static ZoneSkim getOrCreate(File cacheFile, List<Area> zones, int agentMask, File... dataFiles)
+			throws IOException, NoIdentifierException {
+		ZoneSkim skim = read(cacheFile, zones, agentMask, dataFiles);
+		if (skim == null) {
+			skim = create(zones, agentMask);
+			try {
+				skim.write(cacheFile, dataFiles);
+			} catch (IOException e) {
+				// (Not fatal, the skim will just have to be created again next time)
+				LOGGER.log(Level.WARNING, "Could not write the zone skim to " + cacheFile, e);
+			}
+		}
+		return skim;
+	}
+
+	/**
+	 * Create the skim by searching the road network from every zone (in parallel).
+	 *
+	 * @param zones
+	 *            The zones, in the order of their indices (see <code>ContextManager.getAreas()</code>).
+	 * @param agentMask
+	 *            The transport that can be used (see <code>TRANSPORT_PARAMS.getAgentMask()</code>).
+	 */
+	public static ZoneSkim create(final List<Area> zones, final int agentMask) throws IOException {
+		double time = System.nanoTime();
+		final int n = zones.size();
+		final float[] times = new float[n * n];
+		final CompactRoadNetwork network = Route.getCompactNetwork();
+		final double secondsPerUnit = secondsPerUnit(zones);
+
+		// Find the junction that represents each zone
+		final Junction[] centroids = new Junction[n];
+		List<Junction> junctions = new ArrayList<Junction>();
+		for (Junction j : ContextManager.junctionContext.getObjects(Junction.class)) {
+			junctions.add(j);
+		}
+		if (junctions.isEmpty()) {
+			throw new IOException("Can't create a zone skim without a road network");
+		}
+		for (int z = 0; z < n; z++) {
+			Coordinate c = zones.get(z).getCoords();
+			double minDist = Double.MAX_VALUE;
+			for (Junction j : junctions) {
+				double dist = c.distance(j.getCoords());
+				if (dist < minDist) {
+					minDist = dist;
+					centroids[z] = j;
+				}
+			}
+		}
+
+		// Search from each zone in a different thread
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger(0);
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ZoneSkim-" + count.getAndIncrement());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		try {
+			List<Future<?>> rows = new ArrayList<Future<?>>();
+			for (int z = 0; z < n; z++) {
+				final int from = z;
+				rows.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						double[] costs = network.getCostsFrom(centroids[from], centroids, agentMask);
+						for (int to = 0; to < n; to++) {
+							times[from * n + to] = costs[to] == Double.MAX_VALUE ? Float.POSITIVE_INFINITY
+									: (float) (costs[to] * secondsPerUnit);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> f : rows) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while creating the zone skim");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not create the zone skim: " + e.getCause(), e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// The time within each zone is half of the time to the nearest other zone
+		for (int z = 0; z < n; z++) {
+			float nearest = Float.POSITIVE_INFINITY;
+			for (int to = 0; to < n; to++) {
+				if (to != z && times[z * n + to] > 0) {
+					nearest = Math.min(nearest, times[z * n + to]);
+				}
+			}
+			times[z * n + z] = nearest == Float.POSITIVE_INFINITY ? 0 : nearest / 2;
+		}
+		LOGGER.log(Level.FINE, "Created a skim of " + n + " zones in " + (0.000001 * (System.nanoTime() - time))
+				+ "ms");
+		return new ZoneSkim(Collections.unmodifiableList(new ArrayList<Area>(zones)), agentMask, times);
+	}
+
+	/**
+	 * The number of seconds that it takes to walk one unit of the road network (e.g. one degree) in the middle of the
+	 * zones.
+	 */
+	private static double secondsPerUnit(List<Area> zones) {
+		double x = 0, y = 0;
+		for (Area a : zones) {
+			x += a.getCoords().x / zones.size();
+			y += a.getCoords().y / zones.size();
+		}
+		double[] scale = Route.metresPerUnit(new Coordinate(x, y));
+		return 0.5 * (scale[0] + scale[1]) / Timetable.WALKING_SPEED;
+	}
+
+	/**
+	 * Read a skim from a cache file.
+	 *
+	 * @return The skim, or null if the file doesn't exist, is out of date or broken, or was created for different zones
+	 *         or transport.
+	 */
+	static ZoneSkim read(File file, List<Area> zones, int agentMask, File... dataFiles) throws IOException,
+			NoIdentifierException {
+		double time = System.nanoTime();
+		ByteBuffer buf = CacheFile.read(file, CacheFile.ZONE_SKIM, dataFiles);
+		if (buf == null) {
+			return null;
+		}
+		String[] ids;
+		float[] times;
+		try {
+			int mask = buf.getInt();
+			ids = CacheFile.getStrings(buf);
+			if (mask != agentMask || ids.length != zones.size()) {
+				LOGGER.log(Level.FINE, "The zone skim in " + file + " was created for different zones or transport, "
+						+ "ignoring it.");
+				return null;
+			}
+			for (int z = 0; z < ids.length; z++) {
+				if (!zones.get(z).getIdentifier().equals(ids[z])) {
+					LOGGER.log(Level.FINE, "The zone skim in " + file + " was created for different zones, "
+							+ "ignoring it.");
+					return null;
+				}
+			}
+			times = CacheFile.getFloats(buf, ids.length * ids.length);
+		} catch (BufferUnderflowException e) {
+			LOGGER.log(Level.WARNING, "The zone skim in " + file + " is shorter than it should be, ignoring it.");
+			return null;
+		}
+		LOGGER.log(Level.FINER, "Read a skim of " + ids.length + " zones from " + file + " in "
+				+ (0.000001 * (System.nanoTime() - time)) + "ms");
+		return new ZoneSkim(Collections.unmodifiableList(new ArrayList<Area>(zones)), agentMask, times);
+	}
+
+	/**
+	 * Write the skim to a cache file.
+	 *
+	 * @param dataFiles
+	 *            The road and zone shapefiles that the skim was created from.
+	 */
+	public void write(File file, File... dataFiles) throws IOException, NoIdentifierException {
+		CacheFile.Writer w = new CacheFile.Writer(CacheFile.ZONE_SKIM, dataFiles);
+		w.putInt(this.agentMask);
+		String[] ids = new String[this.zones.size()];
+		for (int z = 0; z < ids.length; z++) {
+			ids[z] = this.zones.get(z).getIdentifier();
+		}
+		w.putStrings(ids);
+		w.putFloats(this.times);
+		w.write(file);
+	}
+
+	/**
+	 * Get the travel time (in seconds) between two zones (using their indices, see <code>Area.getIndex()</code>).
+	 */
+	public float getTime(int from, int to) {
+		return this.times[from * this.zones.size() + to];
+	}
+
+	/**
+	 * Get the travel time (in seconds) between two zones.
+	 */
+	public float getTime(Area from, Area to) {
+		return this.getTime(from.getIndex(), to.getIndex());
+	}
+
+	/** Get the zones, in the order of their indices. */
+	public List<Area> getZones() {
+		return this.zones;
+	}
+
+	public int getNumZones() {
+		return this.zones.size();
+	}
+
+	/** Get the transport that the travel times are for (see <code>TRANSPORT_PARAMS.getAgentMask()</code>). */
+	public int getAgentMask() {
+		return this.agentMask;
+	}
+}
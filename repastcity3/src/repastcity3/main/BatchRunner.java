@@ -0,0 +1,291 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import repast.simphony.context.DefaultContext;
+import repastcity3.agent.AgentFactory;
+import repastcity3.environment.Route;
+import repastcity3.environment.RoutePlanner;
+
+/**
+ * A command-line tool that runs lots of replications of the model without the Repast GUI or batch launcher, e.g. for
+ * parameter sweeps. The environment (buildings, roads, road network, timetable and route caches) is loaded once and
+ * then shared by all of the runs (see <code>ModelRun</code>), which are executed at the same time on a pool of threads.
+ * Each run creates its own agents, using one of the agent definitions (see <code>AgentFactory</code>) with one of the
+ * seeds, and steps them for a given number of ticks.
+ * <p>
+ * Usage:
+ * <code>java -cp ... repastcity3.main.BatchRunner [-ticks T] [-replications N] [-seed S] [-threads K]
+ * [-output file] definition1 [definition2 ...]</code>. Every definition is run N times, with seeds S to S+N-1. By
+ * default there is one replication of each definition, with seed 1, which runs for 1000 ticks, and there is one
+ * thread per processor.
+ * </p>
+ * <p>
+ * Like <code>PrecomputeCaches</code>, this reads <code>repastcity.properties</code> from the working directory. A line
+ * is written to the output file (<code>batch_output.csv</code> by default) as soon as each run finishes, with the
+ * definition, seed, number of agents, number of ticks, time taken and the error that stopped the run (if there was
+ * one). A report with the number of runs per hour is printed at the end. The exit status is 0 if every run finished
+ * and 1 otherwise.
+ * </p>
+ *
+ * @author Nick Malleson
+ */
+public class BatchRunner {
+
+	private static Logger LOGGER = Logger.getLogger(BatchRunner.class.getName());
+
+	private static final String USAGE = "Usage: BatchRunner [-ticks T] [-replications N] [-seed S] [-threads K] "
+			+ "[-output file] definition1 [definition2 ...]";
+
+	/* The file that results are written to (shared by all runs) */
+	private static BufferedWriter output;
+
+	public static void main(String[] args) {
+		int ticks = 1000;
+		int replications = 1;
+		int firstSeed = 1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String outputFile = "batch_output.csv";
+		List<String> definitions = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-ticks")) {
+					ticks = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-replications")) {
+					replications = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-seed")) {
+					firstSeed = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-output")) {
+					outputFile = args[++i];
+				} else if (args[i].startsWith("-")) {
+					throw new IllegalArgumentException("Unrecognised argument: " + args[i]);
+				} else {
+					definitions.add(args[i]);
+				}
+			}
+			if (definitions.isEmpty()) {
+				throw new IllegalArgumentException("No agent definitions were given.");
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			System.err.println("Missing value for " + args[args.length - 1] + "\n" + USAGE);
+			System.exit(1);
+		} catch (RuntimeException e) {
+			// (Bad numbers or unrecognised arguments)
+			System.err.println(e.getMessage() + "\n" + USAGE);
+			System.exit(1);
+		}
+
+		RepastCityLogging.init();
+		boolean success;
+		try {
+			success = runAll(definitions, replications, firstSeed, ticks, threads, new File(outputFile));
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Could not run the batch", e);
+			success = false;
+		}
+		System.exit(success ? 0 : 1);
+	}
+
+	private static boolean runAll(List<String> definitions, int replications, int firstSeed, int ticks, int threads,
+			File outputFile) throws Exception {
+		double loadTime = loadEnvironment();
+
+		// Check all of the definitions before starting (so a typo doesn't stop a batch half way through)
+		for (String defn : definitions) {
+			new AgentFactory(defn);
+		}
+
+		output = new BufferedWriter(new FileWriter(outputFile));
+		output.write("run,agent_definition,seed,agents,ticks,seconds,error\n");
+		output.flush();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BatchRunner-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		double time = System.nanoTime();
+		int finished = 0;
+		int numRuns = 0;
+		double runSeconds = 0;
+		try {
+			List<Future<Double>> results = new ArrayList<Future<Double>>();
+			for (String defn : definitions) {
+				for (int r = 0; r < replications; r++) {
+					results.add(pool.submit(new Replication(numRuns++, defn, firstSeed + r, ticks)));
+				}
+			}
+			for (Future<Double> f : results) {
+				try {
+					Double seconds = f.get();
+					if (seconds != null) {
+						finished++;
+						runSeconds += seconds;
+					}
+				} catch (ExecutionException e) {
+					LOGGER.log(Level.SEVERE, "A run failed", e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			RoutePlanner.shutdown();
+			output.close();
+		}
+		double hours = (System.nanoTime() - time) / 3.6e12;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(finished == numRuns ? "Finished all runs.\n" : "Only " + finished + " of " + numRuns
+				+ " runs finished (see the log).\n");
+		sb.append(String.format("\t%-30s %10.1fs%n", "Loading the environment", loadTime / 1000));
+		sb.append(String.format("\t%-30s %10.1fs%n", "Running", hours * 3600));
+		sb.append(String.format("\t%-30s %10.1fs%n", "Mean time per run", finished == 0 ? 0 : runSeconds / finished));
+		sb.append(String.format("\t%-30s %10.1f%n", "Runs per hour", finished / hours));
+		sb.append("Results have been written to ").append(outputFile).append("\n");
+		System.out.print(sb.toString());
+		return finished == numRuns;
+	}
+
+	/**
+	 * Read the model properties and load the environment, including the route caches, so that runs can be started.
+	 *
+	 * @return The time taken (in ms).
+	 */
+	static double loadEnvironment() throws Exception {
+		double time = System.nanoTime();
+		ContextManager.readProperties();
+		DefaultContext<Object> mainContext = new DefaultContext<Object>(GlobalVars.CONTEXT_NAMES.MAIN_CONTEXT);
+		ContextManager.buildEnvironment(mainContext);
+		// Create the route caches before starting, so the first runs don't have to
+		Route.warmUpCaches();
+		if (!Route.awaitCaches()) {
+			throw new Exception("Could not create the route caches.");
+		}
+		double loadTime = 0.000001 * (System.nanoTime() - time);
+		LOGGER.log(Level.FINE, "Loading the environment took " + loadTime + "ms");
+		return loadTime;
+	}
+
+	/**
+	 * Execute a single run of the model in the calling thread. The environment must have been loaded (see
+	 * <code>loadEnvironment()</code>). The agents are stepped one after the other (see <code>ModelRun.step()</code>),
+	 * rather than with a <code>ThreadedAgentScheduler</code>, because runs are executed at the same time as other runs.
+	 *
+	 * @param defn
+	 *            The agent definition (see <code>AgentFactory</code>).
+	 * @param seed
+	 *            The seed for the run.
+	 * @param ticks
+	 *            The number of ticks to run for.
+	 * @return The outcome of the run (the number of ticks is the number that were completed). If the run failed then
+	 *         the error is returned in the result rather than thrown.
+	 */
+	static Result run(String defn, int seed, int ticks) {
+		double time = System.nanoTime();
+		ModelRun run = new ModelRun(seed, true);
+		ModelRun.setCurrent(run);
+		int tick = 0;
+		try {
+			new AgentFactory(defn).createAgents(run.getAgentContext());
+			while (tick < ticks && run.step(tick + 1)) {
+				tick++;
+			}
+		} catch (Exception e) {
+			run.stop(e, BatchRunner.class);
+		} finally {
+			run.dispose();
+			ModelRun.setCurrent(null);
+		}
+		return new Result(run.getAgentContext().size(), tick, 0.000000001 * (System.nanoTime() - time),
+				run.getError() == null ? null : String.valueOf(run.getError()));
+	}
+
+	/** The outcome of a run. */
+	static final class Result {
+		final int agents;
+		final int ticks;
+		final double seconds;
+		/* A description of the error that stopped the run, or null if it finished */
+		final String error;
+
+		Result(int agents, int ticks, double seconds, String error) {
+			this.agents = agents;
+			this.ticks = ticks;
+			this.seconds = seconds;
+			this.error = error;
+		}
+	}
+
+	/** Write a line to the output file (called by the threads as each run finishes). */
+	private static synchronized void writeResult(int id, String defn, int seed, Result r) throws IOException {
+		output.write(id + ",\"" + defn.replace("\"", "\"\"") + "\"," + seed + "," + r.agents + "," + r.ticks + ","
+				+ r.seconds + "," + (r.error == null ? "" : "\"" + r.error.replace("\"", "\"\"") + "\"") + "\n");
+		output.flush();
+	}
+
+	/** A single run of the model, executed by one of the threads in the pool. */
+	private static class Replication implements Callable<Double> {
+
+		private final int id;
+		private final String defn;
+		private final int seed;
+		private final int ticks;
+
+		Replication(int id, String defn, int seed, int ticks) {
+			this.id = id;
+			this.defn = defn;
+			this.seed = seed;
+			this.ticks = ticks;
+		}
+
+		/**
+		 * @return The time taken (in seconds) or null if the run was stopped by an error.
+		 */
+		@Override
+		public Double call() throws Exception {
+			Result r = BatchRunner.run(this.defn, this.seed, this.ticks);
+			writeResult(this.id, this.defn, this.seed, r);
+			LOGGER.log(Level.FINE, "Run " + this.id + " (" + this.defn + ", seed " + this.seed + ") finished "
+					+ r.ticks + " ticks in " + r.seconds + "s");
+			return r.error == null ? r.seconds : null;
+		}
+	}
+}
@@ -0,0 +1,436 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import cern.jet.random.engine.RandomEngine;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import repast.simphony.random.RandomHelper;
+import repastcity3.agent.IAgent;
+import repastcity3.environment.Building;
+import repastcity3.environment.CacheRegistry;
+import repastcity3.environment.CacheStats;
+import repastcity3.environment.Cacheable;
+import repastcity3.environment.Road;
+import repastcity3.exceptions.NoIdentifierException;
+
+/**
+ * Saves the state of the whole simulation (a 'checkpoint') every few iterations so that a long run that crashes can be
+ * resumed rather than started again. A checkpoint contains the current tick, the state of the random number generators
+ * (Repast's and the run's, see <code>RandomStream</code>) and, for every agent, its class, position and whatever state
+ * the agent saves (see <code>IAgent.saveState()</code>, which includes the agent's own random stream).
+ * The environment isn't saved because it is re-created from the GIS data (or a snapshot, see
+ * <code>EnvironmentSnapshot</code>) when the model starts.
+ * <p>
+ * Checkpoints are created in two stages so that the simulation isn't held up while they are written. Between
+ * iterations, <code>checkpoint()</code> asks every agent for its state; agents return objects that only refer to
+ * values that won't change (copies, or immutable objects like <code>Building</code>s). These are then written to
+ * disk by a background thread while the simulation carries on. If the previous checkpoint is still being written
+ * when the next one is due then the new one is skipped. Files are written to a temporary file and then renamed, so a
+ * crash while a checkpoint is being written leaves the previous checkpoint intact.
+ * </p>
+ * <p>
+ * Checkpointing is configured with the (optional) <code>CheckpointFile</code> and <code>CheckpointInterval</code>
+ * properties. To resume a run, set the <code>ResumeFromCheckpoint</code> property to the checkpoint file; the agents
+ * are then created by <code>restore()</code> rather than by the <code>AgentFactory</code>.
+ * </p>
+ *
+ * @author Nick Malleson
+ */
+public class Checkpointer {
+
+	private static Logger LOGGER = Logger.getLogger(Checkpointer.class.getName());
+
+	private static final int MAGIC = 0x5243434B; // 'RCCK'
+	/** Increment this whenever the format of a checkpoint changes. */
+	private static final int FORMAT_VERSION = 2;
+
+	/**
+	 * The state of an agent (or part of one, e.g. a <code>Route</code>) that has been captured for a checkpoint. This
+	 * is written by a background thread so must not change once it has been created.
+	 */
+	public interface State {
+		void write(DataOutput out) throws IOException;
+	}
+
+	/*
+	 * Used to find the buildings and roads that agents refer to when they are restored. These are created the first
+	 * time that agents are restored and then kept until the environment is built again (when all the caches are
+	 * cleared, see CacheRegistry).
+	 */
+	private static Map<String, Building> buildings;
+	private static Map<String, Road> roads;
+
+	static {
+		CacheRegistry.register(new Cacheable() {
+			@Override
+			public void clearCaches() {
+				synchronized (Checkpointer.class) {
+					buildings = null;
+					roads = null;
+				}
+			}
+
+			@Override
+			public List<CacheStats> getCacheStats() {
+				return Collections.emptyList();
+			}
+
+			@Override
+			public long evict(long bytes) {
+				return 0; // The lookups are small and are needed while agents are being restored
+			}
+		});
+	}
+
+	private final File file;
+	private final ModelRun run;
+	private final ExecutorService writer;
+	private Future<?> pending;
+
+	/**
+	 * Create a checkpointer. <code>checkpoint()</code> must be scheduled separately.
+	 *
+	 * @param file
+	 *            The file to write checkpoints to (each checkpoint replaces the previous one).
+	 * @param run
+	 *            The run to checkpoint.
+	 */
+	public Checkpointer(File file, ModelRun run) {
+		this.file = file;
+		this.run = run;
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Checkpointer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Capture the state of the simulation and start writing it to disk in the background. This is scheduled to run
+	 * every <code>CheckpointInterval</code> iterations, after the agents have been stepped.
+	 */
+	public void checkpoint() {
+		if (this.pending != null && !this.pending.isDone()) {
+			LOGGER.log(Level.WARNING, "The previous checkpoint is still being written, skipping this one.");
+			return;
+		}
+		double time = System.nanoTime();
+		final double tick = this.run.getTick();
+		final int seed = RandomHelper.getSeed();
+		final RandomEngine generator = (RandomEngine) RandomHelper.getGenerator().clone();
+		final long runRandom = this.run.getRandom().getState();
+		final List<IAgent> agents = new ArrayList<IAgent>();
+		final List<Coordinate> positions = new ArrayList<Coordinate>();
+		final List<State> states = new ArrayList<State>();
+		for (IAgent a : this.run.getAgentContext().getObjects(IAgent.class)) {
+			agents.add(a);
+			positions.add(new Coordinate(this.run.getAgentGeometry(a).getCoordinate()));
+			states.add(a.saveState());
+		}
+		this.pending = this.writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(tick, seed, generator, runRandom, agents, positions, states);
+				} catch (IOException e) {
+					LOGGER.log(Level.SEVERE, "Could not write a checkpoint to " + file, e);
+				}
+			}
+		});
+		LOGGER.log(Level.FINE, "Captured a checkpoint of " + agents.size() + " agents at tick " + tick + " in "
+				+ (0.000001 * (System.nanoTime() - time)) + "ms");
+	}
+
+	private void write(double tick, int seed, RandomEngine generator, long runRandom, List<IAgent> agents,
+			List<Coordinate> positions, List<State> states) throws IOException {
+		double time = System.nanoTime();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeDouble(tick);
+		out.writeInt(seed);
+		ByteArrayOutputStream rng = new ByteArrayOutputStream();
+		ObjectOutputStream rngOut = new ObjectOutputStream(rng);
+		rngOut.writeObject(generator);
+		rngOut.close();
+		out.writeInt(rng.size());
+		rng.writeTo(out);
+		out.writeLong(runRandom);
+
+		out.writeInt(agents.size());
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		for (int i = 0; i < agents.size(); i++) {
+			writeAgent(out, agents.get(i).getClass().getName(), positions.get(i), states.get(i), buffer);
+		}
+		out.flush();
+
+		File tmp = new File(this.file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			bytes.writeTo(fos);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (this.file.exists() && !this.file.delete()) {
+			tmp.delete();
+			throw new IOException("Could not replace the checkpoint " + this.file);
+		}
+		if (!tmp.renameTo(this.file)) {
+			tmp.delete();
+			throw new IOException("Could not rename " + tmp + " to " + this.file);
+		}
+		LOGGER.log(Level.FINE, "Wrote a checkpoint (" + bytes.size() + " bytes) to " + this.file + " in "
+				+ (0.000001 * (System.nanoTime() - time)) + "ms");
+	}
+
+	/* Write an agent's class, position and state */
+	private static void writeAgent(DataOutputStream out, String className, Coordinate position, State state,
+			ByteArrayOutputStream buffer) throws IOException {
+		out.writeUTF(className);
+		out.writeDouble(position.x);
+		out.writeDouble(position.y);
+		// Agent state is written with its length so that a broken agent can't corrupt the rest of the file
+		buffer.reset();
+		if (state != null) {
+			DataOutputStream stateOut = new DataOutputStream(buffer);
+			state.write(stateOut);
+			stateOut.flush();
+		}
+		out.writeInt(buffer.size());
+		buffer.writeTo(out);
+	}
+
+	/**
+	 * Save a single agent (its class, position and state) so that it can be re-created, e.g. by another process, with
+	 * <code>restoreAgent()</code>. Unlike <code>checkpoint()</code>, this is done straight away.
+	 */
+	static byte[] saveAgent(IAgent agent, ModelRun run) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeAgent(out, agent.getClass().getName(), run.getAgentGeometry(agent).getCoordinate(), agent.saveState(),
+				new ByteArrayOutputStream());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Re-create an agent that was saved by <code>saveAgent()</code> (or as part of a checkpoint), add it to the given
+	 * run, move it to where it was and tell its home that it lives there. The environment must have been created
+	 * first.
+	 */
+	static IAgent restoreAgent(DataInput in, ModelRun run) throws IOException {
+		createLookups();
+		String className = in.readUTF();
+		Coordinate position = new Coordinate(in.readDouble(), in.readDouble());
+		byte[] state = new byte[in.readInt()];
+		in.readFully(state);
+		IAgent agent;
+		ModelRun previous = ModelRun.getCurrent();
+		ModelRun.setCurrent(run); // (so that the agent belongs to the run)
+		try {
+			agent = (IAgent) Class.forName(className).newInstance();
+		} catch (Exception e) {
+			throw new IOException("Could not create an agent of type " + className + ": " + e);
+		} finally {
+			ModelRun.setCurrent(previous);
+		}
+		if (state.length > 0) {
+			agent.restoreState(new DataInputStream(new ByteArrayInputStream(state)));
+		}
+		run.addAgent(agent);
+		run.moveAgent(agent, geomFac.createPoint(position));
+		if (agent.getHome() != null) {
+			agent.getHome().addAgent(agent);
+		}
+		return agent;
+	}
+
+	private static final GeometryFactory geomFac = new GeometryFactory();
+
+	/* Create the maps used to find the buildings and roads that agents refer to (if they haven't been already) */
+	private static synchronized void createLookups() {
+		if (buildings != null) {
+			return;
+		}
+		Map<String, Building> b = new HashMap<String, Building>();
+		for (Building building : ContextManager.buildingContext.getObjects(Building.class)) {
+			try {
+				b.put(building.getIdentifier(), building);
+			} catch (NoIdentifierException e) {
+				// Agents can't refer to buildings without identifiers
+			}
+		}
+		Map<String, Road> r = new HashMap<String, Road>();
+		try {
+			r.put(Road.nullRoad.getIdentifier(), Road.nullRoad); // (used in routes along transport networks)
+		} catch (NoIdentifierException e) {
+		}
+		for (Road road : ContextManager.roadContext.getObjects(Road.class)) {
+			try {
+				r.put(road.getIdentifier(), road);
+			} catch (NoIdentifierException e) {
+			}
+		}
+		roads = r;
+		buildings = b;
+	}
+
+	/**
+	 * Wait for a checkpoint that is being written in the background to finish. Should be called before the model
+	 * exits so that the last checkpoint isn't lost.
+	 */
+	public void finish() {
+		this.writer.shutdown();
+		try {
+			if (this.pending != null) {
+				this.pending.get();
+			}
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Problem waiting for the last checkpoint to be written", e);
+		}
+	}
+
+	/**
+	 * Create the agents from a checkpoint, rather than with an <code>AgentFactory</code>, and restore the state of the
+	 * random number generator. The environment must have been created first.
+	 *
+	 * @param file
+	 *            The checkpoint file.
+	 * @param run
+	 *            The run to add the agents to.
+	 * @return The tick at which the checkpoint was created.
+	 * @throws IOException
+	 *             If the checkpoint can't be read or refers to buildings or roads that don't exist.
+	 */
+	public static double restore(File file, ModelRun run) throws IOException {
+		double time = System.nanoTime();
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		in = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+			throw new IOException(file + " is not a checkpoint that was created by this version of the model");
+		}
+		double tick = in.readDouble();
+		int seed = in.readInt();
+		byte[] rng = new byte[in.readInt()];
+		in.readFully(rng);
+		RandomHelper.setSeed(seed);
+		try {
+			ObjectInputStream rngIn = new ObjectInputStream(new ByteArrayInputStream(rng));
+			RandomHelper.setGenerator((RandomEngine) rngIn.readObject());
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Could not restore the random number generator from " + file + ": " + e);
+		}
+		run.getRandom().setState(in.readLong());
+
+		int numAgents = in.readInt();
+		for (int i = 0; i < numAgents; i++) {
+			restoreAgent(in, run);
+		}
+		run.setTickOffset(tick);
+		LOGGER.log(Level.INFO, "Restored " + numAgents + " agents from the checkpoint " + file + " (created at tick "
+				+ tick + ") in " + (0.000001 * (System.nanoTime() - time)) + "ms");
+		return tick;
+	}
+
+	/* Functions that agents can use to save and restore references to objects in the environment */
+
+	public static void writeBuilding(DataOutput out, Building b) throws IOException {
+		try {
+			out.writeUTF(b == null ? "" : b.getIdentifier());
+		} catch (NoIdentifierException e) {
+			throw new IOException("Cannot save a reference to a building that has no identifier");
+		}
+	}
+
+	/**
+	 * Read a building written by <code>writeBuilding()</code>. Can only be called while agents are being restored.
+	 */
+	public static Building readBuilding(DataInput in) throws IOException {
+		String id = in.readUTF();
+		if (id.length() == 0) {
+			return null;
+		}
+		Building b = buildings.get(id);
+		if (b == null) {
+			throw new IOException("The checkpoint refers to a building (" + id + ") that doesn't exist");
+		}
+		return b;
+	}
+
+	public static void writeRoad(DataOutput out, Road r) throws IOException {
+		try {
+			out.writeUTF(r == null ? "" : r.getIdentifier());
+		} catch (NoIdentifierException e) {
+			throw new IOException("Cannot save a reference to a road that has no identifier");
+		}
+	}
+
+	/**
+	 * Read a road written by <code>writeRoad()</code>. Can only be called while agents are being restored.
+	 */
+	public static Road readRoad(DataInput in) throws IOException {
+		String id = in.readUTF();
+		if (id.length() == 0) {
+			return null;
+		}
+		Road r = roads.get(id);
+		if (r == null) {
+			throw new IOException("The checkpoint refers to a road (" + id + ") that doesn't exist");
+		}
+		return r;
+	}
+}
@@ -23,11 +23,24 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,6 +56,7 @@ import repast.simphony.engine.environment.RunEnvironment;
 import repast.simphony.engine.schedule.ISchedule;
 import repast.simphony.engine.schedule.ScheduleParameters;
 import repast.simphony.parameter.Parameters;
+import repast.simphony.random.RandomHelper;
 import repast.simphony.space.gis.Geography;
 import repast.simphony.space.gis.GeographyParameters;
 import repast.simphony.space.gis.SimpleAdder;
@@ -51,14 +65,23 @@ import repast.simphony.space.graph.RepastEdge;
 import repastcity3.agent.AgentFactory;
 import repastcity3.agent.IAgent;
 import repastcity3.agent.ThreadedAgentScheduler;
+import repastcity3.environment.Area;
 import repastcity3.environment.Building;
+import repastcity3.environment.BuildingSampler;
+import repastcity3.environment.CacheRegistry;
+import repastcity3.environment.EnvironmentSnapshot;
 import repastcity3.environment.GISFunctions;
+import repastcity3.environment.GravityModel;
 import repastcity3.environment.Junction;
 import repastcity3.environment.NetworkEdge;
 import repastcity3.environment.NetworkEdgeCreator;
 import repastcity3.environment.Road;
+import repastcity3.environment.Route;
+import repastcity3.environment.RoutePlanner;
 import repastcity3.environment.SpatialIndexManager;
-import repastcity3.environment.contexts.AgentContext;
+import repastcity3.environment.Timetable;
+import repastcity3.environment.ZoneSkim;
+import repastcity3.environment.contexts.AreaContext;
 import repastcity3.environment.contexts.BuildingContext;
 import repastcity3.environment.contexts.JunctionContext;
 import repastcity3.environment.contexts.RoadContext;
@@ -75,6 +98,10 @@ public class ContextManager implements ContextBuilder<Object> {
 	 */
 	private static Logger LOGGER = Logger.getLogger(ContextManager.class.getName());
 
+	/* The time taken by each phase of buildEnvironment() (see getEnvironmentTimings()) */
+	private static final Map<String, Double> environmentTimings = Collections
+			.synchronizedMap(new LinkedHashMap<String, Double>());
+
 	// Optionally force agent threading off (good for debugging)
 	private static final boolean TURN_OFF_THREADING = false;;
 
@@ -99,8 +126,25 @@ public class ContextManager implements ContextBuilder<Object> {
 	public static Geography<Junction> junctionGeography;
 	public static Network<Junction> roadNetwork;
 
-	private static Context<IAgent> agentContext;
-	private static Geography<IAgent> agentGeography;
+	// The areas (zones) context and projection (optional, will be null if there is no area shapefile)
+	public static Context<Area> areaContext;
+	public static Geography<Area> areaProjection;
+
+	// The public transport timetable (optional, will be null if there isn't one)
+	public static Timetable timetable;
+
+	// All of the buildings, sorted by identifier (created when they are first needed, see getBuildings())
+	private static volatile List<Building> buildings;
+	// Chooses the buildings that agents travel to (optional, if null they are chosen uniformly)
+	private static volatile BuildingSampler destinationSampler;
+	// All of the areas, sorted by identifier (see getAreas()), and the travel times between them (see getZoneSkim())
+	private static volatile List<Area> areas = Collections.emptyList();
+	private static ZoneSkim zoneSkim;
+	// Chooses destinations between the areas (see chooseDestination())
+	private static GravityModel gravityModel;
+
+	// The agents belong to the run that is controlled by Repast, the environment above is shared by all runs
+	private static ModelRun repastRun;
 
 	@Override
 	public Context<Object> build(Context<Object> con) {
@@ -120,57 +164,20 @@ public class ContextManager implements ContextBuilder<Object> {
 			throw new RuntimeException("Could not read model properties,  reason: " + ex.toString(), ex);
 		}
 
-		// Configure the environment
-		String gisDataDir = ContextManager.getProperty(GlobalVars.GISDataDirectory);
-		LOGGER.log(Level.FINE, "Configuring the environment with data from " + gisDataDir);
+		// Clear any caches left over from a previous run and set the memory budget for the new ones
+		CacheRegistry.clearAll();
+		if (ContextManager.hasProperty(GlobalVars.CacheMemoryBudget)) {
+			CacheRegistry.setBudget(Long.parseLong(getProperty(GlobalVars.CacheMemoryBudget).trim()) * 1024 * 1024);
+		} else {
+			CacheRegistry.setBudget(-1);
+		}
 
 		try {
 
-			// Create the buildings - context and geography projection
-			buildingContext = new BuildingContext();
-			buildingProjection = GeographyFactoryFinder.createGeographyFactory(null).createGeography(
-					GlobalVars.CONTEXT_NAMES.BUILDING_GEOGRAPHY, buildingContext,
-					new GeographyParameters<Building>(new SimpleAdder<Building>()));
-			String buildingFile = gisDataDir + getProperty(GlobalVars.BuildingShapefile);
-			GISFunctions.readShapefile(Building.class, buildingFile, buildingProjection, buildingContext);
-			mainContext.addSubContext(buildingContext);
-			SpatialIndexManager.createIndex(buildingProjection, Building.class);
-			LOGGER.log(Level.FINER, "Read " + buildingContext.getObjects(Building.class).size() + " buildings from "
-					+ buildingFile);
-
-			// TODO Cast the buildings to their correct subclass
-
-			// Create the Roads - context and geography
-			roadContext = new RoadContext();
-			roadProjection = GeographyFactoryFinder.createGeographyFactory(null).createGeography(
-					GlobalVars.CONTEXT_NAMES.ROAD_GEOGRAPHY, roadContext,
-					new GeographyParameters<Road>(new SimpleAdder<Road>()));
-			String roadFile = gisDataDir + getProperty(GlobalVars.RoadShapefile);
-			GISFunctions.readShapefile(Road.class, roadFile, roadProjection, roadContext);
-			mainContext.addSubContext(roadContext);
-			SpatialIndexManager.createIndex(roadProjection, Road.class);
-			LOGGER.log(Level.FINER, "Read " + roadContext.getObjects(Road.class).size() + " roads from " + roadFile);
-
-			// Create road network
-
-			// 1.junctionContext and junctionGeography
-			junctionContext = new JunctionContext();
-			mainContext.addSubContext(junctionContext);
-			junctionGeography = GeographyFactoryFinder.createGeographyFactory(null).createGeography(
-					GlobalVars.CONTEXT_NAMES.JUNCTION_GEOGRAPHY, junctionContext,
-					new GeographyParameters<Junction>(new SimpleAdder<Junction>()));
-
-			// 2. roadNetwork
-			NetworkBuilder<Junction> builder = new NetworkBuilder<Junction>(GlobalVars.CONTEXT_NAMES.ROAD_NETWORK,
-					junctionContext, false);
-			builder.setEdgeCreator(new NetworkEdgeCreator<Junction>());
-			roadNetwork = builder.buildNetwork();
-			GISFunctions.buildGISRoadNetwork(roadProjection, junctionContext, junctionGeography, roadNetwork);
-
-			// Add the junctions to a spatial index (couldn't do this until the road network had been created).
-			SpatialIndexManager.createIndex(junctionGeography, Junction.class);
+			buildEnvironment(mainContext);
 
-			testEnvironment();
+			// Start creating the caches used for routing now, rather than when the first agent needs them
+			Route.warmUpCaches();
 
 		} catch (MalformedURLException e) {
 			LOGGER.log(Level.SEVERE, "", e);
@@ -185,24 +192,33 @@ public class ContextManager implements ContextBuilder<Object> {
 		} catch (FileNotFoundException e) {
 			LOGGER.log(Level.SEVERE, "Could not find an input shapefile to read objects from.", e);
 			return null;
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Could not read the input data: " + e.getMessage(), e);
+			return null;
 		}
 
 		// Now create the agents (note that their step methods are scheduled later
 		try {
 
-			agentContext = new AgentContext();
-			mainContext.addSubContext(agentContext);
-			agentGeography = GeographyFactoryFinder.createGeographyFactory(null).createGeography(
-					GlobalVars.CONTEXT_NAMES.AGENT_GEOGRAPHY, agentContext,
-					new GeographyParameters<IAgent>(new SimpleAdder<IAgent>()));
+			repastRun = new ModelRun(RandomHelper.getSeed(), false);
+			ModelRun.setRepastRun(repastRun);
+			mainContext.addSubContext(repastRun.getAgentContext());
 
-			String agentDefn = ContextManager.getParameter(MODEL_PARAMETERS.AGENT_DEFINITION.toString());
+			if (ContextManager.hasProperty(GlobalVars.ResumeFromCheckpoint)) {
+				// Resuming a previous run, the agents are restored from a checkpoint
+				Checkpointer.restore(new File(getProperty(GlobalVars.ResumeFromCheckpoint)), repastRun);
+			} else {
+				String agentDefn = ContextManager.getParameter(MODEL_PARAMETERS.AGENT_DEFINITION.toString());
 
-			LOGGER.log(Level.INFO, "Creating agents with the agent definition: '" + agentDefn + "'");
+				LOGGER.log(Level.INFO, "Creating agents with the agent definition: '" + agentDefn + "'");
 
-			AgentFactory agentFactory = new AgentFactory(agentDefn);
-			agentFactory.createAgents(agentContext);
+				AgentFactory agentFactory = new AgentFactory(agentDefn);
+				agentFactory.createAgents(repastRun.getAgentContext());
+			}
 
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Could not resume the model from a checkpoint.", e);
+			return null;
 		} catch (ParameterNotFoundException e) {
 			LOGGER.log(Level.SEVERE, "Could not find the parameter which defines how agents should be "
 					+ "created. The parameter is called " + MODEL_PARAMETERS.AGENT_DEFINITION
@@ -220,13 +236,359 @@ public class ContextManager implements ContextBuilder<Object> {
 	}
 
 
+	/**
+	 * Read the GIS data and create the environment: the buildings, roads, junctions and road network (along with their
+	 * spatial indices) and the public transport timetable. The contexts are added to the given (main) context. This
+	 * doesn't need a running simulation so can also be used by tools (see <code>PrecomputeCaches</code>). The model
+	 * properties must have been read first.
+	 * <p>
+	 * The buildings, roads and timetable don't depend on each other so they are read at the same time in different
+	 * threads. The road network is built as soon as the roads are ready (it doesn't need the buildings), then the
+	 * junctions are indexed and, once everything has finished, the environment is tested. The time taken by each
+	 * phase is available from <code>getEnvironmentTimings()</code>.
+	 * </p>
+	 * <p>
+	 * If the (optional) <code>EnvironmentSnapshot</code> property is set then the buildings, roads, junctions and road
+	 * network are restored from that file instead, as long as the shapefiles haven't changed since it was written. If
+	 * they have (or the file doesn't exist or can't be read) then the environment is created from the shapefiles and a
+	 * new snapshot is written.
+	 * </p>
+	 *
+	 * @param context
+	 *            The context to add the environment's contexts to.
+	 */
+	static void buildEnvironment(Context<Object> context) throws MalformedURLException, EnvironmentError,
+			NoIdentifierException, FileNotFoundException, IOException {
+		double time = System.nanoTime();
+		mainContext = context;
+		environmentTimings.clear();
+		// Anything cached about the old environment (e.g. the distance decay samplers) would refer to the old objects
+		CacheRegistry.clearAll();
+		buildings = null;
+		destinationSampler = null;
+		areas = Collections.emptyList();
+		synchronized (ContextManager.class) {
+			zoneSkim = null;
+			gravityModel = null;
+		}
+
+		// Configure the environment
+		final String gisDataDir = ContextManager.getProperty(GlobalVars.GISDataDirectory);
+		LOGGER.log(Level.FINE, "Configuring the environment with data from " + gisDataDir);
+		final String buildingFile = gisDataDir + getProperty(GlobalVars.BuildingShapefile);
+		final String roadFile = gisDataDir + getProperty(GlobalVars.RoadShapefile);
+		final String areaFile = ContextManager.hasProperty(GlobalVars.AreaShapefile) ? gisDataDir
+				+ getProperty(GlobalVars.AreaShapefile) : null;
+		File[] dataFiles = new File[] { new File(buildingFile), new File(roadFile) };
+		File snapshotFile = null;
+		if (ContextManager.hasProperty(GlobalVars.EnvironmentSnapshot)) {
+			snapshotFile = new File(gisDataDir + getProperty(GlobalVars.EnvironmentSnapshot));
+		}
+
+		// Create the buildings - context and geography projection
+		buildingContext = new BuildingContext();
+		buildingProjection = GeographyFactoryFinder.createGeographyFactory(null).createGeography(
+				GlobalVars.CONTEXT_NAMES.BUILDING_GEOGRAPHY, buildingContext,
+				new GeographyParameters<Building>(new SimpleAdder<Building>()));
+
+		// Create the Roads - context and geography
+		roadContext = new RoadContext();
+		roadProjection = GeographyFactoryFinder.createGeographyFactory(null).createGeography(
+				GlobalVars.CONTEXT_NAMES.ROAD_GEOGRAPHY, roadContext,
+				new GeographyParameters<Road>(new SimpleAdder<Road>()));
+
+		// Create road network
+		// 1.junctionContext and junctionGeography
+		junctionContext = new JunctionContext();
+		junctionGeography = GeographyFactoryFinder.createGeographyFactory(null).createGeography(
+				GlobalVars.CONTEXT_NAMES.JUNCTION_GEOGRAPHY, junctionContext,
+				new GeographyParameters<Junction>(new SimpleAdder<Junction>()));
+
+		// Create the areas (if there are any) - context and geography
+		if (areaFile != null) {
+			areaContext = new AreaContext();
+			areaProjection = GeographyFactoryFinder.createGeographyFactory(null).createGeography(
+					GlobalVars.CONTEXT_NAMES.AREA_GEOGRAPHY, areaContext,
+					new GeographyParameters<Area>(new SimpleAdder<Area>()));
+		} else {
+			areaContext = null;
+			areaProjection = null;
+		}
+
+		// 2. roadNetwork
+		NetworkBuilder<Junction> builder = new NetworkBuilder<Junction>(GlobalVars.CONTEXT_NAMES.ROAD_NETWORK,
+				junctionContext, false);
+		builder.setEdgeCreator(new NetworkEdgeCreator<Junction>());
+		roadNetwork = builder.buildNetwork();
+
+		ExecutorService pool = Executors.newFixedThreadPool(4, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "EnvironmentBuilder-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			// Read the public transport timetable (if there is one)
+			Future<?> timetableTask = pool.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					double time = System.nanoTime();
+					if (ContextManager.hasProperty(GlobalVars.TimetableDirectory)) {
+						File dir = new File(gisDataDir + getProperty(GlobalVars.TimetableDirectory));
+						try {
+							timetable = new Timetable(dir, roadProjection.getCRS());
+						} catch (IOException e) {
+							throw new IOException("Could not read the public transport timetable in "
+									+ dir.getAbsolutePath(), e);
+						}
+					} else {
+						LOGGER.log(Level.FINE, "No " + GlobalVars.TimetableDirectory + " property, agents will not "
+								+ "be able to use public transport timetables.");
+					}
+					phase("Read the public transport timetable", time);
+					return null;
+				}
+			});
+
+			// Read the areas (if there are any, they aren't stored in snapshots)
+			Future<?> areasTask = pool.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					double time = System.nanoTime();
+					if (areaFile != null) {
+						GISFunctions.readShapefile(Area.class, areaFile, areaProjection, areaContext);
+						SpatialIndexManager.createIndex(areaProjection, Area.class);
+						phase("Read areas and create their index", time);
+					}
+					return null;
+				}
+			});
+
+			// See if the environment can be restored from a snapshot
+			boolean restored = false;
+			if (snapshotFile != null) {
+				double phaseTime = System.nanoTime();
+				try {
+					restored = EnvironmentSnapshot.restore(snapshotFile, dataFiles, buildingContext,
+							buildingProjection, roadContext, roadProjection, junctionContext, junctionGeography,
+							roadNetwork);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not restore the environment from " + snapshotFile + ", it will "
+							+ "be created from the shapefiles instead.", e);
+					// Get rid of anything that had been restored before the problem
+					roadNetwork.removeEdges();
+					junctionContext.clear();
+					roadContext.clear();
+					buildingContext.clear();
+				}
+				if (restored) {
+					phase("Restore the environment from a snapshot", phaseTime);
+				}
+			}
+
+			Future<?> buildings, roads;
+			if (restored) {
+				buildings = pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						double time = System.nanoTime();
+						SpatialIndexManager.createIndex(buildingProjection, Building.class);
+						phase("Create the building index", time);
+						return null;
+					}
+				});
+				roads = pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						double time = System.nanoTime();
+						SpatialIndexManager.createIndex(roadProjection, Road.class);
+						phase("Create the road index", time);
+						return null;
+					}
+				});
+			} else {
+				buildings = pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						double time = System.nanoTime();
+						GISFunctions.readShapefile(Building.class, buildingFile, buildingProjection, buildingContext);
+						SpatialIndexManager.createIndex(buildingProjection, Building.class);
+						LOGGER.log(Level.FINER, "Read " + buildingContext.getObjects(Building.class).size()
+								+ " buildings from " + buildingFile);
+						phase("Read buildings and create their index", time);
+						return null;
+					}
+				});
+
+				// TODO Cast the buildings to their correct subclass
+
+				roads = pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						double time = System.nanoTime();
+						GISFunctions.readShapefile(Road.class, roadFile, roadProjection, roadContext);
+						SpatialIndexManager.createIndex(roadProjection, Road.class);
+						LOGGER.log(Level.FINER, "Read " + roadContext.getObjects(Road.class).size()
+								+ " roads from " + roadFile);
+						phase("Read roads and create their index", time);
+						return null;
+					}
+				});
+
+				// The road network only needs the roads
+				await(roads);
+				double phaseTime = System.nanoTime();
+				GISFunctions.buildGISRoadNetwork(roadProjection, junctionContext, junctionGeography, roadNetwork);
+				phase("Build the road network", phaseTime);
+			}
+
+			// Add the junctions to a spatial index (couldn't do this until the road network had been created).
+			double phaseTime = System.nanoTime();
+			SpatialIndexManager.createIndex(junctionGeography, Junction.class);
+			phase("Create the junction index", phaseTime);
+
+			await(buildings);
+			await(roads);
+			await(timetableTask);
+			await(areasTask);
+
+			// Now that the buildings and areas have both been read, work out which area each building is in
+			if (areaFile != null) {
+				phaseTime = System.nanoTime();
+				List<Area> sortedAreas = new ArrayList<Area>();
+				for (Area a : areaContext.getObjects(Area.class)) {
+					a.getIdentifier(); // (Throws a NoIdentifierException if there isn't one)
+					sortedAreas.add(a);
+				}
+				Collections.sort(sortedAreas, new Comparator<Area>() {
+					@Override
+					public int compare(Area a1, Area a2) {
+						try {
+							return a1.getIdentifier().compareTo(a2.getIdentifier());
+						} catch (NoIdentifierException e) {
+							// (Areas have just been checked for identifiers so this won't happen)
+							return 0;
+						}
+					}
+				});
+				for (int i = 0; i < sortedAreas.size(); i++) {
+					sortedAreas.get(i).setIndex(i);
+				}
+				GISFunctions.assignBuildingsToAreas(getBuildings(), sortedAreas, areaProjection);
+				areas = Collections.unmodifiableList(sortedAreas);
+				phase("Assign buildings to areas", phaseTime);
+			}
+
+			// Save the environment so that the next run can restore it (not being able to is not fatal)
+			if (snapshotFile != null && !restored) {
+				phaseTime = System.nanoTime();
+				try {
+					EnvironmentSnapshot.write(snapshotFile, dataFiles, buildingProjection, roadProjection,
+							junctionGeography);
+					phase("Write an environment snapshot", phaseTime);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not write a snapshot of the environment to " + snapshotFile, e);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// Contexts aren't thread safe so they are only added to the main context once everything has been read
+		mainContext.addSubContext(buildingContext);
+		mainContext.addSubContext(roadContext);
+		mainContext.addSubContext(junctionContext);
+		if (areaContext != null) {
+			mainContext.addSubContext(areaContext);
+		}
+
+		double phaseTime = System.nanoTime();
+		testEnvironment();
+		phase("Test the environment", phaseTime);
+		LOGGER.log(Level.FINE, "Built the environment in " + (0.000001 * (System.nanoTime() - time)) + "ms: "
+				+ environmentTimings);
+	}
+
+	/**
+	 * Wait for one of the tasks started by <code>buildEnvironment()</code> to finish, re-throwing any exception that
+	 * it threw.
+	 */
+	private static void await(Future<?> task) throws MalformedURLException, EnvironmentError, NoIdentifierException,
+			FileNotFoundException, IOException {
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EnvironmentError("Interrupted while building the environment");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) { // (includes MalformedURL and FileNotFound)
+				throw (IOException) cause;
+			} else if (cause instanceof EnvironmentError) {
+				throw (EnvironmentError) cause;
+			} else if (cause instanceof NoIdentifierException) {
+				throw (NoIdentifierException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new EnvironmentError("Could not build the environment: " + cause);
+		}
+	}
+
+	/** Record the time taken by one of the phases in <code>buildEnvironment()</code>. */
+	private static void phase(String name, double startTime) {
+		double ms = 0.000001 * (System.nanoTime() - startTime);
+		environmentTimings.put(name, ms);
+		LOGGER.log(Level.FINER, name + " took " + ms + "ms");
+	}
+
+	/**
+	 * Get the time taken (in milliseconds) by each phase of the last call to <code>buildEnvironment()</code>, in the
+	 * order that the phases finished. Some phases run at the same time so the times can add up to more than the total.
+	 */
+	static Map<String, Double> getEnvironmentTimings() {
+		synchronized (environmentTimings) {
+			return new LinkedHashMap<String, Double>(environmentTimings);
+		}
+	}
+
 	private void createSchedule() {
 		ISchedule schedule = RunEnvironment.getInstance().getCurrentSchedule();
 
+		// Make sure that the route caches are ready before any agents are stepped
+		schedule.schedule(ScheduleParameters.createOneTime(1, ScheduleParameters.FIRST_PRIORITY), this,
+				"waitForCaches");
+
 		// Schedule something that outputs ticks every 1000 iterations.
 		schedule.schedule(ScheduleParameters.createRepeating(1, 1000, ScheduleParameters.LAST_PRIORITY), this,
 				"printTicks");
 
+		// Periodically save the state of the simulation (optional)
+		if (ContextManager.hasProperty(GlobalVars.CheckpointFile)
+				&& ContextManager.hasProperty(GlobalVars.CheckpointInterval)) {
+			int interval = Integer.parseInt(getProperty(GlobalVars.CheckpointInterval).trim());
+			Checkpointer checkpointer = new Checkpointer(new File(getProperty(GlobalVars.CheckpointFile)), repastRun);
+			schedule.schedule(ScheduleParameters.createRepeating(interval, interval, ScheduleParameters.LAST_PRIORITY),
+					checkpointer, "checkpoint");
+			schedule.schedule(ScheduleParameters.createAtEnd(ScheduleParameters.LAST_PRIORITY), checkpointer,
+					"finish");
+			LOGGER.log(Level.FINE, "The model will be checkpointed to " + getProperty(GlobalVars.CheckpointFile)
+					+ " every " + interval + " iterations.");
+		}
+
+		// Keep the caches within their memory budget (also every 1000 iterations)
+		schedule.schedule(ScheduleParameters.createRepeating(1000, 1000, ScheduleParameters.LAST_PRIORITY), this,
+				"checkCaches");
+
+		// Stop planning routes once the run has finished (otherwise routes for this run would still be planned)
+		schedule.schedule(ScheduleParameters.createAtEnd(ScheduleParameters.LAST_PRIORITY), this, "stopPlanning");
+
 		/*
 		 * Schedule the agents. This is slightly complicated because if all the agents can be stepped at the same time
 		 * (i.e. there are no inter- agent communications that make this difficult) then the scheduling is controlled by
@@ -234,7 +596,7 @@ public class ContextManager implements ContextBuilder<Object> {
 		 * machines.
 		 */
 		boolean isThreadable = true;
-		for (IAgent a : agentContext.getObjects(IAgent.class)) {
+		for (IAgent a : repastRun.getAgentContext().getObjects(IAgent.class)) {
 			if (!a.isThreadable()) {
 				isThreadable = false;
 				break;
@@ -250,20 +612,52 @@ public class ContextManager implements ContextBuilder<Object> {
 			 * ThreadedAgentScheduler is called which manually steps each agent.
 			 */
 			LOGGER.log(Level.FINE, "The multi-threaded scheduler will be used.");
-			ThreadedAgentScheduler s = new ThreadedAgentScheduler();
+			ThreadedAgentScheduler s = new ThreadedAgentScheduler(repastRun);
 			ScheduleParameters agentStepParams = ScheduleParameters.createRepeating(1, 1, 0);
 			schedule.schedule(agentStepParams, s, "agentStep");
 		} else { // Agents will execute in serial, use the repast scheduler.
 			LOGGER.log(Level.FINE, "The single-threaded scheduler will be used.");
 			ScheduleParameters agentStepParams = ScheduleParameters.createRepeating(1, 1, 0);
 			// Schedule the agents' step methods.
-			for (IAgent a : agentContext.getObjects(IAgent.class)) {
+			for (IAgent a : repastRun.getAgentContext().getObjects(IAgent.class)) {
 				schedule.schedule(agentStepParams, a, "step");
 			}
 		}
 
 	}
 
+	/**
+	 * Wait for the route caches that were started when the model was built to finish (see
+	 * <code>Route.warmUpCaches()</code>). This is scheduled just before the agents are stepped for the first time so
+	 * that the first iteration runs at the same speed as the others.
+	 */
+	public void waitForCaches() {
+		if (!Route.cachesReady()) {
+			LOGGER.log(Level.INFO, "Waiting for route caches to be created ...");
+			double time = System.nanoTime();
+			Route.awaitCaches();
+			LOGGER.log(Level.INFO, "... route caches ready (waited " + (0.000001 * (System.nanoTime() - time))
+					+ "ms)");
+		}
+	}
+
+	/**
+	 * Make sure that the caches are within their memory budget and log how they are being used (see
+	 * <code>CacheRegistry</code>).
+	 */
+	public void checkCaches() {
+		CacheRegistry.enforceBudget();
+		CacheRegistry.logStats(Level.FINE);
+	}
+
+	/**
+	 * Stop the threads that plan routes in the background (see <code>RoutePlanner</code>). They are started again if
+	 * another run plans a route.
+	 */
+	public void stopPlanning() {
+		RoutePlanner.shutdown();
+	}
+
 	private static long speedTimer = -1; // For recording time per N iterations 
 	public void printTicks() {
 		LOGGER.info("Iterations: " + RunEnvironment.getInstance().getCurrentSchedule().getTickCount()+
@@ -320,6 +714,15 @@ public class ContextManager implements ContextBuilder<Object> {
 		}
 	}
 
+	/**
+	 * Check whether a property has been given a value, useful for optional properties (getProperty() will throw an
+	 * exception if the property doesn't exist).
+	 */
+	public static boolean hasProperty(String property) {
+		String val = ContextManager.properties.getProperty(property);
+		return val != null && !val.equals("");
+	}
+
 	/**
 	 * Read the properties file and add properties. Will check if any properties have been included on the command line
 	 * as well as in the properties file, in these cases the entries in the properties file are ignored in preference
@@ -328,7 +731,7 @@ public class ContextManager implements ContextBuilder<Object> {
 	 * @throws FileNotFoundException
 	 * @throws IOException
 	 */
-	private void readProperties() throws FileNotFoundException, IOException {
+	static void readProperties() throws FileNotFoundException, IOException {
 
 		File propFile = new File("./repastcity.properties");
 		if (!propFile.exists()) {
@@ -366,7 +769,7 @@ public class ContextManager implements ContextBuilder<Object> {
 	 * @throws NoIdentifierException
 	 */
 	@SuppressWarnings("unchecked")
-	private void testEnvironment() throws EnvironmentError, NoIdentifierException {
+	private static void testEnvironment() throws EnvironmentError, NoIdentifierException {
 
 		LOGGER.log(Level.FINE, "Testing the environment");
 		// Get copies of the contexts/projections from main context
@@ -466,7 +869,7 @@ public class ContextManager implements ContextBuilder<Object> {
 	 * @param contexts
 	 * @throws EnvironmentError
 	 */
-	public void checkSize(Context<?>... contexts) throws EnvironmentError {
+	public static void checkSize(Context<?>... contexts) throws EnvironmentError {
 		for (Context<?> c : contexts) {
 			int numObjs = sizeOfIterable(c.getObjects(Object.class));
 			if (numObjs == 0) {
@@ -485,7 +888,8 @@ public class ContextManager implements ContextBuilder<Object> {
 	/**
 	 * Move an agent by a vector. This method is required -- rather than giving agents direct access to the
 	 * agentGeography -- because when multiple threads are used they can interfere with each other and agents end up
-	 * moving incorrectly.
+	 * moving incorrectly. The agent is moved in the run that it belongs to (see <code>ModelRun</code>), as are the
+	 * agents passed to the functions below.
 	 * 
 	 * @param agent
 	 *            The agent to move.
@@ -495,8 +899,8 @@ public class ContextManager implements ContextBuilder<Object> {
 	 *            The angle at which to travel.
 	 * @see Geography
 	 */
-	public static synchronized void moveAgentByVector(IAgent agent, double distToTravel, double angle) {
-		ContextManager.agentGeography.moveByVector(agent, distToTravel, angle);
+	public static void moveAgentByVector(IAgent agent, double distToTravel, double angle) {
+		agent.getRun().moveAgentByVector(agent, distToTravel, angle);
 	}
 
 	/**
@@ -508,8 +912,8 @@ public class ContextManager implements ContextBuilder<Object> {
 	 * @param point
 	 *            The point to move the agent to
 	 */
-	public static synchronized void moveAgent(IAgent agent, Point point) {
-		ContextManager.agentGeography.move(agent, point);
+	public static void moveAgent(IAgent agent, Point point) {
+		agent.getRun().moveAgent(agent, point);
 	}
 
 	/**
@@ -520,21 +924,23 @@ public class ContextManager implements ContextBuilder<Object> {
 	 * @param agent
 	 *            The agent to add.
 	 */
-	public static synchronized void addAgentToContext(IAgent agent) {
-		ContextManager.agentContext.add(agent);
+	public static void addAgentToContext(IAgent agent) {
+		agent.getRun().addAgent(agent);
 	}
 
 	/**
-	 * Get all the agents in the agent context. This method is required -- rather than giving agents direct access to
-	 * the agentGeography -- because when multiple threads are used they can interfere with each other and agents end up
-	 * moving incorrectly.
+	 * Get all the agents in the agent context of the current run (see <code>ModelRun.getCurrent()</code>). This method
+	 * is required -- rather than giving agents direct access to the agentGeography -- because when multiple threads are
+	 * used they can interfere with each other and agents end up moving incorrectly.
 	 * 
 	 * @return An iterable over all agents, chosen in a random order. See the <code>getRandomObjects</code> function in
 	 *         <code>DefaultContext</code>
+	 * @throws IllegalStateException
+	 *             If there is no current run.
 	 * @see DefaultContext
 	 */
-	public static synchronized Iterable<IAgent> getAllAgents() {
-		return ContextManager.agentContext.getRandomObjects(IAgent.class, ContextManager.agentContext.size());
+	public static Iterable<IAgent> getAllAgents() {
+		return currentRun().getAllAgents();
 	}
 
 	/**
@@ -542,34 +948,197 @@ public class ContextManager implements ContextBuilder<Object> {
 	 * agentGeography -- because when multiple threads are used they can interfere with each other and agents end up
 	 * moving incorrectly.
 	 */
-	public static synchronized Geometry getAgentGeometry(IAgent agent) {
-		return ContextManager.agentGeography.getGeometry(agent);
+	public static Geometry getAgentGeometry(IAgent agent) {
+		return agent.getRun().getAgentGeometry(agent);
 	}
 
 	/**
-	 * Get a pointer to the agent context.
+	 * Get a pointer to the agent context of the current run (see <code>ModelRun.getCurrent()</code>).
 	 * 
 	 * <p>
 	 * Warning: accessing the context directly is not thread safe so this should be used with care. The functions
 	 * <code>getAllAgents()</code> and <code>getAgentGeometry()</code> can be used to query the agent context or
 	 * projection.
 	 * </p>
+	 * 
+	 * @throws IllegalStateException
+	 *             If there is no current run.
 	 */
 	public static Context<IAgent> getAgentContext() {
-		return ContextManager.agentContext;
+		return currentRun().getAgentContext();
+	}
+
+	/**
+	 * Get all of the buildings, sorted by their identifiers. The order doesn't depend on the order in which the
+	 * buildings were read (e.g. from a shapefile or a snapshot, see <code>EnvironmentSnapshot</code>), so choosing
+	 * buildings from this list with a <code>RandomStream</code> gives the same buildings in every run with the same
+	 * seed.
+	 */
+	public static List<Building> getBuildings() {
+		List<Building> b = buildings;
+		if (b == null) {
+			synchronized (ContextManager.class) {
+				b = buildings;
+				if (b == null) {
+					b = new ArrayList<Building>();
+					for (Building building : buildingContext.getObjects(Building.class)) {
+						b.add(building);
+					}
+					Collections.sort(b, new Comparator<Building>() {
+						@Override
+						public int compare(Building b1, Building b2) {
+							try {
+								return b1.getIdentifier().compareTo(b2.getIdentifier());
+							} catch (NoIdentifierException e) {
+								// (Buildings are checked for identifiers when they're created so this won't happen)
+								return 0;
+							}
+						}
+					});
+					b = Collections.unmodifiableList(b);
+					buildings = b;
+				}
+			}
+		}
+		return b;
 	}
 
 	/**
-	 * Get a pointer to the agent geography.
+	 * Get all of the areas (zones), sorted by their identifiers (the position of each area in the list is its index,
+	 * see <code>Area.getIndex()</code>). The list is empty if there is no <code>AreaShapefile</code> property.
+	 */
+	public static List<Area> getAreas() {
+		return areas;
+	}
+
+	/**
+	 * Get the walking times between every pair of areas (see <code>ZoneSkim</code>), e.g. for a
+	 * <code>GravityModel</code>. The skim is created the first time that it is needed (which can take a while for
+	 * lots of areas) or read from the <code>ZoneSkimCache</code> file if there is an up-to-date one.
+	 *
+	 * @return The skim, or null if there are no areas.
+	 * @throws IOException
+	 *             If the skim could not be created.
+	 */
+	public static synchronized ZoneSkim getZoneSkim() throws IOException, NoIdentifierException {
+		if (zoneSkim == null && !areas.isEmpty()) {
+			int mask = GlobalVars.TRANSPORT_PARAMS.MODE.WALK.bit;
+			String gisDataDir = getProperty(GlobalVars.GISDataDirectory);
+			if (hasProperty(GlobalVars.ZoneSkimCache)) {
+				zoneSkim = ZoneSkim.getOrCreate(new File(gisDataDir + getProperty(GlobalVars.ZoneSkimCache)), areas,
+						mask, new File(gisDataDir + getProperty(GlobalVars.RoadShapefile)), new File(gisDataDir
+								+ getProperty(GlobalVars.AreaShapefile)));
+			} else {
+				zoneSkim = ZoneSkim.create(areas, mask);
+			}
+		}
+		return zoneSkim;
+	}
+
+	/**
+	 * Get the gravity model that chooses destinations between the areas (see <code>chooseDestination()</code>). It
+	 * uses the walking times from <code>getZoneSkim()</code> and the optional <code>GravityBeta</code> property
+	 * (per second, 1/600 by default).
+	 *
+	 * @return The model, or null if there are no areas.
+	 * @throws IOException
+	 *             If the zone skim could not be created.
+	 */
+	public static synchronized GravityModel getGravityModel() throws IOException, NoIdentifierException {
+		if (gravityModel == null && !areas.isEmpty()) {
+			double beta = hasProperty(GlobalVars.GravityBeta) ? Double.parseDouble(getProperty(
+					GlobalVars.GravityBeta).trim()) : 1.0 / 600;
+			gravityModel = new GravityModel(getZoneSkim(), beta);
+		}
+		return gravityModel;
+	}
+
+	/**
+	 * Choose a building for an agent to travel to from the given building. If there are areas (and no destination
+	 * sampler has been set, see <code>setDestinationSampler()</code>) then the building is chosen with a gravity
+	 * model, so closer buildings are more likely (see <code>getGravityModel()</code>). Otherwise, if the optional
+	 * <code>DestinationTravelTime</code> property has been set, it is chosen uniformly from the buildings that the
+	 * agent can reach within that many seconds with their transport (see <code>Route.getBuildingsWithinTime()</code>).
+	 * If none of these apply (or no building can be reached) it is chosen with <code>getRandomBuilding()</code>.
+	 *
+	 * @param agent
+	 *            The agent who is travelling (their random numbers and transport are used).
+	 * @param origin
+	 *            The building that the agent is leaving from.
+	 */
+	public static Building chooseDestination(IAgent agent, Building origin) throws Exception {
+		RandomStream random = agent.getRandom();
+		if (destinationSampler == null && origin != null) {
+			if (origin.getArea() != null) {
+				GravityModel gravity = getGravityModel();
+				Building b = gravity == null ? null : gravity.chooseDestination(origin, random);
+				if (b != null) {
+					return b;
+				}
+			}
+			if (hasProperty(GlobalVars.DestinationTravelTime)) {
+				double seconds = Double.parseDouble(getProperty(GlobalVars.DestinationTravelTime).trim());
+				List<Building> reachable = Route.getBuildingsWithinTime(origin.getCoords(), seconds,
+						GlobalVars.TRANSPORT_PARAMS.getAgentMask(agent));
+				reachable.remove(origin);
+				if (!reachable.isEmpty()) {
+					return random.choose(reachable);
+				}
+			}
+		}
+		return getRandomBuilding(random);
+	}
+
+	/**
+	 * Choose a building at random, e.g. for an agent to travel to. Buildings are chosen uniformly unless a
+	 * destination sampler has been set (see <code>setDestinationSampler()</code>).
+	 *
+	 * @param random
+	 *            The stream of random numbers to use (usually the agent's own, see <code>IAgent.getRandom()</code>).
+	 */
+	public static Building getRandomBuilding(RandomStream random) {
+		BuildingSampler s = destinationSampler;
+		return s == null ? random.choose(getBuildings()) : s.sample(random);
+	}
+
+	/**
+	 * Set the sampler that chooses the buildings that agents travel to, e.g.
+	 * <code>BuildingSampler.byFloorArea()</code> so that bigger buildings are visited more often. Use null to go back
+	 * to choosing buildings uniformly.
+	 */
+	public static void setDestinationSampler(BuildingSampler sampler) {
+		destinationSampler = sampler;
+	}
+
+	/**
+	 * Get a pointer to the agent geography of the current run (see <code>ModelRun.getCurrent()</code>).
 	 * 
 	 * <p>
 	 * Warning: accessing the context directly is not thread safe so this should be used with care. The functions
 	 * <code>getAllAgents()</code> and <code>getAgentGeometry()</code> can be used to query the agent context or
 	 * projection.
 	 * </p>
+	 * 
+	 * @throws IllegalStateException
+	 *             If there is no current run.
 	 */
 	public static Geography<IAgent> getAgentGeography() {
-		return ContextManager.agentGeography;
+		return currentRun().getAgentGeography();
+	}
+
+	/*
+	 * The run that the calling thread is working on. There isn't one if the model wasn't started by Repast and the
+	 * thread hasn't called ModelRun.setCurrent() (e.g. in a BatchRunner or SweepWorker), in which case there are no
+	 * agents to return.
+	 */
+	private static ModelRun currentRun() {
+		ModelRun run = ModelRun.getCurrent();
+		if (run == null) {
+			throw new IllegalStateException("The agents can't be used because there is no current model run in "
+					+ Thread.currentThread().getName() + " (threads that work on a run must call "
+					+ "ModelRun.setCurrent())");
+		}
+		return run;
 	}
 
 }
@@ -18,6 +18,7 @@ along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
 
 package repastcity3.main;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
@@ -43,6 +44,16 @@ public abstract class GlobalVars {
 	public static final String RoadShapefile = "RoadShapefile";
 	public static final String BuildingsRoadsCoordsCache = "BuildingsRoadsCoordsCache";
 	public static final String BuildingsRoadsCache = "BuildingsRoadsCache";
+	public static final String TimetableDirectory = "TimetableDirectory"; // Optional
+	public static final String CacheMemoryBudget = "CacheMemoryBudget"; // Optional
+	public static final String EnvironmentSnapshot = "EnvironmentSnapshot"; // Optional
+	public static final String CheckpointFile = "CheckpointFile"; // Optional
+	public static final String CheckpointInterval = "CheckpointInterval"; // Optional
+	public static final String ResumeFromCheckpoint = "ResumeFromCheckpoint"; // Optional
+	public static final String AreaShapefile = "AreaShapefile"; // Optional
+	public static final String ZoneSkimCache = "ZoneSkimCache"; // Optional
+	public static final String GravityBeta = "GravityBeta"; // Optional
+	public static final String DestinationTravelTime = "DestinationTravelTime"; // Optional
 	
 	public static final class GEOGRAPHY_PARAMS {
 		
@@ -96,6 +107,9 @@ public abstract class GlobalVars {
 		public static final String JUNCTION_CONTEXT = "JunctionContext";
 		public static final String JUNCTION_GEOGRAPHY = "JunctionGeography";
 		
+		public static final String AREA_CONTEXT = "AreaContext";
+		public static final String AREA_GEOGRAPHY = "AreaGeography";
+		
 		public static final String ROAD_NETWORK = "RoadNetwork";
 		
 		public static final String AGENT_CONTEXT = "AgentContext";
@@ -108,10 +122,32 @@ public abstract class GlobalVars {
 
 		// This variable is used by NetworkEdge.getWeight() function so that it knows what travel options
 		// are available to the agent (e.g. has a car). Can't be passed as a parameter because NetworkEdge.getWeight()
-		// must override function in RepastEdge because this is the one called by ShortestPath.
-		public static IAgent currentAgent = null;
+		// must override function in RepastEdge because this is the one called by ShortestPath. Each thread has its
+		// own current agent so that threads (or model runs) calculating routes at the same time don't interfere.
+		private static final ThreadLocal<IAgent> currentAgent = new ThreadLocal<IAgent>();
+		// The transport available to currentAgent as a mask of MODE bits (see getAgentMask()), set at the same time.
+		private static final ThreadLocal<Integer> currentAgentMask = new ThreadLocal<Integer>() {
+			@Override
+			protected Integer initialValue() {
+				return 1;
+			}
+		};
+		// ShortestPath listens to the (shared) road network so only one thread can use it at a time
 		public static Object currentBurglarLock = new Object();
 
+		public static void setCurrentAgent(IAgent agent) {
+			currentAgent.set(agent);
+			currentAgentMask.set(getAgentMask(agent));
+		}
+
+		public static IAgent getCurrentAgent() {
+			return currentAgent.get();
+		}
+
+		public static int getCurrentAgentMask() {
+			return currentAgentMask.get();
+		}
+
 		public static final String WALK = "walk";
 		public static final String BUS = "bus";
 		public static final String TRAIN = "train";
@@ -121,23 +157,139 @@ public abstract class GlobalVars {
 
 		// Used in 'access' field by Roads to indicate that they are a 'majorRoad' (i.e. motorway or a-road).
 		public static final String MAJOR_ROAD = "majorRoad";		
+
+		// The parameters below (and the speed of each MODE, e.g. CAR_SPEED) don't change while the model is running,
+		// but they can be given different values when the JVM is started with a system property called PROPERTY_PREFIX
+		// followed by the name of the parameter, e.g. -Drepastcity.transport.CAR_SPEED=8. SweepCoordinator uses this
+		// to sweep over them (it starts a different set of workers for each setting).
+		public static final String PROPERTY_PREFIX = "repastcity.transport.";
+		public static final List<String> PARAMETERS = Arrays.asList(new String[]{"MAJOR_ROAD_ADVANTAGE",
+				"TRANSFER_PENALTY", "SECONDS_PER_TICK", "WALK_SPEED", "BUS_SPEED", "TRAIN_SPEED", "CAR_SPEED"});
+
 		// Speed advantage for car drivers if the road is a major road'
-		public static final double MAJOR_ROAD_ADVANTAGE = 3;
+		public static final double MAJOR_ROAD_ADVANTAGE = getTransportParameter("MAJOR_ROAD_ADVANTAGE", 3);
+		// The cost of changing from one transport mode to another (e.g. parking a car or getting on a bus), as the
+		// distance in metres that could be walked in the same time. It is converted to the units of the road network
+		// (e.g. degrees) when the network is created (see Route.metresToDistance()).
+		public static final double TRANSFER_PENALTY = getTransportParameter("TRANSFER_PENALTY", 100);
+		// How much time each tick represents. Walkers move GEOGRAPHY_PARAMS.TRAVEL_PER_TURN each tick so, with
+		// projected data (units of metres), 0.7 seconds is about walking pace.
+		public static final double SECONDS_PER_TICK = getTransportParameter("SECONDS_PER_TICK", 0.7);
+		// The time of day (seconds since midnight) at the start of the simulation, used with public transport
+		// timetables
+		public static final int START_TIME = 8 * 3600;
+
+		/**
+		 * The different transport modes. Each mode has a bit so that the modes that can be used to travel along a road
+		 * (or that are available to an agent) can be stored as a single int mask and compared with a single AND.
+		 */
+		public enum MODE {
+			WALK(TRANSPORT_PARAMS.WALK, 1),
+			BUS(TRANSPORT_PARAMS.BUS, 2),
+			TRAIN(TRANSPORT_PARAMS.TRAIN, 10),
+			CAR(TRANSPORT_PARAMS.CAR, 5);
+
+			/** The string used to represent this mode (e.g. in the 'access' column of the roads shapefile) */
+			public final String type;
+			/** The speed of this mode (a multiplier, i.e. x times faster than walking) */
+			public final double speed;
+			/** The bit used to represent this mode in access masks */
+			public final int bit;
+
+			MODE(String type, double speed) {
+				this.type = type;
+				this.speed = getTransportParameter(this.name() + "_SPEED", speed);
+				this.bit = 1 << this.ordinal();
+			}
+
+			/**
+			 * Get the mode represented by the given string.
+			 * 
+			 * @return the mode, or null if the string isn't recognised.
+			 */
+			public static MODE get(String type) {
+				for (MODE m : VALUES) {
+					if (m.type.equals(type)) {
+						return m;
+					}
+				}
+				return null;
+			}
+
+			/**
+			 * Convert a list of transport strings (e.g. from <code>IAgent.getTransportAvailable()</code>) into a mask.
+			 * Unrecognised strings are ignored.
+			 */
+			public static int getMask(List<String> types) {
+				int mask = 0;
+				if (types != null) {
+					for (String s : types) {
+						MODE m = get(s);
+						if (m != null) {
+							mask |= m.bit;
+						}
+					}
+				}
+				return mask;
+			}
+
+			/** Convert a mask back into the list of strings that it represents. */
+			public static List<String> getTypes(int mask) {
+				List<String> types = new ArrayList<String>();
+				for (MODE m : VALUES) {
+					if ((mask & m.bit) != 0) {
+						types.add(m.type);
+					}
+				}
+				return types;
+			}
+
+			private static final MODE[] VALUES = values();
+		}
+
+		/** A mask with all of the transport modes */
+		public static final int ALL_MODES = (1 << MODE.values().length) - 1;
+
+		/**
+		 * The transport that an agent can use. Agents that return null from <code>getTransportAvailable()</code> are
+		 * assumed to walk.
+		 */
+		public static int getAgentMask(IAgent agent) {
+			if (agent == null || agent.getTransportAvailable() == null) {
+				return MODE.WALK.bit;
+			}
+			return MODE.getMask(agent.getTransportAvailable()) | MODE.WALK.bit;
+		}
 
 		// The speed associated with different types of road (a multiplier, i.e. x times faster than walking)
 		public static double getSpeed(String type) {
-			if (type.equals(WALK))
-				return 1;
-			else if (type.equals(BUS))
-				return 2;
-			else if (type.equals(TRAIN))
-				return 10;
-			else if (type.equals(CAR))
-				return 5;
-			else {
+			MODE m = MODE.get(type);
+			if (m == null) {
 				LOGGER.log(Level.SEVERE, "Error getting speed: unrecognised type: "+type);
 				return 1;
 			}
+			return m.speed;
+		}
+	}
+
+	/**
+	 * Get the value of one of the <code>TRANSPORT_PARAMS</code>, which can be set with a system property (see
+	 * <code>TRANSPORT_PARAMS.PROPERTY_PREFIX</code>). This is in GlobalVars, rather than TRANSPORT_PARAMS, so that
+	 * the MODE constructor can use it without initialising TRANSPORT_PARAMS (which needs the modes).
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the property isn't a number.
+	 */
+	static double getTransportParameter(String name, double defaultValue) {
+		String value = System.getProperty(TRANSPORT_PARAMS.PROPERTY_PREFIX + name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("The transport parameter " + name + " should be a number, not '"
+					+ value + "'");
 		}
 	}
 	
@@ -0,0 +1,288 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
+import repast.simphony.context.Context;
+import repast.simphony.context.space.gis.GeographyFactoryFinder;
+import repast.simphony.engine.environment.RunEnvironment;
+import repast.simphony.space.gis.Geography;
+import repast.simphony.space.gis.GeographyParameters;
+import repast.simphony.space.gis.SimpleAdder;
+import repastcity3.agent.IAgent;
+import repastcity3.environment.Building;
+import repastcity3.environment.contexts.AgentContext;
+
+/**
+ * The state that belongs to a single run of the model: the agents (their context and geography), the current tick,
+ * the counter used to give agents their IDs and the run's stream of random numbers (see <code>RandomStream</code>).
+ * Everything else -- the buildings, roads, road network, spatial indices and route caches -- is only read once the
+ * environment has been built, so it is shared by every run in the JVM (see <code>ContextManager</code>). This means
+ * that several runs (e.g. replications with different seeds) can be executed at the same time in one JVM without each
+ * needing its own copy of the city.
+ * <p>
+ * Agents remember the run that they belong to (see <code>IAgent.getRun()</code>). They are given the 'current' run
+ * when they are created, which is the run that the creating thread is working on (see <code>setCurrent()</code>) or,
+ * if there isn't one, the run that is being controlled by Repast.
+ * </p>
+ *
+ * @author Nick Malleson
+ */
+public class ModelRun {
+
+	private static Logger LOGGER = Logger.getLogger(ModelRun.class.getName());
+
+	/* The run that is controlled by Repast (created by ContextManager.build()) */
+	private static volatile ModelRun repastRun;
+	/* The run that each thread is working on (if it isn't the Repast run) */
+	private static final ThreadLocal<ModelRun> current = new ThreadLocal<ModelRun>();
+
+	private final int seed;
+	private final boolean headless;
+
+	private final Context<IAgent> agentContext;
+	private final Geography<IAgent> agentGeography;
+
+	private final AtomicInteger nextAgentID = new AtomicInteger(0);
+
+	/* Used for random choices that are made by the run rather than by an agent (e.g. the order of the agents) */
+	private final RandomStream random;
+
+	/* The tick (only used by headless runs, otherwise the Repast schedule keeps track of the tick) */
+	private volatile double tick = 0;
+	/* The tick that the run was resumed from, if it was restored from a checkpoint (see Checkpointer) */
+	private volatile double tickOffset = 0;
+
+	/* An error that has stopped the run, if there has been one */
+	private volatile Exception error;
+
+	/**
+	 * Create a new run with an empty agent context and geography. The environment must have been built already.
+	 *
+	 * @param seed
+	 *            The random number seed for the run.
+	 * @param headless
+	 *            Whether the run is being controlled by something other than the Repast schedule (in which case the
+	 *            controller must call <code>setTick()</code>).
+	 */
+	public ModelRun(int seed, boolean headless) {
+		this.seed = seed;
+		this.headless = headless;
+		this.random = new RandomStream(seed);
+		this.agentContext = new AgentContext();
+		this.agentGeography = GeographyFactoryFinder.createGeographyFactory(null).createGeography(
+				GlobalVars.CONTEXT_NAMES.AGENT_GEOGRAPHY, this.agentContext,
+				new GeographyParameters<IAgent>(new SimpleAdder<IAgent>()));
+	}
+
+	/**
+	 * Set the run that is controlled by Repast. Agents that are created by threads that aren't working on another run
+	 * belong to this one.
+	 */
+	static void setRepastRun(ModelRun run) {
+		ModelRun.repastRun = run;
+	}
+
+	/**
+	 * Get the run that the calling thread is working on (see <code>setCurrent()</code>) or, if it isn't working on
+	 * one, the run that is controlled by Repast.
+	 * 
+	 * @return The run, or null if the thread isn't working on a run and the model wasn't started by Repast.
+	 */
+	public static ModelRun getCurrent() {
+		ModelRun run = current.get();
+		return run == null ? repastRun : run;
+	}
+
+	/**
+	 * Tell the calling thread that it is working on the given run, so agents that it creates will belong to it.
+	 *
+	 * @param run
+	 *            The run, or null if the thread is no longer working on a run.
+	 */
+	public static void setCurrent(ModelRun run) {
+		if (run == null) {
+			current.remove();
+		} else {
+			current.set(run);
+		}
+	}
+
+	public int getSeed() {
+		return this.seed;
+	}
+
+	/**
+	 * Get the run's stream of random numbers. This should only be used by the thread that controls the run (i.e. not
+	 * by agents, which have their own streams, see <code>IAgent.getRandom()</code>).
+	 */
+	public RandomStream getRandom() {
+		return this.random;
+	}
+
+	/** Get a new, unique (in this run), agent ID. */
+	public int nextAgentID() {
+		return this.nextAgentID.getAndIncrement();
+	}
+
+	/** Make sure that agents created later don't get the given ID (used when agents are restored from checkpoints). */
+	public void reserveAgentID(int id) {
+		int next;
+		while ((next = this.nextAgentID.get()) <= id) {
+			if (this.nextAgentID.compareAndSet(next, id + 1)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Get the current tick. For runs controlled by Repast this is the tick of the Repast schedule. If the run was
+	 * resumed from a checkpoint then ticks are counted from the tick that it was resumed from.
+	 */
+	public double getTick() {
+		double t = this.headless ? this.tick : RunEnvironment.getInstance().getCurrentSchedule().getTickCount();
+		return this.tickOffset + t;
+	}
+
+	/** Set the current tick (headless runs only). */
+	public void setTick(double tick) {
+		this.tick = tick;
+	}
+
+	/**
+	 * Move on to the given tick and step all of the agents, one after the other, in the calling thread (headless
+	 * runs only). If an agent throws an exception then the run is stopped.
+	 *
+	 * @return True if all the agents were stepped, false if the run has been stopped.
+	 */
+	public boolean step(double tick) {
+		this.tick = tick;
+		for (IAgent a : this.getAllAgents()) {
+			try {
+				a.step();
+			} catch (Exception e) {
+				this.stop(e, a.getClass());
+				break;
+			}
+		}
+		return this.error == null;
+	}
+
+	/** Get the tick that the run was resumed from (or 0 if it wasn't resumed from a checkpoint). */
+	public double getTickOffset() {
+		return this.tickOffset;
+	}
+
+	void setTickOffset(double tickOffset) {
+		this.tickOffset = tickOffset;
+	}
+
+	/*
+	 * Functions to access the agents. These are synchronized -- rather than giving agents direct access to the
+	 * agentGeography -- because when multiple threads are used they can interfere with each other and agents end up
+	 * moving incorrectly. Each run has its own lock so runs don't hold each other up.
+	 */
+
+	public synchronized void addAgent(IAgent agent) {
+		this.agentContext.add(agent);
+	}
+
+	public synchronized void removeAgent(IAgent agent) {
+		this.agentContext.remove(agent);
+	}
+
+	public synchronized void moveAgent(IAgent agent, Point point) {
+		this.agentGeography.move(agent, point);
+	}
+
+	public synchronized void moveAgentByVector(IAgent agent, double distToTravel, double angle) {
+		this.agentGeography.moveByVector(agent, distToTravel, angle);
+	}
+
+	public synchronized Geometry getAgentGeometry(IAgent agent) {
+		return this.agentGeography.getGeometry(agent);
+	}
+
+	/**
+	 * @return An iterable over all agents, chosen in a random order (using the run's random stream, so the order is
+	 *         the same every time that a run with the same seed is executed).
+	 */
+	public synchronized Iterable<IAgent> getAllAgents() {
+		List<IAgent> agents = new ArrayList<IAgent>(this.agentContext.size());
+		for (IAgent a : this.agentContext.getObjects(IAgent.class)) {
+			agents.add(a);
+		}
+		this.random.shuffle(agents);
+		return agents;
+	}
+
+	/**
+	 * Get the agent context. Accessing the context directly is not thread safe (see <code>getAllAgents()</code>).
+	 */
+	public Context<IAgent> getAgentContext() {
+		return this.agentContext;
+	}
+
+	/**
+	 * Get the agent geography. Accessing the geography directly is not thread safe (see
+	 * <code>getAgentGeometry()</code>).
+	 */
+	public Geography<IAgent> getAgentGeography() {
+		return this.agentGeography;
+	}
+
+	/**
+	 * Stop the run because of an error. Runs that are controlled by Repast are stopped straight away, headless runs
+	 * should check <code>getError()</code> after every tick.
+	 */
+	public void stop(Exception ex, Class<?> clazz) {
+		this.error = ex;
+		if (this.headless) {
+			LOGGER.log(Level.SEVERE, "Run " + this.seed + " has been told to stop by " + clazz.getName(), ex);
+		} else {
+			ContextManager.stopSim(ex, clazz);
+		}
+	}
+
+	/** Get the error that stopped the run, or null if it hasn't been stopped. */
+	public Exception getError() {
+		return this.error;
+	}
+
+	/**
+	 * Remove this run's agents from the (shared) buildings that they live in. Should be called when a run has
+	 * finished so that other runs don't see its agents.
+	 */
+	public synchronized void dispose() {
+		for (IAgent a : this.agentContext.getObjects(IAgent.class)) {
+			Building home = a.getHome();
+			if (home != null) {
+				home.removeAgent(a);
+			}
+		}
+	}
+}
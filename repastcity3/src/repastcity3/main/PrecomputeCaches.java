@@ -0,0 +1,155 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import repast.simphony.context.DefaultContext;
+import repastcity3.environment.CacheRegistry;
+import repastcity3.environment.CacheStats;
+import repastcity3.environment.Route;
+
+/**
+ * A command-line tool that creates all of the caches for a GIS dataset without running a simulation, so that the
+ * (possibly long) job of creating them can be done once, e.g. as part of a data pipeline, rather than by the first
+ * simulation that runs on each machine. It reads <code>repastcity.properties</code> from the working directory (as the
+ * model does, so properties can be overridden with system properties e.g. <code>-DGISDataDirectory=...</code>), loads
+ * the shapefiles, builds the spatial indices and road network and then creates the route caches in parallel (see
+ * <code>Route.warmUpCaches()</code>) and, if there are areas, the zone skim (see <code>ZoneSkim</code>). Caches that
+ * are saved to disk (including the environment snapshot, if there is one) are written to the GIS data directory;
+ * existing cache files that are still valid are just checked, unless the <code>-rebuild</code> argument is given in
+ * which case they are deleted and re-created. A report of how long each phase took is printed at the end.
+ * <p>
+ * Usage: <code>java -cp ... repastcity3.main.PrecomputeCaches [-rebuild]</code>. The exit status is 0 if every cache
+ * was created and 1 otherwise.
+ * </p>
+ *
+ * @author Nick Malleson
+ */
+public class PrecomputeCaches {
+
+	private static Logger LOGGER = Logger.getLogger(PrecomputeCaches.class.getName());
+
+	/* The names and durations (in ms) of each phase, for the report */
+	private static final List<String> phases = new ArrayList<String>();
+	private static final List<Double> times = new ArrayList<Double>();
+
+	public static void main(String[] args) {
+		boolean rebuild = false;
+		for (String arg : args) {
+			if (arg.equals("-rebuild")) {
+				rebuild = true;
+			} else {
+				System.err.println("Unrecognised argument: " + arg + "\nUsage: PrecomputeCaches [-rebuild]");
+				System.exit(1);
+			}
+		}
+		RepastCityLogging.init();
+		double start = System.nanoTime();
+		boolean success;
+		try {
+			success = precompute(rebuild);
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Could not create the caches", e);
+			success = false;
+		}
+		phase("Total", start);
+		printReport(success);
+		System.exit(success ? 0 : 1);
+	}
+
+	private static boolean precompute(boolean rebuild) throws Exception {
+		double time = System.nanoTime();
+		ContextManager.readProperties();
+		String gisDataDir = ContextManager.getProperty(GlobalVars.GISDataDirectory);
+		List<File> cacheFiles = new ArrayList<File>();
+		cacheFiles.add(new File(gisDataDir + ContextManager.getProperty(GlobalVars.BuildingsRoadsCoordsCache)));
+		cacheFiles.add(new File(gisDataDir + ContextManager.getProperty(GlobalVars.BuildingsRoadsCache)));
+		if (ContextManager.hasProperty(GlobalVars.EnvironmentSnapshot)) {
+			cacheFiles.add(new File(gisDataDir + ContextManager.getProperty(GlobalVars.EnvironmentSnapshot)));
+		}
+		boolean zones = ContextManager.hasProperty(GlobalVars.AreaShapefile)
+				&& ContextManager.hasProperty(GlobalVars.ZoneSkimCache);
+		if (zones) {
+			cacheFiles.add(new File(gisDataDir + ContextManager.getProperty(GlobalVars.ZoneSkimCache)));
+		}
+		if (rebuild) {
+			for (File f : cacheFiles) {
+				if (f.exists() && !f.delete()) {
+					throw new Exception("Could not delete the old cache file " + f);
+				}
+			}
+		}
+		phase("Read properties", time);
+
+		time = System.nanoTime();
+		DefaultContext<Object> mainContext = new DefaultContext<Object>(GlobalVars.CONTEXT_NAMES.MAIN_CONTEXT);
+		ContextManager.buildEnvironment(mainContext);
+		phase("Load GIS data, spatial indices and road network", time);
+		for (Map.Entry<String, Double> e : ContextManager.getEnvironmentTimings().entrySet()) {
+			phases.add("  " + e.getKey());
+			times.add(e.getValue());
+		}
+
+		time = System.nanoTime();
+		Route.warmUpCaches();
+		boolean success = Route.awaitCaches();
+		phase("Create route caches (in parallel)", time);
+
+		if (zones) {
+			time = System.nanoTime();
+			ContextManager.getZoneSkim();
+			phase("Create the zone skim (in parallel)", time);
+		}
+
+		for (File f : cacheFiles) {
+			if (!f.exists()) {
+				LOGGER.log(Level.SEVERE, "The cache file " + f + " was not created.");
+				success = false;
+			}
+		}
+		return success;
+	}
+
+	private static void phase(String name, double startTime) {
+		double ms = 0.000001 * (System.nanoTime() - startTime);
+		phases.add(name);
+		times.add(ms);
+		LOGGER.log(Level.FINE, name + " took " + ms + "ms");
+	}
+
+	private static void printReport(boolean success) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(success ? "Finished creating caches.\n" : "FAILED to create some caches (see the log).\n");
+		sb.append("Timings:\n");
+		for (int i = 0; i < phases.size(); i++) {
+			sb.append(String.format("\t%-50s %10.1fs%n", phases.get(i), times.get(i) / 1000));
+		}
+		sb.append("Caches:\n");
+		for (CacheStats s : CacheRegistry.getStats()) {
+			sb.append("\t").append(s.toString()).append("\n");
+		}
+		System.out.print(sb.toString());
+	}
+}
@@ -0,0 +1,140 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A small, fast stream of random numbers (the SplitMix64 generator). Every agent has its own stream (see
+ * <code>IAgent.getRandom()</code>), created from the seed of its run and its ID, as does every run (see
+ * <code>ModelRun.getRandom()</code>). Agents therefore don't share a generator, so agents that are stepped by
+ * different threads don't hold each other up and, because the numbers that an agent gets don't depend on the order
+ * in which the threads happen to run, a run with a given seed always does the same thing.
+ * <p>
+ * A stream is not thread safe; it should only be used by the agent (or run) that owns it. New, independent, streams
+ * can be created from an existing one with <code>split()</code>. The state of a stream is a single
+ * <code>long</code> so it is easy to save in a checkpoint (see <code>getState()</code>).
+ * </p>
+ *
+ * @author Nick Malleson
+ */
+public final class RandomStream {
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private long state;
+
+	/**
+	 * Create a stream from a seed.
+	 */
+	public RandomStream(long seed) {
+		this.state = mix64(seed);
+	}
+
+	/**
+	 * Create the stream for one of the agents in a run. Streams for different agents (or the same agent in runs
+	 * with different seeds) are independent.
+	 *
+	 * @param seed
+	 *            The run's seed.
+	 * @param id
+	 *            The ID of the agent.
+	 */
+	public static RandomStream forAgent(long seed, int id) {
+		return new RandomStream(mix64(seed) + GOLDEN_GAMMA * (id + 1L));
+	}
+
+	/**
+	 * Create a new stream that is independent of this one (this stream moves on by one number).
+	 */
+	public RandomStream split() {
+		return new RandomStream(this.nextLong());
+	}
+
+	public long nextLong() {
+		this.state += GOLDEN_GAMMA;
+		return mix64(this.state);
+	}
+
+	/**
+	 * @return A number that is at least 0 and less than 1.
+	 */
+	public double nextDouble() {
+		return (this.nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * @return A number that is at least 0 and less than <code>bound</code> (which must be positive).
+	 */
+	public int nextInt(int bound) {
+		if (bound <= 0) {
+			throw new IllegalArgumentException("The bound must be positive, not " + bound);
+		}
+		int r = (int) (this.nextLong() >>> 33);
+		int m = bound - 1;
+		if ((bound & m) == 0) { // (a power of two)
+			return (int) ((bound * (long) r) >> 31);
+		}
+		// Reject numbers from the top of the range that would make some values more likely than others
+		for (int u = r; u - (r = u % bound) + m < 0; u = (int) (this.nextLong() >>> 33)) {
+		}
+		return r;
+	}
+
+	/**
+	 * @return A number between <code>from</code> and <code>to</code> (inclusive).
+	 */
+	public int nextIntFromTo(int from, int to) {
+		return from + this.nextInt(to - from + 1);
+	}
+
+	/**
+	 * Choose one of the items in a list (which mustn't be empty) at random.
+	 */
+	public <T> T choose(List<T> list) {
+		return list.get(this.nextInt(list.size()));
+	}
+
+	/**
+	 * Put the items in a list into a random order.
+	 */
+	public void shuffle(List<?> list) {
+		for (int i = list.size() - 1; i > 0; i--) {
+			Collections.swap(list, i, this.nextInt(i + 1));
+		}
+	}
+
+	/** Get the state of the stream, e.g. to save it in a checkpoint. */
+	public long getState() {
+		return this.state;
+	}
+
+	/** Restore the state that was returned by <code>getState()</code>. */
+	public void setState(long state) {
+		this.state = state;
+	}
+
+	/* The SplitMix64 mixing function */
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
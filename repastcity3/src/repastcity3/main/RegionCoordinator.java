@@ -0,0 +1,235 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A command-line tool for runs that have too many agents for one JVM. The city is divided into regions (see
+ * <code>RegionPartition</code>) and each region's agents are simulated by a separate worker process (see
+ * <code>RegionWorker</code>) on the local machine. Every process loads the whole environment but only holds the agents
+ * that are in its own region, and agents whose routes take them out of their region are handed over to the region
+ * that they have moved into.
+ * <p>
+ * The coordinator keeps the regions in step. Every iteration it tells all the workers to step their agents (at the
+ * same time) and waits until they have all finished: this is the barrier at which agents change regions. The agents
+ * that left each region are then passed on to their new regions at the start of the next iteration, before anything
+ * is stepped.
+ * </p>
+ * <p>
+ * Usage: <code>java -cp ... repastcity3.main.RegionCoordinator [-regions K] [-ticks T] [-ghost W] [-seed S]
+ * agent_definition</code>. By default there is one region per processor, the run lasts for 1000 ticks, the ghost
+ * band along each border is 50 metres wide and the seed is 1. Like
+ * <code>SweepCoordinator</code>, workers are started with the same class path and JVM arguments as the coordinator
+ * and their output is written to log files (<code>region0.log</code> etc.) in the working directory.
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see RegionWorker
+ */
+public class RegionCoordinator {
+
+	private static Logger LOGGER = Logger.getLogger(RegionCoordinator.class.getName());
+
+	/* How long to wait for the workers to start (they each load the environment and create their agents) */
+	private static final int CONNECT_TIMEOUT = 10 * 60 * 1000;
+
+	private static final String USAGE = "Usage: RegionCoordinator [-regions K] [-ticks T] [-ghost W] [-seed S] "
+			+ "agent_definition";
+
+	public static void main(String[] args) {
+		int numRegions = Runtime.getRuntime().availableProcessors();
+		int ticks = 1000;
+		double ghostWidth = 50;
+		int seed = 1;
+		String defn = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-regions")) {
+					numRegions = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-ticks")) {
+					ticks = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-ghost")) {
+					ghostWidth = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("-seed")) {
+					seed = Integer.parseInt(args[++i]);
+				} else if (args[i].startsWith("-") || defn != null) {
+					throw new IllegalArgumentException("Unrecognised argument: " + args[i]);
+				} else {
+					defn = args[i];
+				}
+			}
+			if (defn == null) {
+				throw new IllegalArgumentException("No agent definition was given.");
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			System.err.println("Missing value for " + args[args.length - 1] + "\n" + USAGE);
+			System.exit(1);
+		} catch (RuntimeException e) {
+			// (Bad numbers or unrecognised arguments)
+			System.err.println(e.getMessage() + "\n" + USAGE);
+			System.exit(1);
+		}
+
+		RepastCityLogging.init();
+		boolean success;
+		try {
+			runRegions(numRegions, ticks, ghostWidth, seed, defn);
+			success = true;
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Could not run the model", e);
+			success = false;
+		}
+		System.exit(success ? 0 : 1);
+	}
+
+	/**
+	 * Start the workers and run the model.
+	 *
+	 * @return The number of times that an agent was handed over from one region to another.
+	 * @throws Exception
+	 *             If a region can't be created or fails, or agents were lost along the way.
+	 */
+	static long runRegions(int numRegions, int ticks, double ghostWidth, int seed, String defn) throws Exception {
+		double time = System.nanoTime();
+		ServerSocket server = new ServerSocket(0, numRegions, InetAddress.getByName("127.0.0.1"));
+		List<Process> processes = new ArrayList<Process>();
+		Socket[] sockets = new Socket[numRegions];
+		try {
+			for (int r = 0; r < numRegions; r++) {
+				processes.add(SweepCoordinator.startWorker(RegionWorker.class, new File("region" + r + ".log"),
+						String.valueOf(server.getLocalPort()), String.valueOf(r), String.valueOf(numRegions),
+						String.valueOf(ghostWidth), String.valueOf(seed), defn));
+			}
+
+			// Wait for all of the regions to be created
+			server.setSoTimeout(CONNECT_TIMEOUT);
+			DataInputStream[] in = new DataInputStream[numRegions];
+			DataOutputStream[] out = new DataOutputStream[numRegions];
+			int[] agents = new int[numRegions];
+			for (int i = 0; i < numRegions; i++) {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				DataInputStream sin = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				if (sin.readInt() != RegionWorker.MAGIC) {
+					socket.close();
+					throw new IOException("Something other than a region worker connected to the coordinator.");
+				}
+				int r = sin.readInt();
+				sockets[r] = socket;
+				in[r] = sin;
+				out[r] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			}
+			int totalAgents = 0;
+			for (int r = 0; r < numRegions; r++) {
+				if (in[r].readByte() != RegionWorker.READY) {
+					throw new IOException("Region " + r + " could not be created: " + in[r].readUTF());
+				}
+				agents[r] = in[r].readInt();
+				totalAgents += agents[r];
+			}
+			double startTime = 0.000001 * (System.nanoTime() - time);
+			LOGGER.log(Level.INFO, "Created " + numRegions + " regions with " + totalAgents + " agents in "
+					+ startTime + "ms");
+
+			// Run the model. The agents that have left each region during the last iteration are sent to the regions
+			// that they have moved into along with the next STEP.
+			time = System.nanoTime();
+			List<List<byte[]>> arrivals = new ArrayList<List<byte[]>>();
+			for (int r = 0; r < numRegions; r++) {
+				arrivals.add(new ArrayList<byte[]>());
+			}
+			long handovers = 0;
+			for (int tick = 1; tick <= ticks + 1; tick++) {
+				boolean finish = tick > ticks;
+				for (int r = 0; r < numRegions; r++) {
+					out[r].writeByte(finish ? RegionWorker.FINISH : RegionWorker.STEP);
+					if (!finish) {
+						out[r].writeDouble(tick);
+					}
+					out[r].writeInt(arrivals.get(r).size());
+					for (byte[] data : arrivals.get(r)) {
+						out[r].writeInt(data.length);
+						out[r].write(data);
+					}
+					out[r].flush();
+					arrivals.get(r).clear();
+				}
+				// (The barrier: wait for every region to finish)
+				for (int r = 0; r < numRegions; r++) {
+					byte type = in[r].readByte();
+					if (type == RegionWorker.FAILED) {
+						throw new IOException("Region " + r + " stopped at tick " + tick + ": " + in[r].readUTF());
+					} else if (type != RegionWorker.DONE) {
+						throw new IOException("Region " + r + " sent an unexpected message.");
+					}
+					agents[r] = in[r].readInt();
+					int leaving = in[r].readInt();
+					for (int i = 0; i < leaving; i++) {
+						int destination = in[r].readInt();
+						byte[] data = new byte[in[r].readInt()];
+						in[r].readFully(data);
+						arrivals.get(destination).add(data);
+					}
+					handovers += leaving;
+				}
+			}
+			double runTime = 0.000000001 * (System.nanoTime() - time);
+
+			int finalAgents = 0;
+			StringBuilder sb = new StringBuilder();
+			for (int r = 0; r < numRegions; r++) {
+				finalAgents += agents[r];
+				sb.append(String.format("\t%-30s %10d%n", "Agents in region " + r, agents[r]));
+			}
+			sb.insert(0, String.format("Finished %d ticks with %d regions.%n\t%-30s %10.1fs%n\t%-30s %10.1fs%n"
+					+ "\t%-30s %10.1f%n\t%-30s %10d%n", ticks, numRegions, "Starting the regions", startTime / 1000,
+					"Running", runTime, "Ticks per second", ticks / runTime, "Agents that changed region",
+					handovers));
+			System.out.print(sb.toString());
+			if (finalAgents != totalAgents) {
+				throw new IOException("There were " + totalAgents + " agents at the start but " + finalAgents
+						+ " at the end.");
+			}
+			return handovers;
+		} finally {
+			server.close();
+			for (Socket s : sockets) {
+				if (s != null) {
+					s.close();
+				}
+			}
+			for (Process p : processes) {
+				p.destroy();
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+import repastcity3.agent.AgentFactory;
+import repastcity3.agent.IAgent;
+import repastcity3.environment.RegionPartition;
+
+/**
+ * A process that simulates the agents in one region of the city for a <code>RegionCoordinator</code>. Workers are
+ * started by the coordinator as child JVMs and connect back to it over a local socket. Each one loads the whole
+ * environment (so agents can still plan routes that cross into other regions), divides it into regions (see
+ * <code>RegionPartition</code>) and creates the agents that live in its own region.
+ * <p>
+ * Every iteration, the coordinator sends the tick and the agents that have arrived from other regions. The worker
+ * adds them, steps all of its agents and then sends back the agents that have left the region (i.e. moved further
+ * than the ghost band along its borders), along with the regions that they have moved to. These are removed from the worker. Agents
+ * are moved between processes in the same way as they are saved in checkpoints (see
+ * <code>Checkpointer.saveAgent()</code>). The protocol is written with <code>DataOutputStream</code>:
+ * <ul>
+ * <li>worker -> coordinator: <code>MAGIC</code>, the region, then either <code>READY</code> and the number of agents
+ * or <code>FAILED</code> and an error message.</li>
+ * <li>coordinator -> worker: <code>STEP</code> and the tick, or <code>FINISH</code>, followed by the number of
+ * arriving agents and, for each, the length of its data and the data.</li>
+ * <li>worker -> coordinator (after each <code>STEP</code>): <code>DONE</code>, the number of agents in the region,
+ * the number of agents that are leaving and, for each, its new region, the length of its data and the data; or
+ * <code>FAILED</code> and an error message. After <code>FINISH</code> the worker replies with <code>DONE</code>, the
+ * number of agents and no leaving agents, then exits.</li>
+ * </ul>
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see RegionCoordinator
+ */
+public class RegionWorker {
+
+	private static Logger LOGGER = Logger.getLogger(RegionWorker.class.getName());
+
+	static final int MAGIC = 0x52435247; // 'RCRG'
+
+	/* Message types */
+	static final byte READY = 1;
+	static final byte FAILED = 2;
+	static final byte STEP = 3;
+	static final byte DONE = 4;
+	static final byte FINISH = 5;
+
+	private final int region;
+	private final RegionPartition partition;
+	private final ModelRun run;
+
+	private RegionWorker(int region, RegionPartition partition, ModelRun run) {
+		this.region = region;
+		this.partition = partition;
+		this.run = run;
+	}
+
+	/**
+	 * @param args
+	 *            The port that the coordinator is listening on, the number of this region, the number of regions, the
+	 *            width of the ghost band (see <code>RegionPartition</code>), the seed and the agent definition.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 6) {
+			System.err.println("Usage: RegionWorker port region num_regions ghost_width seed agent_definition "
+					+ "(workers are started by a RegionCoordinator)");
+			System.exit(1);
+		}
+		RepastCityLogging.init();
+		int region = Integer.parseInt(args[1]);
+		int numRegions = Integer.parseInt(args[2]);
+		try {
+			Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), Integer.parseInt(args[0]));
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(MAGIC);
+			out.writeInt(region);
+			RegionWorker worker;
+			try {
+				BatchRunner.loadEnvironment();
+				RegionPartition partition = new RegionPartition(numRegions, Double.parseDouble(args[3]));
+				int seed = Integer.parseInt(args[4]);
+				ModelRun run = new ModelRun(seed, true);
+				// Give each region its own block of agent IDs so agents are unique when they move between regions (and
+				// have different random streams)
+				if (region > 0) {
+					run.reserveAgentID(region * (Integer.MAX_VALUE / numRegions) - 1);
+				}
+				ModelRun.setCurrent(run);
+				new AgentFactory(args[5]).createAgents(run.getAgentContext(), partition, region);
+				worker = new RegionWorker(region, partition, run);
+				out.writeByte(READY);
+				out.writeInt(run.getAgentContext().size());
+				out.flush();
+			} catch (Exception e) {
+				LOGGER.log(Level.SEVERE, "Region " + region + " could not be created", e);
+				out.writeByte(FAILED);
+				out.writeUTF(String.valueOf(e));
+				out.flush();
+				socket.close();
+				System.exit(1);
+				return;
+			}
+			boolean ok = worker.serve(in, out);
+			socket.close();
+			System.exit(ok ? 0 : 1);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Region " + region + " lost its connection to the coordinator", e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Step the agents every time that the coordinator says so, until it sends <code>FINISH</code>.
+	 *
+	 * @return False if the run was stopped by an error.
+	 */
+	private boolean serve(DataInputStream in, DataOutputStream out) throws IOException {
+		while (true) {
+			byte type = in.readByte();
+			if (type != STEP && type != FINISH) {
+				throw new IOException("Unexpected message type from the coordinator: " + type);
+			}
+			double tick = type == STEP ? in.readDouble() : -1;
+			int arrivals = in.readInt();
+			for (int i = 0; i < arrivals; i++) {
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				Checkpointer.restoreAgent(new DataInputStream(new ByteArrayInputStream(data)), this.run);
+			}
+			if (type == FINISH) {
+				out.writeByte(DONE);
+				out.writeInt(this.run.getAgentContext().size());
+				out.writeInt(0);
+				out.flush();
+				this.run.dispose();
+				return true;
+			}
+
+			if (!this.run.step(tick)) {
+				out.writeByte(FAILED);
+				out.writeUTF(String.valueOf(this.run.getError()));
+				out.flush();
+				return false;
+			}
+
+			// Find the agents that have moved out of the region
+			List<IAgent> leaving = new ArrayList<IAgent>();
+			List<Integer> destinations = new ArrayList<Integer>();
+			for (IAgent a : this.run.getAgentContext().getObjects(IAgent.class)) {
+				Coordinate c = this.run.getAgentGeometry(a).getCoordinate();
+				if (!this.partition.isInRegionOrGhost(this.region, c)) {
+					leaving.add(a);
+					destinations.add(this.partition.getRegion(c));
+				}
+			}
+			out.writeByte(DONE);
+			out.writeInt(this.run.getAgentContext().size() - leaving.size());
+			out.writeInt(leaving.size());
+			for (int i = 0; i < leaving.size(); i++) {
+				IAgent a = leaving.get(i);
+				byte[] data = Checkpointer.saveAgent(a, this.run);
+				out.writeInt(destinations.get(i));
+				out.writeInt(data.length);
+				out.write(data);
+				if (a.getHome() != null) {
+					a.getHome().removeAgent(a);
+				}
+				this.run.removeAgent(a);
+			}
+			out.flush();
+			if (leaving.size() > 0) {
+				LOGGER.log(Level.FINER, "Region " + this.region + ": " + leaving.size() + " agents left at tick "
+						+ tick);
+			}
+		}
+	}
+}
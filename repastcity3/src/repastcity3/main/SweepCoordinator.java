@@ -0,0 +1,748 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A command-line tool for large parameter sweeps. It reads a description of the parameter space, starts a number of
+ * worker JVMs on the local machine (see <code>SweepWorker</code>), hands runs out to them over local sockets and
+ * collects all of the results into a single (columnar) output file. Each worker loads the environment once and keeps
+ * it between runs, and because they are separate processes a run that crashes or runs out of memory only loses that
+ * worker (its run is given to another worker).
+ * <p>
+ * Usage: <code>java -cp ... repastcity3.main.SweepCoordinator [-workers K] [-output file] [-timeout minutes]
+ * spec_file</code>. By default there is one worker per processor and results are written to
+ * <code>sweep_output.bin</code>. Workers are started with the same class path and JVM arguments as the coordinator,
+ * and in the same working directory, so they read the same <code>repastcity.properties</code>. The output of each
+ * worker is written to a log file next to the output file. A worker that takes longer than the timeout (120 minutes by
+ * default) to finish a run is assumed to have hung: it is stopped and the run is given to another worker.
+ * </p>
+ * <p>
+ * The spec file is a properties file. Each property is a list of values, separated by ';', and every combination of
+ * values is run:
+ *
+ * <pre>
+ * AGENT_DEFINITION = random:100 ; random:1000
+ * seed = 1-50 ; 100
+ * ticks = 5000
+ * CAR_SPEED = 5 ; 8
+ * TRANSFER_PENALTY = 100
+ * </pre>
+ *
+ * Seeds can be given as ranges. If there is no <code>seed</code> or <code>ticks</code> property then the seed is 1 and
+ * runs last for 1000 ticks. Any of the transport parameters (see <code>TRANSPORT_PARAMS.PARAMETERS</code>) can also be
+ * given; those that aren't keep their usual values. The transport parameters are fixed when a worker's JVM starts
+ * (the road network is created with them when the environment is loaded) so the runs for each setting of the
+ * transport parameters are done by their own set of workers, one setting after another.
+ * </p>
+ * <p>
+ * Runs are given to workers as they become free, longest first (which keeps all of the workers busy until the end of
+ * the sweep). How long a run will take is estimated from the runs that have already finished with the same agent
+ * definition and number of ticks; each combination is tried once before any are repeated so that the estimates are
+ * available early on.
+ * </p>
+ * <p>
+ * The output file has a column for each of the run number, agent definition, transport parameters (e.g.
+ * <code>"CAR_SPEED=8 TRANSFER_PENALTY=100"</code>, or an empty string if none were given), seed, number of ticks
+ * requested, number of agents, number of ticks completed, time taken (s), worker and error. It is written with
+ * <code>DataOutputStream</code> (i.e. big-endian): <code>MAGIC</code>, the format version, the number of rows and the
+ * number of columns, then each column in turn: its name (UTF), its type ('I' for int, 'D' for double, 'S' for string)
+ * and all of its values. Strings are written as their length in bytes (-1 for null) followed by UTF-8 bytes. The rows
+ * are sorted by run number.
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see SweepWorker
+ * @see BatchRunner
+ */
+public class SweepCoordinator {
+
+	private static Logger LOGGER = Logger.getLogger(SweepCoordinator.class.getName());
+
+	private static final int MAGIC = 0x52435352; // 'RCSR'
+	private static final int FORMAT_VERSION = 2;
+
+	/*
+	 * How long to wait for workers to start and to load the environment, and the number of times that a run is tried
+	 * before giving up
+	 */
+	private static final int CONNECT_TIMEOUT = 5 * 60 * 1000;
+	private static final int LOAD_TIMEOUT = 60 * 60 * 1000;
+	private static final int MAX_ATTEMPTS = 2;
+
+	private static final String USAGE = "Usage: SweepCoordinator [-workers K] [-output file] [-timeout minutes] "
+			+ "spec_file";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static void main(String[] args) {
+		int numWorkers = Runtime.getRuntime().availableProcessors();
+		String outputFile = "sweep_output.bin";
+		int timeout = 120;
+		String specFile = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-workers")) {
+					numWorkers = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-output")) {
+					outputFile = args[++i];
+				} else if (args[i].equals("-timeout")) {
+					timeout = Integer.parseInt(args[++i]);
+				} else if (args[i].startsWith("-") || specFile != null) {
+					throw new IllegalArgumentException("Unrecognised argument: " + args[i]);
+				} else {
+					specFile = args[i];
+				}
+			}
+			if (specFile == null) {
+				throw new IllegalArgumentException("No spec file was given.");
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			System.err.println("Missing value for " + args[args.length - 1] + "\n" + USAGE);
+			System.exit(1);
+		} catch (RuntimeException e) {
+			// (Bad numbers or unrecognised arguments)
+			System.err.println(e.getMessage() + "\n" + USAGE);
+			System.exit(1);
+		}
+
+		RepastCityLogging.init();
+		boolean success;
+		try {
+			success = sweep(readSpec(new File(specFile)), numWorkers, timeout * 60 * 1000, new File(outputFile));
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Could not run the sweep", e);
+			success = false;
+		}
+		System.exit(success ? 0 : 1);
+	}
+
+	/**
+	 * Read the spec file and create a run for every combination of parameter values.
+	 */
+	static List<Run> readSpec(File file) throws IOException {
+		Properties spec = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			spec.load(in);
+		} finally {
+			in.close();
+		}
+		for (Object key : spec.keySet()) {
+			if (!key.equals(MODEL_PARAMETERS.AGENT_DEFINITION.toString()) && !key.equals("seed")
+					&& !key.equals("ticks") && !GlobalVars.TRANSPORT_PARAMS.PARAMETERS.contains(key)) {
+				throw new IOException("Unrecognised parameter in " + file + ": " + key);
+			}
+		}
+		List<String> definitions = split(spec.getProperty(MODEL_PARAMETERS.AGENT_DEFINITION.toString()));
+		if (definitions.isEmpty()) {
+			throw new IOException("The spec file " + file + " has no " + MODEL_PARAMETERS.AGENT_DEFINITION);
+		}
+		List<Integer> seeds = new ArrayList<Integer>();
+		List<Integer> ticks = new ArrayList<Integer>();
+		try {
+			for (String s : split(spec.getProperty("seed", "1"))) {
+				int dash = s.indexOf('-', 1); // (Seeds can be negative)
+				if (dash < 0) {
+					seeds.add(Integer.parseInt(s));
+				} else {
+					int last = Integer.parseInt(s.substring(dash + 1).trim());
+					for (int seed = Integer.parseInt(s.substring(0, dash).trim()); seed <= last; seed++) {
+						seeds.add(seed);
+					}
+				}
+			}
+			for (String s : split(spec.getProperty("ticks", "1000"))) {
+				ticks.add(Integer.parseInt(s));
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Could not read the seeds or ticks in " + file + ": " + e.getMessage());
+		}
+		// Every combination of the transport parameters that were given, e.g. "CAR_SPEED=8 TRANSFER_PENALTY=100"
+		List<String> transport = new ArrayList<String>();
+		transport.add("");
+		for (String param : GlobalVars.TRANSPORT_PARAMS.PARAMETERS) {
+			List<String> values = split(spec.getProperty(param));
+			if (values.isEmpty()) {
+				continue;
+			}
+			List<String> combinations = new ArrayList<String>();
+			for (String t : transport) {
+				for (String v : values) {
+					try {
+						Double.parseDouble(v);
+					} catch (NumberFormatException e) {
+						throw new IOException("The value of " + param + " in " + file + " should be a number: " + v);
+					}
+					combinations.add((t.length() == 0 ? "" : t + " ") + param + "=" + v);
+				}
+			}
+			transport = combinations;
+		}
+		List<Run> runs = new ArrayList<Run>();
+		for (String t : transport) {
+			for (String defn : definitions) {
+				for (int tk : ticks) {
+					for (int seed : seeds) {
+						runs.add(new Run(runs.size(), defn, t, seed, tk));
+					}
+				}
+			}
+		}
+		return runs;
+	}
+
+	private static List<String> split(String value) {
+		List<String> values = new ArrayList<String>();
+		if (value != null) {
+			for (String s : value.split(";")) {
+				if (s.trim().length() > 0) {
+					values.add(s.trim());
+				}
+			}
+		}
+		return values;
+	}
+
+	private static boolean sweep(List<Run> runs, int numWorkers, int timeout, File outputFile) throws Exception {
+		double time = System.nanoTime();
+		// The runs for each setting of the transport parameters (each needs its own workers, see the class description)
+		Map<String, List<Run>> settings = new LinkedHashMap<String, List<Run>>();
+		for (Run r : runs) {
+			List<Run> setting = settings.get(r.transport);
+			if (setting == null) {
+				setting = new ArrayList<Run>();
+				settings.put(r.transport, setting);
+			}
+			setting.add(r);
+		}
+		LOGGER.log(Level.INFO, "Starting a sweep of " + runs.size() + " runs with " + numWorkers + " workers"
+				+ (settings.size() > 1 ? " for each of " + settings.size() + " transport settings." : "."));
+		int firstWorker = 0;
+		for (Map.Entry<String, List<Run>> e : settings.entrySet()) {
+			runWorkers(e.getValue(), e.getKey(), numWorkers, firstWorker, timeout, outputFile);
+			firstWorker += numWorkers;
+		}
+		writeOutput(runs, outputFile);
+		double hours = (System.nanoTime() - time) / 3.6e12;
+
+		int finished = 0;
+		Map<Integer, Integer> perWorker = new HashMap<Integer, Integer>();
+		for (Run r : runs) {
+			if (r.error == null) {
+				finished++;
+				Integer n = perWorker.get(r.worker);
+				perWorker.put(r.worker, n == null ? 1 : n + 1);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(finished == runs.size() ? "Finished all runs.\n" : "Only " + finished + " of " + runs.size()
+				+ " runs finished (see the output and logs).\n");
+		sb.append(String.format("\t%-30s %10.1fs%n", "Total time", hours * 3600));
+		sb.append(String.format("\t%-30s %10.1f%n", "Runs per hour", finished / hours));
+		for (Map.Entry<Integer, Integer> e : perWorker.entrySet()) {
+			sb.append(String.format("\t%-30s %10d%n", "Runs by worker " + e.getKey(), e.getValue()));
+		}
+		sb.append("Results have been written to ").append(outputFile).append("\n");
+		System.out.print(sb.toString());
+		return finished == runs.size();
+	}
+
+	/**
+	 * Start a set of workers with the same transport parameters and give them runs until all of the runs are finished.
+	 *
+	 * @param runs
+	 *            The runs, which all have the same transport parameters.
+	 * @param transport
+	 *            The transport parameters (see <code>Run.transport</code>).
+	 * @param numWorkers
+	 *            The number of workers to start.
+	 * @param firstWorker
+	 *            The number of the first worker (so that workers for different settings have different numbers).
+	 * @param timeout
+	 *            How long a worker can take to do a run (ms) before it is assumed to have hung.
+	 * @param outputFile
+	 *            The output file (the worker logs are written next to it).
+	 */
+	private static void runWorkers(List<Run> runs, String transport, int numWorkers, int firstWorker, int timeout,
+			File outputFile) throws Exception {
+		if (transport.length() > 0) {
+			LOGGER.log(Level.INFO, "Starting " + runs.size() + " runs with the transport parameters " + transport);
+		}
+		// The transport parameters are given to the workers as system properties (see TRANSPORT_PARAMS)
+		List<String> properties = new ArrayList<String>();
+		for (String param : split(transport.replace(' ', ';'))) {
+			properties.add("-D" + GlobalVars.TRANSPORT_PARAMS.PROPERTY_PREFIX + param);
+		}
+		Scheduler scheduler = new Scheduler(runs);
+		ServerSocket server = new ServerSocket(0, numWorkers, InetAddress.getByName("127.0.0.1"));
+		Map<Integer, Process> processes = new HashMap<Integer, Process>();
+		List<Thread> threads = new ArrayList<Thread>();
+		try {
+			for (int i = firstWorker; i < firstWorker + numWorkers; i++) {
+				processes.put(i, startWorker(SweepWorker.class, new File(outputFile.getPath() + ".worker" + i + ".log"),
+						properties, String.valueOf(server.getLocalPort()), String.valueOf(i)));
+			}
+			// Wait for the workers to connect, each is then looked after by its own thread
+			server.setSoTimeout(CONNECT_TIMEOUT);
+			for (int i = 0; i < numWorkers; i++) {
+				Socket socket;
+				try {
+					socket = server.accept();
+				} catch (SocketTimeoutException e) {
+					LOGGER.log(Level.SEVERE, "Only " + i + " of " + numWorkers + " workers started.");
+					break;
+				}
+				scheduler.workerStarted();
+				Thread t = new Thread(new WorkerConnection(socket, scheduler, processes, timeout), "SweepCoordinator-"
+						+ (firstWorker + i));
+				t.setDaemon(true);
+				t.start();
+				threads.add(t);
+			}
+			if (threads.isEmpty()) {
+				throw new IOException("None of the workers started (see the worker logs).");
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+		} finally {
+			server.close();
+			for (Process p : processes.values()) {
+				p.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Start a worker JVM with the same class path and JVM arguments as this one. Anything that the worker prints is
+	 * copied to a log file.
+	 *
+	 * @param mainClass
+	 *            The class to run.
+	 * @param log
+	 *            The file to write the worker's output to.
+	 * @param args
+	 *            The arguments for the worker.
+	 */
+	static Process startWorker(Class<?> mainClass, final File log, String... args) throws IOException {
+		return startWorker(mainClass, log, new ArrayList<String>(), args);
+	}
+
+	/**
+	 * Start a worker JVM with the same class path and JVM arguments as this one, and some extra JVM arguments (which
+	 * override those of this JVM). Anything that the worker prints is copied to a log file.
+	 *
+	 * @param mainClass
+	 *            The class to run.
+	 * @param log
+	 *            The file to write the worker's output to.
+	 * @param jvmArgs
+	 *            The extra JVM arguments (e.g. system properties).
+	 * @param args
+	 *            The arguments for the worker.
+	 */
+	static Process startWorker(Class<?> mainClass, final File log, List<String> jvmArgs, String... args)
+			throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			// Don't copy debugger options, the workers would all try to listen on the same port
+			if (!arg.startsWith("-agentlib:jdwp") && !arg.startsWith("-Xrunjdwp")) {
+				command.add(arg);
+			}
+		}
+		command.addAll(jvmArgs); // (The last value of a system property is the one that is used)
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(mainClass.getName());
+		for (String arg : args) {
+			command.add(arg);
+		}
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		final Process process = builder.start();
+		process.getOutputStream().close();
+
+		Thread pump = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					InputStream in = process.getInputStream();
+					OutputStream out = new FileOutputStream(log);
+					try {
+						byte[] buf = new byte[8192];
+						int n;
+						while ((n = in.read(buf)) >= 0) {
+							out.write(buf, 0, n);
+							out.flush();
+						}
+					} finally {
+						out.close();
+					}
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not write the worker log " + log, e);
+				}
+			}
+		}, "WorkerLog-" + log.getName());
+		pump.setDaemon(true);
+		pump.start();
+		return process;
+	}
+
+	/**
+	 * Write the results of all of the runs to the output file, one column at a time (see the class description).
+	 */
+	private static void writeOutput(List<Run> runs, File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(runs.size());
+			out.writeInt(10);
+			out.writeUTF("run");
+			out.writeByte('I');
+			for (Run r : runs) {
+				out.writeInt(r.id);
+			}
+			out.writeUTF("agent_definition");
+			out.writeByte('S');
+			for (Run r : runs) {
+				writeString(out, r.defn);
+			}
+			out.writeUTF("transport");
+			out.writeByte('S');
+			for (Run r : runs) {
+				writeString(out, r.transport);
+			}
+			out.writeUTF("seed");
+			out.writeByte('I');
+			for (Run r : runs) {
+				out.writeInt(r.seed);
+			}
+			out.writeUTF("ticks");
+			out.writeByte('I');
+			for (Run r : runs) {
+				out.writeInt(r.ticks);
+			}
+			out.writeUTF("agents");
+			out.writeByte('I');
+			for (Run r : runs) {
+				out.writeInt(r.agents);
+			}
+			out.writeUTF("ticks_completed");
+			out.writeByte('I');
+			for (Run r : runs) {
+				out.writeInt(r.ticksCompleted);
+			}
+			out.writeUTF("seconds");
+			out.writeByte('D');
+			for (Run r : runs) {
+				out.writeDouble(r.seconds);
+			}
+			out.writeUTF("worker");
+			out.writeByte('I');
+			for (Run r : runs) {
+				out.writeInt(r.worker);
+			}
+			out.writeUTF("error");
+			out.writeByte('S');
+			for (Run r : runs) {
+				writeString(out, r.error);
+			}
+		} finally {
+			out.close();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not replace the output file " + file + ", results are in " + tmp);
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = s.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/** A run in the sweep, along with its results once it has finished. */
+	static final class Run {
+		final int id;
+		final String defn;
+		/* The transport parameters, e.g. "CAR_SPEED=8 TRANSFER_PENALTY=100" (empty to use the usual values) */
+		final String transport;
+		final int seed;
+		final int ticks;
+
+		/* The results (written by the Scheduler) */
+		int attempts = 0;
+		int worker = -1;
+		int agents = 0;
+		int ticksCompleted = 0;
+		double seconds = 0;
+		String error = "Not run";
+
+		Run(int id, String defn, String transport, int seed, int ticks) {
+			this.id = id;
+			this.defn = defn;
+			this.transport = transport;
+			this.seed = seed;
+			this.ticks = ticks;
+		}
+
+		/** Runs with the same key are expected to take about the same amount of time. */
+		String key() {
+			return this.ticks + ":" + this.transport + ":" + this.defn;
+		}
+	}
+
+	/**
+	 * Decides which run each worker should do next. Runs are grouped by their key (see <code>Run.key()</code>) and the
+	 * mean time taken by the runs in each group is used to estimate how long the remaining ones will take.
+	 */
+	static final class Scheduler {
+
+		/* The runs that are waiting, in groups (with the same key) */
+		private final Map<String, LinkedList<Run>> waiting = new LinkedHashMap<String, LinkedList<Run>>();
+		/* For each group: the number of runs that have finished and the total time that they took */
+		private final Map<String, double[]> observed = new HashMap<String, double[]>();
+		/* The groups that have had a run started */
+		private final Map<String, Boolean> started = new HashMap<String, Boolean>();
+		private int running = 0;
+		private int workers = 0;
+
+		Scheduler(List<Run> runs) {
+			for (Run r : runs) {
+				LinkedList<Run> group = this.waiting.get(r.key());
+				if (group == null) {
+					group = new LinkedList<Run>();
+					this.waiting.put(r.key(), group);
+				}
+				group.add(r);
+			}
+		}
+
+		synchronized void workerStarted() {
+			this.workers++;
+		}
+
+		/**
+		 * Get the next run, waiting if there are no runs to do at the moment but some might need to be re-tried.
+		 *
+		 * @return The run or null if there are no more.
+		 */
+		synchronized Run next() throws InterruptedException {
+			while (true) {
+				String best = null;
+				double bestTime = -1;
+				for (String key : this.waiting.keySet()) {
+					double estimate = this.estimate(key);
+					if (estimate > bestTime) {
+						best = key;
+						bestTime = estimate;
+					}
+				}
+				if (best != null) {
+					LinkedList<Run> group = this.waiting.get(best);
+					Run r = group.removeFirst();
+					if (group.isEmpty()) {
+						this.waiting.remove(best);
+					}
+					this.started.put(best, true);
+					r.attempts++;
+					this.running++;
+					return r;
+				}
+				if (this.running == 0) {
+					return null;
+				}
+				this.wait();
+			}
+		}
+
+		/* Estimate how long a run in the given group will take (longer if nothing is known about the group yet) */
+		private double estimate(String key) {
+			double[] o = this.observed.get(key);
+			if (o != null) {
+				return o[1] / o[0];
+			}
+			if (!this.started.containsKey(key)) {
+				return Double.MAX_VALUE;
+			}
+			// A run from this group is running but hasn't finished yet, use the mean of all groups
+			double n = 0, total = 0;
+			for (double[] g : this.observed.values()) {
+				n += g[0];
+				total += g[1];
+			}
+			return n == 0 ? 0 : total / n;
+		}
+
+		/** A worker has finished a run (the run's results have been set). */
+		synchronized void finished(Run r) {
+			double[] o = this.observed.get(r.key());
+			if (o == null) {
+				o = new double[2];
+				this.observed.put(r.key(), o);
+			}
+			o[0]++;
+			o[1] += r.seconds;
+			this.running--;
+			this.notifyAll();
+		}
+
+		/**
+		 * A worker has died while doing a run. The run is tried again by another worker, unless it has already been
+		 * tried too many times (it might have been the cause).
+		 */
+		synchronized void workerLost(Run r, String reason) {
+			this.workers--;
+			if (r != null) {
+				this.running--;
+				r.error = reason;
+				if (r.attempts < MAX_ATTEMPTS) {
+					LinkedList<Run> group = this.waiting.get(r.key());
+					if (group == null) {
+						group = new LinkedList<Run>();
+						this.waiting.put(r.key(), group);
+					}
+					group.addFirst(r);
+				}
+			}
+			if (this.workers == 0) {
+				// No one left to do the remaining runs
+				this.waiting.clear();
+			}
+			this.notifyAll();
+		}
+	}
+
+	/** Looks after the connection to a single worker: gives it runs and reads back the results. */
+	private static final class WorkerConnection implements Runnable {
+
+		private final Socket socket;
+		private final Scheduler scheduler;
+		/* The worker processes (by worker number), so that a worker that has hung can be stopped */
+		private final Map<Integer, Process> processes;
+		private final int timeout;
+
+		WorkerConnection(Socket socket, Scheduler scheduler, Map<Integer, Process> processes, int timeout) {
+			this.socket = socket;
+			this.scheduler = scheduler;
+			this.processes = processes;
+			this.timeout = timeout;
+		}
+
+		@Override
+		public void run() {
+			int worker = -1;
+			Run run = null;
+			try {
+				this.socket.setTcpNoDelay(true);
+				this.socket.setSoTimeout(LOAD_TIMEOUT);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+				if (in.readInt() != SweepWorker.MAGIC) {
+					throw new IOException("Something other than a worker connected to the coordinator.");
+				}
+				worker = in.readInt();
+				byte type = in.readByte();
+				if (type == SweepWorker.FAILED) {
+					throw new IOException("Worker " + worker + " could not load the environment: " + in.readUTF());
+				}
+				LOGGER.log(Level.FINE, "Worker " + worker + " loaded the environment in " + in.readDouble() + "ms");
+				this.socket.setSoTimeout(this.timeout);
+				while ((run = this.scheduler.next()) != null) {
+					out.writeByte(SweepWorker.RUN);
+					out.writeInt(run.id);
+					out.writeUTF(run.defn);
+					out.writeInt(run.seed);
+					out.writeInt(run.ticks);
+					out.flush();
+					if (in.readByte() != SweepWorker.RESULT || in.readInt() != run.id) {
+						throw new IOException("Worker " + worker + " sent an unexpected message.");
+					}
+					run.worker = worker;
+					run.agents = in.readInt();
+					run.ticksCompleted = in.readInt();
+					run.seconds = in.readDouble();
+					String error = in.readUTF();
+					run.error = error.length() == 0 ? null : error;
+					LOGGER.log(Level.FINE, "Worker " + worker + " finished run " + run.id + " in " + run.seconds
+							+ "s" + (run.error == null ? "" : " with an error: " + run.error));
+					this.scheduler.finished(run);
+					run = null;
+				}
+				out.writeByte(SweepWorker.SHUTDOWN);
+				out.flush();
+				this.socket.close();
+			} catch (Exception e) {
+				String reason = "Worker " + worker + " failed: " + e;
+				if (e instanceof SocketTimeoutException) {
+					reason = "Worker " + worker + " timed out (it might have hung)";
+				}
+				LOGGER.log(Level.SEVERE, "Lost worker " + worker + (run == null ? "" : " while it was doing run "
+						+ run.id), e);
+				this.scheduler.workerLost(run, reason);
+				try {
+					this.socket.close();
+				} catch (IOException e1) {
+					LOGGER.log(Level.FINE, "", e1);
+				}
+				// Stop the worker in case it is still running (e.g. it has hung)
+				Process p = this.processes.get(worker);
+				if (p != null) {
+					p.destroy();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A worker process for a <code>SweepCoordinator</code>. Workers are started by the coordinator as child JVMs (with
+ * the same working directory, class path and JVM arguments) and connect back to it over a local socket. Each worker
+ * loads the environment once and then executes runs, one at a time, until the coordinator tells it to stop, so the
+ * (expensive) environment stays loaded between runs.
+ * <p>
+ * The protocol is very simple. All values are written with <code>DataOutputStream</code>:
+ * <ul>
+ * <li>worker -> coordinator: <code>MAGIC</code>, the worker's number, then either <code>READY</code> and the time
+ * taken to load the environment (ms) or <code>FAILED</code> and an error message.</li>
+ * <li>coordinator -> worker: <code>RUN</code>, the run number, agent definition, seed and number of ticks; or
+ * <code>SHUTDOWN</code>.</li>
+ * <li>worker -> coordinator (after each run): <code>RESULT</code>, the run number, the number of agents, the number of
+ * ticks that were run, the time taken (s) and the error that stopped the run (or an empty string).</li>
+ * </ul>
+ * </p>
+ *
+ * @author Nick Malleson
+ * @see SweepCoordinator
+ */
+public class SweepWorker {
+
+	private static Logger LOGGER = Logger.getLogger(SweepWorker.class.getName());
+
+	static final int MAGIC = 0x52435357; // 'RCSW'
+
+	/* Message types */
+	static final byte READY = 1;
+	static final byte FAILED = 2;
+	static final byte RUN = 3;
+	static final byte RESULT = 4;
+	static final byte SHUTDOWN = 5;
+
+	/**
+	 * @param args
+	 *            The port that the coordinator is listening on and the number of this worker.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.err.println("Usage: SweepWorker port worker_number (workers are started by a SweepCoordinator)");
+			System.exit(1);
+		}
+		RepastCityLogging.init();
+		int worker = Integer.parseInt(args[1]);
+		try {
+			Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), Integer.parseInt(args[0]));
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(MAGIC);
+			out.writeInt(worker);
+			try {
+				double loadTime = BatchRunner.loadEnvironment();
+				out.writeByte(READY);
+				out.writeDouble(loadTime);
+				out.flush();
+			} catch (Exception e) {
+				LOGGER.log(Level.SEVERE, "Worker " + worker + " could not load the environment", e);
+				out.writeByte(FAILED);
+				out.writeUTF(String.valueOf(e));
+				out.flush();
+				socket.close();
+				System.exit(1);
+			}
+			serve(worker, in, out);
+			socket.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Worker " + worker + " lost its connection to the coordinator", e);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/** Execute runs until the coordinator sends <code>SHUTDOWN</code>. */
+	private static void serve(int worker, DataInputStream in, DataOutputStream out) throws IOException {
+		while (true) {
+			byte type;
+			try {
+				type = in.readByte();
+			} catch (EOFException e) {
+				LOGGER.log(Level.WARNING, "Worker " + worker + ": the coordinator closed the connection");
+				return;
+			}
+			if (type == SHUTDOWN) {
+				return;
+			} else if (type != RUN) {
+				throw new IOException("Unexpected message type from the coordinator: " + type);
+			}
+			int id = in.readInt();
+			String defn = in.readUTF();
+			int seed = in.readInt();
+			int ticks = in.readInt();
+			LOGGER.log(Level.FINE, "Worker " + worker + " starting run " + id + " (" + defn + ", seed " + seed + ")");
+			BatchRunner.Result r = BatchRunner.run(defn, seed, ticks);
+			out.writeByte(RESULT);
+			out.writeInt(id);
+			out.writeInt(r.agents);
+			out.writeInt(r.ticks);
+			out.writeDouble(r.seconds);
+			out.writeUTF(r.error == null ? "" : r.error);
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import repastcity3.main.RandomStream;
+
+/**
+ * Tests that the alias tables used by <code>BuildingSampler</code> choose buildings in proportion to their weights.
+ *
+ * @author Nick Malleson
+ */
+public class BuildingSamplerTest {
+
+	private List<Building> buildings;
+	private Map<Building, Double> weights;
+
+	private final BuildingSampler.Weight weight = new BuildingSampler.Weight() {
+		@Override
+		public double weight(Building b) {
+			return weights.get(b);
+		}
+	};
+
+	@Before
+	public void setUp() {
+		this.buildings = new ArrayList<Building>();
+		this.weights = new HashMap<Building, Double>();
+		double[] w = new double[] { 1, 2, 0, 3.5, 0.5, 3 };
+		for (int i = 0; i < w.length; i++) {
+			Building b = new Building();
+			b.setIdentifier("BuildingSamplerTest-" + i);
+			this.buildings.add(b);
+			this.weights.put(b, w[i]);
+		}
+	}
+
+	/* Sample lots of times and check that each building is chosen as often as its weight says it should be */
+	private void checkFrequencies(BuildingSampler sampler) {
+		int n = 200000;
+		Map<Building, Integer> counts = new HashMap<Building, Integer>();
+		RandomStream random = new RandomStream(1);
+		for (int i = 0; i < n; i++) {
+			Building b = sampler.sample(random);
+			Integer c = counts.get(b);
+			counts.put(b, c == null ? 1 : c + 1);
+		}
+		double total = 0;
+		for (Building b : this.buildings) {
+			total += this.weights.get(b);
+		}
+		for (Building b : this.buildings) {
+			Integer c = counts.get(b);
+			double expected = this.weights.get(b) / total;
+			assertEquals("Frequency of " + b, expected, c == null ? 0 : c / (double) n, 0.005);
+		}
+	}
+
+	@Test
+	public void buildingsAreChosenInProportionToTheirWeights() {
+		this.checkFrequencies(new BuildingSampler(this.buildings, this.weight));
+	}
+
+	@Test
+	public void uniformSamplersChooseEveryBuildingEqually() {
+		for (Building b : this.buildings) {
+			this.weights.put(b, 1.0);
+		}
+		this.checkFrequencies(new BuildingSampler(this.buildings, null));
+	}
+
+	@Test
+	public void refreshUsesTheNewWeights() {
+		BuildingSampler sampler = new BuildingSampler(this.buildings, this.weight);
+		this.weights.put(this.buildings.get(0), 10.0);
+		this.weights.put(this.buildings.get(3), 0.0);
+		sampler.refresh();
+		this.checkFrequencies(sampler);
+	}
+
+	@Test
+	public void badWeightsAreRejected() {
+		this.weights.put(this.buildings.get(1), -1.0);
+		try {
+			new BuildingSampler(this.buildings, this.weight);
+			fail("A negative weight was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		for (Building b : this.buildings) {
+			this.weights.put(b, 0.0);
+		}
+		try {
+			new BuildingSampler(this.buildings, this.weight);
+			fail("Weights that are all 0 were accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for <code>CacheFile</code>: values are read back as they were written, and caches that are out of date or
+ * broken are ignored (so that they are re-created).
+ *
+ * @author Nick Malleson
+ */
+public class CacheFileTest {
+
+	private File data;
+	private File cache;
+
+	@Before
+	public void setUp() throws IOException {
+		this.data = File.createTempFile("CacheFileTest", ".shp");
+		write(this.data, "some GIS data");
+		this.cache = File.createTempFile("CacheFileTest", ".cache");
+	}
+
+	@After
+	public void tearDown() {
+		this.data.delete();
+		this.cache.delete();
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		FileWriter w = new FileWriter(file);
+		try {
+			w.write(contents);
+		} finally {
+			w.close();
+		}
+	}
+
+	private void writeCache() throws IOException {
+		CacheFile.Writer w = new CacheFile.Writer(CacheFile.ZONE_SKIM, this.data);
+		w.putInt(42);
+		w.putLong(-7L);
+		w.putInts(new int[] { 1, -2, 3 });
+		w.putDoubles(new double[] { 0.5, -1.08, 53.96 });
+		w.putFloats(new float[] { 1.5f, Float.POSITIVE_INFINITY });
+		w.putBytes(new byte[] { 1, 2, 3, 4, 5 });
+		w.putStrings(new String[] { "a", null, "", "\u00a9 caf\u00e9" });
+		w.write(this.cache);
+	}
+
+	@Test
+	public void valuesAreReadBackAsTheyWereWritten() throws IOException {
+		this.writeCache();
+		ByteBuffer buf = CacheFile.read(this.cache, CacheFile.ZONE_SKIM, this.data);
+		assertNotNull(buf);
+		assertEquals(42, buf.getInt());
+		assertEquals(-7L, buf.getLong());
+		assertArrayEquals(new int[] { 1, -2, 3 }, CacheFile.getInts(buf, 3));
+		assertArrayEquals(new double[] { 0.5, -1.08, 53.96 }, CacheFile.getDoubles(buf, 3), 0);
+		assertArrayEquals(new float[] { 1.5f, Float.POSITIVE_INFINITY }, CacheFile.getFloats(buf, 2), 0);
+		assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, CacheFile.getBytes(buf, 5));
+		assertArrayEquals(new String[] { "a", null, "", "\u00a9 caf\u00e9" }, CacheFile.getStrings(buf));
+		assertEquals(0, buf.remaining());
+	}
+
+	@Test
+	public void cachesThatDontMatchAreIgnored() throws IOException {
+		assertNull("A cache that doesn't exist", CacheFile.read(new File(this.cache.getPath() + ".missing"),
+				CacheFile.ZONE_SKIM, this.data));
+		this.writeCache();
+		assertNull("The wrong type of cache", CacheFile.read(this.cache, CacheFile.ENVIRONMENT, this.data));
+		write(this.data, "some different GIS data");
+		assertNull("A cache of different data", CacheFile.read(this.cache, CacheFile.ZONE_SKIM, this.data));
+	}
+
+	@Test
+	public void truncatedCachesAreIgnored() throws IOException {
+		this.writeCache();
+		RandomAccessFile raf = new RandomAccessFile(this.cache, "rw");
+		try {
+			raf.setLength(raf.length() - 3);
+		} finally {
+			raf.close();
+		}
+		assertNull(CacheFile.read(this.cache, CacheFile.ZONE_SKIM, this.data));
+		// (Too short to have a header)
+		write(this.cache, "RCTY");
+		assertNull(CacheFile.read(this.cache, CacheFile.ZONE_SKIM, this.data));
+	}
+
+	@Test
+	public void readingTooMuchUnderflows() throws IOException {
+		this.writeCache();
+		ByteBuffer buf = CacheFile.read(this.cache, CacheFile.ZONE_SKIM, this.data);
+		buf.getInt();
+		buf.getLong();
+		try {
+			CacheFile.getDoubles(buf, 1000);
+			fail("Read more doubles than there are");
+		} catch (BufferUnderflowException e) {
+			// expected
+		}
+		try {
+			CacheFile.getInts(buf, -1);
+			fail("Read a negative number of ints");
+		} catch (BufferUnderflowException e) {
+			// expected
+		}
+		// A table of strings that says it has more strings than would fit in the rest of the file
+		CacheFile.Writer w = new CacheFile.Writer(CacheFile.ZONE_SKIM, this.data);
+		w.putInt(1000000);
+		w.write(this.cache);
+		buf = CacheFile.read(this.cache, CacheFile.ZONE_SKIM, this.data);
+		try {
+			CacheFile.getStrings(buf);
+			fail("Read more strings than there are");
+		} catch (BufferUnderflowException e) {
+			// expected
+		}
+	}
+}
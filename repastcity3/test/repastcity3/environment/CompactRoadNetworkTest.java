@@ -0,0 +1,206 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import repast.simphony.context.Context;
+import repast.simphony.context.DefaultContext;
+import repast.simphony.context.space.graph.NetworkBuilder;
+import repast.simphony.space.graph.Network;
+import repastcity3.main.GlobalVars.TRANSPORT_PARAMS;
+import repastcity3.main.GlobalVars.TRANSPORT_PARAMS.MODE;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Tests for the searches in <code>CompactRoadNetwork</code>, on a few roads whose lengths are easy to add up. Costs are
+ * the length of a road divided by the speed of the mode that is used on it (see <code>findPath()</code>).
+ *
+ * @author Nick Malleson
+ */
+public class CompactRoadNetworkTest {
+
+	private static final int WALKER = MODE.WALK.bit;
+	private static final int DRIVER = MODE.WALK.bit | MODE.CAR.bit;
+	private static final double DELTA = 1e-6;
+
+	private static int numRoads = 0;
+
+	private Context<Junction> junctions;
+	private Network<Junction> network;
+	private Junction a, b, c;
+
+	@Before
+	public void setUp() {
+		this.junctions = new DefaultContext<Junction>("CompactRoadNetworkTest");
+		this.network = new NetworkBuilder<Junction>("CompactRoadNetworkTest", this.junctions, false).buildNetwork();
+		this.a = this.junction(0, 0);
+		this.b = this.junction(1, 0);
+		this.c = this.junction(2, 0);
+	}
+
+	private Junction junction(double x, double y) {
+		Junction j = new Junction();
+		j.setCoords(new Coordinate(x, y));
+		this.junctions.add(j);
+		return j;
+	}
+
+	/* Add a road, access is a mask of MODE bits (0 means any mode) */
+	private void road(Junction from, Junction to, double length, int access, boolean majorRoad) throws Exception {
+		Road r = new Road();
+		r.setIdentifier("CompactRoadNetworkTest-" + numRoads++);
+		NetworkEdge<Junction> e = new NetworkEdge<Junction>(from, to, false, length, access);
+		e.setRoad(r);
+		e.setMajorRoad(majorRoad);
+		this.network.addEdge(e);
+	}
+
+	private static CompactRoadNetwork.Path path(CompactRoadNetwork net, Junction from, Junction to, int agentMask) {
+		return net.findPath(new Junction[] { from }, new double[] { 0 }, new Junction[] { to }, new double[] { 0 },
+				agentMask);
+	}
+
+	@Test
+	public void roadsWithoutAccessCanBeUsedByAnyMode() throws Exception {
+		this.road(this.a, this.b, 10, 0, false);
+		this.road(this.b, this.c, 20, 0, true);
+		CompactRoadNetwork net = new CompactRoadNetwork(this.network, 0);
+
+		CompactRoadNetwork.Path walk = path(net, this.a, this.c, WALKER);
+		assertEquals(2, walk.size());
+		assertEquals(30, walk.getCost(), DELTA);
+		assertSame(this.c, walk.getDestination());
+
+		// Drivers are quicker, especially on the major road
+		CompactRoadNetwork.Path drive = path(net, this.a, this.c, DRIVER);
+		assertEquals(MODE.CAR, drive.getMode(0));
+		assertEquals(MODE.CAR, drive.getMode(1));
+		assertEquals(10 / MODE.CAR.speed + 20 / (MODE.CAR.speed * TRANSPORT_PARAMS.MAJOR_ROAD_ADVANTAGE),
+				drive.getCost(), DELTA);
+		assertTrue(net.isAccessible(this.a, WALKER));
+	}
+
+	@Test
+	public void walkersCrawlAlongRoadsTheyCantWalk() throws Exception {
+		this.road(this.a, this.b, 10, MODE.CAR.bit, false);
+		CompactRoadNetwork net = new CompactRoadNetwork(this.network, 0);
+
+		// The road can still be used (the network is connected for everyone) but it is very slow
+		CompactRoadNetwork.Path walk = path(net, this.a, this.b, WALKER);
+		assertNotNull(walk);
+		assertTrue(walk.getCost() > 1e5);
+		assertFalse(net.isAccessible(this.a, WALKER));
+		assertTrue(net.isAccessible(this.a, DRIVER));
+		assertEquals(10 / MODE.CAR.speed, path(net, this.a, this.b, DRIVER).getCost(), DELTA);
+	}
+
+	@Test
+	public void changingModeCostsTheTransferPenalty() throws Exception {
+		// Drive to b, then walk to c (cars can't use the second road)
+		this.road(this.a, this.b, 100, MODE.CAR.bit, false);
+		this.road(this.b, this.c, 10, MODE.WALK.bit, false);
+
+		CompactRoadNetwork net = new CompactRoadNetwork(this.network, 5);
+		assertEquals(5, net.getTransferPenalty(), DELTA);
+		CompactRoadNetwork.Path p = path(net, this.a, this.c, DRIVER);
+		assertEquals(MODE.CAR, p.getMode(0));
+		assertEquals(MODE.WALK, p.getMode(1));
+		assertEquals(100 / MODE.CAR.speed + 5 + 10, p.getCost(), DELTA);
+
+		// If changing mode costs more than crawling then the agent crawls instead
+		net = new CompactRoadNetwork(this.network, 1e12);
+		p = path(net, this.a, this.c, DRIVER);
+		assertEquals(MODE.WALK, p.getMode(0));
+		assertEquals(MODE.WALK, p.getMode(1));
+	}
+
+	@Test
+	public void costsFromMatchPaths() throws Exception {
+		Junction d = this.junction(1, 1);
+		this.road(this.a, this.b, 100, MODE.CAR.bit, true);
+		this.road(this.b, this.c, 10, MODE.WALK.bit, false);
+		this.road(this.a, d, 30, 0, false);
+		this.road(d, this.c, 40, MODE.WALK.bit | MODE.BUS.bit, false);
+		int busUser = MODE.WALK.bit | MODE.BUS.bit | MODE.CAR.bit;
+		CompactRoadNetwork net = new CompactRoadNetwork(this.network, 3);
+
+		Junction[] targets = new Junction[] { this.a, this.b, this.c, d };
+		for (int mask : new int[] { WALKER, DRIVER, busUser }) {
+			double[] costs = net.getCostsFrom(this.a, targets, mask);
+			assertEquals(0, costs[0], DELTA);
+			for (int t = 1; t < targets.length; t++) {
+				assertEquals("Cost to " + targets[t] + " with mask " + mask, path(net, this.a, targets[t], mask)
+						.getCost(), costs[t], DELTA);
+			}
+		}
+	}
+
+	@Test
+	public void roadsWithinCostDependOnTheAgentsTransport() throws Exception {
+		Junction d = this.junction(3, 0);
+		Junction e = this.junction(0, 1);
+		this.road(this.a, this.b, 10, 0, false);
+		this.road(this.b, this.c, 10, 0, false);
+		this.road(this.c, d, 10, 0, false);
+		this.road(this.a, e, 10, MODE.CAR.bit, false);
+		CompactRoadNetwork net = new CompactRoadNetwork(this.network, 0);
+		Junction[] sources = new Junction[] { this.a };
+		double[] sourceCosts = new double[] { 0 };
+
+		// Walkers get as far as b (roads at a junction that has been reached count, even the one they can't walk)
+		List<Road> walked = new ArrayList<Road>();
+		net.getRoadsWithinCost(sources, sourceCosts, 15, WALKER, walked);
+		assertEquals(3, walked.size());
+
+		// Drivers are five times quicker so can get all the way to d
+		List<Road> driven = new ArrayList<Road>();
+		net.getRoadsWithinCost(sources, sourceCosts, 15, DRIVER, driven);
+		assertEquals(4, driven.size());
+		assertTrue(driven.containsAll(walked));
+
+		// Nothing can be reached if the budget has already been spent getting onto the network
+		List<Road> none = new ArrayList<Road>();
+		net.getRoadsWithinCost(sources, new double[] { 20 }, 15, DRIVER, none);
+		assertTrue(none.isEmpty());
+	}
+
+	@Test
+	public void unconnectedJunctionsCantBeReached() throws Exception {
+		Junction d = this.junction(5, 5);
+		Junction e = this.junction(6, 5);
+		this.road(this.a, this.b, 10, 0, false);
+		this.road(d, e, 10, 0, false);
+		CompactRoadNetwork net = new CompactRoadNetwork(this.network, 0);
+		assertNull(path(net, this.a, d, DRIVER));
+		assertEquals(Double.MAX_VALUE, net.getCostsFrom(this.a, new Junction[] { e }, DRIVER)[0], 0);
+	}
+}
@@ -0,0 +1,161 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import repastcity3.main.GlobalVars.TRANSPORT_PARAMS.MODE;
+
+/**
+ * Tests for <code>RaptorRouter</code> with a small timetable whose stops are in metres: vehicles are caught if the
+ * agent gets to the stop in time, agents can change between routes at stops that are close together and modes that the
+ * agent can't use are ignored.
+ *
+ * @author Nick Malleson
+ */
+public class RaptorRouterTest {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		this.directory = createDirectory("RaptorRouterTest");
+	}
+
+	@After
+	public void tearDown() {
+		deleteDirectory(this.directory);
+	}
+
+	static File createDirectory(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create a directory for the timetable: " + dir);
+		}
+		return dir;
+	}
+
+	static void deleteDirectory(File dir) {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	/*
+	 * Write the timetable files. Each string is the rows of the file (without the header), one row per line.
+	 */
+	static void writeTimetable(File dir, String stops, String routes, String trips, String stopTimes)
+			throws IOException {
+		write(new File(dir, "stops.txt"), "stop_id,stop_name,stop_x,stop_y\n" + stops);
+		write(new File(dir, "routes.txt"), "route_id,route_short_name,route_type\n" + routes);
+		write(new File(dir, "trips.txt"), "route_id,trip_id\n" + trips);
+		write(new File(dir, "stop_times.txt"), "trip_id,arrival_time,departure_time,stop_id,stop_sequence\n"
+				+ stopTimes);
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		FileWriter w = new FileWriter(file);
+		try {
+			w.write(contents);
+		} finally {
+			w.close();
+		}
+	}
+
+	/*
+	 * Stops A, B and C are on a bus route, 1km apart. Stop D is 100m from C and is on a train route to E.
+	 */
+	private Timetable createTimetable() throws IOException {
+		writeTimetable(this.directory, "A,Stop A,0,0\nB,Stop B,1000,0\nC,Stop C,2000,0\nD,Stop D,2000,100\n"
+				+ "E,Stop E,6000,100\n", "bus,1,3\ntrain,T,2\n", "bus,b1\nbus,b2\ntrain,t1\n",
+				"b1,08:00:00,08:00:00,A,1\nb1,08:03:00,08:03:00,B,2\nb1,08:06:00,08:06:00,C,3\n"
+						+ "b2,08:10:00,08:10:00,A,1\nb2,08:13:00,08:13:00,B,2\nb2,08:16:00,08:16:00,C,3\n"
+						+ "t1,08:20:00,08:20:00,D,1\nt1,08:25:00,08:25:00,E,2\n");
+		return new Timetable(this.directory, null);
+	}
+
+	private static int time(int hours, int minutes) {
+		return hours * 3600 + minutes * 60;
+	}
+
+	@Test
+	public void theFirstVehicleThatCanBeCaughtIsTaken() throws Exception {
+		RaptorRouter router = new RaptorRouter(this.createTimetable());
+
+		// Just in time for the first bus
+		RaptorRouter.Journey j = router.route(new int[] { 0 }, new int[] { time(8, 0) }, new int[] { 2 },
+				new int[] { 60 }, MODE.BUS.bit);
+		assertNotNull(j);
+		assertEquals(time(8, 7), j.getArrivalTime());
+		assertEquals(1, j.getLegs().size());
+		RaptorRouter.Leg ride = j.getLegs().get(0);
+		assertFalse(ride.isWalk());
+		assertEquals(3, ride.getStops().length);
+		assertEquals(time(8, 0), ride.getDepartureTime());
+		assertEquals(time(8, 6), ride.getArrivalTime());
+
+		// Just missed it, so wait for the next one
+		j = router.route(new int[] { 0 }, new int[] { time(8, 0) + 1 }, new int[] { 1 }, new int[] { 0 },
+				MODE.BUS.bit);
+		assertEquals(time(8, 13), j.getArrivalTime());
+	}
+
+	@Test
+	public void agentsCanChangeAtNearbyStops() throws Exception {
+		Timetable timetable = this.createTimetable();
+		RaptorRouter router = new RaptorRouter(timetable);
+		RaptorRouter.Journey j = router.route(new int[] { 0 }, new int[] { time(8, 0) }, new int[] { 4 },
+				new int[] { 0 }, MODE.BUS.bit | MODE.TRAIN.bit);
+		assertNotNull(j);
+		assertEquals(time(8, 25), j.getArrivalTime());
+		List<RaptorRouter.Leg> legs = j.getLegs();
+		assertEquals(3, legs.size());
+		assertFalse(legs.get(0).isWalk());
+		assertTrue(legs.get(1).isWalk());
+		assertEquals(2, legs.get(1).getStops()[0]);
+		assertEquals(3, legs.get(1).getStops()[1]);
+		assertEquals(time(8, 6) + Timetable.walkingTime(100), legs.get(1).getArrivalTime());
+		assertFalse(legs.get(2).isWalk());
+		assertEquals(0, j.getFirstStop());
+		assertEquals(4, j.getLastStop());
+	}
+
+	@Test
+	public void modesThatCantBeUsedAreIgnored() throws Exception {
+		RaptorRouter router = new RaptorRouter(this.createTimetable());
+		assertNull(router.route(new int[] { 0 }, new int[] { time(8, 0) }, new int[] { 4 }, new int[] { 0 },
+				MODE.BUS.bit));
+		assertNull(router.route(new int[] { 0 }, new int[] { time(8, 0) }, new int[] { 2 }, new int[] { 0 },
+				MODE.TRAIN.bit));
+	}
+}
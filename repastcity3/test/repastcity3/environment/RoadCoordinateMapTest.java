@@ -0,0 +1,123 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Tests for <code>RoadCoordinateMap</code>. The coordinates are in degrees, like those of the real geography, so
+ * coordinates that are only a few metres apart must not be confused.
+ *
+ * @author Nick Malleson
+ */
+public class RoadCoordinateMapTest {
+
+	private static int numRoads = 0;
+
+	private Road r1, r2, r3;
+	private RoadCoordinateMap map;
+
+	/* Road identifiers must be unique so every test gets new ones */
+	private static Road road() throws Exception {
+		Road r = new Road();
+		r.setIdentifier("RoadCoordinateMapTest-" + numRoads++);
+		return r;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		this.r1 = road();
+		this.r2 = road();
+		this.r3 = road();
+		// r1 and r2 meet at (-1.08, 53.96); r3 visits (-1.07, 53.97) twice (it is a loop)
+		Coordinate[][] coords = new Coordinate[][] {
+				{ new Coordinate(-1.09, 53.95), new Coordinate(-1.08, 53.96) },
+				{ new Coordinate(-1.08, 53.96), new Coordinate(-1.07, 53.97), new Coordinate(0.0, 53.97) },
+				{ new Coordinate(-1.07, 53.97), new Coordinate(-1.06, 53.98), new Coordinate(-1.07, 53.97) } };
+		this.map = new RoadCoordinateMap(new Road[] { this.r1, this.r2, this.r3 }, coords);
+	}
+
+	@Test
+	public void findsRoadCoordinates() {
+		assertEquals(5, this.map.size());
+		List<Road> roads = this.map.get(new Coordinate(-1.09, 53.95));
+		assertEquals(1, roads.size());
+		assertSame(this.r1, roads.get(0));
+		assertTrue(this.map.containsKey(new Coordinate(-1.06, 53.98)));
+	}
+
+	@Test
+	public void sharedCoordinatesHaveAllTheirRoads() {
+		List<Road> roads = this.map.get(new Coordinate(-1.08, 53.96));
+		assertEquals(2, roads.size());
+		assertTrue(roads.contains(this.r1) && roads.contains(this.r2));
+		// (r3 goes through this coordinate twice but should only be listed once)
+		roads = this.map.get(new Coordinate(-1.07, 53.97));
+		assertEquals(2, roads.size());
+		assertTrue(roads.contains(this.r2) && roads.contains(this.r3));
+	}
+
+	@Test
+	public void nearbyCoordinatesAreNotOnTheRoad() {
+		// About 1m and 1cm away from a road coordinate
+		assertFalse(this.map.containsKey(new Coordinate(-1.09001, 53.95)));
+		assertFalse(this.map.containsKey(new Coordinate(-1.09, 53.9500001)));
+		assertNull(this.map.get(new Coordinate(-1.0800001, 53.96)));
+	}
+
+	@Test
+	public void negativeZeroIsTheSameCoordinate() {
+		assertTrue(this.map.containsKey(new Coordinate(-0.0, 53.97)));
+		assertSame(this.r2, this.map.get(new Coordinate(-0.0, 53.97)).get(0));
+	}
+
+	@Test
+	public void manyCoordinates() throws Exception {
+		// Enough coordinates on a fine grid to make the hash table probe
+		int n = 200;
+		Road[] roads = new Road[n];
+		Coordinate[][] coords = new Coordinate[n][];
+		for (int r = 0; r < n; r++) {
+			roads[r] = road();
+			coords[r] = new Coordinate[n];
+			for (int i = 0; i < n; i++) {
+				coords[r][i] = new Coordinate(-1.1 + 0.00001 * i, 53.9 + 0.00001 * r);
+			}
+		}
+		RoadCoordinateMap big = new RoadCoordinateMap(roads, coords);
+		assertEquals(n * n, big.size());
+		for (int r = 0; r < n; r++) {
+			for (int i = 0; i < n; i++) {
+				assertSame(roads[r], big.get(new Coordinate(-1.1 + 0.00001 * i, 53.9 + 0.00001 * r)).get(0));
+			}
+			assertFalse(big.containsKey(new Coordinate(-1.1 + 0.00001 * n, 53.9 + 0.00001 * r)));
+		}
+	}
+}
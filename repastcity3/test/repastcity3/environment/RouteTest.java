@@ -0,0 +1,89 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import repastcity3.main.GlobalVars;
+import repastcity3.main.GlobalVars.TRANSPORT_PARAMS;
+import repastcity3.main.GlobalVars.TRANSPORT_PARAMS.MODE;
+
+/**
+ * Tests that a ride on public transport that has been added to a route plan gets the agent to the last stop when the
+ * timetable says that it will. The stops are in degrees (like the default data) so the speed of the ride has to be
+ * worked out in metres.
+ *
+ * @author Nick Malleson
+ */
+public class RouteTest {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		this.directory = RaptorRouterTest.createDirectory("RouteTest");
+	}
+
+	@After
+	public void tearDown() {
+		RaptorRouterTest.deleteDirectory(this.directory);
+	}
+
+	/*
+	 * Work out how many ticks it takes to follow a plan in the same way as Route.travel(): each tick the agent covers
+	 * TRAVEL_PER_TURN metres, multiplied by the speed of the part of the plan that it is on.
+	 */
+	private static int ticksToFollow(RoutePlan plan, Timetable timetable) {
+		double walkingMetres = 0;
+		for (int i = 1; i < plan.size(); i++) {
+			walkingMetres += timetable.distance(plan.getCoordinate(i - 1), plan.getCoordinate(i)) / plan.getSpeed(i);
+		}
+		return (int) Math.ceil(walkingMetres / GlobalVars.GEOGRAPHY_PARAMS.TRAVEL_PER_TURN);
+	}
+
+	@Test
+	public void ridesArriveWhenTheTimetableSays() throws Exception {
+		// Two stops about 1.3km apart in York, the bus leaves two minutes after the agent gets to the first one
+		RaptorRouterTest.writeTimetable(this.directory, "A,Stop A,-1.10,53.96\nB,Stop B,-1.08,53.96\n", "bus,1,3\n",
+				"bus,b1\n", "b1,08:02:00,08:02:00,A,1\nb1,08:06:00,08:06:00,B,2\n");
+		Timetable timetable = new Timetable(this.directory, DefaultGeographicCRS.WGS84);
+		int start = TRANSPORT_PARAMS.START_TIME;
+		RaptorRouter.Journey journey = new RaptorRouter(timetable).route(new int[] { 0 }, new int[] { start },
+				new int[] { 1 }, new int[] { 0 }, MODE.BUS.bit);
+		RaptorRouter.Leg ride = journey.getLegs().get(0);
+		assertFalse(ride.isWalk());
+
+		RoutePlan.Builder builder = new RoutePlan.Builder();
+		builder.add(timetable.getStopCoord(0), Road.nullRoad, 1, "RouteTest");
+		assertEquals(ride.getArrivalTime(), Route.addRide(builder, timetable, ride, start), 0);
+		RoutePlan plan = builder.build();
+
+		// The agent waits at the stop and rides to the next one, arriving on the tick that the bus does
+		int arrivalTick = (int) Math.ceil((ride.getArrivalTime() - start) / TRANSPORT_PARAMS.SECONDS_PER_TICK);
+		assertEquals(arrivalTick, ticksToFollow(plan, timetable));
+	}
+}
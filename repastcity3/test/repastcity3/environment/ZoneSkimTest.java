@@ -0,0 +1,110 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.environment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import repastcity3.main.GlobalVars.TRANSPORT_PARAMS.MODE;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Tests that a <code>ZoneSkim</code> can be written to a cache file and read back, and that a cache for different
+ * zones or transport isn't used.
+ *
+ * @author Nick Malleson
+ */
+public class ZoneSkimTest {
+
+	private File data;
+	private File cache;
+	private List<Area> zones;
+
+	@Before
+	public void setUp() throws IOException {
+		this.data = File.createTempFile("ZoneSkimTest", ".shp");
+		FileWriter w = new FileWriter(this.data);
+		try {
+			w.write("some zones");
+		} finally {
+			w.close();
+		}
+		this.cache = File.createTempFile("ZoneSkimTest", ".cache");
+		this.zones = zones("E1", "E2", "E3");
+	}
+
+	@After
+	public void tearDown() {
+		this.data.delete();
+		this.cache.delete();
+	}
+
+	private static List<Area> zones(String... ids) {
+		List<Area> zones = new ArrayList<Area>();
+		for (String id : ids) {
+			Area a = new Area();
+			a.setIdentifier(id);
+			a.setIndex(zones.size());
+			a.setCoords(new Coordinate(-1.08 + 0.01 * zones.size(), 53.96));
+			zones.add(a);
+		}
+		return zones;
+	}
+
+	@Test
+	public void timesAreReadBackAsTheyWereWritten() throws Exception {
+		float[] times = new float[] { 30, 120, Float.POSITIVE_INFINITY, 120, 45, 300, 600, 300, 60 };
+		new ZoneSkim(this.zones, MODE.WALK.bit, times).write(this.cache, this.data);
+
+		ZoneSkim skim = ZoneSkim.read(this.cache, this.zones, MODE.WALK.bit, this.data);
+		assertNotNull(skim);
+		assertEquals(3, skim.getNumZones());
+		assertEquals(MODE.WALK.bit, skim.getAgentMask());
+		for (int from = 0; from < 3; from++) {
+			for (int to = 0; to < 3; to++) {
+				assertEquals(times[from * 3 + to], skim.getTime(from, to), 0);
+			}
+		}
+		assertEquals(300, skim.getTime(this.zones.get(1), this.zones.get(2)), 0);
+	}
+
+	@Test
+	public void skimsForDifferentZonesOrTransportAreIgnored() throws Exception {
+		new ZoneSkim(this.zones, MODE.WALK.bit, new float[9]).write(this.cache, this.data);
+		assertNull("Different transport", ZoneSkim.read(this.cache, this.zones, MODE.WALK.bit | MODE.CAR.bit,
+				this.data));
+		assertNull("Fewer zones", ZoneSkim.read(this.cache, this.zones.subList(0, 2), MODE.WALK.bit, this.data));
+		assertNull("Different zones", ZoneSkim.read(this.cache, zones("E1", "E2", "E4"), MODE.WALK.bit, this.data));
+		assertNull("Zones in a different order", ZoneSkim.read(this.cache, Arrays.asList(this.zones.get(1),
+				this.zones.get(0), this.zones.get(2)), MODE.WALK.bit, this.data));
+	}
+}
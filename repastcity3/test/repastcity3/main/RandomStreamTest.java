@@ -0,0 +1,99 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests for <code>RandomStream</code>: streams can be repeated and restored, and the numbers are within their bounds.
+ *
+ * @author Nick Malleson
+ */
+public class RandomStreamTest {
+
+	@Test
+	public void streamsWithTheSameSeedAreTheSame() {
+		RandomStream r1 = new RandomStream(42);
+		RandomStream r2 = new RandomStream(42);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(r1.nextLong(), r2.nextLong());
+		}
+		assertFalse(new RandomStream(42).nextLong() == new RandomStream(43).nextLong());
+	}
+
+	@Test
+	public void agentsHaveDifferentStreams() {
+		assertFalse(RandomStream.forAgent(1, 0).nextLong() == RandomStream.forAgent(1, 1).nextLong());
+		assertFalse(RandomStream.forAgent(1, 0).nextLong() == RandomStream.forAgent(2, 0).nextLong());
+		assertEquals(RandomStream.forAgent(1, 5).nextLong(), RandomStream.forAgent(1, 5).nextLong());
+	}
+
+	@Test
+	public void stateCanBeRestored() {
+		RandomStream r = new RandomStream(7);
+		r.nextLong();
+		long state = r.getState();
+		double d = r.nextDouble();
+		int i = r.nextInt(100);
+		r.setState(state);
+		assertEquals(d, r.nextDouble(), 0);
+		assertEquals(i, r.nextInt(100));
+
+		// A split stream doesn't repeat its parent
+		RandomStream s = r.split();
+		assertFalse(s.nextLong() == r.nextLong());
+	}
+
+	@Test
+	public void numbersAreWithinTheirBounds() {
+		RandomStream r = new RandomStream(3);
+		for (int bound : new int[] { 1, 2, 3, 7, 64, 1000, Integer.MAX_VALUE }) {
+			boolean[] seen = new boolean[Math.min(bound, 1000)];
+			for (int i = 0; i < 20000; i++) {
+				int n = r.nextInt(bound);
+				assertTrue(n + " isn't less than " + bound, n >= 0 && n < bound);
+				if (n < seen.length) {
+					seen[n] = true;
+				}
+			}
+			if (bound <= 1000) {
+				for (int n = 0; n < bound; n++) {
+					assertTrue(n + " was never chosen from " + bound, seen[n]);
+				}
+			}
+		}
+		for (int i = 0; i < 10000; i++) {
+			double d = r.nextDouble();
+			assertTrue(d >= 0 && d < 1);
+			int n = r.nextIntFromTo(-3, 3);
+			assertTrue(n >= -3 && n <= 3);
+		}
+		try {
+			r.nextInt(0);
+			fail("A bound of 0 was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Runs the toy city in two region workers (see <code>RegionCoordinator</code>) to check that agents really are handed
+ * over between the regions. Workers are separate JVMs that load the environment from <code>repastcity.properties</code>
+ * so, like the model, this must be run from the project directory.
+ *
+ * @author Nick Malleson
+ */
+public class RegionCoordinatorTest {
+
+	@Test
+	public void agentsAreHandedOverBetweenRegions() throws Exception {
+		// (runRegions() also fails if any agents were lost on the way)
+		long handovers = RegionCoordinator.runRegions(2, 50, 50, 1, "point:people.shp$repastcity3.agent.DefaultAgent");
+		assertTrue("No agents moved from one region to the other", handovers > 0);
+	}
+}
@@ -0,0 +1,108 @@
+/*
+Copyright 2012 Nick Malleson
+This file is part of RepastCity.
+
+RepastCity is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+RepastCity is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with RepastCity.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package repastcity3.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for the parts of <code>SweepCoordinator</code> that don't need any workers: reading the spec file and
+ * deciding which run to do next.
+ *
+ * @author Nick Malleson
+ */
+public class SweepCoordinatorTest {
+
+	@Test
+	public void specsHaveARunForEveryCombination() throws Exception {
+		File spec = File.createTempFile("SweepCoordinatorTest", ".properties");
+		try {
+			FileWriter w = new FileWriter(spec);
+			try {
+				w.write("AGENT_DEFINITION = random:10 ; random:20\nseed = 1-3\nticks = 50\n"
+						+ "CAR_SPEED = 5 ; 8\nTRANSFER_PENALTY = 100\n");
+			} finally {
+				w.close();
+			}
+			List<SweepCoordinator.Run> runs = SweepCoordinator.readSpec(spec);
+			assertEquals(2 * 3 * 2, runs.size());
+			for (int i = 0; i < runs.size(); i++) {
+				SweepCoordinator.Run r = runs.get(i);
+				assertEquals(i, r.id);
+				assertEquals(50, r.ticks);
+				assertEquals(1 + i % 3, r.seed);
+				assertEquals(i % 6 < 3 ? "random:10" : "random:20", r.defn);
+				assertEquals(i < 6 ? "TRANSFER_PENALTY=100 CAR_SPEED=5" : "TRANSFER_PENALTY=100 CAR_SPEED=8",
+						r.transport);
+			}
+		} finally {
+			spec.delete();
+		}
+	}
+
+	@Test
+	public void longestRunsAreDoneFirst() throws Exception {
+		SweepCoordinator.Run a1 = new SweepCoordinator.Run(0, "a", "", 1, 10);
+		SweepCoordinator.Run a2 = new SweepCoordinator.Run(1, "a", "", 2, 10);
+		SweepCoordinator.Run b1 = new SweepCoordinator.Run(2, "b", "", 1, 10);
+		SweepCoordinator.Run b2 = new SweepCoordinator.Run(3, "b", "", 2, 10);
+		SweepCoordinator.Scheduler scheduler = new SweepCoordinator.Scheduler(Arrays.asList(a1, a2, b1, b2));
+		scheduler.workerStarted();
+
+		// Each group is tried once before any are repeated
+		assertSame(a1, scheduler.next());
+		a1.seconds = 1;
+		scheduler.finished(a1);
+		assertSame(b1, scheduler.next());
+		b1.seconds = 5;
+		scheduler.finished(b1);
+		// Then the group that takes longest goes first
+		assertSame(b2, scheduler.next());
+		scheduler.finished(b2);
+		assertSame(a2, scheduler.next());
+		scheduler.finished(a2);
+		assertNull(scheduler.next());
+	}
+
+	@Test
+	public void runsFromLostWorkersAreTriedAgain() throws Exception {
+		SweepCoordinator.Run r = new SweepCoordinator.Run(0, "a", "", 1, 10);
+		SweepCoordinator.Scheduler scheduler = new SweepCoordinator.Scheduler(Arrays.asList(r));
+		scheduler.workerStarted();
+		scheduler.workerStarted();
+		scheduler.workerStarted();
+
+		assertSame(r, scheduler.next());
+		scheduler.workerLost(r, "first");
+		assertSame(r, scheduler.next());
+		assertEquals(2, r.attempts);
+		// It has been tried enough times now (it might be what is killing the workers)
+		scheduler.workerLost(r, "second");
+		assertNull(scheduler.next());
+		assertEquals("second", r.error);
+	}
+}